@@ -0,0 +1,57 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * {@link HttpFilters} that may take their time to decide whether to short-circuit a request, for
+ * example because the response is being fetched for another client or a policy service has to be
+ * asked, without blocking the thread handling the client connection.
+ *
+ * <p>The stages may complete on any thread; the proxy carries on processing the request on the
+ * client connection's event loop. See {@link AsyncHttpFiltersAdapter} for a base class that
+ * completes both stages immediately with the results of the synchronous filter methods.
+ */
+public interface AsyncHttpFilters extends HttpFilters {
+  /**
+   * Called instead of {@link #clientToProxyRequest} for the {@link HttpRequest} starting a request.
+   * The proxy stops reading from the client until the returned stage completes, and then either
+   * responds with the response it completed with, as with {@link #clientToProxyRequest}, or, if it
+   * completed with null, continues processing the request as usual. If the stage completes
+   * exceptionally, the client gets a 502 Bad Gateway response.
+   *
+   * <p>{@link #clientToProxyRequest} is still called for the {@link
+   * io.netty.handler.codec.http.HttpContent}s following the request.
+   *
+   * @param httpRequest Client to Proxy HttpRequest
+   * @return a stage completing with a short-circuit response, or with null to continue processing
+   *     as usual
+   */
+  @NonNull
+  CompletionStage<@Nullable HttpResponse> clientToProxyRequestAsync(
+      @NonNull HttpRequest httpRequest);
+
+  /**
+   * Called instead of {@link #proxyToServerRequest} for the {@link HttpRequest} starting a request,
+   * once the server connection has been chosen and the request modified to reflect proxying. As
+   * with {@link #clientToProxyRequestAsync}, the proxy stops reading from the client until the
+   * returned stage completes, and then either responds with the response it completed with, or, if
+   * it completed with null, sends the request to the server. If the stage completes exceptionally,
+   * the client gets a 502 Bad Gateway response.
+   *
+   * <p>The default implementation completes immediately with the result of {@link
+   * #proxyToServerRequest}.
+   *
+   * @param httpRequest Proxy to Server HttpRequest
+   * @return a stage completing with a short-circuit response, or with null to send the request
+   */
+  @NonNull
+  default CompletionStage<@Nullable HttpResponse> proxyToServerRequestAsync(
+      @NonNull HttpRequest httpRequest) {
+    return CompletableFuture.completedFuture(proxyToServerRequest(httpRequest));
+  }
+}
@@ -0,0 +1,34 @@
+package org.littleshoot.proxy;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Convenience base class for implementations of {@link AsyncHttpFilters}. Both asynchronous methods
+ * complete immediately with the results of their synchronous counterparts, so subclasses only
+ * override the ones that need to wait.
+ */
+@NullMarked
+public class AsyncHttpFiltersAdapter extends HttpFiltersAdapter implements AsyncHttpFilters {
+  public AsyncHttpFiltersAdapter(
+      @Nullable HttpRequest originalRequest, @Nullable ChannelHandlerContext ctx) {
+    super(originalRequest, ctx);
+  }
+
+  public AsyncHttpFiltersAdapter(@Nullable HttpRequest originalRequest) {
+    super(originalRequest);
+  }
+
+  @Override
+  @NonNull
+  public CompletionStage<@Nullable HttpResponse> clientToProxyRequestAsync(
+      @NonNull HttpRequest httpRequest) {
+    return CompletableFuture.completedFuture(clientToProxyRequest(httpRequest));
+  }
+}
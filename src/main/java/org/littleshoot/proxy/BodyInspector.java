@@ -0,0 +1,56 @@
+package org.littleshoot.proxy;
+
+import io.netty.buffer.ByteBuf;
+import org.jspecify.annotations.NullMarked;
+
+/**
+ * Inspects the decoded body of a response as it streams through the proxy, without changing what
+ * is sent to the client. Returned by {@link HttpFilters#responseBodyInspector()}.
+ *
+ * <p>The inspector is given a {@link DecodedBody} each time a chunk of the body arrives. A body
+ * sent with a Content-Encoding of gzip, deflate or br (brotli, when its optional library is on the
+ * classpath) is decompressed incrementally, and only as far as the inspector reads, so sniffing
+ * the start of a large compressed body costs little more than reading its first kilobytes. The
+ * response is still sent to the client with its original, compressed bytes. Bodies with other
+ * encodings, or several encodings, are not inspected.
+ *
+ * <p>Compressed input that the inspector has not read yet is kept, without being copied, until it
+ * reads it or returns false, so an inspector that only needs part of the body should return false
+ * once it has seen it.
+ */
+@NullMarked
+@FunctionalInterface
+public interface BodyInspector {
+  /**
+   * Inspects the body received so far. Called on the event loop of the connection, once for each
+   * chunk of the body until it returns false or the whole body has been received. Exceptions end
+   * the inspection, and are logged.
+   *
+   * @param body the decoded body, which is only valid during the call
+   * @return true to be called again when more of the body arrives, false once done
+   */
+  boolean inspect(DecodedBody body);
+
+  /** A decoded view of the body of a response, read from the front. */
+  interface DecodedBody {
+    /**
+     * Decodes and returns up to {@code maxLength} more bytes of the body. Returns fewer bytes when
+     * no more of the body has been received yet, and an empty buffer at the end of the body. The
+     * buffer is read-only, and only valid until the next read or the end of the call to {@link
+     * #inspect(DecodedBody)}.
+     */
+    ByteBuf read(int maxLength);
+
+    /** Returns the number of decoded bytes read so far. */
+    long position();
+
+    /** Returns whether the whole body has been received, so reads only return what is left. */
+    boolean isLast();
+
+    /**
+     * Returns the Content-Encoding the body is decoded from, such as {@code gzip}, or {@code
+     * identity} when it is not encoded.
+     */
+    String contentEncoding();
+  }
+}
@@ -0,0 +1,77 @@
+package org.littleshoot.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.nio.charset.Charset;
+import org.jspecify.annotations.NullMarked;
+
+/**
+ * Transforms a request or response body chunk by chunk as it streams through the proxy, without
+ * buffering the whole body the way {@link HttpFiltersSource#getMaximumResponseBufferSizeInBytes()}
+ * does. Returned by {@link HttpFilters#requestBodyTransformer()} and {@link
+ * HttpFilters#responseBodyTransformer()}.
+ *
+ * <p>For each chunk, the transformer is given an {@link Editor} over the bytes it held back from
+ * the previous chunk followed by the new ones. It consumes the input from the front, passing bytes
+ * on, dropping them or replacing them, and may insert bytes anywhere. Bytes passed on are not
+ * copied, and neither are the ones held back. Bytes left unconsumed are held back for the next
+ * chunk, up to {@link #getMaximumLookahead()}; any beyond that are passed on unchanged, and so are
+ * the ones still held back at the end of the body.
+ *
+ * <p>As the length of the body may change, the proxy removes its Content-Length header and sends
+ * it chunked, unless the body was aggregated, in which case the Content-Length is set to the new
+ * length. Each chunk received produces at most one chunk sent, so the proxy keeps applying
+ * backpressure as usual, and never holds more than the lookahead per message.
+ */
+@NullMarked
+public interface BodyTransformer {
+  /**
+   * Returns the maximum number of bytes this transformer may hold back between chunks, for
+   * example to match patterns that span chunk boundaries.
+   */
+  default int getMaximumLookahead() {
+    return 0;
+  }
+
+  /**
+   * Transforms the next chunk of the body. Called on the event loop of the connection.
+   *
+   * @param editor the input held back and received so far, and the output to send
+   */
+  void transform(Editor editor);
+
+  /** The input and output of one call to {@link #transform(Editor)}. */
+  interface Editor {
+    /**
+     * Returns a read-only view of the input not consumed yet, which is only valid until the input
+     * is consumed or the call returns.
+     */
+    ByteBuf input();
+
+    /** Returns whether this is the last chunk of the body. */
+    boolean isLast();
+
+    /** Returns the allocator to use for inserted content. */
+    ByteBufAllocator alloc();
+
+    /** Passes on the next {@code length} bytes of the input unchanged. */
+    Editor pass(int length);
+
+    /** Drops the next {@code length} bytes of the input. */
+    Editor drop(int length);
+
+    /** Inserts the given content into the output, taking over the reference to it. */
+    Editor insert(ByteBuf content);
+
+    /** Inserts the given text into the output. */
+    Editor insert(CharSequence text, Charset charset);
+
+    /**
+     * Replaces the next {@code length} bytes of the input with the given content, taking over the
+     * reference to it.
+     */
+    default Editor replace(int length, ByteBuf content) {
+      return drop(length).insert(content);
+    }
+  }
+}
@@ -59,6 +59,21 @@ public interface ChainedProxy extends SslEngineSource {
    */
   boolean requiresEncryption();
 
+  /**
+   * (Optional) implement this method to have LittleProxy pipeline the SOCKS5 handshake with the
+   * chained proxy: the greeting, the credentials (if any) and the CONNECT request are sent in one
+   * flight instead of waiting for each reply, which saves up to two round trips per connection.
+   *
+   * <p>Only enable this for proxies known to handle it. LittleProxy offers a single authentication
+   * method (username/password if credentials are configured, none otherwise) and fails the
+   * connection if the proxy selects another one. Ignored for other types of chained proxies.
+   *
+   * @return true to pipeline the SOCKS5 handshake. Defaults to false.
+   */
+  default boolean isSocks5HandshakePipelined() {
+    return false;
+  }
+
   /** Filters requests on their way to the chained proxy. */
   void filterRequest(HttpObject httpObject);
 
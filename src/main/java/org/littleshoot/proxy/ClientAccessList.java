@@ -0,0 +1,404 @@
+package org.littleshoot.proxy;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.netty.util.NetUtil;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import org.jspecify.annotations.NullMarked;
+
+/**
+ * An immutable list of IPv4 and IPv6 address ranges in CIDR notation that clients are allowed or
+ * denied to connect from, set with {@link HttpProxyServerBootstrap#withClientAccessList} and
+ * replaced on a running server with {@link HttpProxyServer#setClientAccessList}. When several
+ * ranges contain an address, the longest prefix applies, with deny rules winning ties. Addresses
+ * no range contains are allowed, unless the list was built {@linkplain
+ * Builder#withDenyByDefault(boolean) to deny by default}. IPv4 ranges also match the IPv4-mapped
+ * IPv6 addresses of the same hosts.
+ *
+ * <p>The ranges are compiled into a path-compressed binary radix tree of 128-bit keys, with IPv4
+ * addresses mapped into IPv6, and stored in parallel arrays rather than as objects, so that large
+ * lists take a few dozen bytes per range and lookups follow at most one node per distinct prefix
+ * length on the path to the address.
+ */
+@NullMarked
+public final class ClientAccessList {
+  private static final byte NONE = 0;
+  private static final byte ALLOW = 1;
+  private static final byte DENY = 2;
+
+  private static final String ALLOW_PREFIX = "allow ";
+  private static final String DENY_PREFIX = "deny ";
+
+  /** The length of the IPv4-mapped IPv6 prefix, ::ffff:0:0/96. */
+  private static final int IPV4_MAPPED_PREFIX_LENGTH = 96;
+
+  private static final long IPV4_MAPPED_LOW_BITS = 0xffffL << 32;
+
+  /** The bits of the prefix of each node, the first 64 and the last 64, masked to its length. */
+  private final long[] highBits;
+
+  private final long[] lowBits;
+
+  /** The prefix length of each node, from 0 to 128, as an unsigned byte. */
+  private final byte[] prefixLengths;
+
+  /** The index of the child whose next bit is 0 and of the one whose next bit is 1, or -1. */
+  private final int[] zeroChildren;
+
+  private final int[] oneChildren;
+  private final byte[] rules;
+  private final boolean denyByDefault;
+  private final int ruleCount;
+
+  private ClientAccessList(
+      long[] highBits,
+      long[] lowBits,
+      byte[] prefixLengths,
+      int[] zeroChildren,
+      int[] oneChildren,
+      byte[] rules,
+      boolean denyByDefault,
+      int ruleCount) {
+    this.highBits = highBits;
+    this.lowBits = lowBits;
+    this.prefixLengths = prefixLengths;
+    this.zeroChildren = zeroChildren;
+    this.oneChildren = oneChildren;
+    this.rules = rules;
+    this.denyByDefault = denyByDefault;
+    this.ruleCount = ruleCount;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns a list allowing every client, as if there was none. */
+  public static ClientAccessList allowAll() {
+    return builder().build();
+  }
+
+  /** Returns whether a client connecting from the given address is allowed. */
+  public boolean isAllowed(InetAddress address) {
+    byte[] bytes = address.getAddress();
+    long high;
+    long low;
+    if (bytes.length == 4) {
+      high = 0;
+      low = IPV4_MAPPED_LOW_BITS | (toLong(bytes, 0, 4) & 0xffffffffL);
+    } else {
+      high = toLong(bytes, 0, 8);
+      low = toLong(bytes, 8, 8);
+    }
+
+    int node = 0;
+    byte decision = rules[0];
+    while (true) {
+      int length = prefixLength(node);
+      if (length == 128) {
+        break;
+      }
+      int child = bit(high, low, length) == 0 ? zeroChildren[node] : oneChildren[node];
+      if (child < 0) {
+        break;
+      }
+      int childLength = prefixLength(child);
+      if (maskHigh(high, childLength) != highBits[child]
+          || maskLow(low, childLength) != lowBits[child]) {
+        break;
+      }
+      node = child;
+      if (rules[node] != NONE) {
+        decision = rules[node];
+      }
+    }
+    return decision == NONE ? !denyByDefault : decision == ALLOW;
+  }
+
+  public boolean isDenyByDefault() {
+    return denyByDefault;
+  }
+
+  /** Returns the number of distinct address ranges in the list. */
+  public int getRuleCount() {
+    return ruleCount;
+  }
+
+  /** Returns the number of nodes of the radix tree, which is at most twice the number of rules. */
+  public int getNodeCount() {
+    return rules.length;
+  }
+
+  /** Returns an estimate of the heap memory taken by the radix tree, in bytes. */
+  public long getSizeInBytes() {
+    // two longs, two ints and two bytes per node, plus the six array headers
+    return rules.length * 26L + 6 * 16;
+  }
+
+  @Override
+  public String toString() {
+    return "ClientAccessList{rules="
+        + ruleCount
+        + ", nodes="
+        + rules.length
+        + ", denyByDefault="
+        + denyByDefault
+        + '}';
+  }
+
+  private int prefixLength(int node) {
+    return prefixLengths[node] & 0xff;
+  }
+
+  private static long toLong(byte[] bytes, int offset, int length) {
+    long value = 0;
+    for (int i = offset; i < offset + length; i++) {
+      value = (value << 8) | (bytes[i] & 0xff);
+    }
+    return value;
+  }
+
+  /** Returns the bit of the 128-bit key at the given index, counting from the most significant. */
+  private static int bit(long high, long low, int index) {
+    return (int) (index < 64 ? high >>> (63 - index) : low >>> (127 - index)) & 1;
+  }
+
+  private static long maskHigh(long high, int length) {
+    if (length >= 64) {
+      return high;
+    }
+    return length == 0 ? 0 : high & (-1L << (64 - length));
+  }
+
+  private static long maskLow(long low, int length) {
+    if (length <= 64) {
+      return 0;
+    }
+    return length == 128 ? low : low & (-1L << (128 - length));
+  }
+
+  /** An address range, as a 128-bit prefix. */
+  private static final class Prefix {
+    /** Orders prefixes by their bits, then by length. */
+    private static final Comparator<Prefix> ORDER =
+        (a, b) -> {
+          int comparison = Long.compareUnsigned(a.high, b.high);
+          if (comparison == 0) {
+            comparison = Long.compareUnsigned(a.low, b.low);
+          }
+          return comparison != 0 ? comparison : Integer.compare(a.length, b.length);
+        };
+
+    private final long high;
+    private final long low;
+    private final int length;
+
+    private Prefix(long high, long low, int length) {
+      this.high = maskHigh(high, length);
+      this.low = maskLow(low, length);
+      this.length = length;
+    }
+  }
+
+  /**
+   * Collects address ranges and compiles them. Builders are not thread-safe, but the lists they
+   * build are.
+   */
+  public static final class Builder {
+    private final Map<Prefix, Byte> rules = new TreeMap<>(Prefix.ORDER);
+
+    private boolean denyByDefault;
+
+    private Builder() {}
+
+    /** Allows clients in an address range, such as {@code 10.0.0.0/8} or {@code 2001:db8::/32}. */
+    public Builder allow(String cidr) {
+      return add(cidr, ALLOW);
+    }
+
+    /** Denies clients in an address range, such as {@code 10.0.0.0/8} or {@code 2001:db8::/32}. */
+    public Builder deny(String cidr) {
+      return add(cidr, DENY);
+    }
+
+    /**
+     * Adds address ranges in text form, one per line. A line holds a range in CIDR notation, or a
+     * single address, preceded by {@code allow} or {@code deny}. Blank lines and lines starting
+     * with {@code #} are ignored.
+     *
+     * @throws IllegalArgumentException if a line holds an invalid range
+     */
+    public Builder addLines(Iterable<String> lines) {
+      int lineNumber = 0;
+      for (String line : lines) {
+        lineNumber++;
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+          continue;
+        }
+        String lowerCase = trimmed.toLowerCase(Locale.ROOT);
+        try {
+          if (lowerCase.startsWith(ALLOW_PREFIX)) {
+            allow(trimmed.substring(ALLOW_PREFIX.length()).trim());
+          } else if (lowerCase.startsWith(DENY_PREFIX)) {
+            deny(trimmed.substring(DENY_PREFIX.length()).trim());
+          } else {
+            throw new IllegalArgumentException("Expected allow or deny: " + trimmed);
+          }
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("Invalid address range on line " + lineNumber, e);
+        }
+      }
+      return this;
+    }
+
+    /** Adds the ranges in a UTF-8 text file, in the format read by {@link #addLines(Iterable)}. */
+    public Builder addFile(Path file) throws IOException {
+      return addLines(Files.readAllLines(file, UTF_8));
+    }
+
+    /** Denies the clients no range contains, so that only those allowed by a range can connect. */
+    public Builder withDenyByDefault(boolean denyByDefault) {
+      this.denyByDefault = denyByDefault;
+      return this;
+    }
+
+    private Builder add(String cidr, byte rule) {
+      String trimmed = cidr.trim();
+      int slash = trimmed.indexOf('/');
+      byte[] address =
+          NetUtil.createByteArrayFromIpAddressString(
+              slash < 0 ? trimmed : trimmed.substring(0, slash));
+      if (address == null) {
+        throw new IllegalArgumentException("Invalid address range: " + cidr);
+      }
+      int maxLength = address.length * 8;
+      int length = maxLength;
+      if (slash >= 0) {
+        try {
+          length = Integer.parseInt(trimmed.substring(slash + 1));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Invalid address range: " + cidr, e);
+        }
+        if (length < 0 || length > maxLength) {
+          throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+        }
+      }
+      Prefix prefix;
+      if (address.length == 4) {
+        prefix =
+            new Prefix(
+                0,
+                IPV4_MAPPED_LOW_BITS | (toLong(address, 0, 4) & 0xffffffffL),
+                IPV4_MAPPED_PREFIX_LENGTH + length);
+      } else {
+        prefix = new Prefix(toLong(address, 0, 8), toLong(address, 8, 8), length);
+      }
+      rules.merge(prefix, rule, (existing, added) -> existing == DENY ? existing : added);
+      return this;
+    }
+
+    /** Compiles the ranges added so far. The builder can be reused afterwards. */
+    public ClientAccessList build() {
+      return new Compiler(rules).compile(denyByDefault);
+    }
+  }
+
+  /**
+   * Builds the radix tree from the prefixes sorted by their bits and then by length, so that the
+   * prefixes below any node of the tree are contiguous, and a prefix sorts before the longer ones
+   * it contains.
+   */
+  private static final class Compiler {
+    private final Prefix[] prefixes;
+    private final byte[] prefixRules;
+
+    private final long[] highBits;
+    private final long[] lowBits;
+    private final byte[] prefixLengths;
+    private final int[] zeroChildren;
+    private final int[] oneChildren;
+    private final byte[] rules;
+    private int nodeCount;
+
+    private Compiler(Map<Prefix, Byte> rules) {
+      prefixes = rules.keySet().toArray(new Prefix[0]);
+      prefixRules = new byte[prefixes.length];
+      for (int i = 0; i < prefixes.length; i++) {
+        prefixRules[i] = rules.get(prefixes[i]);
+      }
+      // every node but the root holds a rule or has two children
+      int maxNodes = 2 * prefixes.length + 1;
+      highBits = new long[maxNodes];
+      lowBits = new long[maxNodes];
+      prefixLengths = new byte[maxNodes];
+      zeroChildren = new int[maxNodes];
+      oneChildren = new int[maxNodes];
+      this.rules = new byte[maxNodes];
+    }
+
+    private ClientAccessList compile(boolean denyByDefault) {
+      node(0, prefixes.length, 0, 0, 0);
+      return new ClientAccessList(
+          Arrays.copyOf(highBits, nodeCount),
+          Arrays.copyOf(lowBits, nodeCount),
+          Arrays.copyOf(prefixLengths, nodeCount),
+          Arrays.copyOf(zeroChildren, nodeCount),
+          Arrays.copyOf(oneChildren, nodeCount),
+          Arrays.copyOf(rules, nodeCount),
+          denyByDefault,
+          prefixes.length);
+    }
+
+    /** Adds the node for the prefixes between from and to, which share the given prefix. */
+    private int node(int from, int to, long high, long low, int length) {
+      int node = nodeCount++;
+      highBits[node] = high;
+      lowBits[node] = low;
+      prefixLengths[node] = (byte) length;
+      zeroChildren[node] = -1;
+      oneChildren[node] = -1;
+      int first = from;
+      if (first < to && prefixes[first].length == length) {
+        rules[node] = prefixRules[first];
+        first++;
+      }
+      int split = first;
+      while (split < to && bit(prefixes[split].high, prefixes[split].low, length) == 0) {
+        split++;
+      }
+      if (split > first) {
+        zeroChildren[node] = child(first, split);
+      }
+      if (split < to) {
+        oneChildren[node] = child(split, to);
+      }
+      return node;
+    }
+
+    private int child(int from, int to) {
+      Prefix first = prefixes[from];
+      Prefix last = prefixes[to - 1];
+      int length =
+          Math.min(commonPrefixLength(first, last), Math.min(first.length, last.length));
+      return node(from, to, maskHigh(first.high, length), maskLow(first.low, length), length);
+    }
+
+    private static int commonPrefixLength(Prefix a, Prefix b) {
+      long high = a.high ^ b.high;
+      if (high != 0) {
+        return Long.numberOfLeadingZeros(high);
+      }
+      long low = a.low ^ b.low;
+      return low != 0 ? 64 + Long.numberOfLeadingZeros(low) : 128;
+    }
+  }
+}
@@ -7,6 +7,7 @@ import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.LastHttpContent;
 import java.net.InetSocketAddress;
+import java.util.List;
 import java.util.function.Supplier;
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
@@ -33,7 +34,12 @@ import org.littleshoot.proxy.impl.ProxyUtils;
  * buffer up to the specified limit and then send either complete {@link HttpRequest}s or {@link
  * HttpResponse}s to the filter methods. When buffering, if the proxy receives more data than fits
  * in the specified maximum bytes to buffer, the proxy will stop processing the request and respond
- * with a 502 Bad Gateway error.
+ * with a 502 Bad Gateway error. {@link #getMaximumRequestBufferSizeInBytes(HttpRequest)} and
+ * {@link #getMaximumResponseBufferSizeInBytes(HttpResponse)} buffer the bodies of single messages
+ * instead. To modify bodies without buffering them, return a {@link BodyTransformer} from {@link
+ * #requestBodyTransformer()} or {@link #responseBodyTransformer()} instead. To read decoded
+ * response bodies without buffering or decompressing them in full, return a {@link BodyInspector}
+ * from {@link #responseBodyInspector()}.
  *
  * <p>A new instance of {@link HttpFilters} is created for each request, so these objects can be
  * stateful.
@@ -136,7 +142,11 @@ public interface HttpFilters {
    */
   @Nullable HttpObject proxyToClientResponse(@NonNull HttpObject httpObject);
 
-  /** Informs filter that proxy to server connection is in queue. */
+  /**
+   * Informs filter that proxy to server connection is in queue. When upstream connection limits are
+   * configured (see {@link HttpProxyServerBootstrap#withMaxUpstreamConnectionsPerHost(int)}), this
+   * is also invoked when a reused connection has to wait for a free connection slot.
+   */
   void proxyToServerConnectionQueued();
 
   /**
@@ -173,6 +183,19 @@ public interface HttpFilters {
   /** Informs filter that proxy to server connection has failed. */
   void proxyToServerConnectionFailed();
 
+  /**
+   * Called when the proxy gives up on getting a response from the server, because it could not
+   * resolve or connect to the server or any chained proxy, or because the server timed out, just
+   * before it sends the given 502 Bad Gateway or 504 Gateway Timeout response to the client. The
+   * filter may return another response to send instead, such as a stale copy from a cache.
+   *
+   * @param errorResponse the response the proxy is about to send
+   * @return the response to send instead, or null to send the error response
+   */
+  default @Nullable HttpResponse proxyToServerRequestFailed(@NonNull HttpResponse errorResponse) {
+    return null;
+  }
+
   /**
    * Informs filter that proxy to server connection has succeeded.
    *
@@ -190,12 +213,35 @@ public interface HttpFilters {
    */
   boolean proxyToServerAllowMitm();
 
+  /**
+   * Allow this proxy to act as an SSL man in the middle, for a CONNECT tunnel whose TLS
+   * ClientHello has been peeked at. Only called for tunnels to hosts the {@link
+   * HttpProxyServerBootstrap#withMitmBypassRules MITM bypass rules} don't exclude, before the proxy
+   * connects upstream.
+   *
+   * <p>Default = {@link #proxyToServerAllowMitm()}
+   *
+   * @param serverName the server name (SNI) the client sent in its ClientHello, or null if it sent
+   *     none
+   * @param applicationProtocols the ALPN protocols the client offered, in its order of preference
+   * @return true to allow mitm, false to relay the tunnel as it is
+   */
+  default boolean proxyToServerAllowMitm(
+      @Nullable String serverName, @NonNull List<String> applicationProtocols) {
+    return proxyToServerAllowMitm();
+  }
+
   /**
    * Notifies the filter that a WebSocket frame has been received and is about to be forwarded.
    * Called after the HTTP connection has been upgraded to WebSocket.
    *
    * <p>The {@code frameBytes} contain the raw, unmodified WebSocket frame as received from the
    * network. Client-to-server frames are masked per RFC 6455; server-to-client frames are not.
+   * Frames longer than the limit set with {@link
+   * HttpProxyServerBootstrap#withMaxInspectedWebSocketFrameLength(int)} are relayed as they arrive
+   * without being reported, and when that limit is 0, each read from the network is reported
+   * instead of each frame. Calling the supplier copies the bytes; {@link
+   * #inspectWebSocketFrame(WebSocketFrameView, boolean)} gives access to them without copying.
    *
    * <p>This method is informational — the frame cannot be modified or suppressed here.
    *
@@ -207,4 +253,91 @@ public interface HttpFilters {
    * @param fromClient true if the frame was sent by the client, false if sent by the server
    */
   default void webSocketFrameReceived(Supplier<byte[]> frameBytes, boolean fromClient) {}
+
+  /**
+   * Notifies the filter that a WebSocket frame has been received and is about to be forwarded,
+   * with a read-only view of the frame that shares the buffer it is forwarded from, along with its
+   * opcode and FIN bit. Called after the HTTP connection has been upgraded to WebSocket, before
+   * {@link #webSocketFrameReceived(Supplier, boolean)}, for the frames no longer than the limit set
+   * with {@link HttpProxyServerBootstrap#withMaxInspectedWebSocketFrameLength(int)}.
+   *
+   * <p>This method is informational — the frame cannot be modified or suppressed here, and the
+   * view must not be used after this method returns.
+   *
+   * @param frame the frame
+   * @param fromClient true if the frame was sent by the client, false if sent by the server
+   */
+  default void inspectWebSocketFrame(WebSocketFrameView frame, boolean fromClient) {}
+
+  /**
+   * Returns a transformer to apply to the body of the request as it is sent to the server, or null
+   * to send it as received. Called once per request, after {@link #proxyToServerRequest} has let
+   * the request through. Requests without a body, or with a Content-Encoding other than identity,
+   * are not transformed.
+   *
+   * @return the transformer, or null to leave the body alone
+   */
+  default @Nullable BodyTransformer requestBodyTransformer() {
+    return null;
+  }
+
+  /**
+   * Returns a transformer to apply to the body of the response as it is sent to the client, or null
+   * to send it as received. Called once per response, after {@link #serverToProxyResponse} has
+   * seen the {@link HttpResponse}. Responses without a body, such as responses to HEAD requests,
+   * responses with a Content-Encoding other than identity, and short-circuit responses are not
+   * transformed.
+   *
+   * @return the transformer, or null to leave the body alone
+   */
+  default @Nullable BodyTransformer responseBodyTransformer() {
+    return null;
+  }
+
+  /**
+   * Returns an inspector to give a decoded view of the body of the response as it arrives from the
+   * server, or null to not inspect it. Called once per response, after {@link
+   * #serverToProxyResponse} has seen the {@link HttpResponse}, and before any {@link
+   * #responseBodyTransformer()} is applied. The body sent to the client is not changed.
+   *
+   * @return the inspector, or null to not inspect the body
+   */
+  default @Nullable BodyInspector responseBodyInspector() {
+    return null;
+  }
+
+  /**
+   * Returns how many bytes of the body of this request to buffer, so that the request filter
+   * methods get it as a single {@link io.netty.handler.codec.http.FullHttpRequest}, or 0 to pass
+   * it on chunk by chunk. Called with the request headers, so the decision may depend on the
+   * host, content type or declared length. Requests with larger bodies are answered with a 413
+   * Request Entity Too Large response.
+   *
+   * <p>Unlike {@link HttpFiltersSource#getMaximumRequestBufferSizeInBytes()}, this only buffers
+   * the requests that need it, and does not decompress them. It has no effect when the source
+   * already buffers all requests.
+   *
+   * @param httpRequest the request, before its body has been read
+   * @return the maximum number of bytes to buffer, or 0 not to buffer the request
+   */
+  default int getMaximumRequestBufferSizeInBytes(@NonNull HttpRequest httpRequest) {
+    return 0;
+  }
+
+  /**
+   * Returns how many bytes of the body of this response to buffer, so that the response filter
+   * methods get it as a single {@link io.netty.handler.codec.http.FullHttpResponse}, or 0 to pass
+   * it on chunk by chunk. Called with the response headers, after {@link
+   * #serverToProxyResponseReceiving()}. Responses with larger bodies fail.
+   *
+   * <p>Unlike {@link HttpFiltersSource#getMaximumResponseBufferSizeInBytes()}, this only buffers
+   * the responses that need it, and does not decompress them. It has no effect when the source
+   * already buffers all responses.
+   *
+   * @param httpResponse the response, before its body has been read
+   * @return the maximum number of bytes to buffer, or 0 not to buffer the response
+   */
+  default int getMaximumResponseBufferSizeInBytes(@NonNull HttpResponse httpResponse) {
+    return 0;
+  }
 }
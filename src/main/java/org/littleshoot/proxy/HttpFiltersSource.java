@@ -38,4 +38,28 @@ public interface HttpFiltersSource {
    * exceeds the maximum buffer size, the response will fail.
    */
   int getMaximumResponseBufferSizeInBytes();
+
+  /**
+   * Called when a proxy server using this source starts, before it accepts connections. A source
+   * shared by several servers is called for each of them.
+   */
+  default void proxyServerStarting() {}
+
+  /**
+   * Called when the given proxy server using this source starts, before it accepts connections,
+   * for sources that need to know which server they work for. Calls {@link #proxyServerStarting()}
+   * by default.
+   */
+  default void proxyServerStarting(HttpProxyServer proxyServer) {
+    proxyServerStarting();
+  }
+
+  /**
+   * Called when a proxy server using this source has stopped, after closing its connections. A
+   * source shared by several servers is called for each of them.
+   *
+   * @param graceful true if the server was stopped with {@link HttpProxyServer#stop()}, false if
+   *     it was aborted
+   */
+  default void proxyServerStopped(boolean graceful) {}
 }
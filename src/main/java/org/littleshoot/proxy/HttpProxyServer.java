@@ -2,6 +2,7 @@ package org.littleshoot.proxy;
 
 import java.net.InetSocketAddress;
 import java.time.Duration;
+import org.jspecify.annotations.Nullable;
 
 /** Interface for the top-level proxy server class. */
 public interface HttpProxyServer {
@@ -41,4 +42,15 @@ public interface HttpProxyServer {
 
   /** Set the read/write throttle bandwidths (in bytes/second) for this proxy. */
   void setThrottle(long readThrottleBytesPerSecond, long writeThrottleBytesPerSecond);
+
+  /**
+   * Replaces the list of address ranges clients may connect from, for the connections accepted
+   * from then on. Null allows every client.
+   *
+   * @throws UnsupportedOperationException if the server does not check clients against an access
+   *     list, which is the default for implementations other than LittleProxy's own
+   */
+  default void setClientAccessList(@Nullable ClientAccessList clientAccessList) {
+    throw new UnsupportedOperationException("Client access lists are not supported");
+  }
 }
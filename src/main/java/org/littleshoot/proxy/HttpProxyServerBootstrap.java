@@ -2,8 +2,10 @@ package org.littleshoot.proxy;
 
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.time.Duration;
 import org.jspecify.annotations.NullMarked;
+import org.littleshoot.proxy.extras.CompiledRules;
 import org.littleshoot.proxy.impl.ServerGroup;
 import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
 
@@ -217,4 +219,179 @@ public interface HttpProxyServerBootstrap {
    * @param sendProxyProtocol when true, the proxy will send a proxy protocol header
    */
   HttpProxyServerBootstrap withSendProxyProtocol(boolean sendProxyProtocol);
+
+  /**
+   * Specify the maximum number of concurrent connections from the proxy to upstream servers (or
+   * chained proxies), across all origins. Requests that need a new connection while the limit is
+   * reached wait in the upstream connection queue (see {@link #withUpstreamConnectionQueue(int,
+   * Duration)}).
+   *
+   * <p>Default = 0 (unlimited)
+   */
+  HttpProxyServerBootstrap withMaxUpstreamConnections(int maxUpstreamConnections);
+
+  /**
+   * Specify the maximum number of concurrent connections from the proxy to any single origin
+   * (host and port). Requests that need a new connection while the limit is reached wait in the
+   * upstream connection queue (see {@link #withUpstreamConnectionQueue(int, Duration)}).
+   *
+   * <p>Default = 0 (unlimited)
+   */
+  HttpProxyServerBootstrap withMaxUpstreamConnectionsPerHost(int maxUpstreamConnectionsPerHost);
+
+  /**
+   * Specify the size of the queue in which requests wait for an upstream connection when a
+   * connection limit has been reached, and how long they may wait. Requests are served in arrival
+   * order as connections are released. Requests that arrive when the queue is full, or that wait
+   * longer than the timeout, receive a 503 Service Unavailable response. Only applies when {@link
+   * #withMaxUpstreamConnections(int)} or {@link #withMaxUpstreamConnectionsPerHost(int)} is set.
+   *
+   * <p>Default = 1024 requests, 30 seconds
+   *
+   * @param maxQueuedRequests the maximum number of waiting requests, or 0 for no limit
+   * @param queueTimeout how long a request may wait for a connection
+   */
+  HttpProxyServerBootstrap withUpstreamConnectionQueue(
+      int maxQueuedRequests, Duration queueTimeout);
+
+  /**
+   * Specify whether CONNECT requests that are tunnelled (not man-in-the-middled) should be answered
+   * with 200 Connection Established before the upstream connection has been established. The
+   * client can then start its TLS handshake while the proxy connects upstream, saving a round trip.
+   * Data the client sends in the meantime is buffered (up to a bounded amount, after which the
+   * proxy stops reading from the client) and forwarded once the upstream connection is ready. If
+   * the upstream connection fails, the tunnel to the client is closed instead of answering with 502
+   * Bad Gateway.
+   *
+   * <p>Default = false
+   */
+  HttpProxyServerBootstrap withOptimisticConnect(boolean optimisticConnect);
+
+  /**
+   * Specify how the TLS handshakes with the client and with the server are ordered when man in the
+   * middling CONNECT requests (see {@link MitmHandshakeMode}). Overlapping the handshakes only
+   * takes effect if the {@link MitmManager} supports {@link
+   * MitmManager#clientSslEngineForHost(io.netty.handler.codec.http.HttpRequest, String)}.
+   *
+   * <p>Default = {@link MitmHandshakeMode#SEQUENTIAL}
+   */
+  HttpProxyServerBootstrap withMitmHandshakeMode(MitmHandshakeMode mitmHandshakeMode);
+
+  /**
+   * Specify the hosts whose CONNECT tunnels are not man in the middled even though a {@link
+   * MitmManager} is set. The CONNECT is answered right away, and the TLS ClientHello the client
+   * then sends is peeked at before the proxy connects upstream. Tunnels to the hosts the rules
+   * block, looked up by the server name (SNI) of the ClientHello or else by the host of the
+   * CONNECT, and tunnels that don't start with a ClientHello are relayed as they are, without any
+   * TLS handshake on the proxy. Build the rules {@linkplain
+   * CompiledRules.Builder#withBlockByDefault(boolean) to block by default} to list the hosts that
+   * are intercepted instead. The server name and the offered ALPN protocols are also given to
+   * {@link ChainedProxyManager}s in the {@link org.littleshoot.proxy.impl.ClientDetails}, and to
+   * {@link HttpFilters#proxyToServerAllowMitm(String, java.util.List)}.
+   *
+   * <p>Default = every tunnel is man in the middled, without peeking at its ClientHello
+   */
+  HttpProxyServerBootstrap withMitmBypassRules(CompiledRules mitmBypassRules);
+
+  /**
+   * Specify how many warm connections to keep to each chained HTTP proxy, ready to carry a CONNECT
+   * request. Warm connections are connected, and TLS is already negotiated if the chained proxy
+   * requires encryption, so a new tunnel through the chained proxy only costs the CONNECT round
+   * trip. The number of warm connections follows the rate at which tunnels are being opened, up to
+   * the given maximum. Unused warm connections are closed after the idle timeout, which should be
+   * shorter than the chained proxy's own idle timeout.
+   *
+   * <p>Default = 0 (no warm connections), 30 seconds
+   *
+   * @param maxWarmConnections the maximum number of warm connections per chained proxy
+   * @param idleTimeout how long an unused warm connection is kept
+   */
+  HttpProxyServerBootstrap withWarmChainedProxyConnections(
+      int maxWarmConnections, Duration idleTimeout);
+
+  /**
+   * Specify the address ranges clients may connect from. Connections from other addresses are
+   * closed as soon as they are accepted, before any resources are spent on them. When the proxy
+   * accepts the PROXY protocol, the source address in the PROXY protocol header is checked instead
+   * of the address of the load balancer the connection comes from. The list can be replaced while
+   * the proxy runs with {@link HttpProxyServer#setClientAccessList(ClientAccessList)}.
+   *
+   * <p>Default = null (all clients may connect)
+   *
+   * @param clientAccessList the address ranges clients may connect from
+   */
+  HttpProxyServerBootstrap withClientAccessList(ClientAccessList clientAccessList);
+
+  /**
+   * Specify that bodies aggregated for filters, as requested through {@link
+   * HttpFiltersSource#getMaximumRequestBufferSizeInBytes()} and the like, may be spilled to disk.
+   * A body is kept in memory while it fits within {@code maxMemoryBytesPerMessage} and all bodies
+   * held in memory by the proxy fit within {@code maxMemoryBytes}. Otherwise it is written to a
+   * temporary file in the given directory as it arrives, which is memory-mapped for the filters to
+   * read, so only the parts they read are loaded, and deleted once the message has been released.
+   * The limits on the length of aggregated bodies still apply.
+   *
+   * <p>Default = null (bodies are aggregated in memory)
+   *
+   * @param spillDirectory the directory to write temporary files to
+   * @param maxMemoryBytes the maximum number of bytes of bodies held in memory by the whole proxy
+   * @param maxMemoryBytesPerMessage the maximum number of bytes held in memory for one body
+   */
+  HttpProxyServerBootstrap withAggregationSpilling(
+      Path spillDirectory, long maxMemoryBytes, int maxMemoryBytesPerMessage);
+
+  /**
+   * Specify which requests to receive in full before sending them on, so that slow uploads don't
+   * hold connections to servers. The time spent receiving buffered bodies is reported by {@link
+   * org.littleshoot.proxy.impl.DefaultHttpProxyServer#getUpstreamTimeSavedByRequestBuffering()}.
+   *
+   * <p>Default = null (request bodies are streamed to the server as they arrive)
+   *
+   * @param policy decides which requests to buffer, and how much of them
+   */
+  HttpProxyServerBootstrap withRequestBuffering(RequestBufferingPolicy policy);
+
+  /**
+   * Specify that responses to clients that read slowly are buffered, so that they are read from
+   * the server at full speed and the server connection is free for the next request as soon as the
+   * response has been received, rather than once the client has downloaded it. What the client
+   * can't take yet is kept in memory, then in a temporary file in the given directory. The proxy
+   * only stops reading from the server once both are full.
+   *
+   * <p>Default = null (reading from the server stops as soon as the client can't keep up)
+   *
+   * @param spillDirectory the directory to write temporary files to
+   * @param maxMemoryBytesPerConnection the maximum number of bytes buffered in memory per client
+   * @param maxDiskBytesPerConnection the maximum number of bytes buffered on disk per client
+   */
+  HttpProxyServerBootstrap withResponseBuffering(
+      Path spillDirectory, int maxMemoryBytesPerConnection, long maxDiskBytesPerConnection);
+
+  /**
+   * Specify that the proxy compresses responses for clients that accept it, with gzip or deflate,
+   * or brotli or zstd when their optional libraries are on the classpath. Responses that are
+   * already encoded, whose Content-Type is not compressible, such as images, or whose
+   * Content-Length is below the given minimum are sent as they are. Bodies are compressed as they
+   * stream through, without buffering them.
+   *
+   * <p>Default = not compressed
+   *
+   * @param minimumContentLength the minimum length of responses worth compressing, in bytes
+   */
+  HttpProxyServerBootstrap withResponseCompression(int minimumContentLength);
+
+  /**
+   * Specify the length of the longest WebSocket frames shown to filters by {@link
+   * HttpFilters#inspectWebSocketFrame(WebSocketFrameView, boolean)}. Frames up to this length are
+   * held back until they have arrived in full, and then relayed together with the other frames
+   * read at the same time. Longer frames are relayed as they arrive, without being shown to
+   * filters. 0 relays what is read from the network as it is, and shows each read to {@link
+   * HttpFilters#webSocketFrameReceived} instead.
+   *
+   * <p>Default = 65536
+   *
+   * @param maxInspectedWebSocketFrameLength the maximum length of inspected frames, header included
+   */
+  HttpProxyServerBootstrap withMaxInspectedWebSocketFrameLength(
+      int maxInspectedWebSocketFrameLength);
 }
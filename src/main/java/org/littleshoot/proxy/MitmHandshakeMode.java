@@ -0,0 +1,30 @@
+package org.littleshoot.proxy;
+
+/**
+ * Enumeration of the ways in which the TLS handshakes with the client and with the server can be
+ * ordered when man-in-the-middling a CONNECT request.
+ */
+public enum MitmHandshakeMode {
+  /**
+   * Connect to the server and complete the TLS handshake with it, then answer the CONNECT and
+   * handshake with the client. The client certificate can be based on the server's {@link
+   * javax.net.ssl.SSLSession}.
+   */
+  SEQUENTIAL,
+
+  /**
+   * Once the connection to the server is open, answer the CONNECT and handshake with the client
+   * while the TLS handshake with the server is in progress. Requires a {@link MitmManager} that can
+   * create client {@link javax.net.ssl.SSLEngine}s from the requested host alone (see {@link
+   * MitmManager#clientSslEngineForHost(io.netty.handler.codec.http.HttpRequest, String)}).
+   */
+  PARALLEL,
+
+  /**
+   * Answer the CONNECT and handshake with the client right away, while connecting and handshaking
+   * with the server. Saves the most time, but a failure to reach the server can only be reported to
+   * the client after it has been told that the connection was established. Has the same {@link
+   * MitmManager} requirement as {@link #PARALLEL}.
+   */
+  SPECULATIVE
+}
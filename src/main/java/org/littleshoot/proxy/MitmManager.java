@@ -3,6 +3,7 @@ package org.littleshoot.proxy;
 import io.netty.handler.codec.http.HttpRequest;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSession;
+import org.jspecify.annotations.Nullable;
 
 /**
  * MITMManagers encapsulate the logic required for letting LittleProxy act as a man in the middle
@@ -42,4 +43,22 @@ public interface MitmManager {
    * @return the SSLEngine used to connect to the client
    */
   SSLEngine clientSslEngineFor(HttpRequest httpRequest, SSLSession serverSslSession);
+
+  /**
+   * Creates an {@link SSLEngine} for encrypting the client connection before the server connection
+   * has been established, based only on the host the client asked to CONNECT to (which the client
+   * will also send as SNI). This allows the handshakes with client and server to overlap (see
+   * {@link MitmHandshakeMode}).
+   *
+   * <p>The default implementation returns null, meaning that this manager needs the server's
+   * {@link SSLSession} and the handshakes always happen one after the other.
+   *
+   * @param httpRequest the HTTP CONNECT request that is being man-in-the-middled
+   * @param serverHost the host the client is connecting to
+   * @return the SSLEngine used to connect to the client, or null if it cannot be created yet
+   */
+  @Nullable
+  default SSLEngine clientSslEngineForHost(HttpRequest httpRequest, String serverHost) {
+    return null;
+  }
 }
@@ -0,0 +1,82 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import org.jspecify.annotations.NullMarked;
+import org.littleshoot.proxy.impl.ProxyUtils;
+
+/**
+ * Decides which requests the proxy receives in full before sending them on, set with {@link
+ * HttpProxyServerBootstrap#withRequestBuffering(RequestBufferingPolicy)}. The connection to the
+ * server is only chosen, and opened if needed, once the whole body has been received, so a slow
+ * upload holds no upstream connection and no server worker while it lasts. The body is then sent on
+ * at the speed of the server's network.
+ *
+ * <p>Buffered bodies are aggregated like those requested by {@link
+ * HttpFilters#getMaximumRequestBufferSizeInBytes(HttpRequest)}, so they are kept in memory or
+ * spilled to disk as configured with {@link HttpProxyServerBootstrap#withAggregationSpilling}, and
+ * requests with larger bodies are answered with 413 Request Entity Too Large.
+ */
+@NullMarked
+@FunctionalInterface
+public interface RequestBufferingPolicy {
+  /**
+   * Returns the maximum length of the body of the given request to buffer, or 0 to stream it to
+   * the server as it arrives. Only called for requests that have a body.
+   */
+  int getMaximumBufferSizeInBytes(HttpRequest request);
+
+  /** Returns a policy that buffers the bodies of all requests. */
+  static RequestBufferingPolicy always(int maximumBufferSizeInBytes) {
+    return request -> maximumBufferSizeInBytes;
+  }
+
+  /**
+   * Returns a policy that buffers the bodies of requests to the given routes. A route is a host,
+   * optionally followed by a path prefix, such as {@code upload.example.com/api/}. A host starting
+   * with {@code *.} matches its subdomains too.
+   */
+  static RequestBufferingPolicy forRoutes(
+      int maximumBufferSizeInBytes, Collection<String> routes) {
+    List<String[]> parsedRoutes = new ArrayList<>(routes.size());
+    for (String route : routes) {
+      int slash = route.indexOf('/');
+      String host = slash < 0 ? route : route.substring(0, slash);
+      String pathPrefix = slash < 0 ? "/" : route.substring(slash);
+      parsedRoutes.add(new String[] {host.toLowerCase(Locale.ROOT), pathPrefix});
+    }
+    return request -> {
+      String uri = request.uri();
+      String hostAndPort =
+          uri.startsWith("/")
+              ? request.headers().get(HttpHeaderNames.HOST, "")
+              : ProxyUtils.parseHostAndPort(uri);
+      String host = stripPort(hostAndPort).toLowerCase(Locale.ROOT);
+      String path = ProxyUtils.stripHost(uri);
+      for (String[] route : parsedRoutes) {
+        if (matchesHost(route[0], host) && path.startsWith(route[1])) {
+          return maximumBufferSizeInBytes;
+        }
+      }
+      return 0;
+    };
+  }
+
+  private static boolean matchesHost(String pattern, String host) {
+    if (pattern.startsWith("*.")) {
+      String domain = pattern.substring(2);
+      return host.equals(domain) || host.endsWith(pattern.substring(1));
+    }
+    return host.equals(pattern);
+  }
+
+  private static String stripPort(String hostAndPort) {
+    int colon = hostAndPort.lastIndexOf(':');
+    int bracket = hostAndPort.lastIndexOf(']');
+    return colon > bracket ? hostAndPort.substring(0, colon) : hostAndPort;
+  }
+}
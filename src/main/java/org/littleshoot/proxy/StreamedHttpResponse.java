@@ -0,0 +1,224 @@
+package org.littleshoot.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import java.util.ArrayList;
+import java.util.List;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * A short-circuit response whose body is written to the client after the response itself, as a
+ * sequence of {@link ByteBuf}s, {@link HttpContent}s or {@link FileRegion}s, followed by an empty
+ * last chunk. Unlike the content of a {@link io.netty.handler.codec.http.FullHttpResponse}, the
+ * body parts are written as they are, so a {@link FileRegion} can be sent to the client without
+ * copying the file contents into the JVM, when the client connection is not encrypted.
+ *
+ * <p>The proxy takes ownership of the body parts: they are released once written, or if the
+ * response is not sent. The response must include a Content-Length header, or "Transfer-Encoding:
+ * chunked" if the body parts are {@link HttpContent}s.
+ *
+ * <p>The body of a response created with {@link #streaming} may still be growing when the response
+ * is returned to the proxy: parts can be added from any thread, and are written to the client as
+ * they are added, until the body is {@link #end() ended} or {@link #abort() aborted}. When such a
+ * response is returned by {@link HttpFilters#clientToProxyRequest} or {@link
+ * AsyncHttpFilters#clientToProxyRequestAsync}, the proxy handles no further requests from the
+ * client until the body has ended.
+ */
+@NullMarked
+public class StreamedHttpResponse extends DefaultHttpResponse {
+  /** Receives the body of a response as it is written. Used by the proxy. */
+  public interface BodyListener {
+    /** Called for each part of the body, which the listener becomes responsible for releasing. */
+    void bodyPart(Object bodyPart);
+
+    /**
+     * Called once there are no more parts.
+     *
+     * @param aborted true if the body is incomplete
+     */
+    void ended(boolean aborted);
+  }
+
+  private final boolean streaming;
+
+  /** Guarded by {@code this}. */
+  private final List<Object> bodyParts = new ArrayList<>();
+
+  /** Guarded by {@code this}. */
+  private boolean ended;
+
+  /** Guarded by {@code this}. */
+  private boolean aborted;
+
+  /** Guarded by {@code this}. */
+  @Nullable private BodyListener listener;
+
+  /** The length of the parts added but not yet written. Guarded by {@code this}. */
+  private long unwrittenBytes;
+
+  /** Creates a response whose body parts are all added before it is returned to the proxy. */
+  public StreamedHttpResponse(HttpVersion version, HttpResponseStatus status) {
+    this(version, status, false);
+  }
+
+  private StreamedHttpResponse(HttpVersion version, HttpResponseStatus status, boolean streaming) {
+    super(version, status);
+    this.streaming = streaming;
+  }
+
+  /**
+   * Creates a response whose body parts may be added after it is returned to the proxy, until
+   * {@link #end()} or {@link #abort()} is called.
+   */
+  public static StreamedHttpResponse streaming(HttpVersion version, HttpResponseStatus status) {
+    return new StreamedHttpResponse(version, status, true);
+  }
+
+  /** Returns true if body parts may be added after the response is returned to the proxy. */
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  /**
+   * Adds a part of the body, to be written after the previously added parts. Parts added once the
+   * body has ended are released.
+   *
+   * @param bodyPart a {@link ByteBuf}, {@link HttpContent} or {@link FileRegion}
+   * @return this response
+   */
+  public StreamedHttpResponse addBodyPart(Object bodyPart) {
+    if (!(bodyPart instanceof ByteBuf)
+        && !(bodyPart instanceof HttpContent)
+        && !(bodyPart instanceof FileRegion)) {
+      throw new IllegalArgumentException("Unsupported body part: " + bodyPart.getClass());
+    }
+    synchronized (this) {
+      if (ended) {
+        ReferenceCountUtil.release(bodyPart);
+        return this;
+      }
+      unwrittenBytes += lengthOf(bodyPart);
+      if (listener == null) {
+        bodyParts.add(bodyPart);
+      } else {
+        // called while holding the lock, so that parts added concurrently are written in order
+        listener.bodyPart(bodyPart);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Returns the length of the body parts added so far that the proxy has not yet written to the
+   * client, which grows when the client reads the body more slowly than it is produced.
+   */
+  public synchronized long getUnwrittenBytes() {
+    return unwrittenBytes;
+  }
+
+  /**
+   * Records that a body part of the given length was written, or failed to be. Used by the proxy.
+   */
+  public synchronized void bodyPartWritten(long length) {
+    unwrittenBytes -= length;
+  }
+
+  /** Returns the number of bytes of the body the given part holds. */
+  public static long lengthOf(Object bodyPart) {
+    if (bodyPart instanceof ByteBuf) {
+      return ((ByteBuf) bodyPart).readableBytes();
+    } else if (bodyPart instanceof HttpContent) {
+      return ((HttpContent) bodyPart).content().readableBytes();
+    } else if (bodyPart instanceof FileRegion) {
+      FileRegion region = (FileRegion) bodyPart;
+      return region.count() - region.transferred();
+    }
+    return 0;
+  }
+
+  /** Marks the end of the body of a {@link #streaming} response. */
+  public void end() {
+    finish(false);
+  }
+
+  /**
+   * Marks the body of a {@link #streaming} response as incomplete, for example because the server
+   * it is read from went away. The proxy closes the client connection once the parts added so far
+   * are written.
+   */
+  public void abort() {
+    finish(true);
+  }
+
+  private void finish(boolean abort) {
+    BodyListener current;
+    synchronized (this) {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      aborted = abort;
+      current = listener;
+    }
+    if (current != null) {
+      current.ended(abort);
+    }
+  }
+
+  /**
+   * Passes the body parts added so far to the given listener, followed by the parts added later,
+   * and tells it when the body ends. Used by the proxy to write the body to the client.
+   */
+  public void setBodyListener(BodyListener bodyListener) {
+    boolean alreadyEnded;
+    boolean alreadyAborted;
+    synchronized (this) {
+      if (listener != null) {
+        throw new IllegalStateException("Body listener already set");
+      }
+      listener = bodyListener;
+      for (Object part : bodyParts) {
+        bodyListener.bodyPart(part);
+      }
+      bodyParts.clear();
+      if (!streaming) {
+        ended = true;
+      }
+      alreadyEnded = ended;
+      alreadyAborted = aborted;
+    }
+    if (alreadyEnded) {
+      bodyListener.ended(alreadyAborted);
+    }
+  }
+
+  /**
+   * Removes and returns the parts of the body. The caller becomes responsible for releasing them.
+   */
+  public synchronized List<Object> takeBodyParts() {
+    List<Object> parts = new ArrayList<>(bodyParts);
+    bodyParts.clear();
+    return parts;
+  }
+
+  /**
+   * Releases the parts of the body that have not been taken, as well as any parts added later to a
+   * {@link #streaming} response.
+   */
+  public void releaseBody() {
+    List<Object> parts;
+    synchronized (this) {
+      parts = takeBodyParts();
+      ended = true;
+    }
+    for (Object part : parts) {
+      ReferenceCountUtil.release(part);
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package org.littleshoot.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ByteProcessor;
+import org.jspecify.annotations.NullMarked;
+
+/**
+ * A read-only view of a WebSocket frame relayed by the proxy, given to {@link
+ * HttpFilters#inspectWebSocketFrame(WebSocketFrameView, boolean)}. The view shares the buffer the
+ * frame is relayed from, so nothing is copied unless the filter copies it, and it is only valid
+ * during the call.
+ */
+@NullMarked
+public interface WebSocketFrameView {
+  int OPCODE_CONTINUATION = 0x0;
+  int OPCODE_TEXT = 0x1;
+  int OPCODE_BINARY = 0x2;
+  int OPCODE_CLOSE = 0x8;
+  int OPCODE_PING = 0x9;
+  int OPCODE_PONG = 0xA;
+
+  /** Returns the opcode of the frame, such as {@link #OPCODE_TEXT}. */
+  int opcode();
+
+  /** Returns whether this is the final frame of its message. */
+  boolean isFinal();
+
+  /**
+   * Returns the three reserved bits of the frame, RSV1 being the most significant. RSV1 is set on
+   * the first frame of a message compressed by the permessage-deflate extension.
+   */
+  int reservedBits();
+
+  /** Returns whether the payload is masked, as it is in every frame sent by clients. */
+  boolean isMasked();
+
+  /** Returns the whole frame as received, header included. */
+  ByteBuf frame();
+
+  /** Returns the payload of the frame as received, so still masked if {@link #isMasked()}. */
+  ByteBuf payload();
+
+  /**
+   * Passes each byte of the unmasked payload to the given processor, unmasking them on the fly
+   * instead of copying the payload.
+   *
+   * @return the index in the payload of the byte the processor stopped at, or -1 if it went
+   *     through the whole payload
+   */
+  int forEachPayloadByte(ByteProcessor processor);
+}
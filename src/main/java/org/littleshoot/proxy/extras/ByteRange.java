@@ -0,0 +1,127 @@
+package org.littleshoot.proxy.extras;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * A range of bytes of a stored response body, as requested with a Range header (<a
+ * href="https://www.rfc-editor.org/rfc/rfc9110#section-14">RFC 9110, section 14</a>).
+ */
+@NullMarked
+final class ByteRange {
+  /**
+   * The most ranges served in one response. Requests for more are answered with the whole body,
+   * rather than spending effort on requests that are more likely abusive than useful.
+   */
+  private static final int MAX_RANGES = 16;
+
+  private final long first;
+  private final long last;
+
+  ByteRange(long first, long last) {
+    this.first = first;
+    this.last = last;
+  }
+
+  /** The offset of the first byte in the range. */
+  long first() {
+    return first;
+  }
+
+  /** The offset of the last byte in the range, inclusive. */
+  long last() {
+    return last;
+  }
+
+  long length() {
+    return last - first + 1;
+  }
+
+  /** The value of the Content-Range header for this range of a body of the given length. */
+  String contentRange(long bodyLength) {
+    return "bytes " + first + "-" + last + "/" + bodyLength;
+  }
+
+  /**
+   * Parses the value of a Range header, and returns the ranges of a body of the given length it
+   * asks for, sorted, with overlapping ranges merged. Returns an empty list if no range can be
+   * satisfied, and null if the header is not a valid bytes range, or asks for too many ranges, in
+   * which case it should be ignored.
+   */
+  static @Nullable List<ByteRange> parse(String header, long bodyLength) {
+    int equals = header.indexOf('=');
+    if (equals < 0
+        || !"bytes".equals(header.substring(0, equals).trim().toLowerCase(Locale.ROOT))) {
+      return null;
+    }
+    String[] specs = header.substring(equals + 1).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<ByteRange> ranges = new ArrayList<>();
+    for (String spec : specs) {
+      String trimmed = spec.trim();
+      int dash = trimmed.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long first = parseOffset(trimmed.substring(0, dash));
+      long last = parseOffset(trimmed.substring(dash + 1));
+      if (dash == 0) {
+        // a suffix range, asking for the last bytes of the body
+        if (last < 0) {
+          return null;
+        }
+        if (last > 0 && bodyLength > 0) {
+          ranges.add(new ByteRange(Math.max(0, bodyLength - last), bodyLength - 1));
+        }
+        continue;
+      }
+      if (first < 0 || (dash < trimmed.length() - 1 && (last < 0 || last < first))) {
+        return null;
+      }
+      if (first < bodyLength) {
+        ranges.add(
+            new ByteRange(first, last < 0 ? bodyLength - 1 : Math.min(last, bodyLength - 1)));
+      }
+    }
+    return merge(ranges);
+  }
+
+  private static long parseOffset(String value) {
+    if (value.isEmpty() || value.length() > 18) {
+      return -1;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+    }
+    return Long.parseLong(value);
+  }
+
+  private static List<ByteRange> merge(List<ByteRange> ranges) {
+    if (ranges.size() < 2) {
+      return ranges;
+    }
+    ranges.sort(Comparator.comparingLong(ByteRange::first));
+    List<ByteRange> merged = new ArrayList<>();
+    ByteRange current = ranges.get(0);
+    for (int i = 1; i < ranges.size(); i++) {
+      ByteRange next = ranges.get(i);
+      if (next.first <= current.last + 1) {
+        current = new ByteRange(current.first, Math.max(current.last, next.last));
+      } else {
+        merged.add(current);
+        current = next;
+      }
+    }
+    merged.add(current);
+    return merged;
+  }
+}
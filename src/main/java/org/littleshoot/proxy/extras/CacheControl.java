@@ -0,0 +1,72 @@
+package org.littleshoot.proxy.extras;
+
+import static java.util.Locale.ROOT;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.HashMap;
+import java.util.Map;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.impl.ProxyUtils;
+
+/**
+ * The directives of the Cache-Control header(s) of a request or response, as defined in <a
+ * href="https://www.rfc-editor.org/rfc/rfc9111#section-5.2">RFC 9111, section 5.2</a>.
+ */
+@NullMarked
+final class CacheControl {
+  static final CacheControl EMPTY = new CacheControl(new HashMap<>());
+
+  /** Directive names, in lower case, mapped to their unquoted argument (or null). */
+  private final Map<String, @Nullable String> directives;
+
+  private CacheControl(Map<String, @Nullable String> directives) {
+    this.directives = directives;
+  }
+
+  static CacheControl parse(HttpHeaders headers) {
+    Map<String, @Nullable String> directives = new HashMap<>();
+    for (String value : headers.getAll(HttpHeaderNames.CACHE_CONTROL)) {
+      for (String directive : ProxyUtils.splitCommaSeparatedHeaderValues(value)) {
+        int equals = directive.indexOf('=');
+        if (equals < 0) {
+          directives.putIfAbsent(directive.toLowerCase(ROOT), null);
+        } else {
+          String name = directive.substring(0, equals).trim().toLowerCase(ROOT);
+          String argument = directive.substring(equals + 1).trim();
+          if (argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\"")) {
+            argument = argument.substring(1, argument.length() - 1);
+          }
+          directives.putIfAbsent(name, argument);
+        }
+      }
+    }
+    return directives.isEmpty() ? EMPTY : new CacheControl(directives);
+  }
+
+  boolean has(String directive) {
+    return directives.containsKey(directive);
+  }
+
+  /**
+   * Returns the argument of a delta-seconds directive such as max-age, or -1 if the directive is
+   * absent or has no valid argument. Values too large to represent are capped, as RFC 9111 asks.
+   */
+  long seconds(String directive) {
+    String argument = directives.get(directive);
+    if (argument == null || argument.isEmpty()) {
+      return -1;
+    }
+    for (int i = 0; i < argument.length(); i++) {
+      char c = argument.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+    }
+    if (argument.length() > 10) {
+      return Integer.MAX_VALUE;
+    }
+    return Math.min(Long.parseLong(argument), Integer.MAX_VALUE);
+  }
+}
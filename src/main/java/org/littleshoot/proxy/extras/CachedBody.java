@@ -0,0 +1,101 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import org.jspecify.annotations.NullMarked;
+
+/**
+ * The body of a {@link CachedResponse}. Bodies are reference counted: the cache holds one reference
+ * for as long as the response is stored, and anyone reading the body after taking it from the
+ * cache holds another, so that the body stays readable if it is evicted in the meantime.
+ */
+@NullMarked
+abstract class CachedBody extends AbstractReferenceCounted {
+  /** Returns a body held in a byte array on the heap. */
+  static CachedBody of(byte[] bytes) {
+    return new HeapBody(bytes);
+  }
+
+  /**
+   * Returns a body held in the readable bytes of a buffer, such as the buffers received from the
+   * server gathered in a composite, which must not be modified afterwards. The body takes over the
+   * caller's reference to the buffer.
+   */
+  static CachedBody of(ByteBuf buffer) {
+    return new BufferBody(buffer);
+  }
+
+  /** The length of the body, in bytes. */
+  abstract int length();
+
+  /** Returns a buffer holding the body, which the caller must release. */
+  abstract ByteBuf content();
+
+  /**
+   * Returns a message writing the body to a channel, which the caller must release: a {@link
+   * ByteBuf}, or a {@link io.netty.channel.FileRegion} if {@code zeroCopy} is allowed and the body
+   * is on disk.
+   */
+  Object message(boolean zeroCopy) {
+    return content();
+  }
+
+  /** Like {@link #message(boolean)}, but for only part of the body. */
+  Object message(boolean zeroCopy, int offset, int length) {
+    // the slice shares the reference count of the buffer, so releasing it releases the buffer
+    return content().slice(offset, length);
+  }
+
+  @Override
+  public ReferenceCounted touch(Object hint) {
+    return this;
+  }
+
+  private static final class HeapBody extends CachedBody {
+    private final byte[] bytes;
+
+    private HeapBody(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    int length() {
+      return bytes.length;
+    }
+
+    @Override
+    ByteBuf content() {
+      return Unpooled.wrappedBuffer(bytes);
+    }
+
+    @Override
+    protected void deallocate() {
+      // left to the garbage collector
+    }
+  }
+
+  private static final class BufferBody extends CachedBody {
+    private final ByteBuf buffer;
+
+    private BufferBody(ByteBuf buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    int length() {
+      return buffer.readableBytes();
+    }
+
+    @Override
+    ByteBuf content() {
+      return buffer.retainedDuplicate();
+    }
+
+    @Override
+    protected void deallocate() {
+      buffer.release();
+    }
+  }
+}
@@ -0,0 +1,460 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.StreamedHttpResponse;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.littleshoot.proxy.impl.ResponseCompressor;
+
+/**
+ * A response stored in an {@link HttpCache}, along with what is needed to compute its freshness as
+ * described in <a href="https://www.rfc-editor.org/rfc/rfc9111#section-4.2">RFC 9111, section
+ * 4.2</a>.
+ */
+@NullMarked
+final class CachedResponse {
+  /** Status codes that are heuristically cacheable (RFC 9110, section 15.1). */
+  static final Set<Integer> HEURISTICALLY_CACHEABLE_STATUS_CODES =
+      Set.of(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501);
+
+  /** Fraction of the time since Last-Modified used as heuristic freshness lifetime. */
+  private static final long HEURISTIC_FRACTION = 10;
+
+  private static final long MAX_HEURISTIC_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private static final int METADATA_VERSION = 1;
+
+  /** Rough per-entry overhead in bytes, on top of the headers and body. */
+  private static final int ENTRY_OVERHEAD = 256;
+
+  private final HttpResponseStatus status;
+  private final HttpHeaders headers;
+  private final CachedBody body;
+  private final CacheControl cacheControl;
+  private final long requestTimeMillis;
+  private final long responseTimeMillis;
+  private final long correctedInitialAgeMillis;
+  private final long freshnessLifetimeMillis;
+
+  /** The body compressed with gzip, once a client accepting it has asked for the response. */
+  @Nullable private final CachedBody gzipBody;
+
+  /**
+   * @param status the status of the response
+   * @param headers the end-to-end headers of the response, which are copied
+   * @param body the body of the response, which must not be modified afterwards
+   * @param requestTimeMillis the time the request was made
+   * @param responseTimeMillis the time the response was received
+   */
+  CachedResponse(
+      HttpResponseStatus status,
+      HttpHeaders headers,
+      byte[] body,
+      long requestTimeMillis,
+      long responseTimeMillis) {
+    this(status, headers, CachedBody.of(body), requestTimeMillis, responseTimeMillis);
+  }
+
+  CachedResponse(
+      HttpResponseStatus status,
+      HttpHeaders headers,
+      CachedBody body,
+      long requestTimeMillis,
+      long responseTimeMillis) {
+    this(status, headers, body, requestTimeMillis, responseTimeMillis, null);
+  }
+
+  private CachedResponse(
+      HttpResponseStatus status,
+      HttpHeaders headers,
+      CachedBody body,
+      long requestTimeMillis,
+      long responseTimeMillis,
+      @Nullable CachedBody gzipBody) {
+    this.status = status;
+    this.headers = new DefaultHttpHeaders().set(headers);
+    ProxyUtils.stripHopByHopHeaders(this.headers);
+    // the body is stored whole, and always served with a Content-Length of its own
+    this.headers.remove(HttpHeaderNames.CONTENT_LENGTH).remove(HttpHeaderNames.TRANSFER_ENCODING);
+    if (!this.headers.contains(HttpHeaderNames.DATE)) {
+      this.headers.set(HttpHeaderNames.DATE, DateFormatter.format(new Date(responseTimeMillis)));
+    }
+    this.body = body;
+    this.cacheControl = CacheControl.parse(this.headers);
+    this.requestTimeMillis = requestTimeMillis;
+    this.responseTimeMillis = responseTimeMillis;
+    this.correctedInitialAgeMillis = correctedInitialAge();
+    this.freshnessLifetimeMillis = freshnessLifetime();
+    this.gzipBody = gzipBody;
+  }
+
+  HttpResponseStatus status() {
+    return status;
+  }
+
+  HttpHeaders headers() {
+    return headers;
+  }
+
+  CachedBody body() {
+    return body;
+  }
+
+  /** Returns the same response with a different body, such as a copy in another store. */
+  CachedResponse withBody(CachedBody body) {
+    return new CachedResponse(
+        status, headers, body, requestTimeMillis, responseTimeMillis, gzipBody);
+  }
+
+  /** Returns whether the body compressed with gzip is stored along with the response. */
+  boolean hasGzipVariant() {
+    return gzipBody != null;
+  }
+
+  /** Returns the same response, with its body compressed with gzip stored along with it. */
+  CachedResponse withGzipVariant() {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, body.length() / 4));
+    try (InputStream in = new ByteBufInputStream(body.content(), true);
+        GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      in.transferTo(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new CachedResponse(
+        status,
+        headers,
+        body,
+        requestTimeMillis,
+        responseTimeMillis,
+        CachedBody.of(compressed.toByteArray()));
+  }
+
+  CacheControl cacheControl() {
+    return cacheControl;
+  }
+
+  long requestTimeMillis() {
+    return requestTimeMillis;
+  }
+
+  long responseTimeMillis() {
+    return responseTimeMillis;
+  }
+
+  long freshnessLifetimeMillis() {
+    return freshnessLifetimeMillis;
+  }
+
+  /** Approximate number of bytes of memory this response takes up. */
+  long size() {
+    long size = ENTRY_OVERHEAD + body.length() + (gzipBody == null ? 0 : gzipBody.length());
+    for (Map.Entry<String, String> header : headers) {
+      size += header.getKey().length() + header.getValue().length();
+    }
+    return size;
+  }
+
+  /** The current age of the response, as defined in RFC 9111, section 4.2.3. */
+  long currentAgeMillis(long nowMillis) {
+    long residentTime = Math.max(0, nowMillis - responseTimeMillis);
+    return correctedInitialAgeMillis + residentTime;
+  }
+
+  /**
+   * Returns true if this response may be served without contacting the origin server, given the
+   * Cache-Control directives of the request.
+   */
+  boolean isFreshFor(CacheControl requestCacheControl, long nowMillis) {
+    if (cacheControl.has("no-cache")) {
+      return false;
+    }
+    long age = currentAgeMillis(nowMillis);
+    long maxAge = requestCacheControl.seconds("max-age");
+    if (maxAge >= 0 && age > TimeUnit.SECONDS.toMillis(maxAge)) {
+      return false;
+    }
+    long minFresh = requestCacheControl.seconds("min-fresh");
+    if (minFresh >= 0 && freshnessLifetimeMillis - age < TimeUnit.SECONDS.toMillis(minFresh)) {
+      return false;
+    }
+    if (freshnessLifetimeMillis > age) {
+      return true;
+    }
+    if (mustRevalidate() || !requestCacheControl.has("max-stale")) {
+      return false;
+    }
+    long maxStale = requestCacheControl.seconds("max-stale");
+    return maxStale < 0 || age - freshnessLifetimeMillis <= TimeUnit.SECONDS.toMillis(maxStale);
+  }
+
+  /** How long ago the response became stale, or a negative value if it is still fresh. */
+  long stalenessMillis(long nowMillis) {
+    return currentAgeMillis(nowMillis) - freshnessLifetimeMillis;
+  }
+
+  /** Returns true if the response has an ETag or Last-Modified to make a conditional request. */
+  boolean hasValidator() {
+    return headers.contains(HttpHeaderNames.ETAG)
+        || headers.contains(HttpHeaderNames.LAST_MODIFIED);
+  }
+
+  /**
+   * Returns the same response, with its headers updated from the 304 Not Modified response to a
+   * conditional request, as described in RFC 9111, section 3.2.
+   */
+  CachedResponse withUpdatedHeaders(
+      HttpHeaders notModifiedHeaders, long requestTimeMillis, long responseTimeMillis) {
+    HttpHeaders updated = new DefaultHttpHeaders().set(headers);
+    // the stored Age no longer applies, whether or not the 304 has one
+    updated.remove(HttpHeaderNames.AGE);
+    for (String name : notModifiedHeaders.names()) {
+      if (!HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(name)) {
+        updated.set(name, notModifiedHeaders.getAll(name));
+      }
+    }
+    return new CachedResponse(
+        status, updated, body, requestTimeMillis, responseTimeMillis, gzipBody);
+  }
+
+  /** Returns true if a shared cache must not serve this response once it is stale. */
+  boolean mustRevalidate() {
+    return cacheControl.has("must-revalidate")
+        || cacheControl.has("proxy-revalidate")
+        || cacheControl.has("s-maxage");
+  }
+
+  /**
+   * Creates a new response to send to a client, with its Age header set.
+   *
+   * @param zeroCopy whether a body stored on disk may be sent as a {@link
+   *     io.netty.channel.FileRegion}, which is only possible if the client connection is not
+   *     encrypted
+   */
+  StreamedHttpResponse toHttpResponse(long nowMillis, boolean zeroCopy) {
+    StreamedHttpResponse response = new StreamedHttpResponse(HttpVersion.HTTP_1_1, status);
+    response.headers().set(headers);
+    response
+        .headers()
+        .set(HttpHeaderNames.AGE, TimeUnit.MILLISECONDS.toSeconds(currentAgeMillis(nowMillis)))
+        .set(HttpHeaderNames.CONTENT_LENGTH, body.length());
+    if (body.length() > 0) {
+      response.addBodyPart(body.message(zeroCopy));
+    }
+    return response;
+  }
+
+  /**
+   * Creates a new response to send to a client that accepts gzip, with the body compressed by
+   * {@link #withGzipVariant()}.
+   */
+  StreamedHttpResponse toGzipHttpResponse(long nowMillis) {
+    CachedBody compressed = gzipBody;
+    if (compressed == null) {
+      throw new IllegalStateException("No gzip variant of the response is stored");
+    }
+    StreamedHttpResponse response = new StreamedHttpResponse(HttpVersion.HTTP_1_1, status);
+    response.headers().set(headers);
+    ResponseCompressor.varyOnAcceptEncoding(response.headers());
+    response
+        .headers()
+        .set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP)
+        .set(HttpHeaderNames.AGE, TimeUnit.MILLISECONDS.toSeconds(currentAgeMillis(nowMillis)))
+        .set(HttpHeaderNames.CONTENT_LENGTH, compressed.length());
+    if (compressed.length() > 0) {
+      response.addBodyPart(compressed.content());
+    }
+    return response;
+  }
+
+  /**
+   * Creates a 206 Partial Content response to send to a client, holding the given ranges of the
+   * body, as a multipart/byteranges body if there are several.
+   *
+   * @param ranges satisfiable ranges of the body, sorted and not overlapping
+   * @param zeroCopy see {@link #toHttpResponse(long, boolean)}
+   */
+  StreamedHttpResponse toPartialHttpResponse(
+      long nowMillis, boolean zeroCopy, List<ByteRange> ranges) {
+    StreamedHttpResponse response =
+        new StreamedHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT);
+    HttpHeaders responseHeaders = response.headers();
+    responseHeaders
+        .set(headers)
+        .set(HttpHeaderNames.AGE, TimeUnit.MILLISECONDS.toSeconds(currentAgeMillis(nowMillis)));
+    if (ranges.size() == 1) {
+      ByteRange range = ranges.get(0);
+      responseHeaders
+          .set(HttpHeaderNames.CONTENT_RANGE, range.contentRange(body.length()))
+          .set(HttpHeaderNames.CONTENT_LENGTH, range.length());
+      response.addBodyPart(body.message(zeroCopy, (int) range.first(), (int) range.length()));
+      return response;
+    }
+
+    String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE);
+    long contentLength = 0;
+    for (int i = 0; i < ranges.size(); i++) {
+      ByteRange range = ranges.get(i);
+      StringBuilder partHeaders = new StringBuilder();
+      partHeaders.append(i == 0 ? "--" : "\r\n--").append(boundary).append("\r\n");
+      if (contentType != null) {
+        partHeaders.append("Content-Type: ").append(contentType).append("\r\n");
+      }
+      partHeaders
+          .append("Content-Range: ")
+          .append(range.contentRange(body.length()))
+          .append("\r\n\r\n");
+      ByteBuf partHeader = Unpooled.copiedBuffer(partHeaders, StandardCharsets.ISO_8859_1);
+      contentLength += partHeader.readableBytes() + range.length();
+      response.addBodyPart(partHeader);
+      response.addBodyPart(body.message(zeroCopy, (int) range.first(), (int) range.length()));
+    }
+    ByteBuf end =
+        Unpooled.copiedBuffer("\r\n--" + boundary + "--\r\n", StandardCharsets.ISO_8859_1);
+    contentLength += end.readableBytes();
+    response.addBodyPart(end);
+    responseHeaders
+        .set(HttpHeaderNames.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary)
+        .set(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+    return response;
+  }
+
+  /**
+   * Serializes everything but the body, to be stored alongside it. See {@link
+   * #decodeMetadata(byte[], CachedBody)}.
+   */
+  byte[] encodeMetadata() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(METADATA_VERSION);
+      out.writeShort(status.code());
+      out.writeUTF(status.reasonPhrase());
+      out.writeLong(requestTimeMillis);
+      out.writeLong(responseTimeMillis);
+      out.writeInt(headers.size());
+      for (Map.Entry<String, String> header : headers) {
+        out.writeUTF(header.getKey());
+        out.writeUTF(header.getValue());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Recreates a response serialized with {@link #encodeMetadata()}. */
+  static CachedResponse decodeMetadata(byte[] metadata, CachedBody body) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(metadata))) {
+      int version = in.readByte();
+      if (version != METADATA_VERSION) {
+        throw new IOException("Unsupported cached response metadata version: " + version);
+      }
+      HttpResponseStatus status = HttpResponseStatus.valueOf(in.readShort(), in.readUTF());
+      long requestTimeMillis = in.readLong();
+      long responseTimeMillis = in.readLong();
+      int headerCount = in.readInt();
+      HttpHeaders headers = new DefaultHttpHeaders();
+      for (int i = 0; i < headerCount; i++) {
+        headers.add(in.readUTF(), in.readUTF());
+      }
+      return new CachedResponse(status, headers, body, requestTimeMillis, responseTimeMillis);
+    }
+  }
+
+  private long correctedInitialAge() {
+    long date = dateMillis(HttpHeaderNames.DATE, responseTimeMillis);
+    long apparentAge = Math.max(0, responseTimeMillis - date);
+    long responseDelay = Math.max(0, responseTimeMillis - requestTimeMillis);
+    long ageValue = 0;
+    String age = headers.get(HttpHeaderNames.AGE);
+    if (age != null) {
+      try {
+        ageValue = TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(age.trim())));
+      } catch (NumberFormatException e) {
+        // an invalid Age is ignored
+      }
+    }
+    return Math.max(apparentAge, ageValue + responseDelay);
+  }
+
+  private long freshnessLifetime() {
+    long sMaxAge = cacheControl.seconds("s-maxage");
+    if (sMaxAge >= 0) {
+      return TimeUnit.SECONDS.toMillis(sMaxAge);
+    }
+    long maxAge = cacheControl.seconds("max-age");
+    if (maxAge >= 0) {
+      return TimeUnit.SECONDS.toMillis(maxAge);
+    }
+    long date = dateMillis(HttpHeaderNames.DATE, responseTimeMillis);
+    if (headers.contains(HttpHeaderNames.EXPIRES)) {
+      // an invalid Expires, such as "0", means already expired
+      return Math.max(0, dateMillis(HttpHeaderNames.EXPIRES, date) - date);
+    }
+    long lastModified = dateMillis(HttpHeaderNames.LAST_MODIFIED, -1);
+    if (lastModified >= 0
+        && lastModified < date
+        && HEURISTICALLY_CACHEABLE_STATUS_CODES.contains(status.code())) {
+      return Math.min((date - lastModified) / HEURISTIC_FRACTION, MAX_HEURISTIC_LIFETIME_MILLIS);
+    }
+    return 0;
+  }
+
+  private long dateMillis(CharSequence header, long defaultValue) {
+    @Nullable String value = headers.get(header);
+    if (value == null) {
+      return defaultValue;
+    }
+    Date date = DateFormatter.parseHttpDate(value);
+    return date == null ? defaultValue : date.getTime();
+  }
+
+  /**
+   * Returns the names of the request headers listed in the Vary header of a response, in lower
+   * case, sorted and without duplicates.
+   */
+  static List<String> varyHeaderNames(HttpHeaders headers) {
+    TreeSet<String> names = new TreeSet<>();
+    for (String value : headers.getAll(HttpHeaderNames.VARY)) {
+      for (String name : ProxyUtils.splitCommaSeparatedHeaderValues(value)) {
+        names.add(name.toLowerCase(Locale.ROOT));
+      }
+    }
+    return List.copyOf(names);
+  }
+
+  /** Returns true if the response has an explicit expiration time or is explicitly public. */
+  static boolean hasExplicitFreshness(CacheControl cacheControl, HttpHeaders headers) {
+    return cacheControl.has("max-age")
+        || cacheControl.has("s-maxage")
+        || cacheControl.has("public")
+        || headers.contains(HttpHeaderNames.EXPIRES);
+  }
+}
@@ -0,0 +1,850 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.AsyncHttpFilters;
+import org.littleshoot.proxy.HttpFilters;
+import org.littleshoot.proxy.HttpFiltersAdapter;
+import org.littleshoot.proxy.HttpFiltersSourceAdapter;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.littleshoot.proxy.impl.ResponseCompressor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link org.littleshoot.proxy.HttpFiltersSource} that caches responses in an {@link HttpCache},
+ * following the rules for shared caches in <a href="https://www.rfc-editor.org/rfc/rfc9111">RFC
+ * 9111</a>.
+ *
+ * <p>Fresh responses to GET requests are served from the cache as short-circuit responses, without
+ * contacting the server. Responses are stored as they stream through the proxy, so there is no need
+ * to buffer them with {@link #getMaximumResponseBufferSizeInBytes()}. Bodies kept on disk by a
+ * {@link TieredBodyStore} are sent as file regions when the client connection is not encrypted.
+ * Stale responses are not revalidated by the client request: it is forwarded as is, and the new
+ * response replaces the stored one.
+ *
+ * <p>Within the stale-while-revalidate window, which is the longer of the one configured with
+ * {@link #withStaleWhileRevalidate(Duration)} and the one given by the response's {@code
+ * stale-while-revalidate} directive (RFC 5861), a stale response with an ETag or Last-Modified is
+ * served right away, and revalidated in the background with a conditional request. Within the
+ * stale-if-error window, a stale response is served when the server cannot be reached or times
+ * out, instead of a 502 Bad Gateway or 504 Gateway Timeout response. Responses that must be
+ * revalidated, because of {@code must-revalidate}, {@code proxy-revalidate} or {@code s-maxage},
+ * are never served stale.
+ *
+ * <p>Concurrent cache misses for the same resource are collapsed into a single request to the
+ * server: the first request is forwarded, and the others wait for its response and are sent
+ * duplicates of its body as it streams in, provided the response can be stored. If the response
+ * does not start arriving within the collapse timeout, the waiting requests are forwarded too. If
+ * it stops arriving for longer than the collapse timeout once started, or if a client reads it so
+ * slowly that it falls more than {@link #withMaxFollowerLag(long) a given number of bytes} behind,
+ * the waiting clients, or that client, are disconnected.
+ *
+ * <p>Range requests are answered from stored 200 responses with 206 Partial Content responses,
+ * holding slices of the stored body, or file regions of it when it is on disk. With {@link
+ * #withRangeFill(boolean)}, a Range request that misses the cache is forwarded as usual while the
+ * whole response is fetched in the background, so that later Range requests hit the cache.
+ *
+ * <p>With {@link #withCompressedVariants(int)}, clients accepting gzip are served a compressed copy
+ * of compressible responses, made the first time one asks for it and stored along with the
+ * response, so that it is not compressed again for every hit.
+ *
+ * <p>With {@link #withSnapshot(Path, int)}, the most popular responses are written to a file when a
+ * proxy server using this source stops, or is aborted as by its JVM shutdown hook, and loaded back
+ * into the cache when one starts.
+ *
+ * <p>Responses that vary on request headers are stored as variants of the resource, selected by the
+ * values of the headers listed in their Vary header, as normalised by the {@link VaryNormalizer}
+ * set with {@link #withVaryNormalizer(VaryNormalizer)}. Responses with "Vary: *" are not stored,
+ * and requests are not collapsed onto responses that vary.
+ */
+@NullMarked
+public class CachingHttpFiltersSource extends HttpFiltersSourceAdapter {
+  private static final Logger LOG = LoggerFactory.getLogger(CachingHttpFiltersSource.class);
+
+  /** Default time requests wait for the response to another request for the same resource. */
+  public static final Duration DEFAULT_COLLAPSE_TIMEOUT = Duration.ofSeconds(5);
+
+  /** Default number of bytes a collapsed request may fall behind the response it waits for. */
+  public static final long DEFAULT_MAX_FOLLOWER_LAG = 4 * 1024 * 1024;
+
+  private final HttpCache cache;
+  private final long collapseTimeoutNanos;
+  private final Revalidator revalidator;
+  private long maxFollowerLagBytes = DEFAULT_MAX_FOLLOWER_LAG;
+  private long staleWhileRevalidateMillis;
+  private long staleIfErrorMillis;
+  private VaryNormalizer varyNormalizer = VaryNormalizer.standard();
+  private boolean rangeFill;
+  private int compressedVariantMinimumLength = -1;
+  @Nullable private Path snapshotFile;
+  private int snapshotEntries;
+  private final AtomicBoolean snapshotLoaded = new AtomicBoolean();
+
+  /** Responses being fetched from the server that other requests may wait for, by cache key. */
+  private final ConcurrentMap<String, InFlightResponse> inFlight = new ConcurrentHashMap<>();
+
+  public CachingHttpFiltersSource(HttpCache cache) {
+    this(cache, DEFAULT_COLLAPSE_TIMEOUT);
+  }
+
+  /**
+   * Creates a filters source caching responses in the given cache.
+   *
+   * @param collapseTimeout how long a cache miss waits for the response to another request for the
+   *     same resource before fetching it itself. Zero disables request collapsing.
+   */
+  public CachingHttpFiltersSource(HttpCache cache, Duration collapseTimeout) {
+    if (collapseTimeout.isNegative()) {
+      throw new IllegalArgumentException(
+          "Collapse timeout must not be negative: " + collapseTimeout);
+    }
+    this.cache = cache;
+    this.collapseTimeoutNanos = collapseTimeout.toNanos();
+    this.revalidator = new Revalidator(cache);
+  }
+
+  /**
+   * Sets how many bytes of a shared response a collapsed request may have yet to send to its
+   * client before it is disconnected, which bounds the buffers held for clients reading more
+   * slowly than the response arrives. Defaults to {@link #DEFAULT_MAX_FOLLOWER_LAG}.
+   */
+  public CachingHttpFiltersSource withMaxFollowerLag(long maxBytes) {
+    this.maxFollowerLagBytes = maxBytes;
+    return this;
+  }
+
+  /**
+   * Serves stale responses for up to the given time after they become stale, while revalidating
+   * them in the background, even if they have no {@code stale-while-revalidate} directive.
+   */
+  public CachingHttpFiltersSource withStaleWhileRevalidate(Duration staleWhileRevalidate) {
+    this.staleWhileRevalidateMillis = staleWhileRevalidate.toMillis();
+    return this;
+  }
+
+  /**
+   * Serves stale responses for up to the given time after they become stale when the server cannot
+   * be reached, even if they have no {@code stale-if-error} directive.
+   */
+  public CachingHttpFiltersSource withStaleIfError(Duration staleIfError) {
+    this.staleIfErrorMillis = staleIfError.toMillis();
+    return this;
+  }
+
+  /**
+   * Sets how the request headers that responses vary on are normalised to select a stored variant.
+   * Defaults to {@link VaryNormalizer#standard()}.
+   */
+  public CachingHttpFiltersSource withVaryNormalizer(VaryNormalizer varyNormalizer) {
+    this.varyNormalizer = varyNormalizer;
+    return this;
+  }
+
+  /**
+   * Sets whether a Range request that misses the cache makes the proxy fetch the whole response in
+   * the background, to serve later Range requests for the resource from the cache. Off by default.
+   */
+  public CachingHttpFiltersSource withRangeFill(boolean rangeFill) {
+    this.rangeFill = rangeFill;
+    return this;
+  }
+
+  /**
+   * Serves clients that accept gzip a compressed copy of stored responses with a compressible
+   * Content-Type and a body of at least the given length, as {@link
+   * org.littleshoot.proxy.HttpProxyServerBootstrap#withResponseCompression(int)} does for responses
+   * that are not served from the cache. The copy is stored along with the response, and counts
+   * towards the size of the cache. Off by default.
+   */
+  public CachingHttpFiltersSource withCompressedVariants(int minimumContentLength) {
+    this.compressedVariantMinimumLength = minimumContentLength;
+    return this;
+  }
+
+  /**
+   * Writes the {@code maxEntries} most popular responses in the cache to the given file when a
+   * proxy server using this source stops, whether gracefully or not, and loads the file into the
+   * cache when the first server using this source starts, before it accepts connections. Responses
+   * still being received when the server stops are not written.
+   */
+  public CachingHttpFiltersSource withSnapshot(Path file, int maxEntries) {
+    this.snapshotFile = file;
+    this.snapshotEntries = maxEntries;
+    return this;
+  }
+
+  @Override
+  public void proxyServerStarting(HttpProxyServer proxyServer) {
+    if (proxyServer instanceof DefaultHttpProxyServer) {
+      // background requests go out the way the server's own do
+      revalidator.useProxyServer((DefaultHttpProxyServer) proxyServer);
+    }
+    Path file = snapshotFile;
+    if (file == null || !Files.exists(file) || !snapshotLoaded.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      cache.loadSnapshot(file);
+    } catch (IOException | UncheckedIOException e) {
+      LOG.warn("Unable to load cache snapshot {}", file, e);
+    }
+  }
+
+  @Override
+  public void proxyServerStopped(boolean graceful) {
+    Path file = snapshotFile;
+    // also written when aborted, which is how the JVM shutdown hook stops the server: the stored
+    // responses are complete either way
+    if (file == null) {
+      return;
+    }
+    try {
+      cache.writeSnapshot(file, snapshotEntries);
+    } catch (IOException | UncheckedIOException e) {
+      LOG.warn("Unable to write cache snapshot {}", file, e);
+    }
+  }
+
+  public HttpCache getCache() {
+    return cache;
+  }
+
+  @Override
+  @Nullable
+  public HttpFilters filterRequest(
+      @NonNull HttpRequest originalRequest, @Nullable ChannelHandlerContext ctx) {
+    if (HttpMethod.CONNECT.equals(originalRequest.method())) {
+      return null;
+    }
+    return new CachingHttpFilters(originalRequest, ctx, cacheKey(originalRequest, ctx));
+  }
+
+  /**
+   * Returns the key under which the response to the given request is stored, unless it varies on
+   * request headers: the absolute URI of the request. Requests received over a MITM'd connection
+   * only have a path, so the URI is rebuilt from the Host header.
+   */
+  static String cacheKey(HttpRequest request, @Nullable ChannelHandlerContext ctx) {
+    String uri = request.uri();
+    if (!uri.startsWith("/")) {
+      return uri;
+    }
+    boolean encrypted = ctx != null && ctx.pipeline().get(SslHandler.class) != null;
+    String host = request.headers().get(HttpHeaderNames.HOST, "");
+    return (encrypted ? "https://" : "http://") + host + uri;
+  }
+
+  /**
+   * Returns the key of the variant of a resource selected by a request, given the names of the
+   * request headers the responses of the resource vary on.
+   */
+  private String variantKey(String uri, HttpRequest request, List<String> varyHeaders) {
+    if (varyHeaders.isEmpty()) {
+      return uri;
+    }
+    StringBuilder key = new StringBuilder(uri);
+    for (String name : varyHeaders) {
+      key.append(HttpCache.VARIANT_SEPARATOR)
+          .append(name)
+          .append(':')
+          .append(varyNormalizer.normalize(name, request.headers().getAll(name)));
+    }
+    return key.toString();
+  }
+
+  /**
+   * Returns true if the response to the given request may be stored, as described in RFC 9111,
+   * section 3.
+   */
+  static boolean isStorable(HttpRequest request, HttpResponse response) {
+    if (!HttpMethod.GET.equals(request.method())) {
+      return false;
+    }
+    int status = response.status().code();
+    if (status < 200
+        || status == HttpResponseStatus.PARTIAL_CONTENT.code()
+        || status == HttpResponseStatus.NOT_MODIFIED.code()) {
+      return false;
+    }
+    CacheControl requestCacheControl = CacheControl.parse(request.headers());
+    CacheControl responseCacheControl = CacheControl.parse(response.headers());
+    if (requestCacheControl.has("no-store")
+        || responseCacheControl.has("no-store")
+        || responseCacheControl.has("private")
+        || responseCacheControl.has("no-cache")) {
+      return false;
+    }
+    if (request.headers().contains(HttpHeaderNames.AUTHORIZATION)
+        && !responseCacheControl.has("public")
+        && !responseCacheControl.has("must-revalidate")
+        && !responseCacheControl.has("s-maxage")) {
+      return false;
+    }
+    HttpHeaders headers = response.headers();
+    if (CachedResponse.varyHeaderNames(headers).contains("*")
+        || headers.contains(HttpHeaderNames.SET_COOKIE)) {
+      return false;
+    }
+    return CachedResponse.hasExplicitFreshness(responseCacheControl, headers)
+        || (CachedResponse.HEURISTICALLY_CACHEABLE_STATUS_CODES.contains(status)
+            && headers.contains(HttpHeaderNames.LAST_MODIFIED));
+  }
+
+  private static boolean isUnsafe(HttpMethod method) {
+    return !HttpMethod.GET.equals(method)
+        && !HttpMethod.HEAD.equals(method)
+        && !HttpMethod.OPTIONS.equals(method)
+        && !HttpMethod.TRACE.equals(method);
+  }
+
+  /**
+   * Returns true if a conditional request can be answered with 304 Not Modified based on the
+   * stored response, as described in RFC 9110, section 13.2.2.
+   */
+  private static boolean isNotModified(HttpRequest request, CachedResponse cached) {
+    HttpHeaders requestHeaders = request.headers();
+    List<String> ifNoneMatch = requestHeaders.getAll(HttpHeaderNames.IF_NONE_MATCH);
+    if (!ifNoneMatch.isEmpty()) {
+      String etag = cached.headers().get(HttpHeaderNames.ETAG);
+      if (etag == null) {
+        return false;
+      }
+      for (String value : ifNoneMatch) {
+        for (String candidate : ProxyUtils.splitCommaSeparatedHeaderValues(value)) {
+          if ("*".equals(candidate) || weakTag(candidate).equals(weakTag(etag))) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+    String ifModifiedSince = requestHeaders.get(HttpHeaderNames.IF_MODIFIED_SINCE);
+    String lastModified = cached.headers().get(HttpHeaderNames.LAST_MODIFIED);
+    if (ifModifiedSince == null || lastModified == null) {
+      return false;
+    }
+    Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+    Date modified = DateFormatter.parseHttpDate(lastModified);
+    return since != null && modified != null && !modified.after(since);
+  }
+
+  /**
+   * Returns true if a Range request may be answered with part of the stored response, given its
+   * If-Range header, as described in RFC 9110, section 13.1.5.
+   */
+  private static boolean ifRangeMatches(HttpRequest request, CachedResponse cached) {
+    String ifRange = request.headers().get(HttpHeaderNames.IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    String condition = ifRange.trim();
+    if (condition.startsWith("\"") || condition.startsWith("W/")) {
+      // only a strong comparison will do
+      String etag = cached.headers().get(HttpHeaderNames.ETAG);
+      return etag != null && condition.startsWith("\"") && condition.equals(etag.trim());
+    }
+    String lastModified = cached.headers().get(HttpHeaderNames.LAST_MODIFIED);
+    if (lastModified == null) {
+      return false;
+    }
+    Date since = DateFormatter.parseHttpDate(condition);
+    Date modified = DateFormatter.parseHttpDate(lastModified);
+    return since != null && since.equals(modified);
+  }
+
+  /** Builds a 416 Range Not Satisfiable response, as RFC 9110, section 15.5.17. */
+  private static FullHttpResponse rangeNotSatisfiable(int bodyLength) {
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+    response
+        .headers()
+        .set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + bodyLength)
+        .set(HttpHeaderNames.CONTENT_LENGTH, 0);
+    return response;
+  }
+
+  /**
+   * Returns true if a request that missed the cache may wait for the response to another request
+   * for the same resource, or be waited for.
+   */
+  private static boolean isCollapsible(HttpRequest request) {
+    return !request.headers().contains(HttpHeaderNames.AUTHORIZATION)
+        && !request.headers().contains(HttpHeaderNames.RANGE)
+        && !HttpUtil.isTransferEncodingChunked(request)
+        && HttpUtil.getContentLength(request, 0L) == 0;
+  }
+
+  /** Returns true if the response to the given request can be shared with waiting requests. */
+  private static boolean canLead(HttpRequest request) {
+    HttpHeaders headers = request.headers();
+    return !headers.contains(HttpHeaderNames.IF_NONE_MATCH)
+        && !headers.contains(HttpHeaderNames.IF_MODIFIED_SINCE)
+        && !headers.contains(HttpHeaderNames.IF_MATCH)
+        && !headers.contains(HttpHeaderNames.IF_UNMODIFIED_SINCE)
+        && !headers.contains(HttpHeaderNames.IF_RANGE);
+  }
+
+  /**
+   * Returns true if a stale response may be served to a request while it is revalidated in the
+   * background. Requests limiting the age of the response they accept are not served stale.
+   */
+  private boolean canServeWhileRevalidating(
+      CachedResponse cached, CacheControl requestCacheControl, long nowMillis) {
+    if (!cached.hasValidator()
+        || cached.mustRevalidate()
+        || cached.cacheControl().has("no-cache")
+        || requestCacheControl.has("max-age")
+        || requestCacheControl.has("min-fresh")
+        || requestCacheControl.has("max-stale")) {
+      return false;
+    }
+    long window =
+        Math.max(
+            staleWhileRevalidateMillis,
+            secondsToMillis(cached.cacheControl().seconds("stale-while-revalidate")));
+    return cached.stalenessMillis(nowMillis) < window;
+  }
+
+  /** Returns true if a stale response may be served to a request the server failed to answer. */
+  private boolean canServeOnError(
+      CachedResponse cached, CacheControl requestCacheControl, long nowMillis) {
+    if (cached.mustRevalidate() || cached.cacheControl().has("no-cache")) {
+      return false;
+    }
+    long window =
+        Math.max(
+            staleIfErrorMillis,
+            Math.max(
+                secondsToMillis(cached.cacheControl().seconds("stale-if-error")),
+                secondsToMillis(requestCacheControl.seconds("stale-if-error"))));
+    return cached.stalenessMillis(nowMillis) < window;
+  }
+
+  /** Converts a directive value to milliseconds, keeping -1 for a missing directive. */
+  private static long secondsToMillis(long seconds) {
+    return seconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  private static String weakTag(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+
+  /** Builds a 304 Not Modified response from a stored response, as RFC 9110, section 15.4.5. */
+  private static FullHttpResponse notModified(CachedResponse cached, long nowMillis) {
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+    HttpHeaders stored = cached.headers();
+    HttpHeaders headers = response.headers();
+    for (CharSequence name :
+        new CharSequence[] {
+          HttpHeaderNames.CACHE_CONTROL,
+          HttpHeaderNames.CONTENT_LOCATION,
+          HttpHeaderNames.DATE,
+          HttpHeaderNames.ETAG,
+          HttpHeaderNames.EXPIRES,
+          HttpHeaderNames.LAST_MODIFIED,
+          HttpHeaderNames.VARY
+        }) {
+      List<String> values = stored.getAll(name);
+      if (!values.isEmpty()) {
+        headers.set(name, values);
+      }
+    }
+    headers.set(HttpHeaderNames.AGE, cached.currentAgeMillis(nowMillis) / 1000);
+    return response;
+  }
+
+  /** Serves and stores the responses for a single request. */
+  protected class CachingHttpFilters extends HttpFiltersAdapter implements AsyncHttpFilters {
+    private final String uri;
+
+    /** The key of the variant of the resource the request is served, once known. */
+    private String key;
+
+    private long requestTimeMillis;
+
+    /** The Cache-Control of the request, if it may be served from the cache. */
+    @Nullable private CacheControl lookupCacheControl;
+
+    /** Whether the request missed the cache and may be collapsed with others. */
+    private boolean collapsible;
+
+    /** The response other requests are waiting for, if this request is the one fetching it. */
+    @Nullable private InFlightResponse leading;
+
+    // the response being stored, read from the server connection's thread, and abandoned when the
+    // client connection closes; guarded by this
+    @Nullable private String capturedKey;
+    @Nullable private HttpResponseStatus capturedStatus;
+    @Nullable private HttpHeaders capturedHeaders;
+    @Nullable private CompositeByteBuf capturedBody;
+    @Nullable private ChannelFutureListener captureAbandoner;
+
+    protected CachingHttpFilters(
+        HttpRequest originalRequest, @Nullable ChannelHandlerContext ctx, String uri) {
+      super(originalRequest, ctx);
+      this.uri = uri;
+      this.key = uri;
+    }
+
+    @Override
+    @Nullable
+    public HttpResponse clientToProxyRequest(@NonNull HttpObject httpObject) {
+      if (!(httpObject instanceof HttpRequest)) {
+        return null;
+      }
+      HttpRequest request = (HttpRequest) httpObject;
+      requestTimeMillis = cache.now();
+      if (!HttpMethod.GET.equals(request.method())) {
+        return null;
+      }
+      key = variantKey(uri, request, cache.varyHeaders(uri));
+      CacheControl requestCacheControl = CacheControl.parse(request.headers());
+      if (requestCacheControl.has("no-store")
+          || requestCacheControl.has("no-cache")
+          || request.headers().contains(HttpHeaderNames.PRAGMA, HttpHeaderValues.NO_CACHE, true)) {
+        return null;
+      }
+
+      lookupCacheControl = requestCacheControl;
+      CachedResponse cached = cache.get(key);
+      if (cached != null) {
+        try {
+          long now = cache.now();
+          if (cached.isFreshFor(requestCacheControl, now)) {
+            return respondFromCache(request, cached, now);
+          }
+          if (ctx != null && canServeWhileRevalidating(cached, requestCacheControl, now)) {
+            revalidator.revalidate(key, uri, request, cached, ctx.channel().eventLoop());
+            cache.recordStaleHit();
+            return respondFromCache(request, cached, now);
+          }
+        } finally {
+          cached.body().release();
+        }
+      }
+      cache.recordMiss();
+      if (requestCacheControl.has("only-if-cached")) {
+        return ProxyUtils.createFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.GATEWAY_TIMEOUT, "Not in cache");
+      }
+      if (rangeFill
+          && ctx != null
+          && request.headers().contains(HttpHeaderNames.RANGE)
+          && !request.headers().contains(HttpHeaderNames.AUTHORIZATION)) {
+        revalidator.fill(key, uri, request, ctx.channel().eventLoop());
+      }
+      collapsible = collapseTimeoutNanos > 0 && ctx != null && isCollapsible(request);
+      return null;
+    }
+
+    @Override
+    public CompletionStage<@Nullable HttpResponse> clientToProxyRequestAsync(
+        HttpRequest httpRequest) {
+      HttpResponse response = clientToProxyRequest(httpRequest);
+      if (response != null || !collapsible || ctx == null) {
+        return CompletableFuture.completedFuture(response);
+      }
+      while (true) {
+        InFlightResponse inFlightResponse = inFlight.get(key);
+        if (inFlightResponse == null) {
+          if (!canLead(httpRequest)) {
+            return CompletableFuture.completedFuture(null);
+          }
+          InFlightResponse lead =
+              new InFlightResponse(
+                  System.nanoTime() + collapseTimeoutNanos,
+                  collapseTimeoutNanos,
+                  maxFollowerLagBytes);
+          if (inFlight.putIfAbsent(key, lead) == null) {
+            leading = lead;
+            return CompletableFuture.completedFuture(null);
+          }
+          continue;
+        }
+        CompletableFuture<@Nullable HttpResponse> follower =
+            inFlightResponse.follow(ctx.executor());
+        if (follower != null) {
+          return follower.thenApply(
+              shared -> {
+                if (shared != null) {
+                  cache.recordCollapsed();
+                }
+                return shared;
+              });
+        }
+        // the response stalled, so the next request fetches it again
+        inFlight.remove(key, inFlightResponse);
+      }
+    }
+
+    private HttpResponse respondFromCache(
+        HttpRequest request, CachedResponse cached, long nowMillis) {
+      if (isNotModified(request, cached)) {
+        cache.recordHit(0);
+        return notModified(cached, nowMillis);
+      }
+      String range = request.headers().get(HttpHeaderNames.RANGE);
+      if (range != null
+          && cached.status().code() == HttpResponseStatus.OK.code()
+          && ifRangeMatches(request, cached)) {
+        List<ByteRange> ranges = ByteRange.parse(range, cached.body().length());
+        if (ranges != null && ranges.isEmpty()) {
+          cache.recordHit(0);
+          return rangeNotSatisfiable(cached.body().length());
+        }
+        if (ranges != null) {
+          cache.recordHit(ranges.stream().mapToLong(ByteRange::length).sum());
+          return cached.toPartialHttpResponse(nowMillis, isZeroCopyPossible(), ranges);
+        }
+      }
+      if (servesGzipVariant(request, cached)) {
+        CachedResponse compressed = cached;
+        if (!cached.hasGzipVariant()) {
+          compressed = cached.withGzipVariant();
+          // keeps the compressed copy unless the response was replaced in the meantime
+          cache.update(key, cached, compressed);
+        }
+        HttpResponse response = compressed.toGzipHttpResponse(nowMillis);
+        cache.recordHit(HttpUtil.getContentLength(response, 0L));
+        return response;
+      }
+      cache.recordHit(cached.body().length());
+      return cached.toHttpResponse(nowMillis, isZeroCopyPossible());
+    }
+
+    private boolean servesGzipVariant(HttpRequest request, CachedResponse cached) {
+      return compressedVariantMinimumLength >= 0
+          && cached.body().length() >= compressedVariantMinimumLength
+          && ResponseCompressor.acceptsGzip(request.headers())
+          && ResponseCompressor.isCompressible(cached.headers(), compressedVariantMinimumLength);
+    }
+
+    @Override
+    @Nullable
+    public HttpResponse proxyToServerRequestFailed(@NonNull HttpResponse errorResponse) {
+      CacheControl requestCacheControl = lookupCacheControl;
+      HttpRequest request = originalRequest;
+      if (requestCacheControl == null || request == null) {
+        return null;
+      }
+      CachedResponse cached = cache.get(key);
+      if (cached == null) {
+        return null;
+      }
+      try {
+        long now = cache.now();
+        if (!canServeOnError(cached, requestCacheControl, now)) {
+          return null;
+        }
+        cache.recordStaleHit();
+        return respondFromCache(request, cached, now);
+      } finally {
+        cached.body().release();
+      }
+    }
+
+    /**
+     * Returns true if bodies stored on disk can be sent to the client as file regions, which is
+     * not the case when the client connection is encrypted.
+     */
+    private boolean isZeroCopyPossible() {
+      return ctx != null && ctx.pipeline().get(SslHandler.class) == null;
+    }
+
+    @Override
+    public void proxyToServerRequestSending() {
+      requestTimeMillis = cache.now();
+    }
+
+    @Override
+    public HttpObject serverToProxyResponse(HttpObject httpObject) {
+      if (httpObject instanceof HttpResponse) {
+        startCapture((HttpResponse) httpObject);
+        startSharing((HttpResponse) httpObject);
+      }
+      InFlightResponse shared = leading;
+      if (shared != null && httpObject instanceof HttpContent) {
+        shared.content((HttpContent) httpObject);
+        if (httpObject instanceof LastHttpContent) {
+          leading = null;
+        }
+      }
+      if (httpObject instanceof HttpContent) {
+        capture((HttpContent) httpObject);
+      }
+      return httpObject;
+    }
+
+    /**
+     * Adds a chunk to the body of the response being captured, as a retained slice of the buffer
+     * received from the server, and stores the response once it is complete.
+     */
+    private void capture(HttpContent chunk) {
+      String storeKey;
+      CachedResponse response;
+      synchronized (this) {
+        CompositeByteBuf body = capturedBody;
+        if (body == null) {
+          return;
+        }
+        ByteBuf content = chunk.content();
+        if (body.readableBytes() + content.readableBytes() > cache.getMaxEntryBytes()) {
+          abandonCapture();
+          return;
+        }
+        if (content.isReadable()) {
+          body.addComponent(true, content.retainedSlice());
+        }
+        storeKey = capturedKey;
+        HttpResponseStatus status = capturedStatus;
+        HttpHeaders headers = capturedHeaders;
+        if (!(chunk instanceof LastHttpContent)
+            || storeKey == null
+            || status == null
+            || headers == null) {
+          return;
+        }
+        // the cache takes over the body
+        capturedBody = null;
+        abandonCapture();
+        response =
+            new CachedResponse(
+                status, headers, CachedBody.of(body), requestTimeMillis, cache.now());
+      }
+      cache.put(storeKey, response);
+    }
+
+    @Override
+    public void serverToProxyResponseTimedOut() {
+      abandonCapture();
+      abandonSharing();
+    }
+
+    @Override
+    public void proxyToServerResolutionFailed(String hostAndPort) {
+      abandonSharing();
+    }
+
+    @Override
+    public void proxyToServerConnectionFailed() {
+      abandonSharing();
+    }
+
+    /** Sends the response to the requests waiting for it, if they can be given it. */
+    private void startSharing(HttpResponse response) {
+      InFlightResponse shared = leading;
+      HttpRequest request = originalRequest;
+      if (shared == null || request == null || ctx == null) {
+        return;
+      }
+      inFlight.remove(key, shared);
+      boolean shareable =
+          isStorable(request, response)
+              && !response.headers().contains(HttpHeaderNames.VARY)
+              && (HttpUtil.isContentLengthSet(response)
+                  || HttpUtil.isTransferEncodingChunked(response));
+      shared.start(response, shareable, ctx.executor());
+      if (!shareable) {
+        leading = null;
+      }
+    }
+
+    private void abandonSharing() {
+      InFlightResponse shared = leading;
+      if (shared != null) {
+        inFlight.remove(key, shared);
+        shared.abandon();
+        leading = null;
+      }
+    }
+
+    private void startCapture(HttpResponse response) {
+      abandonCapture();
+      HttpRequest request = originalRequest;
+      if (request == null) {
+        return;
+      }
+      if (isUnsafe(request.method())) {
+        int status = response.status().code();
+        if (status >= 200 && status < 400) {
+          cache.invalidate(uri);
+        }
+        return;
+      }
+      if (isStorable(request, response)) {
+        synchronized (this) {
+          capturedKey =
+              variantKey(uri, request, CachedResponse.varyHeaderNames(response.headers()));
+          capturedStatus = response.status();
+          // copied now, before the proxy adds its own headers
+          capturedHeaders = new DefaultHttpHeaders().set(response.headers());
+          capturedBody =
+              ctx != null
+                  ? ctx.alloc().compositeBuffer(Integer.MAX_VALUE)
+                  : Unpooled.compositeBuffer(Integer.MAX_VALUE);
+          if (ctx != null) {
+            // the proxy does not tell filters about a server closing the connection mid-body
+            ChannelFutureListener abandoner = future -> abandonCapture();
+            captureAbandoner = abandoner;
+            ctx.channel().closeFuture().addListener(abandoner);
+          }
+        }
+      }
+    }
+
+    private synchronized void abandonCapture() {
+      capturedKey = null;
+      capturedStatus = null;
+      capturedHeaders = null;
+      if (capturedBody != null) {
+        capturedBody.release();
+        capturedBody = null;
+      }
+      if (captureAbandoner != null && ctx != null) {
+        ctx.channel().closeFuture().removeListener(captureAbandoner);
+      }
+      captureAbandoner = null;
+    }
+  }
+}
@@ -0,0 +1,529 @@
+package org.littleshoot.proxy.extras;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * An immutable, compiled set of rules allowing or blocking requests by the domain and path of the
+ * requested URL, used by {@link RuleBasedHttpFiltersSource}.
+ *
+ * <p>Each rule is a domain, such as {@code example.com}, which matches that domain and all of its
+ * subdomains, optionally followed by a path prefix, such as {@code example.com/ads/}, which matches
+ * the URLs of those domains whose path, including the query string, starts with it. When several
+ * rules match a URL, the most specific one applies: the one with the longest domain, and among
+ * those, the one with the longest path prefix, with allow rules winning ties. URLs no rule matches
+ * are allowed, unless the rules were built {@linkplain Builder#withBlockByDefault(boolean) to
+ * block by default}, which turns them into an allow list.
+ *
+ * <p>Domains are compiled into a trie of their labels in reverse order, so that a lookup walks the
+ * labels of the requested host from the top-level domain down, comparing them in place without
+ * allocating. The path prefixes of each domain are compiled into a path-compressed prefix trie.
+ * Both tries are stored in sorted arrays searched with binary search, and labels repeated across
+ * domains are shared. An optional Bloom filter of the domains with rules lets lookups of hosts
+ * matching no rule skip the trie altogether.
+ */
+@NullMarked
+public final class CompiledRules {
+  private static final byte NONE = 0;
+  private static final byte ALLOW = 1;
+  private static final byte BLOCK = 2;
+
+  private static final String ALLOW_PREFIX = "allow ";
+  private static final String BLOCK_PREFIX = "block ";
+
+  private final DomainNode root;
+  @Nullable private final BloomFilter<CharSequence> bloomFilter;
+  private final boolean blockByDefault;
+  private final int ruleCount;
+  private final long sizeInBytes;
+
+  private CompiledRules(
+      DomainNode root,
+      @Nullable BloomFilter<CharSequence> bloomFilter,
+      boolean blockByDefault,
+      int ruleCount,
+      long sizeInBytes) {
+    this.root = root;
+    this.bloomFilter = bloomFilter;
+    this.blockByDefault = blockByDefault;
+    this.ruleCount = ruleCount;
+    this.sizeInBytes = sizeInBytes;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns rules that match nothing, and so allow every request. */
+  public static CompiledRules empty() {
+    return builder().build();
+  }
+
+  /**
+   * Returns whether a request for the given host and path is blocked.
+   *
+   * @param host the requested host, without a port
+   * @param path the requested path and query string, or an empty string for CONNECT requests, which
+   *     only domain rules apply to
+   */
+  public boolean isBlocked(String host, String path) {
+    String normalizedHost = normalizeHost(host);
+    if (bloomFilter != null && !mightHaveRules(bloomFilter, normalizedHost)) {
+      return blockByDefault;
+    }
+    byte decision = NONE;
+    DomainNode node = root;
+    int end = normalizedHost.length();
+    while (end > 0) {
+      int dot = normalizedHost.lastIndexOf('.', end - 1);
+      DomainNode child = node.child(normalizedHost, dot + 1, end);
+      if (child == null) {
+        break;
+      }
+      node = child;
+      byte nodeDecision = node.rule;
+      if (node.paths != null) {
+        byte pathDecision = node.paths.longestMatch(path);
+        if (pathDecision != NONE) {
+          nodeDecision = pathDecision;
+        }
+      }
+      if (nodeDecision != NONE) {
+        decision = nodeDecision;
+      }
+      end = dot;
+    }
+    return decision == NONE ? blockByDefault : decision == BLOCK;
+  }
+
+  public boolean isBlockByDefault() {
+    return blockByDefault;
+  }
+
+  /** Returns the number of distinct rules. */
+  public int getRuleCount() {
+    return ruleCount;
+  }
+
+  /**
+   * Returns an estimate of the heap memory taken by the compiled rules, assuming a 64-bit JVM with
+   * compressed object pointers.
+   */
+  public long getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  /** Returns the estimated heap memory taken per rule, in bytes. */
+  public double getBytesPerRule() {
+    return ruleCount == 0 ? 0 : (double) sizeInBytes / ruleCount;
+  }
+
+  @Override
+  public String toString() {
+    return "CompiledRules{rules="
+        + ruleCount
+        + ", bytes="
+        + sizeInBytes
+        + ", bloomFilter="
+        + (bloomFilter != null)
+        + ", blockByDefault="
+        + blockByDefault
+        + '}';
+  }
+
+  /** Checks the host and each of its parent domains against the Bloom filter. */
+  private static boolean mightHaveRules(BloomFilter<CharSequence> bloomFilter, String host) {
+    int start = 0;
+    while (start < host.length()) {
+      if (bloomFilter.mightContain(CharBuffer.wrap(host, start, host.length()))) {
+        return true;
+      }
+      int dot = host.indexOf('.', start);
+      if (dot < 0) {
+        break;
+      }
+      start = dot + 1;
+    }
+    return false;
+  }
+
+  private static String normalizeHost(String host) {
+    String normalized = host;
+    if (!normalized.startsWith("[")) {
+      int colon = normalized.indexOf(':');
+      if (colon >= 0 && colon == normalized.lastIndexOf(':')) {
+        normalized = normalized.substring(0, colon);
+      }
+    }
+    if (normalized.endsWith(".")) {
+      normalized = normalized.substring(0, normalized.length() - 1);
+    }
+    for (int i = 0; i < normalized.length(); i++) {
+      char c = normalized.charAt(i);
+      if (c >= 'A' && c <= 'Z') {
+        return normalized.toLowerCase(Locale.ROOT);
+      }
+    }
+    return normalized;
+  }
+
+  /** A node of the domain trie, for one label of the domains below the root. */
+  private static final class DomainNode {
+    /** The labels of the child nodes, sorted. */
+    private final String[] labels;
+
+    private final DomainNode[] children;
+    private final byte rule;
+    @Nullable private final PathNode paths;
+
+    private DomainNode(
+        String[] labels, DomainNode[] children, byte rule, @Nullable PathNode paths) {
+      this.labels = labels;
+      this.children = children;
+      this.rule = rule;
+      this.paths = paths;
+    }
+
+    /** Returns the child for the label between the given offsets of the host, if any. */
+    private @Nullable DomainNode child(String host, int start, int end) {
+      int low = 0;
+      int high = labels.length - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int comparison = compare(labels[middle], host, start, end);
+        if (comparison < 0) {
+          low = middle + 1;
+        } else if (comparison > 0) {
+          high = middle - 1;
+        } else {
+          return children[middle];
+        }
+      }
+      return null;
+    }
+
+    /** Compares a label to a region of the host, in the order of {@link String#compareTo}. */
+    private static int compare(String label, String host, int start, int end) {
+      int length = Math.min(label.length(), end - start);
+      for (int i = 0; i < length; i++) {
+        int difference = label.charAt(i) - host.charAt(start + i);
+        if (difference != 0) {
+          return difference;
+        }
+      }
+      return label.length() - (end - start);
+    }
+  }
+
+  /** A node of a path-compressed prefix trie of path prefixes. */
+  private static final class PathNode {
+    /** The first characters of the edges to the child nodes, sorted. */
+    private final char[] firstChars;
+
+    private final String[] edges;
+    private final PathNode[] children;
+    private final byte rule;
+
+    private PathNode(char[] firstChars, String[] edges, PathNode[] children, byte rule) {
+      this.firstChars = firstChars;
+      this.edges = edges;
+      this.children = children;
+      this.rule = rule;
+    }
+
+    /** Returns the rule of the longest prefix of the path with one, or NONE. */
+    private byte longestMatch(String path) {
+      PathNode node = this;
+      byte result = rule;
+      int position = 0;
+      while (position < path.length()) {
+        int index = Arrays.binarySearch(node.firstChars, path.charAt(position));
+        if (index < 0 || !path.startsWith(node.edges[index], position)) {
+          break;
+        }
+        position += node.edges[index].length();
+        node = node.children[index];
+        if (node.rule != NONE) {
+          result = node.rule;
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Collects rules and compiles them. Builders are not thread-safe, but the rules they build are.
+   */
+  public static final class Builder {
+    /** Rules by reversed domain labels joined with dots, then by path prefix, "" for none. */
+    private final Map<String, Map<String, Byte>> rules = new TreeMap<>();
+
+    private boolean blockByDefault;
+    private double bloomFilterFalsePositiveRate;
+
+    private Builder() {}
+
+    /** Adds a rule blocking a domain and its subdomains, or the URLs under a path prefix. */
+    public Builder block(String rule) {
+      return add(rule, BLOCK);
+    }
+
+    /**
+     * Adds a rule allowing a domain and its subdomains, or the URLs under a path prefix, as an
+     * exception to less specific block rules, or as an entry of an allow list.
+     */
+    public Builder allow(String rule) {
+      return add(rule, ALLOW);
+    }
+
+    /**
+     * Adds rules in text form, one per line. A line holds a rule, such as {@code example.com} or
+     * {@code example.com/ads/}, optionally preceded by {@code block} or {@code allow}. Rules
+     * without either block. Blank lines and lines starting with {@code #} are ignored.
+     *
+     * @throws IllegalArgumentException if a line holds an invalid rule
+     */
+    public Builder addLines(Iterable<String> lines) {
+      int lineNumber = 0;
+      for (String line : lines) {
+        lineNumber++;
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+          continue;
+        }
+        try {
+          String lowerCase = trimmed.toLowerCase(Locale.ROOT);
+          if (lowerCase.startsWith(ALLOW_PREFIX)) {
+            allow(trimmed.substring(ALLOW_PREFIX.length()).trim());
+          } else if (lowerCase.startsWith(BLOCK_PREFIX)) {
+            block(trimmed.substring(BLOCK_PREFIX.length()).trim());
+          } else {
+            block(trimmed);
+          }
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("Invalid rule on line " + lineNumber, e);
+        }
+      }
+      return this;
+    }
+
+    /** Adds the rules in a UTF-8 text file, in the format read by {@link #addLines(Iterable)}. */
+    public Builder addFile(Path file) throws IOException {
+      return addLines(Files.readAllLines(file, UTF_8));
+    }
+
+    /** Blocks the requests no rule matches, so that only those allowed by a rule go through. */
+    public Builder withBlockByDefault(boolean blockByDefault) {
+      this.blockByDefault = blockByDefault;
+      return this;
+    }
+
+    /**
+     * Puts a Bloom filter of the domains with rules in front of the domain trie, with the given
+     * false positive rate. It speeds up the lookups of hosts no rule matches, which are the most
+     * common ones with large block lists, at the cost of a few bits per rule.
+     */
+    public Builder withBloomFilter(double falsePositiveRate) {
+      if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+        throw new IllegalArgumentException(
+            "False positive rate must be between 0 and 1: " + falsePositiveRate);
+      }
+      this.bloomFilterFalsePositiveRate = falsePositiveRate;
+      return this;
+    }
+
+    private Builder add(String rule, byte decision) {
+      String trimmed = rule.trim();
+      int slash = trimmed.indexOf('/');
+      String domain = normalizeHost(slash < 0 ? trimmed : trimmed.substring(0, slash));
+      String path = slash < 0 ? "" : trimmed.substring(slash);
+      if (domain.startsWith("*.")) {
+        domain = domain.substring(2);
+      }
+      if (domain.isEmpty()
+          || domain.startsWith(".")
+          || domain.contains("..")
+          || domain.chars().anyMatch(Character::isWhitespace)
+          || path.chars().anyMatch(Character::isWhitespace)) {
+        throw new IllegalArgumentException("Invalid rule: " + rule);
+      }
+      rules
+          .computeIfAbsent(reverseLabels(domain), key -> new TreeMap<>())
+          .merge(path, decision, (existing, added) -> existing == ALLOW ? existing : added);
+      return this;
+    }
+
+    /** Compiles the rules added so far. The builder can be reused afterwards. */
+    public CompiledRules build() {
+      Compiler compiler = new Compiler();
+      MutableDomainNode mutableRoot = new MutableDomainNode();
+      int ruleCount = 0;
+      for (Map.Entry<String, Map<String, Byte>> entry : rules.entrySet()) {
+        MutableDomainNode node = mutableRoot;
+        for (String label : entry.getKey().split("\\.")) {
+          node = node.children.computeIfAbsent(label, key -> new MutableDomainNode());
+        }
+        node.paths.putAll(entry.getValue());
+        ruleCount += entry.getValue().size();
+      }
+      DomainNode root = compiler.compile(mutableRoot);
+
+      BloomFilter<CharSequence> bloomFilter = null;
+      if (bloomFilterFalsePositiveRate > 0 && !rules.isEmpty()) {
+        bloomFilter =
+            BloomFilter.create(
+                Funnels.unencodedCharsFunnel(), rules.size(), bloomFilterFalsePositiveRate);
+        for (String reversedDomain : rules.keySet()) {
+          bloomFilter.put(reverseLabels(reversedDomain));
+        }
+        // the optimal number of bits for the expected insertions and false positive rate
+        double bits =
+            -rules.size() * Math.log(bloomFilterFalsePositiveRate) / (Math.log(2) * Math.log(2));
+        compiler.bytes += Compiler.array(8, (int) Math.ceil(bits / 64)) + 64;
+      }
+      return new CompiledRules(root, bloomFilter, blockByDefault, ruleCount, compiler.bytes);
+    }
+
+    private static String reverseLabels(String domain) {
+      String[] labels = domain.split("\\.");
+      StringBuilder reversed = new StringBuilder(domain.length());
+      for (int i = labels.length - 1; i >= 0; i--) {
+        reversed.append(labels[i]);
+        if (i > 0) {
+          reversed.append('.');
+        }
+      }
+      return reversed.toString();
+    }
+  }
+
+  private static final class MutableDomainNode {
+    private final TreeMap<String, MutableDomainNode> children = new TreeMap<>();
+
+    /** Rules by path prefix, with "" for the rule for the whole domain. */
+    private final TreeMap<String, Byte> paths = new TreeMap<>();
+  }
+
+  /** Turns mutable domain nodes into compact ones, estimating the memory they take as it goes. */
+  private static final class Compiler {
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int STRING = 24;
+
+    private final Map<String, String> labels = new HashMap<>();
+    private long bytes;
+
+    private DomainNode compile(MutableDomainNode node) {
+      int size = node.children.size();
+      String[] childLabels = new String[size];
+      DomainNode[] children = new DomainNode[size];
+      int index = 0;
+      for (Map.Entry<String, MutableDomainNode> child : node.children.entrySet()) {
+        childLabels[index] = label(child.getKey());
+        children[index] = compile(child.getValue());
+        index++;
+      }
+      Byte rule = node.paths.remove("");
+      PathNode paths = null;
+      if (!node.paths.isEmpty()) {
+        String[] prefixes = node.paths.keySet().toArray(new String[0]);
+        byte[] rules = new byte[prefixes.length];
+        for (int i = 0; i < prefixes.length; i++) {
+          rules[i] = node.paths.get(prefixes[i]);
+        }
+        paths = compilePaths(prefixes, rules, 0, prefixes.length, 0);
+      }
+      bytes += align(OBJECT_HEADER + 3 * REFERENCE + 1);
+      bytes += 2 * array(REFERENCE, size);
+      return new DomainNode(childLabels, children, rule == null ? NONE : rule, paths);
+    }
+
+    /** Shares the strings of labels found in many domains, such as "com" or "www". */
+    private String label(String label) {
+      String shared = labels.putIfAbsent(label, label);
+      if (shared != null) {
+        return shared;
+      }
+      bytes += string(label);
+      return label;
+    }
+
+    /**
+     * Builds the trie of the sorted prefixes between {@code from} and {@code to}, which all start
+     * with the same {@code offset} characters.
+     */
+    private PathNode compilePaths(String[] prefixes, byte[] rules, int from, int to, int offset) {
+      byte rule = NONE;
+      int first = from;
+      // a prefix ending at this node sorts before the longer ones
+      if (first < to && prefixes[first].length() == offset) {
+        rule = rules[first];
+        first++;
+      }
+      List<int[]> groups = new ArrayList<>();
+      for (int start = first; start < to; ) {
+        char c = prefixes[start].charAt(offset);
+        int end = start + 1;
+        while (end < to && prefixes[end].charAt(offset) == c) {
+          end++;
+        }
+        groups.add(new int[] {start, end});
+        start = end;
+      }
+      char[] firstChars = new char[groups.size()];
+      String[] edges = new String[groups.size()];
+      PathNode[] children = new PathNode[groups.size()];
+      for (int i = 0; i < groups.size(); i++) {
+        int start = groups.get(i)[0];
+        int end = groups.get(i)[1];
+        // as the prefixes are sorted, the first and last share the prefix common to all of them
+        int common = commonPrefixLength(prefixes[start], prefixes[end - 1]);
+        firstChars[i] = prefixes[start].charAt(offset);
+        edges[i] = prefixes[start].substring(offset, common);
+        bytes += string(edges[i]);
+        children[i] = compilePaths(prefixes, rules, start, end, common);
+      }
+      bytes += align(OBJECT_HEADER + 3 * REFERENCE + 1);
+      bytes += array(2, firstChars.length) + 2 * array(REFERENCE, firstChars.length);
+      return new PathNode(firstChars, edges, children, rule);
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+      int length = Math.min(a.length(), b.length());
+      int i = 0;
+      while (i < length && a.charAt(i) == b.charAt(i)) {
+        i++;
+      }
+      return i;
+    }
+
+    private static long string(String value) {
+      // a Latin-1 string and its byte array
+      return STRING + array(1, value.length());
+    }
+
+    private static long array(int elementBytes, int length) {
+      return align(ARRAY_HEADER + (long) elementBytes * length);
+    }
+
+    private static long align(long bytes) {
+      return (bytes + 7) & ~7L;
+    }
+  }
+}
@@ -0,0 +1,595 @@
+package org.littleshoot.proxy.extras;
+
+import static java.util.Objects.requireNonNull;
+
+import io.netty.buffer.ByteBuf;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory store of HTTP responses for {@link CachingHttpFiltersSource}, bounded by the total
+ * size of the stored responses.
+ *
+ * <p>When the cache is full, responses are evicted using the Greedy-Dual-Size-Frequency policy:
+ * each response gets a priority of {@code L + frequency / size}, where {@code L} is the priority of
+ * the last evicted response, and the response with the lowest priority is evicted first. This keeps
+ * small, popular responses in the cache in preference to large ones that are rarely requested,
+ * while letting responses that stop being requested age out.
+ *
+ * <p>Response bodies are kept on the heap, unless the cache is given a {@link TieredBodyStore},
+ * which keeps them in direct memory and on disk, and from which the cache is reloaded on restart.
+ *
+ * <p>A resource whose responses vary on request headers can have several variants in the cache,
+ * each stored under the URI of the resource followed by the normalised values of the headers it
+ * varies on, separated by {@link #VARIANT_SEPARATOR}. The variants of a resource compete for space
+ * with all other responses, and are invalidated together.
+ *
+ * <p>The most popular responses can be written to a snapshot file with {@link #writeSnapshot}, from
+ * which a new cache is warmed with {@link #loadSnapshot}, so that a restarted proxy does not send
+ * every request to the origin servers at once.
+ *
+ * <p>This class is thread-safe, so a single instance can be shared between proxy servers.
+ */
+@NullMarked
+public class HttpCache {
+  private static final Logger LOG = LoggerFactory.getLogger(HttpCache.class);
+
+  private static final int SNAPSHOT_MAGIC = 0x4c505343;
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /** Separates the URI of a resource from the request headers that select one of its variants. */
+  static final char VARIANT_SEPARATOR = '\n';
+
+  /** Returns the names of the request headers that select the variant stored under a key. */
+  static List<String> varyHeadersOf(String key) {
+    List<String> names = new ArrayList<>();
+    int separator = key.indexOf(VARIANT_SEPARATOR);
+    while (separator >= 0) {
+      int colon = key.indexOf(':', separator);
+      if (colon < 0) {
+        break;
+      }
+      names.add(key.substring(separator + 1, colon));
+      separator = key.indexOf(VARIANT_SEPARATOR, colon);
+    }
+    return names;
+  }
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private final Clock clock;
+  @Nullable private final TieredBodyStore store;
+
+  /** Guarded by {@code this}. */
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  /** Keys of the stored variants of each resource. Guarded by {@code this}. */
+  private final Map<String, Set<String>> variantKeys = new HashMap<>();
+
+  /**
+   * Names of the request headers the last response stored for each resource varies on, for
+   * resources whose responses vary. Guarded by {@code this}.
+   */
+  private final Map<String, List<String>> varyHeaders = new HashMap<>();
+
+  /** Entries in eviction order. Guarded by {@code this}. */
+  private final TreeSet<Entry> evictionQueue =
+      new TreeSet<>(
+          Comparator.comparingDouble((Entry entry) -> entry.priority)
+              .thenComparingLong(entry -> entry.sequence));
+
+  /** Guarded by {@code this}. */
+  private long size;
+
+  /** The priority of the last evicted entry. Guarded by {@code this}. */
+  private double inflation;
+
+  /** Guarded by {@code this}. */
+  private long sequence;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong bytesServed = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+  private final AtomicLong collapsedCount = new AtomicLong();
+  private final AtomicLong staleHitCount = new AtomicLong();
+  private final AtomicLong revalidationCount = new AtomicLong();
+
+  /**
+   * Creates a cache holding at most {@code maxBytes} of responses. A single response may take up
+   * to a tenth of the cache.
+   */
+  public HttpCache(long maxBytes) {
+    this(maxBytes, maxBytes / 10);
+  }
+
+  /**
+   * Creates a cache holding at most {@code maxBytes} of responses, none of which is larger than
+   * {@code maxEntryBytes}.
+   */
+  public HttpCache(long maxBytes, long maxEntryBytes) {
+    this(maxBytes, maxEntryBytes, Clock.systemUTC(), null);
+  }
+
+  /**
+   * Creates a cache holding at most {@code maxBytes} of responses, none of which is larger than
+   * {@code maxEntryBytes}, with their bodies kept in the given store. The responses already in the
+   * store are loaded into the cache.
+   */
+  public HttpCache(long maxBytes, long maxEntryBytes, TieredBodyStore store) {
+    this(maxBytes, maxEntryBytes, Clock.systemUTC(), store);
+  }
+
+  HttpCache(long maxBytes, long maxEntryBytes, Clock clock) {
+    this(maxBytes, maxEntryBytes, clock, null);
+  }
+
+  HttpCache(long maxBytes, long maxEntryBytes, Clock clock, @Nullable TieredBodyStore store) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+    this.clock = clock;
+    this.store = store;
+    if (store != null) {
+      store.forEachStored(this::insert);
+    }
+  }
+
+  /** The current time, in milliseconds, as seen by this cache. */
+  long now() {
+    return clock.millis();
+  }
+
+  /** The size of the largest body this cache will store. */
+  long getMaxEntryBytes() {
+    return maxEntryBytes;
+  }
+
+  /**
+   * Returns the names of the request headers that select the variant of the given resource to
+   * serve, or an empty list if its responses do not vary.
+   */
+  synchronized List<String> varyHeaders(String uri) {
+    return varyHeaders.getOrDefault(uri, List.of());
+  }
+
+  /**
+   * Returns the response stored under the given key, fresh or not, or null if there is none. The
+   * caller must release the body of the returned response.
+   */
+  @Nullable
+  synchronized CachedResponse get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    evictionQueue.remove(entry);
+    entry.frequency++;
+    entry.priority = priority(entry);
+    entry.sequence = sequence++;
+    evictionQueue.add(entry);
+    entry.response.body().retain();
+    return entry.response;
+  }
+
+  /**
+   * Stores a response under the given key, replacing any previous one, and evicts other responses
+   * as needed to make room. Responses larger than the maximum entry size are not stored. The cache
+   * takes over the body of the response.
+   *
+   * <p>With a {@link TieredBodyStore}, the body is written to the store in the background, and is
+   * served as it was given until then.
+   */
+  void put(String key, CachedResponse response) {
+    if (response.size() > maxEntryBytes) {
+      LOG.debug("Not caching response for {}: {} bytes is too large", key, response.size());
+      response.body().release();
+      return;
+    }
+    if (store == null) {
+      insert(key, response);
+      return;
+    }
+    CachedBody body = response.body();
+    // held until written, even if the response is evicted in the meantime
+    body.retain();
+    insert(key, response);
+    store
+        .write(key, response)
+        .whenComplete(
+            (stored, failure) -> {
+              try {
+                if (failure != null) {
+                  LOG.warn("Unable to store cached response for {}", key, failure);
+                }
+                written(key, body, stored);
+              } finally {
+                body.release();
+              }
+            });
+  }
+
+  /**
+   * Replaces the body a response was put with by the copy written to the store, if the response is
+   * still cached, or removes the response if it could not be written.
+   */
+  private void written(String key, CachedBody body, @Nullable CachedBody stored) {
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.response.body() == body) {
+        if (stored == null) {
+          remove(key);
+        } else {
+          entry.response = entry.response.withBody(stored);
+          body.release();
+        }
+        return;
+      }
+    }
+    if (stored != null) {
+      requireNonNull(store).remove(key, stored);
+      stored.release();
+    }
+  }
+
+  private void insert(String key, CachedResponse response) {
+    long responseSize = response.size();
+    if (responseSize > maxEntryBytes) {
+      drop(key, response);
+      return;
+    }
+    synchronized (this) {
+      Entry previous = entries.remove(key);
+      if (previous != null) {
+        evictionQueue.remove(previous);
+        size -= previous.size;
+        drop(key, previous.response);
+      }
+      Entry entry = new Entry(key, response, responseSize);
+      entry.priority = priority(entry);
+      entry.sequence = sequence++;
+      entries.put(key, entry);
+      evictionQueue.add(entry);
+      size += responseSize;
+      indexVariant(key, response);
+
+      while (size > maxBytes) {
+        Entry evicted = evictionQueue.pollFirst();
+        if (evicted == null) {
+          break;
+        }
+        entries.remove(evicted.key);
+        unindexVariant(evicted.key);
+        size -= evicted.size;
+        drop(evicted.key, evicted.response);
+        inflation = evicted.priority;
+        evictionCount.incrementAndGet();
+        LOG.debug("Evicted cached response for {}", evicted.key);
+      }
+    }
+  }
+
+  /**
+   * Replaces the response stored under the given key with {@code updated}, which has the same body,
+   * provided the stored response is still {@code stored}. Used when a stored response is
+   * revalidated. Returns false if the stored response has changed in the meantime.
+   *
+   * <p>With a {@link TieredBodyStore}, the response is not rewritten to disk, so a cache reloaded
+   * from the store gets the headers the response was stored with.
+   */
+  synchronized boolean update(String key, CachedResponse stored, CachedResponse updated) {
+    Entry entry = entries.get(key);
+    if (entry == null || entry.response != stored) {
+      return false;
+    }
+    evictionQueue.remove(entry);
+    size -= entry.size;
+    entry.response = updated;
+    entry.size = updated.size();
+    entry.priority = priority(entry);
+    evictionQueue.add(entry);
+    size += entry.size;
+    return true;
+  }
+
+  /**
+   * Removes the response stored under the given key, if any. If the key is the URI of a resource,
+   * all its variants are removed too.
+   */
+  synchronized void invalidate(String key) {
+    Set<String> variants = variantKeys.get(key);
+    if (variants != null) {
+      for (String variant : List.copyOf(variants)) {
+        remove(variant);
+      }
+    }
+    remove(key);
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      evictionQueue.remove(entry);
+      unindexVariant(key);
+      size -= entry.size;
+      drop(key, entry.response);
+    }
+  }
+
+  /** Records the key of a newly stored response, if it is a variant. */
+  private void indexVariant(String key, CachedResponse response) {
+    int separator = key.indexOf(VARIANT_SEPARATOR);
+    String uri = separator < 0 ? key : key.substring(0, separator);
+    List<String> names = CachedResponse.varyHeaderNames(response.headers());
+    if (names.isEmpty()) {
+      varyHeaders.remove(uri);
+    } else {
+      varyHeaders.put(uri, names);
+    }
+    if (separator >= 0) {
+      variantKeys.computeIfAbsent(uri, k -> new HashSet<>()).add(key);
+    }
+  }
+
+  private void unindexVariant(String key) {
+    int separator = key.indexOf(VARIANT_SEPARATOR);
+    if (separator < 0) {
+      return;
+    }
+    String uri = key.substring(0, separator);
+    Set<String> variants = variantKeys.get(uri);
+    if (variants != null && variants.remove(key) && variants.isEmpty()) {
+      variantKeys.remove(uri);
+      varyHeaders.remove(uri);
+    }
+  }
+
+  /**
+   * Writes the {@code maxEntries} stored responses the cache would be the last to evict to the
+   * given file, replacing it, along with how often they were requested. Returns the number of
+   * responses written.
+   */
+  public int writeSnapshot(Path file, int maxEntries) throws IOException {
+    List<String> keys = new ArrayList<>();
+    List<Long> frequencies = new ArrayList<>();
+    List<CachedResponse> responses = new ArrayList<>();
+    synchronized (this) {
+      for (Entry entry : evictionQueue.descendingSet()) {
+        if (keys.size() >= maxEntries) {
+          break;
+        }
+        keys.add(entry.key);
+        frequencies.add(entry.frequency);
+        // the bodies are read outside the lock, and may be evicted in the meantime
+        entry.response.body().retain();
+        responses.add(entry.response);
+      }
+    }
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeByte(SNAPSHOT_VERSION);
+      out.writeInt(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        CachedResponse response = responses.get(i);
+        writeBytes(out, keys.get(i).getBytes(StandardCharsets.UTF_8));
+        out.writeLong(frequencies.get(i));
+        writeBytes(out, response.encodeMetadata());
+        ByteBuf content = response.body().content();
+        try {
+          out.writeInt(content.readableBytes());
+          content.readBytes(out, content.readableBytes());
+        } finally {
+          content.release();
+        }
+      }
+    } finally {
+      for (CachedResponse response : responses) {
+        response.body().release();
+      }
+    }
+    Files.move(
+        temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    LOG.info("Wrote {} cached responses to snapshot {}", keys.size(), file);
+    return keys.size();
+  }
+
+  /**
+   * Stores the responses in a snapshot written by {@link #writeSnapshot}, with the popularity they
+   * had when it was written. Responses already in the cache are kept, as they are at least as
+   * recent as those in the snapshot. Returns the number of responses loaded.
+   */
+  public int loadSnapshot(Path file) throws IOException {
+    int loaded = 0;
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a cache snapshot: " + file);
+      }
+      int version = in.readByte();
+      if (version != SNAPSHOT_VERSION) {
+        throw new IOException("Unsupported cache snapshot version: " + version);
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String key = new String(readBytes(in), StandardCharsets.UTF_8);
+        long frequency = in.readLong();
+        byte[] metadata = readBytes(in);
+        byte[] body = readBytes(in);
+        synchronized (this) {
+          if (entries.containsKey(key)) {
+            continue;
+          }
+        }
+        put(key, CachedResponse.decodeMetadata(metadata, CachedBody.of(body)));
+        restoreFrequency(key, frequency);
+        loaded++;
+      }
+    }
+    LOG.info("Loaded {} cached responses from snapshot {}", loaded, file);
+    return loaded;
+  }
+
+  private synchronized void restoreFrequency(String key, long frequency) {
+    Entry entry = entries.get(key);
+    if (entry != null && entry.frequency < frequency) {
+      evictionQueue.remove(entry);
+      entry.frequency = frequency;
+      entry.priority = priority(entry);
+      evictionQueue.add(entry);
+    }
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /** Removes all stored responses. Statistics are kept. */
+  public synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      drop(entry.key, entry.response);
+    }
+    entries.clear();
+    variantKeys.clear();
+    varyHeaders.clear();
+    evictionQueue.clear();
+    size = 0;
+  }
+
+  /** Releases a response that is no longer in the cache. */
+  private void drop(String key, CachedResponse response) {
+    if (store != null) {
+      store.remove(key, response.body());
+    }
+    response.body().release();
+  }
+
+  void recordHit(long bytes) {
+    hitCount.incrementAndGet();
+    bytesServed.addAndGet(bytes);
+  }
+
+  void recordMiss() {
+    missCount.incrementAndGet();
+  }
+
+  void recordCollapsed() {
+    collapsedCount.incrementAndGet();
+  }
+
+  void recordStaleHit() {
+    staleHitCount.incrementAndGet();
+  }
+
+  void recordRevalidation() {
+    revalidationCount.incrementAndGet();
+  }
+
+  /** Number of requests served from the cache. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Number of cacheable requests that could not be served from the cache. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** The fraction of cacheable requests served from the cache, between 0 and 1. */
+  public double getHitRatio() {
+    long hits = hitCount.get();
+    long total = hits + missCount.get();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /** Total number of body bytes served from the cache. */
+  public long getBytesServed() {
+    return bytesServed.get();
+  }
+
+  /**
+   * Number of cache misses answered with the response fetched for another request for the same
+   * resource, rather than by fetching it again.
+   */
+  public long getCollapsedCount() {
+    return collapsedCount.get();
+  }
+
+  /**
+   * Number of requests served a stale response, while it was revalidated in the background or
+   * because the server could not be reached. These are also counted as hits.
+   */
+  public long getStaleHitCount() {
+    return staleHitCount.get();
+  }
+
+  /** Number of stale responses revalidated in the background. */
+  public long getRevalidationCount() {
+    return revalidationCount.get();
+  }
+
+  /** Number of responses evicted to make room for others. */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /** Approximate number of bytes taken up by the stored responses. */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /** Number of stored responses. */
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  private double priority(Entry entry) {
+    return inflation + (double) entry.frequency / entry.size;
+  }
+
+  private static final class Entry {
+    private final String key;
+    private CachedResponse response;
+    private long size;
+    private long frequency = 1;
+    private double priority;
+    private long sequence;
+
+    private Entry(String key, CachedResponse response, long size) {
+      this.key = key;
+      this.response = response;
+      this.size = size;
+    }
+  }
+}
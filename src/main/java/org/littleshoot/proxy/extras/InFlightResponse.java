@@ -0,0 +1,202 @@
+package org.littleshoot.proxy.extras;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.concurrent.EventExecutor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.StreamedHttpResponse;
+
+/**
+ * A response being fetched from the server for one client, which other clients requesting the same
+ * resource in the meantime wait for, instead of each fetching it themselves.
+ *
+ * <p>The waiting clients, or followers, are sent the response as it streams in, as duplicates of
+ * the buffers received from the server, provided the response is one a shared cache could have
+ * given them. If it is not, or if the response does not start arriving before a deadline, the
+ * followers are released to fetch the response themselves.
+ *
+ * <p>Followers that read the response more slowly than it arrives, and fall more than a given
+ * number of bytes behind, are disconnected, so that the buffers held for them are bounded. So are
+ * all the followers if the response stops arriving for longer than the stall timeout.
+ */
+@NullMarked
+final class InFlightResponse {
+  private final long deadlineNanos;
+  private final long stallTimeoutNanos;
+  private final long maxLagBytes;
+
+  /** Followers waiting for the response to start. Guarded by {@code this}. */
+  private final List<CompletableFuture<@Nullable HttpResponse>> waiting = new ArrayList<>();
+
+  /** Responses being streamed to followers. Guarded by {@code this}. */
+  private final List<StreamedHttpResponse> streaming = new ArrayList<>();
+
+  /** Guarded by {@code this}. */
+  private boolean started;
+
+  /** When part of the response last arrived. */
+  private volatile long progressNanos;
+
+  /**
+   * @param deadlineNanos when followers stop waiting for the response to start, as given by {@link
+   *     System#nanoTime()}
+   * @param stallTimeoutNanos how long followers wait for more of the response once it has started
+   * @param maxLagBytes how far behind the response a follower may fall before it is disconnected
+   */
+  InFlightResponse(long deadlineNanos, long stallTimeoutNanos, long maxLagBytes) {
+    this.deadlineNanos = deadlineNanos;
+    this.stallTimeoutNanos = stallTimeoutNanos;
+    this.maxLagBytes = maxLagBytes;
+  }
+
+  /**
+   * Adds a follower, returning a stage completing with the response to send to it, or with null if
+   * it should fetch the response itself. Returns null if the response can no longer be followed,
+   * because it has already started or the deadline has passed.
+   *
+   * @param executor the executor on which to release the follower at the deadline
+   */
+  synchronized @Nullable CompletableFuture<@Nullable HttpResponse> follow(EventExecutor executor) {
+    long remainingNanos = deadlineNanos - System.nanoTime();
+    if (started || remainingNanos <= 0) {
+      return null;
+    }
+    CompletableFuture<@Nullable HttpResponse> follower = new CompletableFuture<>();
+    waiting.add(follower);
+    executor.schedule(() -> release(follower), remainingNanos, NANOSECONDS);
+    return follower;
+  }
+
+  private void release(CompletableFuture<@Nullable HttpResponse> follower) {
+    synchronized (this) {
+      if (!waiting.remove(follower)) {
+        return;
+      }
+    }
+    follower.complete(null);
+  }
+
+  /**
+   * Starts sending the response to the followers, or releases them if the response cannot be
+   * shared. Returns the number of followers sent the response.
+   *
+   * @param executor the executor on which to check that the response keeps arriving
+   */
+  int start(HttpResponse response, boolean shareable, EventExecutor executor) {
+    List<CompletableFuture<@Nullable HttpResponse>> followers;
+    List<StreamedHttpResponse> responses = new ArrayList<>();
+    synchronized (this) {
+      if (started) {
+        return 0;
+      }
+      started = true;
+      followers = new ArrayList<>(waiting);
+      waiting.clear();
+      if (shareable) {
+        for (int i = 0; i < followers.size(); i++) {
+          StreamedHttpResponse copy =
+              StreamedHttpResponse.streaming(HttpVersion.HTTP_1_1, response.status());
+          // whether the connection is kept alive is up to each client
+          copy.headers()
+              .set(response.headers())
+              .remove(HttpHeaderNames.CONNECTION)
+              .remove(HttpHeaderNames.KEEP_ALIVE);
+          responses.add(copy);
+        }
+        streaming.addAll(responses);
+      }
+    }
+    if (!responses.isEmpty()) {
+      progressNanos = System.nanoTime();
+      executor.schedule(() -> checkProgress(executor), stallTimeoutNanos, NANOSECONDS);
+    }
+    for (int i = 0; i < followers.size(); i++) {
+      followers.get(i).complete(shareable ? responses.get(i) : null);
+    }
+    return responses.size();
+  }
+
+  /** Disconnects the followers if no part of the response arrived within the stall timeout. */
+  private void checkProgress(EventExecutor executor) {
+    synchronized (this) {
+      if (streaming.isEmpty()) {
+        return;
+      }
+    }
+    long remainingNanos = progressNanos + stallTimeoutNanos - System.nanoTime();
+    if (remainingNanos > 0) {
+      executor.schedule(() -> checkProgress(executor), remainingNanos, NANOSECONDS);
+    } else {
+      abandon();
+    }
+  }
+
+  /**
+   * Sends part of the body of the response to the followers, disconnecting those that have fallen
+   * too far behind.
+   */
+  void content(HttpContent content) {
+    progressNanos = System.nanoTime();
+    List<StreamedHttpResponse> responses;
+    List<StreamedHttpResponse> lagging = new ArrayList<>();
+    synchronized (this) {
+      if (streaming.isEmpty()) {
+        return;
+      }
+      for (StreamedHttpResponse response : streaming) {
+        if (response.getUnwrittenBytes() > maxLagBytes) {
+          lagging.add(response);
+        }
+      }
+      streaming.removeAll(lagging);
+      responses = new ArrayList<>(streaming);
+      if (content instanceof LastHttpContent) {
+        streaming.clear();
+      }
+    }
+    for (StreamedHttpResponse response : lagging) {
+      response.abort();
+    }
+    ByteBuf buffer = content.content();
+    for (StreamedHttpResponse response : responses) {
+      if (buffer.isReadable()) {
+        response.addBodyPart(buffer.retainedDuplicate());
+      }
+      if (content instanceof LastHttpContent) {
+        response.end();
+      }
+    }
+  }
+
+  /**
+   * Gives up on the response: followers still waiting fetch it themselves, and those receiving it
+   * are disconnected.
+   */
+  void abandon() {
+    List<CompletableFuture<@Nullable HttpResponse>> followers;
+    List<StreamedHttpResponse> responses;
+    synchronized (this) {
+      started = true;
+      followers = new ArrayList<>(waiting);
+      waiting.clear();
+      responses = new ArrayList<>(streaming);
+      streaming.clear();
+    }
+    for (CompletableFuture<@Nullable HttpResponse> follower : followers) {
+      follower.complete(null);
+    }
+    for (StreamedHttpResponse response : responses) {
+      response.abort();
+    }
+  }
+}
@@ -0,0 +1,456 @@
+package org.littleshoot.proxy.extras;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.util.ByteProcessor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.BodyInspector;
+import org.littleshoot.proxy.WebSocketFrameView;
+
+/**
+ * An immutable set of byte patterns compiled into an Aho-Corasick automaton, which finds all
+ * occurrences of all of them in a single pass over a stream of bytes, such as the bodies of
+ * requests and responses or WebSocket messages, one buffer at a time.
+ *
+ * <p>A scanner is shared by all connections. Each stream is scanned by its own {@link Matcher},
+ * which carries the state of the automaton from one buffer to the next, so patterns spanning
+ * buffer boundaries are found too. Buffers are scanned in place with {@link
+ * ByteBuf#forEachByte(ByteProcessor)}, without being copied or having their indexes changed, so
+ * the same buffers can be sent on as they are.
+ *
+ * <p>The automaton is stored in flat arrays: a full transition table for the root state, which
+ * most bytes of a stream go back to, and the sorted transitions of the other states one after the
+ * other, with the failure and output links of each state. Each pattern reported at a state is
+ * stored once, and the patterns that end there as suffixes of longer ones are reached through
+ * output links, so the automaton stays linear in the total length of the patterns.
+ */
+@NullMarked
+public final class PatternScanner {
+  private static final int ROOT = 0;
+  private static final int NONE = -1;
+
+  /** Above this many transitions, the transitions of a state are binary searched. */
+  private static final int LINEAR_SEARCH_LIMIT = 8;
+
+  private final byte[] fold;
+  private final int[] rootTransitions;
+  private final int[] transitionStart;
+  private final byte[] transitionBytes;
+  private final int[] transitionTargets;
+  private final int[] failure;
+  private final int[] outputLink;
+  private final int[] outputStart;
+  private final int[] outputPatterns;
+  private final int[] patternLengths;
+
+  private PatternScanner(
+      byte[] fold,
+      int[] rootTransitions,
+      int[] transitionStart,
+      byte[] transitionBytes,
+      int[] transitionTargets,
+      int[] failure,
+      int[] outputLink,
+      int[] outputStart,
+      int[] outputPatterns,
+      int[] patternLengths) {
+    this.fold = fold;
+    this.rootTransitions = rootTransitions;
+    this.transitionStart = transitionStart;
+    this.transitionBytes = transitionBytes;
+    this.transitionTargets = transitionTargets;
+    this.failure = failure;
+    this.outputLink = outputLink;
+    this.outputStart = outputStart;
+    this.outputPatterns = outputPatterns;
+    this.patternLengths = patternLengths;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns a new matcher for scanning one stream, reporting matches to the given listener. */
+  public Matcher newMatcher(MatchListener listener) {
+    return new Matcher(listener);
+  }
+
+  /** Returns the number of patterns, which are numbered from 0 in the order they were added. */
+  public int getPatternCount() {
+    return patternLengths.length;
+  }
+
+  /** Returns the length in bytes of the given pattern. */
+  public int getPatternLength(int pattern) {
+    return patternLengths[pattern];
+  }
+
+  /** Returns the number of states of the automaton. */
+  public int getStateCount() {
+    return failure.length;
+  }
+
+  /** Returns the approximate size of the automaton in memory. */
+  public long getSizeInBytes() {
+    return fold.length
+        + 4L * rootTransitions.length
+        + 4L * transitionStart.length
+        + transitionBytes.length
+        + 4L * transitionTargets.length
+        + 4L * failure.length
+        + 4L * outputLink.length
+        + 4L * outputStart.length
+        + 4L * outputPatterns.length
+        + 4L * patternLengths.length;
+  }
+
+  @Override
+  public String toString() {
+    return "PatternScanner{patterns="
+        + getPatternCount()
+        + ", states="
+        + getStateCount()
+        + ", bytes="
+        + getSizeInBytes()
+        + '}';
+  }
+
+  /** Returns the state reached from the given state with the given byte. */
+  private int next(int state, int value) {
+    while (state != ROOT) {
+      int target = transition(state, value);
+      if (target != NONE) {
+        return target;
+      }
+      state = failure[state];
+    }
+    return rootTransitions[value];
+  }
+
+  /** Returns the target of the transition of a state other than the root, if it has one. */
+  private int transition(int state, int value) {
+    int low = transitionStart[state];
+    int high = transitionStart[state + 1] - 1;
+    if (high - low < LINEAR_SEARCH_LIMIT) {
+      for (int i = low; i <= high; i++) {
+        if ((transitionBytes[i] & 0xff) == value) {
+          return transitionTargets[i];
+        }
+      }
+      return NONE;
+    }
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int middleValue = transitionBytes[middle] & 0xff;
+      if (middleValue < value) {
+        low = middle + 1;
+      } else if (middleValue > value) {
+        high = middle - 1;
+      } else {
+        return transitionTargets[middle];
+      }
+    }
+    return NONE;
+  }
+
+  /** Receives the matches found by a {@link Matcher}. */
+  @FunctionalInterface
+  public interface MatchListener {
+    /**
+     * Called for each occurrence of a pattern, in the order they end in the stream.
+     *
+     * @param pattern the number of the pattern
+     * @param end the position in the stream just past the end of the occurrence
+     * @return true to go on scanning, false to stop
+     */
+    boolean onMatch(int pattern, long end);
+  }
+
+  /**
+   * Scans one stream for the patterns of the scanner, one buffer after the other. Not thread-safe;
+   * meant to be used on the event loop of the connection the stream arrives on.
+   */
+  public final class Matcher {
+    private final MatchListener listener;
+    private final ByteProcessor processor = this::process;
+    private int state = ROOT;
+    private long position;
+    private boolean stopped;
+
+    private Matcher(MatchListener listener) {
+      this.listener = listener;
+    }
+
+    /**
+     * Scans the readable bytes of the given buffer as the next part of the stream, without
+     * changing its indexes.
+     *
+     * @return false if the listener stopped the scan, now or before
+     */
+    public boolean scan(ByteBuf content) {
+      if (!stopped && content.isReadable()) {
+        content.forEachByte(processor);
+      }
+      return !stopped;
+    }
+
+    /**
+     * Scans the content of the given message as the next part of the stream, if it has content.
+     *
+     * @return false if the listener stopped the scan, now or before
+     */
+    public boolean scan(HttpObject httpObject) {
+      return httpObject instanceof HttpContent
+          ? scan(((HttpContent) httpObject).content())
+          : !stopped;
+    }
+
+    /**
+     * Scans the unmasked payload of the given WebSocket frame as the next part of the stream,
+     * without copying it. Frames of messages compressed by the permessage-deflate extension are
+     * scanned compressed.
+     *
+     * @return false if the listener stopped the scan, now or before
+     */
+    public boolean scan(WebSocketFrameView frame) {
+      if (!stopped) {
+        frame.forEachPayloadByte(processor);
+      }
+      return !stopped;
+    }
+
+    /**
+     * Returns an inspector scanning the decoded body of a response with this matcher, to return
+     * from {@link org.littleshoot.proxy.HttpFilters#responseBodyInspector()}. The inspection ends
+     * once the listener stops the scan.
+     */
+    public BodyInspector asBodyInspector() {
+      return body -> {
+        ByteBuf decoded;
+        while ((decoded = body.read(8192)).isReadable()) {
+          if (!scan(decoded)) {
+            return false;
+          }
+        }
+        return true;
+      };
+    }
+
+    /** Returns the number of bytes scanned so far. */
+    public long position() {
+      return position;
+    }
+
+    /** Returns whether the listener stopped the scan. */
+    public boolean isStopped() {
+      return stopped;
+    }
+
+    /** Starts over, to scan a new stream. */
+    public void reset() {
+      state = ROOT;
+      position = 0;
+      stopped = false;
+    }
+
+    private boolean process(byte value) {
+      position++;
+      int current = next(state, fold[value & 0xff] & 0xff);
+      state = current;
+      for (int output = current; output != NONE; output = outputLink[output]) {
+        for (int i = outputStart[output]; i < outputStart[output + 1]; i++) {
+          if (!listener.onMatch(outputPatterns[i], position)) {
+            stopped = true;
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Collects the patterns of a {@link PatternScanner}. */
+  public static final class Builder {
+    private final List<byte[]> patterns = new ArrayList<>();
+    private boolean caseInsensitive;
+
+    private Builder() {}
+
+    /** Adds a pattern, numbered after the ones added before it. */
+    public Builder add(byte[] pattern) {
+      if (pattern.length == 0) {
+        throw new IllegalArgumentException("Patterns must not be empty");
+      }
+      patterns.add(pattern.clone());
+      return this;
+    }
+
+    /** Adds a pattern, encoded as UTF-8. */
+    public Builder add(CharSequence pattern) {
+      return add(pattern.toString().getBytes(UTF_8));
+    }
+
+    /** Adds each of the given patterns, encoded as UTF-8. */
+    public Builder addAll(Iterable<? extends CharSequence> patterns) {
+      for (CharSequence pattern : patterns) {
+        add(pattern);
+      }
+      return this;
+    }
+
+    /** Sets whether ASCII letters match regardless of their case. Off by default. */
+    public Builder withCaseInsensitive(boolean caseInsensitive) {
+      this.caseInsensitive = caseInsensitive;
+      return this;
+    }
+
+    public PatternScanner build() {
+      byte[] fold = new byte[256];
+      for (int i = 0; i < fold.length; i++) {
+        fold[i] = (byte) (caseInsensitive && i >= 'A' && i <= 'Z' ? i + ('a' - 'A') : i);
+      }
+      return new Compiler(fold).compile(patterns);
+    }
+  }
+
+  /** A state of the automaton while it is being compiled. */
+  private static final class MutableState {
+    private final Map<Integer, MutableState> transitions = new TreeMap<>();
+    private final List<Integer> patterns = new ArrayList<>(1);
+    private int number;
+    @Nullable private MutableState failure;
+  }
+
+  /** Compiles patterns into a trie, links its states and flattens it into arrays. */
+  private static final class Compiler {
+    private final byte[] fold;
+
+    Compiler(byte[] fold) {
+      this.fold = fold;
+    }
+
+    PatternScanner compile(List<byte[]> patterns) {
+      MutableState root = new MutableState();
+      int[] patternLengths = new int[patterns.size()];
+      for (int pattern = 0; pattern < patterns.size(); pattern++) {
+        byte[] bytes = patterns.get(pattern);
+        patternLengths[pattern] = bytes.length;
+        MutableState state = root;
+        for (byte value : bytes) {
+          state =
+              state.transitions.computeIfAbsent(
+                  fold[value & 0xff] & 0xff, folded -> new MutableState());
+        }
+        state.patterns.add(pattern);
+      }
+
+      // number the states breadth first, so that failure links point to lower numbers and are
+      // known by the time a state is reached
+      List<MutableState> states = new ArrayList<>();
+      Queue<MutableState> queue = new ArrayDeque<>();
+      root.failure = root;
+      queue.add(root);
+      while (!queue.isEmpty()) {
+        MutableState state = queue.remove();
+        state.number = states.size();
+        states.add(state);
+        for (Map.Entry<Integer, MutableState> transition : state.transitions.entrySet()) {
+          MutableState target = transition.getValue();
+          target.failure = state == root ? root : failureOf(root, state, transition.getKey());
+          queue.add(target);
+        }
+      }
+
+      int stateCount = states.size();
+      int[] rootTransitions = new int[256];
+      int[] transitionStart = new int[stateCount + 1];
+      int transitionCount = 0;
+      int outputCount = 0;
+      for (MutableState state : states) {
+        if (state != root) {
+          transitionCount += state.transitions.size();
+        }
+        outputCount += state.patterns.size();
+      }
+      byte[] transitionBytes = new byte[transitionCount];
+      int[] transitionTargets = new int[transitionCount];
+      int[] failure = new int[stateCount];
+      int[] outputLink = new int[stateCount];
+      int[] outputStart = new int[stateCount + 1];
+      int[] outputPatterns = new int[outputCount];
+      int transition = 0;
+      int output = 0;
+      for (MutableState state : states) {
+        int number = state.number;
+        transitionStart[number] = transition;
+        outputStart[number] = output;
+        for (Map.Entry<Integer, MutableState> entry : state.transitions.entrySet()) {
+          if (state == root) {
+            rootTransitions[entry.getKey()] = entry.getValue().number;
+          } else {
+            transitionBytes[transition] = (byte) (int) entry.getKey();
+            transitionTargets[transition++] = entry.getValue().number;
+          }
+        }
+        for (int pattern : state.patterns) {
+          outputPatterns[output++] = pattern;
+        }
+        MutableState failureState = requireFailure(state);
+        failure[number] = failureState.number;
+        // breadth first order numbers the failure state first, so its output link is known
+        outputLink[number] =
+            state == root
+                ? NONE
+                : !failureState.patterns.isEmpty()
+                    ? failureState.number
+                    : outputLink[failureState.number];
+      }
+      transitionStart[stateCount] = transition;
+      outputStart[stateCount] = output;
+      return new PatternScanner(
+          fold,
+          rootTransitions,
+          transitionStart,
+          transitionBytes,
+          transitionTargets,
+          failure,
+          outputLink,
+          outputStart,
+          outputPatterns,
+          patternLengths);
+    }
+
+    /** Returns the failure state of the target of a transition from a state other than the root. */
+    private static MutableState failureOf(MutableState root, MutableState state, int value) {
+      MutableState candidate = requireFailure(state);
+      while (true) {
+        MutableState target = candidate.transitions.get(value);
+        if (target != null) {
+          return target;
+        }
+        if (candidate == root) {
+          return root;
+        }
+        candidate = requireFailure(candidate);
+      }
+    }
+
+    private static MutableState requireFailure(MutableState state) {
+      MutableState failure = state.failure;
+      if (failure == null) {
+        throw new IllegalStateException("Failure link computed out of order");
+      }
+      return failure;
+    }
+  }
+}
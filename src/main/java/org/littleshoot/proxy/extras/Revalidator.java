@@ -0,0 +1,518 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.concurrent.Future;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.DefaultHostResolver;
+import org.littleshoot.proxy.HostResolver;
+import org.littleshoot.proxy.MitmManager;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.littleshoot.proxy.impl.UpstreamConnectionLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Revalidates stale responses stored in an {@link HttpCache} in the background, with conditional
+ * requests sent straight to the origin server over a small pool of keep-alive connections, and
+ * fetches whole responses for the cache in the same way.
+ *
+ * <p>A 304 Not Modified response refreshes the headers of the stored response, and a new response
+ * that can be stored replaces it. Server errors, and failures to reach the server, leave the stale
+ * response in place. Only one request for a given response runs at a time.
+ *
+ * <p>Once told of the proxy server it works for, connections are opened the way the server opens
+ * its own: server names are resolved with its {@link HostResolver}, connections are bound to its
+ * local address, and take a slot from its {@link UpstreamConnectionLimiter} for as long as they are
+ * open, so they are not kept idle, and https servers are verified by its {@link MitmManager}. Its
+ * chained proxies, filters, activity trackers and throttling are still bypassed, and connections
+ * are made from the event loop of the client being served.
+ */
+@NullMarked
+final class Revalidator {
+  private static final Logger LOG = LoggerFactory.getLogger(Revalidator.class);
+
+  private static final int MAX_IDLE_CONNECTIONS_PER_ORIGIN = 4;
+
+  /** Connections waiting this long for a response, or idle in the pool, are closed. */
+  private static final int TIMEOUT_SECONDS = 30;
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+
+  private final HttpCache cache;
+
+  /** The server whose upstream settings are used, once known. */
+  @Nullable private volatile DefaultHttpProxyServer proxyServer;
+
+  /** Keys of the resources being revalidated. */
+  private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+
+  /** Idle connections, by origin. */
+  private final ConcurrentMap<String, Deque<Channel>> idleConnections = new ConcurrentHashMap<>();
+
+  Revalidator(HttpCache cache) {
+    this.cache = cache;
+  }
+
+  /** Opens connections to servers the way the given proxy server does. */
+  void useProxyServer(DefaultHttpProxyServer proxyServer) {
+    this.proxyServer = proxyServer;
+  }
+
+  /**
+   * Starts revalidating the stale response stored under the given key, unless it is already being
+   * revalidated.
+   *
+   * @param key the cache key of the response
+   * @param resourceUri the absolute URI of the resource
+   * @param clientRequest the request being served the stale response, whose end-to-end headers are
+   *     sent with the conditional request
+   * @param stale the stored response
+   * @param eventLoop the event loop on which to open a new connection to the server, if needed
+   */
+  void revalidate(
+      String key,
+      String resourceUri,
+      HttpRequest clientRequest,
+      CachedResponse stale,
+      EventLoop eventLoop) {
+    fetch(key, resourceUri, clientRequest, stale, eventLoop);
+  }
+
+  /**
+   * Starts fetching the whole response to store under the given key, such as when only part of it
+   * was requested, unless it is already being fetched.
+   *
+   * @param key the cache key of the response
+   * @param resourceUri the absolute URI of the resource
+   * @param clientRequest the request that missed the cache, whose end-to-end headers are sent with
+   *     the request, apart from Range and conditional headers
+   * @param eventLoop the event loop on which to open a new connection to the server, if needed
+   */
+  void fill(String key, String resourceUri, HttpRequest clientRequest, EventLoop eventLoop) {
+    fetch(key, resourceUri, clientRequest, null, eventLoop);
+  }
+
+  private void fetch(
+      String key,
+      String resourceUri,
+      HttpRequest clientRequest,
+      @Nullable CachedResponse stale,
+      EventLoop eventLoop) {
+    URI uri;
+    try {
+      uri = new URI(resourceUri);
+    } catch (URISyntaxException e) {
+      LOG.debug("Not fetching {}: invalid URI", resourceUri, e);
+      return;
+    }
+    String scheme = uri.getScheme();
+    String host = uri.getHost();
+    boolean secure = "https".equalsIgnoreCase(scheme);
+    if (host == null || (!secure && !"http".equalsIgnoreCase(scheme))) {
+      return;
+    }
+    if (!inProgress.add(key)) {
+      return;
+    }
+    int port = uri.getPort() >= 0 ? uri.getPort() : secure ? 443 : 80;
+    String origin = (secure ? "https://" : "http://") + host + ":" + port;
+    // the origin as the proxy names it when limiting connections: the CONNECT target for https
+    String hostAndPort = secure || uri.getPort() >= 0 ? host + ":" + port : host;
+    FullHttpRequest request = request(uri, clientRequest, stale);
+    long requestTimeMillis = cache.now();
+    LOG.debug("{} {}", stale != null ? "Revalidating" : "Fetching", key);
+
+    connect(origin, secure, hostAndPort, host, port, eventLoop)
+        .whenComplete(
+            (channel, connectFailure) -> {
+              if (connectFailure != null) {
+                LOG.debug("Unable to connect to {} to fetch {}", origin, key, connectFailure);
+                request.release();
+                inProgress.remove(key);
+                return;
+              }
+              exchange(channel, request)
+                  .whenComplete(
+                      (response, failure) -> {
+                        try {
+                          if (failure != null) {
+                            LOG.debug("Unable to fetch {}", key, failure);
+                            channel.close();
+                          } else {
+                            release(origin, channel, HttpUtil.isKeepAlive(response));
+                            fetched(key, stale, request, response, requestTimeMillis);
+                          }
+                        } finally {
+                          if (response != null) {
+                            response.release();
+                          }
+                          inProgress.remove(key);
+                        }
+                      });
+            });
+  }
+
+  /**
+   * Builds a request for the whole resource, conditional on the stale response having changed if
+   * there is one.
+   */
+  private static FullHttpRequest request(
+      URI uri, HttpRequest clientRequest, @Nullable CachedResponse stale) {
+    String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+    if (uri.getRawQuery() != null) {
+      path += "?" + uri.getRawQuery();
+    }
+    FullHttpRequest request =
+        new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+    HttpHeaders headers = request.headers();
+    headers.set(clientRequest.headers());
+    ProxyUtils.stripHopByHopHeaders(headers);
+    headers
+        .remove(HttpHeaderNames.TRANSFER_ENCODING)
+        .remove(HttpHeaderNames.CONTENT_LENGTH)
+        .remove(HttpHeaderNames.IF_NONE_MATCH)
+        .remove(HttpHeaderNames.IF_MODIFIED_SINCE)
+        .remove(HttpHeaderNames.IF_MATCH)
+        .remove(HttpHeaderNames.IF_UNMODIFIED_SINCE)
+        .remove(HttpHeaderNames.IF_RANGE)
+        .remove(HttpHeaderNames.RANGE)
+        .remove("Proxy-Connection");
+    headers.set(
+        HttpHeaderNames.HOST,
+        uri.getPort() >= 0 ? uri.getHost() + ":" + uri.getPort() : uri.getHost());
+    if (stale == null) {
+      return request;
+    }
+    String etag = stale.headers().get(HttpHeaderNames.ETAG);
+    if (etag != null) {
+      headers.set(HttpHeaderNames.IF_NONE_MATCH, etag);
+    }
+    String lastModified = stale.headers().get(HttpHeaderNames.LAST_MODIFIED);
+    if (lastModified != null) {
+      headers.set(HttpHeaderNames.IF_MODIFIED_SINCE, lastModified);
+    }
+    return request;
+  }
+
+  private void fetched(
+      String key,
+      @Nullable CachedResponse stale,
+      HttpRequest request,
+      FullHttpResponse response,
+      long requestTimeMillis) {
+    long responseTimeMillis = cache.now();
+    int status = response.status().code();
+    if (stale == null) {
+      if (isStorableUnder(key, request, response)) {
+        store(key, response, requestTimeMillis, responseTimeMillis);
+      }
+      return;
+    }
+    if (status == HttpResponseStatus.NOT_MODIFIED.code()) {
+      cache.update(
+          key,
+          stale,
+          stale.withUpdatedHeaders(response.headers(), requestTimeMillis, responseTimeMillis));
+    } else if (status >= 500) {
+      LOG.debug("Keeping stale response for {}: revalidation got {}", key, response.status());
+      return;
+    } else if (isStorableUnder(key, request, response)) {
+      store(key, response, requestTimeMillis, responseTimeMillis);
+    } else {
+      cache.invalidate(key);
+    }
+    cache.recordRevalidation();
+  }
+
+  /**
+   * Returns true if the response may be stored under the given key, which is only the case if it
+   * varies on the same request headers as the response the key was computed for.
+   */
+  private static boolean isStorableUnder(
+      String key, HttpRequest request, FullHttpResponse response) {
+    return CachingHttpFiltersSource.isStorable(request, response)
+        && HttpCache.varyHeadersOf(key)
+            .equals(CachedResponse.varyHeaderNames(response.headers()));
+  }
+
+  private void store(
+      String key, FullHttpResponse response, long requestTimeMillis, long responseTimeMillis) {
+    cache.put(
+        key,
+        new CachedResponse(
+            response.status(),
+            response.headers(),
+            // the aggregated content is kept as it is, rather than copied to the heap
+            CachedBody.of(response.content().retain()),
+            requestTimeMillis,
+            responseTimeMillis));
+  }
+
+  /**
+   * Takes an idle connection to the given origin from the pool, or opens a new one once the proxy
+   * server's connection limiter, if any, grants it a slot.
+   */
+  private CompletableFuture<Channel> connect(
+      String origin,
+      boolean secure,
+      String hostAndPort,
+      String host,
+      int port,
+      EventLoop eventLoop) {
+    Deque<Channel> idle = idleConnections.get(origin);
+    if (idle != null) {
+      Channel channel;
+      while ((channel = idle.pollFirst()) != null) {
+        if (channel.isActive()) {
+          return CompletableFuture.completedFuture(channel);
+        }
+      }
+    }
+
+    DefaultHttpProxyServer server = proxyServer;
+    UpstreamConnectionLimiter limiter =
+        server != null ? server.getUpstreamConnectionLimiter() : null;
+    if (limiter == null) {
+      return open(origin, secure, host, port, eventLoop);
+    }
+    CompletableFuture<Channel> connected = new CompletableFuture<>();
+    Future<UpstreamConnectionLimiter.Permit> permitFuture =
+        limiter.acquire(hostAndPort, eventLoop);
+    permitFuture.addListener(
+        future -> {
+          if (!permitFuture.isSuccess()) {
+            connected.completeExceptionally(permitFuture.cause());
+            return;
+          }
+          UpstreamConnectionLimiter.Permit permit = permitFuture.getNow();
+          open(origin, secure, host, port, eventLoop)
+              .whenComplete(
+                  (channel, failure) -> {
+                    if (failure != null) {
+                      permit.release();
+                      connected.completeExceptionally(failure);
+                    } else {
+                      channel.closeFuture().addListener(closed -> permit.release());
+                      connected.complete(channel);
+                    }
+                  });
+        });
+    return connected;
+  }
+
+  /**
+   * Opens a new connection to the given server, resolving its name on the event loop rather than
+   * on the caller's stack.
+   */
+  private CompletableFuture<Channel> open(
+      String origin, boolean secure, String host, int port, EventLoop eventLoop) {
+    CompletableFuture<Channel> connected = new CompletableFuture<>();
+    eventLoop.execute(
+        () -> {
+          try {
+            doOpen(origin, secure, host, port, eventLoop, connected);
+          } catch (Exception e) {
+            connected.completeExceptionally(e);
+          }
+        });
+    return connected;
+  }
+
+  private void doOpen(
+      String origin,
+      boolean secure,
+      String host,
+      int port,
+      EventLoop eventLoop,
+      CompletableFuture<Channel> connected)
+      throws UnknownHostException, NoSuchAlgorithmException {
+    DefaultHttpProxyServer server = proxyServer;
+    HostResolver resolver = server != null ? server.getServerResolver() : new DefaultHostResolver();
+    InetSocketAddress remoteAddress = resolver.resolve(host, port);
+    @Nullable SSLEngine engine = secure ? clientSslEngine(server, host, port) : null;
+    Bootstrap bootstrap =
+        new Bootstrap()
+            .group(eventLoop)
+            .channelFactory(NioSocketChannel::new)
+            .option(
+                ChannelOption.CONNECT_TIMEOUT_MILLIS,
+                server != null ? server.getConnectTimeout() : CONNECT_TIMEOUT_MILLIS)
+            .handler(
+                new ChannelInitializer<>() {
+                  @Override
+                  protected void initChannel(Channel ch) {
+                    ChannelPipeline pipeline = ch.pipeline();
+                    if (engine != null) {
+                      pipeline.addLast("ssl", new SslHandler(engine));
+                    }
+                    pipeline.addLast("codec", new HttpClientCodec());
+                    pipeline.addLast(
+                        "aggregator",
+                        new HttpObjectAggregator(
+                            (int) Math.min(cache.getMaxEntryBytes(), Integer.MAX_VALUE)));
+                    pipeline.addLast("timeout", new ReadTimeoutHandler(TIMEOUT_SECONDS));
+                    pipeline.addLast("handler", new ResponseHandler());
+                  }
+                });
+    InetSocketAddress localAddress = server != null ? server.getLocalAddress() : null;
+    ChannelFuture connecting =
+        localAddress != null
+            ? bootstrap.connect(remoteAddress, localAddress)
+            : bootstrap.connect(remoteAddress);
+    connecting.addListener(
+        (ChannelFutureListener)
+            future -> {
+              if (!future.isSuccess()) {
+                connected.completeExceptionally(future.cause());
+                return;
+              }
+              Channel channel = future.channel();
+              channel
+                  .closeFuture()
+                  .addListener(
+                      closed -> {
+                        Deque<Channel> pool = idleConnections.get(origin);
+                        if (pool != null) {
+                          pool.remove(channel);
+                        }
+                      });
+              connected.complete(channel);
+            });
+  }
+
+  private void release(String origin, Channel channel, boolean keepAlive) {
+    DefaultHttpProxyServer server = proxyServer;
+    // an idle connection would hold a slot the proxy's clients may be waiting for
+    boolean limited = server != null && server.getUpstreamConnectionLimiter() != null;
+    if (!keepAlive || limited || !channel.isActive()) {
+      channel.close();
+      return;
+    }
+    Deque<Channel> idle =
+        idleConnections.computeIfAbsent(origin, key -> new ConcurrentLinkedDeque<>());
+    if (idle.size() >= MAX_IDLE_CONNECTIONS_PER_ORIGIN) {
+      channel.close();
+    } else {
+      idle.offerFirst(channel);
+    }
+  }
+
+  private static CompletableFuture<FullHttpResponse> exchange(
+      Channel channel, FullHttpRequest request) {
+    ResponseHandler handler = channel.pipeline().get(ResponseHandler.class);
+    CompletableFuture<FullHttpResponse> response = handler.expect();
+    channel
+        .writeAndFlush(request)
+        .addListener(
+            future -> {
+              if (!future.isSuccess()) {
+                handler.fail(future.cause());
+              }
+            });
+    return response;
+  }
+
+  /**
+   * An engine for https connections, from the proxy server's {@link MitmManager}, which decides
+   * which servers the proxy trusts, or else trusting the certificates the JVM trusts by default.
+   */
+  private static SSLEngine clientSslEngine(
+      @Nullable DefaultHttpProxyServer server, String host, int port)
+      throws NoSuchAlgorithmException {
+    MitmManager mitmManager = server != null ? server.getMitmManager() : null;
+    if (mitmManager != null) {
+      return mitmManager.serverSslEngine(host, port);
+    }
+    SSLEngine engine = SSLContext.getDefault().createSSLEngine(host, port);
+    engine.setUseClientMode(true);
+    SSLParameters parameters = engine.getSSLParameters();
+    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+    engine.setSSLParameters(parameters);
+    return engine;
+  }
+
+  /** Completes the pending request of a connection with the response read from it. */
+  private static final class ResponseHandler
+      extends SimpleChannelInboundHandler<FullHttpResponse> {
+    @Nullable private volatile CompletableFuture<FullHttpResponse> pending;
+
+    CompletableFuture<FullHttpResponse> expect() {
+      CompletableFuture<FullHttpResponse> response = new CompletableFuture<>();
+      pending = response;
+      return response;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+      CompletableFuture<FullHttpResponse> current = pending;
+      pending = null;
+      if (current == null) {
+        // nothing was asked for, so the connection is out of step
+        ctx.close();
+        return;
+      }
+      current.complete(response.retain());
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      fail(new ClosedChannelException());
+      super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      fail(cause);
+      ctx.close();
+    }
+
+    void fail(Throwable cause) {
+      CompletableFuture<FullHttpResponse> current = pending;
+      pending = null;
+      if (current != null) {
+        current.completeExceptionally(cause);
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.HttpFilters;
+import org.littleshoot.proxy.HttpFiltersAdapter;
+import org.littleshoot.proxy.HttpFiltersSourceAdapter;
+import org.littleshoot.proxy.impl.ProxyUtils;
+
+/**
+ * An {@link org.littleshoot.proxy.HttpFiltersSource} that allows or blocks requests by the domain
+ * and path of the requested URL, following {@link CompiledRules}. Blocked requests are answered
+ * with a 403 Forbidden response, without contacting the server. CONNECT requests are checked
+ * against the domain rules only, and requests within man-in-the-middle tunnels against all of them,
+ * using their Host header.
+ *
+ * <p>The rules can be replaced at any time with {@link #reload(CompiledRules)}. As compiled rules
+ * are immutable, requests being checked while the rules are replaced see either the old rules or
+ * the new ones as a whole, and never wait for them to be compiled.
+ */
+@NullMarked
+public class RuleBasedHttpFiltersSource extends HttpFiltersSourceAdapter {
+  private volatile CompiledRules rules;
+
+  private final AtomicLong lookupCount = new AtomicLong();
+  private final AtomicLong lookupNanos = new AtomicLong();
+  private final AtomicLong blockedCount = new AtomicLong();
+
+  public RuleBasedHttpFiltersSource(CompiledRules rules) {
+    this.rules = rules;
+  }
+
+  /** Replaces the rules that requests are checked against. */
+  public void reload(CompiledRules rules) {
+    this.rules = rules;
+  }
+
+  public CompiledRules getRules() {
+    return rules;
+  }
+
+  @Override
+  @Nullable
+  public HttpFilters filterRequest(
+      @NonNull HttpRequest originalRequest, @NonNull ChannelHandlerContext ctx) {
+    String hostAndPort;
+    String path;
+    if (ProxyUtils.isCONNECT(originalRequest)) {
+      hostAndPort = originalRequest.uri();
+      path = "";
+    } else if (originalRequest.uri().startsWith("/")) {
+      String host = originalRequest.headers().get(HttpHeaderNames.HOST);
+      hostAndPort = host == null ? "" : host;
+      path = originalRequest.uri();
+    } else {
+      hostAndPort = ProxyUtils.parseHostAndPort(originalRequest);
+      path = ProxyUtils.stripHost(originalRequest.uri());
+    }
+
+    long startNanos = System.nanoTime();
+    boolean blocked = rules.isBlocked(hostAndPort, path);
+    lookupNanos.addAndGet(System.nanoTime() - startNanos);
+    lookupCount.incrementAndGet();
+    if (!blocked) {
+      return null;
+    }
+    blockedCount.incrementAndGet();
+    return new HttpFiltersAdapter(originalRequest, ctx) {
+      @Override
+      @Nullable
+      public HttpResponse clientToProxyRequest(@NonNull HttpObject httpObject) {
+        if (!(httpObject instanceof HttpRequest)) {
+          return null;
+        }
+        return ProxyUtils.createFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.FORBIDDEN, "Blocked by proxy rules");
+      }
+    };
+  }
+
+  /** Returns the number of requests checked against the rules. */
+  public long getLookupCount() {
+    return lookupCount.get();
+  }
+
+  /** Returns the number of requests blocked by the rules. */
+  public long getBlockedCount() {
+    return blockedCount.get();
+  }
+
+  /** Returns the average time taken to check a request against the rules, in nanoseconds. */
+  public double getAverageLookupNanos() {
+    long lookups = lookupCount.get();
+    return lookups == 0 ? 0 : (double) lookupNanos.get() / lookups;
+  }
+}
@@ -36,4 +36,10 @@ public class SelfSignedMitmManager implements MitmManager {
   public SSLEngine clientSslEngineFor(HttpRequest httpRequest, SSLSession serverSslSession) {
     return selfSignedSslEngineSource.newSslEngine();
   }
+
+  @Override
+  public SSLEngine clientSslEngineForHost(HttpRequest httpRequest, String serverHost) {
+    // the same self-signed certificate is used for every host
+    return selfSignedSslEngineSource.newSslEngine();
+  }
 }
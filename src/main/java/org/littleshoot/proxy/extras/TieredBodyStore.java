@@ -0,0 +1,974 @@
+package org.littleshoot.proxy.extras;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.impl.CategorizedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the bodies of the responses in an {@link HttpCache} outside of the Java heap: every body
+ * is written to memory-mapped segment files on local disk, and the most recently used bodies are
+ * also kept in direct memory, up to a limit.
+ *
+ * <p>Segments are append-only. A compact in-memory index maps each key to the segment and offset of
+ * its body; bodies that are replaced or evicted leave garbage behind, and segments that are mostly
+ * garbage are compacted by copying their live bodies to the current segment and deleting them. Each
+ * record stores the key and response headers along with the body, so that the index, and the cache,
+ * can be recovered on restart by reading the record headers of each segment, without reading the
+ * bodies.
+ *
+ * <p>Segments are only written to by the store's own thread: bodies are appended, segments are
+ * flushed to disk once full, and compacted, in the background, so that threads handling
+ * connections never wait for disk I/O. Bodies are read by the threads sending them, holding the
+ * store's lock only to look them up.
+ *
+ * <p>Bodies that are only on disk are sent to clients as {@link FileRegion}s when the client
+ * connection is not encrypted, so they can be sent with sendfile without being copied into the
+ * JVM; the operating system's page cache keeps them hot. Otherwise they are read into direct
+ * memory, where they stay until other bodies push them out.
+ *
+ * <p>Direct memory counts towards the JVM's {@code -XX:MaxDirectMemorySize}, which must be large
+ * enough for the memory limit of the store. The size of the segment files is bounded by the size
+ * of the cache, plus up to as much again in garbage waiting to be compacted.
+ *
+ * <p>A store must only be used by a single {@link HttpCache}, and must be closed once the cache is
+ * no longer used.
+ */
+@NullMarked
+public final class TieredBodyStore implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(TieredBodyStore.class);
+
+  /** Default size of segment files: 64 MiB. */
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  /** Marks the start of a complete record. Written last, so torn records are not recovered. */
+  private static final int RECORD_MAGIC = 0x4C504331;
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  /** Magic, record type, key length, metadata length and body length. */
+  private static final int RECORD_HEADER_LENGTH = 4 + 1 + 4 + 4 + 4;
+
+  /** Segments with less than this fraction of live data are compacted. */
+  private static final double COMPACTION_THRESHOLD = 0.5;
+
+  private static final long COMPACTION_INTERVAL_MILLIS = 1000;
+
+  /** How long closing the store waits for pending writes. */
+  private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+  private final Path directory;
+  private final long maxMemoryBytes;
+  private final int segmentSize;
+
+  /** The store's thread, which appends records, flushes segments and compacts them. */
+  private final ScheduledExecutorService executor;
+
+  /** The thread of {@link #executor}, on which removals are appended right away. */
+  @Nullable private volatile Thread thread;
+
+  /** Guarded by {@code this}. */
+  private final NavigableMap<Integer, Segment> segments = new TreeMap<>();
+
+  /** Guarded by {@code this}. */
+  private final Map<String, TieredBody> index = new HashMap<>();
+
+  /** Bodies held in direct memory, least recently used first. Guarded by {@code this}. */
+  private final LinkedHashSet<TieredBody> inMemory = new LinkedHashSet<>();
+
+  /** Guarded by {@code this}. */
+  private long memoryBytes;
+
+  /** The segment new records are appended to. Only changed on the store's thread. */
+  @Nullable private volatile Segment active;
+
+  /** Guarded by {@code this}. */
+  private boolean closed;
+
+  private final AtomicLong memoryHits = new AtomicLong();
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong compactedSegments = new AtomicLong();
+  private volatile int recoveredEntries;
+  private volatile long recoveryMillis;
+
+  private TieredBodyStore(Path directory, long maxMemoryBytes, int segmentSize) {
+    this.directory = directory;
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.segmentSize = segmentSize;
+    CategorizedThreadFactory threadFactory =
+        new CategorizedThreadFactory("LittleProxy", "CacheStore", 0);
+    this.executor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread storeThread = threadFactory.newThread(runnable);
+              thread = storeThread;
+              return storeThread;
+            });
+  }
+
+  /**
+   * Opens the store in the given directory, with segments of {@link #DEFAULT_SEGMENT_SIZE},
+   * recovering any bodies stored there before.
+   *
+   * @param directory the directory holding the segment files, which is created if needed
+   * @param maxMemoryBytes the maximum number of bytes of bodies to keep in direct memory
+   */
+  public static TieredBodyStore open(Path directory, long maxMemoryBytes) throws IOException {
+    return open(directory, maxMemoryBytes, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Opens the store in the given directory, recovering any bodies stored there before.
+   *
+   * @param directory the directory holding the segment files, which is created if needed
+   * @param maxMemoryBytes the maximum number of bytes of bodies to keep in direct memory
+   * @param segmentSize the size of segment files, which bounds the size of a single response
+   */
+  public static TieredBodyStore open(Path directory, long maxMemoryBytes, int segmentSize)
+      throws IOException {
+    if (segmentSize <= RECORD_HEADER_LENGTH) {
+      throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+    }
+    Files.createDirectories(directory);
+    TieredBodyStore store = new TieredBodyStore(directory, maxMemoryBytes, segmentSize);
+    try {
+      store.recover();
+    } catch (IOException | RuntimeException e) {
+      store.close();
+      throw e;
+    }
+    store.executor.scheduleWithFixedDelay(
+        store::compactQuietly,
+        COMPACTION_INTERVAL_MILLIS,
+        COMPACTION_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+    return store;
+  }
+
+  /**
+   * Writes a response to the store under the given key, replacing any previous one, on the store's
+   * thread. The body of the response must stay readable until the returned stage completes.
+   *
+   * @return a stage completing with the stored body, which the caller must release, or with null if
+   *     the response is too large to fit in a segment or the store is closed
+   */
+  CompletableFuture<@Nullable CachedBody> write(String key, CachedResponse response) {
+    try {
+      return CompletableFuture.supplyAsync(
+          () -> {
+            try {
+              return append(key, response);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          },
+          executor);
+    } catch (RejectedExecutionException e) {
+      return CompletableFuture.completedFuture(null);
+    }
+  }
+
+  /** Appends a response to the active segment. Must be called on the store's thread. */
+  @Nullable
+  private CachedBody append(String key, CachedResponse response) throws IOException {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    byte[] metadata = response.encodeMetadata();
+    int bodyLength = response.body().length();
+    long recordLength =
+        (long) RECORD_HEADER_LENGTH + keyBytes.length + metadata.length + bodyLength;
+    if (recordLength > segmentSize || isClosed()) {
+      return null;
+    }
+
+    Segment segment = segmentWithRoomFor((int) recordLength);
+    int recordOffset;
+    ByteBuf copy = null;
+    ByteBuf content = response.body().content();
+    try {
+      recordOffset = segment.append(PUT, keyBytes, metadata, content);
+      if (bodyLength <= maxMemoryBytes) {
+        copy = Unpooled.directBuffer(bodyLength);
+        copy.writeBytes(content, content.readerIndex(), bodyLength);
+      }
+    } finally {
+      content.release();
+    }
+    TieredBody body =
+        new TieredBody(
+            key,
+            segment,
+            recordOffset,
+            (int) recordLength,
+            recordOffset + RECORD_HEADER_LENGTH + keyBytes.length + metadata.length,
+            bodyLength);
+    synchronized (this) {
+      if (closed) {
+        if (copy != null) {
+          copy.release();
+        }
+        body.release();
+        return null;
+      }
+      putIndexEntry(key, body);
+      if (copy != null) {
+        keepInMemory(body, copy);
+      }
+      body.retain();
+      return body;
+    }
+  }
+
+  /**
+   * Removes the given body from the index, if it is still the body stored under the key, so that
+   * it is neither recovered on restart nor kept by compaction.
+   */
+  void remove(String key, CachedBody body) {
+    synchronized (this) {
+      TieredBody indexed = index.get(key);
+      if (indexed != body || closed) {
+        return;
+      }
+      index.remove(key);
+      indexed.segment.unlink(indexed);
+      indexed.release();
+    }
+    Runnable appendRemoval =
+        () -> {
+          try {
+            appendRemoval(key);
+          } catch (IOException | RuntimeException e) {
+            LOG.warn("Unable to record removal of cached response for {}", key, e);
+          }
+        };
+    if (Thread.currentThread() == thread) {
+      // such as when a write completes after its response was evicted
+      appendRemoval.run();
+      return;
+    }
+    try {
+      executor.execute(appendRemoval);
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Not recording removal of cached response for {}: store closed", key);
+    }
+  }
+
+  /**
+   * Passes each stored response to the given consumer, which becomes responsible for releasing its
+   * body. Responses that can no longer be read are removed.
+   */
+  void forEachStored(BiConsumer<String, CachedResponse> consumer) {
+    List<TieredBody> bodies;
+    synchronized (this) {
+      bodies = new ArrayList<>(index.values());
+      for (TieredBody body : bodies) {
+        body.retain();
+      }
+    }
+    for (TieredBody body : bodies) {
+      CachedResponse response;
+      try {
+        response = CachedResponse.decodeMetadata(body.metadata(), body);
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("Dropping unreadable cached response for {}", body.key, e);
+        remove(body.key, body);
+        body.release();
+        continue;
+      }
+      consumer.accept(body.key, response);
+    }
+  }
+
+  /** Number of bytes of bodies held in direct memory. */
+  public synchronized long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  /** Number of bytes used by segment files, including garbage not compacted yet. */
+  public synchronized long getDiskBytes() {
+    long bytes = 0;
+    for (Segment segment : segments.values()) {
+      bytes += segment.writePosition;
+    }
+    return bytes;
+  }
+
+  /** Number of segment files. */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /** Number of bodies stored. */
+  public synchronized int getEntryCount() {
+    return index.size();
+  }
+
+  /** Number of times a body was served from direct memory. */
+  public long getMemoryHits() {
+    return memoryHits.get();
+  }
+
+  /** Number of times a body was served from disk. */
+  public long getDiskHits() {
+    return diskHits.get();
+  }
+
+  /** Number of segments compacted since the store was opened. */
+  public long getCompactedSegments() {
+    return compactedSegments.get();
+  }
+
+  /** Number of bodies recovered when the store was opened. */
+  public int getRecoveredEntries() {
+    return recoveredEntries;
+  }
+
+  /** Time taken to recover the index when the store was opened, in milliseconds. */
+  public long getRecoveryMillis() {
+    return recoveryMillis;
+  }
+
+  /**
+   * Waits for the writes submitted so far to complete. Their stages may still be completing when
+   * this returns.
+   */
+  void flush() throws IOException {
+    runOnStoreThread(() -> {});
+  }
+
+  /**
+   * Closes the store, once the writes submitted so far are complete. Bodies still being sent to
+   * clients remain readable until released.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.warn("Closing cache store in {} before its pending writes completed", directory);
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+    }
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for (TieredBody body : index.values()) {
+        body.release();
+      }
+      index.clear();
+      for (Segment segment : segments.values()) {
+        segment.mapping.force();
+        segment.release();
+      }
+      segments.clear();
+      active = null;
+    }
+  }
+
+  private synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /** Compacts all segments that are mostly garbage, on the store's thread, and waits for it. */
+  void compact() throws IOException {
+    runOnStoreThread(this::compactSegments);
+  }
+
+  private void runOnStoreThread(IoRunnable task) throws IOException {
+    try {
+      executor
+          .submit(
+              () -> {
+                task.run();
+                return null;
+              })
+          .get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the cache store", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (RejectedExecutionException e) {
+      throw new IOException("Cache store closed", e);
+    }
+  }
+
+  private void compactQuietly() {
+    try {
+      compactSegments();
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Unable to compact cache segments in {}", directory, e);
+    }
+  }
+
+  /** Must be called on the store's thread. */
+  private void compactSegments() throws IOException {
+    List<Segment> candidates = new ArrayList<>();
+    synchronized (this) {
+      for (Segment segment : segments.values()) {
+        if (segment != active && segment.liveBytes < segment.capacity() * COMPACTION_THRESHOLD) {
+          candidates.add(segment);
+        }
+      }
+    }
+    for (Segment segment : candidates) {
+      compact(segment);
+    }
+  }
+
+  /** Must be called on the store's thread. */
+  private void compact(Segment segment) throws IOException {
+    // the segment is no longer written to, so it can be read without holding the lock
+    List<String> removedKeys = new ArrayList<>();
+    segment.scan(
+        (offset, type, key) -> {
+          if (type == DELETE) {
+            removedKeys.add(key);
+          }
+        });
+
+    List<TieredBody> live;
+    synchronized (this) {
+      live = new ArrayList<>(segment.liveBodies);
+    }
+    for (TieredBody body : live) {
+      if (!moveToActiveSegment(body, segment)) {
+        return;
+      }
+    }
+
+    List<String> stillRemoved = new ArrayList<>();
+    synchronized (this) {
+      if (closed || segments.get(segment.id) != segment || !segment.liveBodies.isEmpty()) {
+        return;
+      }
+      // removals only matter if an older segment may still hold the removed response
+      if (segments.firstKey() < segment.id) {
+        for (String key : removedKeys) {
+          if (!index.containsKey(key)) {
+            stillRemoved.add(key);
+          }
+        }
+      }
+    }
+    // a key put again in the meantime is appended after the removal, on this thread
+    for (String key : stillRemoved) {
+      appendRemoval(key);
+    }
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      segments.remove(segment.id);
+      segment.obsolete = true;
+      segment.release();
+    }
+    compactedSegments.incrementAndGet();
+    LOG.debug("Compacted cache segment {}", segment.path);
+  }
+
+  /**
+   * Copies the record of a body in the given segment to the active segment, unless the body was
+   * removed in the meantime. Must be called on the store's thread. Returns false if the store is
+   * closed.
+   */
+  private boolean moveToActiveSegment(TieredBody body, Segment from) throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+      if (body.segment != from || !from.liveBodies.contains(body)) {
+        return true;
+      }
+    }
+    // only this thread moves bodies, so the record stays where it is while it is copied
+    Segment to = segmentWithRoomFor(body.recordLength);
+    int recordOffset = to.copyRecord(from, body.recordOffset, body.recordLength);
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+      // a body removed while it was copied has its removal appended after the copy, on this thread
+      if (from.liveBodies.contains(body)) {
+        from.unlink(body);
+        to.link(body);
+        body.bodyOffset = recordOffset + (body.bodyOffset - body.recordOffset);
+        body.recordOffset = recordOffset;
+        body.segment = to;
+        to.retain();
+        from.release();
+      }
+    }
+    return true;
+  }
+
+  /** Records that a key was removed. Must be called on the store's thread. */
+  private void appendRemoval(String key) throws IOException {
+    if (isClosed()) {
+      return;
+    }
+    byte[] keyBytes = key.getBytes(UTF_8);
+    segmentWithRoomFor(RECORD_HEADER_LENGTH + keyBytes.length)
+        .append(DELETE, keyBytes, new byte[0], Unpooled.EMPTY_BUFFER);
+  }
+
+  /**
+   * Returns the active segment, or a new one if it has no room for the record, once the full one
+   * is flushed to disk. Must be called on the store's thread.
+   */
+  private Segment segmentWithRoomFor(int recordLength) throws IOException {
+    Segment segment = active;
+    if (segment != null && segment.capacity() - segment.writePosition >= recordLength) {
+      return segment;
+    }
+    if (segment != null) {
+      segment.mapping.force();
+    }
+    int id;
+    synchronized (this) {
+      id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+    }
+    segment = Segment.create(directory.resolve(segmentFileName(id)), id, segmentSize);
+    synchronized (this) {
+      if (closed) {
+        segment.release();
+        throw new IOException("Cache store closed");
+      }
+      segments.put(id, segment);
+      active = segment;
+    }
+    return segment;
+  }
+
+  /** Must be called while holding the lock. */
+  private void putIndexEntry(String key, TieredBody body) {
+    TieredBody previous = index.put(key, body);
+    body.segment.link(body);
+    if (previous != null) {
+      previous.segment.unlink(previous);
+      previous.release();
+    }
+  }
+
+  /** Must be called while holding the lock. */
+  private void keepInMemory(TieredBody body, ByteBuf copy) {
+    body.memoryCopy = copy;
+    inMemory.add(body);
+    memoryBytes += body.bodyLength;
+    Iterator<TieredBody> leastRecentlyUsed = inMemory.iterator();
+    while (memoryBytes > maxMemoryBytes && leastRecentlyUsed.hasNext()) {
+      TieredBody evicted = leastRecentlyUsed.next();
+      leastRecentlyUsed.remove();
+      evicted.dropFromMemory();
+    }
+  }
+
+  private void recover() throws IOException {
+    long start = System.nanoTime();
+    List<Integer> ids = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          ids.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring unexpected file in cache directory: {}", file);
+        }
+      }
+    }
+    Collections.sort(ids);
+
+    synchronized (this) {
+      for (int id : ids) {
+        Segment segment = Segment.open(directory.resolve(segmentFileName(id)), id);
+        segments.put(id, segment);
+        segment.writePosition =
+            segment.scan(
+                (offset, type, key) -> {
+                  if (type == PUT) {
+                    putIndexEntry(key, bodyForRecord(segment, key, offset));
+                  } else {
+                    TieredBody removed = index.remove(key);
+                    if (removed != null) {
+                      removed.segment.unlink(removed);
+                      removed.release();
+                    }
+                  }
+                });
+      }
+      recoveredEntries = index.size();
+    }
+    recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    LOG.info(
+        "Recovered {} cached responses from {} segments in {} ms",
+        recoveredEntries,
+        ids.size(),
+        recoveryMillis);
+  }
+
+  /** Creates a body for the PUT record at the given offset of a segment. */
+  private TieredBody bodyForRecord(Segment segment, String key, int offset) {
+    int keyLength = segment.mapping.getInt(offset + 5);
+    int metadataLength = segment.mapping.getInt(offset + 9);
+    int bodyLength = segment.mapping.getInt(offset + 13);
+    int bodyOffset = offset + RECORD_HEADER_LENGTH + keyLength + metadataLength;
+    return new TieredBody(
+        key, segment, offset, bodyOffset - offset + bodyLength, bodyOffset, bodyLength);
+  }
+
+  private static String segmentFileName(int id) {
+    return String.format("%010d%s", id, SEGMENT_SUFFIX);
+  }
+
+  private interface RecordVisitor {
+    void visit(int offset, byte type, String key);
+  }
+
+  private interface IoRunnable {
+    void run() throws IOException;
+  }
+
+  /** An append-only segment file, mapped into memory. */
+  private static final class Segment extends AbstractReferenceCounted {
+    private final Path path;
+    private final int id;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+
+    /**
+     * Position at which the next record is appended. Only changed on the store's thread, once the
+     * store is open.
+     */
+    private volatile int writePosition;
+
+    /** Bytes of records still in the index. Guarded by the store. */
+    private long liveBytes;
+
+    /** Set once compacted, so that the file is deleted when no longer read. */
+    private volatile boolean obsolete;
+
+    /** Bodies whose records are in this segment and in the index. Guarded by the store. */
+    private final Set<TieredBody> liveBodies =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private Segment(Path path, int id, FileChannel channel, MappedByteBuffer mapping) {
+      this.path = path;
+      this.id = id;
+      this.channel = channel;
+      this.mapping = mapping;
+    }
+
+    static Segment create(Path path, int id, int size) throws IOException {
+      FileChannel channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.CREATE_NEW,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      try {
+        return new Segment(path, id, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    static Segment open(Path path, int id) throws IOException {
+      FileChannel channel =
+          FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        long size = Math.min(channel.size(), Integer.MAX_VALUE);
+        return new Segment(
+            path, id, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    int capacity() {
+      return mapping.capacity();
+    }
+
+    /** Appends a record and returns its offset. The caller must have checked there is room. */
+    int append(byte type, byte[] key, byte[] metadata, ByteBuf body) {
+      int offset = writePosition;
+      int bodyLength = body.readableBytes();
+      ByteBuffer buffer = mapping.duplicate();
+      buffer.position(offset + 4);
+      buffer.put(type).putInt(key.length).putInt(metadata.length).putInt(bodyLength);
+      buffer.put(key).put(metadata);
+      buffer.limit(buffer.position() + bodyLength);
+      body.getBytes(body.readerIndex(), buffer);
+      mapping.putInt(offset, RECORD_MAGIC);
+      writePosition = offset + RECORD_HEADER_LENGTH + key.length + metadata.length + bodyLength;
+      return offset;
+    }
+
+    /** Appends a copy of a record from another segment and returns its offset. */
+    int copyRecord(Segment from, int recordOffset, int recordLength) {
+      int offset = writePosition;
+      ByteBuffer source = from.mapping.duplicate();
+      source.position(recordOffset + 4).limit(recordOffset + recordLength);
+      ByteBuffer target = mapping.duplicate();
+      target.position(offset + 4);
+      target.put(source);
+      mapping.putInt(offset, RECORD_MAGIC);
+      writePosition = offset + recordLength;
+      return offset;
+    }
+
+    /**
+     * Reads the header of each complete record, in order, and returns the position after the last
+     * one.
+     */
+    int scan(RecordVisitor visitor) {
+      ByteBuffer buffer = mapping.duplicate();
+      int offset = 0;
+      while (offset + RECORD_HEADER_LENGTH <= buffer.capacity()
+          && buffer.getInt(offset) == RECORD_MAGIC) {
+        byte type = buffer.get(offset + 4);
+        int keyLength = buffer.getInt(offset + 5);
+        int metadataLength = buffer.getInt(offset + 9);
+        int bodyLength = buffer.getInt(offset + 13);
+        long recordLength = (long) RECORD_HEADER_LENGTH + keyLength + metadataLength + bodyLength;
+        if (keyLength < 0
+            || metadataLength < 0
+            || bodyLength < 0
+            || offset + recordLength > buffer.capacity()) {
+          break;
+        }
+        byte[] key = new byte[keyLength];
+        buffer.position(offset + RECORD_HEADER_LENGTH);
+        buffer.get(key);
+        visitor.visit(offset, type, new String(key, UTF_8));
+        offset += (int) recordLength;
+      }
+      return offset;
+    }
+
+    void link(TieredBody body) {
+      if (liveBodies.add(body)) {
+        liveBytes += body.recordLength;
+      }
+    }
+
+    void unlink(TieredBody body) {
+      if (liveBodies.remove(body)) {
+        liveBytes -= body.recordLength;
+      }
+    }
+
+    @Override
+    protected void deallocate() {
+      try {
+        channel.close();
+        if (obsolete) {
+          Files.deleteIfExists(path);
+        }
+      } catch (IOException e) {
+        LOG.warn("Unable to delete cache segment {}", path, e);
+      }
+    }
+
+    @Override
+    public ReferenceCounted touch(Object hint) {
+      return this;
+    }
+  }
+
+  /** A body stored in a segment, and possibly in direct memory. */
+  private final class TieredBody extends CachedBody {
+    private final String key;
+    private final int bodyLength;
+
+    // guarded by the store, and only moved on the store's thread
+    private Segment segment;
+    private int recordOffset;
+    private final int recordLength;
+    private int bodyOffset;
+    @Nullable private ByteBuf memoryCopy;
+
+    private TieredBody(
+        String key,
+        Segment segment,
+        int recordOffset,
+        int recordLength,
+        int bodyOffset,
+        int bodyLength) {
+      this.key = key;
+      this.segment = segment;
+      this.recordOffset = recordOffset;
+      this.recordLength = recordLength;
+      this.bodyOffset = bodyOffset;
+      this.bodyLength = bodyLength;
+      segment.retain();
+    }
+
+    @Override
+    int length() {
+      return bodyLength;
+    }
+
+    @Override
+    ByteBuf content() {
+      Segment source;
+      int offset;
+      synchronized (TieredBodyStore.this) {
+        ByteBuf buffer = memoryCopy;
+        if (buffer != null) {
+          memoryHits.incrementAndGet();
+          inMemory.remove(this);
+          inMemory.add(this);
+          return buffer.retainedDuplicate();
+        }
+        source = segment;
+        offset = bodyOffset;
+        source.retain();
+      }
+      diskHits.incrementAndGet();
+      // the record is never overwritten, and the mapping stays valid while the segment is retained,
+      // even if the body is moved or removed meanwhile
+      ByteBuf copy;
+      try {
+        ByteBuffer bytes = source.mapping.duplicate();
+        bytes.position(offset).limit(offset + bodyLength);
+        copy = Unpooled.directBuffer(bodyLength).writeBytes(bytes);
+      } finally {
+        source.release();
+      }
+      if (bodyLength > maxMemoryBytes) {
+        return copy;
+      }
+      synchronized (TieredBodyStore.this) {
+        if (memoryCopy != null) {
+          // another reader got there first
+          return copy;
+        }
+        keepInMemory(this, copy);
+        return copy.retainedDuplicate();
+      }
+    }
+
+    @Override
+    Object message(boolean zeroCopy) {
+      synchronized (TieredBodyStore.this) {
+        if (memoryCopy != null || !zeroCopy) {
+          return content();
+        }
+        diskHits.incrementAndGet();
+        return new SegmentFileRegion(segment, bodyOffset, bodyLength);
+      }
+    }
+
+    @Override
+    Object message(boolean zeroCopy, int offset, int length) {
+      synchronized (TieredBodyStore.this) {
+        if (memoryCopy != null || !zeroCopy) {
+          return super.message(zeroCopy, offset, length);
+        }
+        diskHits.incrementAndGet();
+        return new SegmentFileRegion(segment, bodyOffset + offset, length);
+      }
+    }
+
+    /** Reads the serialized response metadata from the segment. */
+    byte[] metadata() {
+      synchronized (TieredBodyStore.this) {
+        ByteBuffer source = segment.mapping.duplicate();
+        int keyLength = source.getInt(recordOffset + 5);
+        int metadataLength = source.getInt(recordOffset + 9);
+        byte[] metadata = new byte[metadataLength];
+        source.position(recordOffset + RECORD_HEADER_LENGTH + keyLength);
+        source.get(metadata);
+        return metadata;
+      }
+    }
+
+    /** Must be called while holding the lock, after removing this body from the LRU list. */
+    void dropFromMemory() {
+      ByteBuf buffer = memoryCopy;
+      if (buffer != null) {
+        memoryCopy = null;
+        memoryBytes -= bodyLength;
+        buffer.release();
+      }
+    }
+
+    @Override
+    protected void deallocate() {
+      synchronized (TieredBodyStore.this) {
+        inMemory.remove(this);
+        dropFromMemory();
+        segment.release();
+      }
+    }
+  }
+
+  /**
+   * A region of a segment file. The segment's file channel is shared, so it is not closed when the
+   * region is released; the segment is released instead.
+   */
+  private static final class SegmentFileRegion extends DefaultFileRegion {
+    private final Segment segment;
+
+    SegmentFileRegion(Segment segment, long position, long count) {
+      super(segment.channel, position, count);
+      this.segment = segment;
+      segment.retain();
+    }
+
+    @Override
+    protected void deallocate() {
+      segment.release();
+    }
+  }
+}
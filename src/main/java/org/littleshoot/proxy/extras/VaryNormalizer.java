@@ -0,0 +1,89 @@
+package org.littleshoot.proxy.extras;
+
+import static java.util.stream.Collectors.joining;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.function.Function;
+import org.jspecify.annotations.NullMarked;
+import org.littleshoot.proxy.impl.ProxyUtils;
+
+/**
+ * Normalises the values of the request headers a response varies on, to choose the stored variant
+ * of a resource to serve to a request. Requests whose headers normalise to the same values share a
+ * variant, so a normaliser that irons out differences that do not change the server's choice of
+ * response raises the hit ratio of the cache, while one that irons out too much serves clients the
+ * wrong variant.
+ */
+@NullMarked
+@FunctionalInterface
+public interface VaryNormalizer {
+  /**
+   * Returns the normalised value of a request header.
+   *
+   * @param headerName the name of the header, in lower case
+   * @param values the values of the header in the request, or an empty list if it is absent
+   * @return the normalised value, which must not contain line breaks
+   */
+  String normalize(String headerName, List<String> values);
+
+  /** Returns a normaliser that only trims whitespace around the header values. */
+  static VaryNormalizer exact() {
+    return (headerName, values) -> values.stream().map(String::trim).collect(joining(","));
+  }
+
+  /**
+   * Returns the default normaliser. The elements of the Accept, Accept-Charset, Accept-Encoding and
+   * Accept-Language headers are lower-cased, stripped of whitespace and of a {@code q=1} weight,
+   * deduplicated and sorted, and those refused with {@code q=0} are dropped, so that for example
+   * "gzip, deflate" and "deflate,GZIP;q=1.0" select the same variant. Other headers are compared as
+   * with {@link #exact()}.
+   */
+  static VaryNormalizer standard() {
+    return (headerName, values) -> {
+      switch (headerName) {
+        case "accept":
+        case "accept-charset":
+        case "accept-encoding":
+        case "accept-language":
+          return normalizeList(values);
+        default:
+          return exact().normalize(headerName, values);
+      }
+    };
+  }
+
+  /**
+   * Returns a normaliser using the given function for one header, and this normaliser for the
+   * others. For example, {@code standard().withHeader("User-Agent", values -> isMobile(values) ?
+   * "mobile" : "desktop")} stores at most two variants of responses that vary on User-Agent.
+   */
+  default VaryNormalizer withHeader(
+      String headerName, Function<List<String>, String> headerNormalizer) {
+    String name = headerName.toLowerCase(Locale.ROOT);
+    return (header, values) ->
+        header.equals(name) ? headerNormalizer.apply(values) : normalize(header, values);
+  }
+
+  private static String normalizeList(List<String> values) {
+    TreeSet<String> elements = new TreeSet<>();
+    for (String value : values) {
+      for (String element : ProxyUtils.splitCommaSeparatedHeaderValues(value)) {
+        String normalized = element.replaceAll("\\s+", "").toLowerCase(Locale.ROOT);
+        int weight = normalized.lastIndexOf(";q=");
+        if (weight >= 0) {
+          String q = normalized.substring(weight + 3);
+          if (q.matches("0(\\.0{0,3})?")) {
+            continue;
+          }
+          if (q.matches("1(\\.0{0,3})?")) {
+            normalized = normalized.substring(0, weight);
+          }
+        }
+        elements.add(normalized);
+      }
+    }
+    return String.join(",", elements);
+  }
+}
@@ -0,0 +1,175 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.BrotliDecoder;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.util.Locale;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.BodyInspector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies a {@link BodyInspector} to the body of one response. The received chunks are kept, as
+ * retained slices, until the inspector reads them, and compressed ones are fed to the decoder a
+ * small piece at a time, so a read decodes little more than it returns.
+ */
+@NullMarked
+final class BodyInspection implements BodyInspector.DecodedBody {
+  private static final Logger LOG = LoggerFactory.getLogger(BodyInspection.class);
+
+  /** How many compressed bytes are decoded at a time. */
+  private static final int DECODED_PIECE_LENGTH = 1024;
+
+  private final BodyInspector inspector;
+  private final String contentEncoding;
+  @Nullable private final EmbeddedChannel decoder;
+  private final CompositeByteBuf input;
+  private final CompositeByteBuf output;
+  private long position;
+  private boolean last;
+  private boolean released;
+
+  private BodyInspection(
+      BodyInspector inspector,
+      String contentEncoding,
+      @Nullable ChannelHandler decoder,
+      ByteBufAllocator alloc) {
+    this.inspector = inspector;
+    this.contentEncoding = contentEncoding;
+    this.decoder = decoder == null ? null : new EmbeddedChannel(decoder);
+    this.input = alloc.compositeBuffer(Integer.MAX_VALUE);
+    this.output = alloc.compositeBuffer(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Starts inspecting the body of the given response, or returns null if its Content-Encoding
+   * can't be decoded.
+   */
+  @Nullable
+  static BodyInspection start(
+      BodyInspector inspector, HttpResponse response, ByteBufAllocator alloc) {
+    String contentEncoding =
+        response
+            .headers()
+            .get(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.IDENTITY.toString())
+            .trim()
+            .toLowerCase(Locale.ROOT);
+    switch (contentEncoding) {
+      case "":
+      case "identity":
+        return new BodyInspection(inspector, "identity", null, alloc);
+      case "gzip":
+      case "x-gzip":
+        return new BodyInspection(
+            inspector, contentEncoding, ZlibCodecFactory.newZlibDecoder(ZlibWrapper.GZIP), alloc);
+      case "deflate":
+      case "x-deflate":
+        // servers send both zlib-wrapped and raw deflate streams as deflate
+        return new BodyInspection(
+            inspector,
+            contentEncoding,
+            ZlibCodecFactory.newZlibDecoder(ZlibWrapper.ZLIB_OR_NONE),
+            alloc);
+      case "br":
+        return Brotli.isAvailable()
+            ? new BodyInspection(inspector, contentEncoding, new BrotliDecoder(), alloc)
+            : null;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Passes the next chunk of the body to the inspector, and returns whether it should be given
+   * the next ones. The chunk itself is left untouched.
+   */
+  boolean inspect(HttpContent chunk) {
+    if (released) {
+      return false;
+    }
+    if (chunk.content().isReadable()) {
+      input.addComponent(true, chunk.content().retainedSlice());
+    }
+    last = chunk instanceof LastHttpContent;
+    boolean more;
+    try {
+      more = inspector.inspect(this);
+    } catch (RuntimeException e) {
+      LOG.warn("Response body inspector failed, so the rest of the body is not inspected", e);
+      more = false;
+    }
+    if (!more || last) {
+      release();
+      return false;
+    }
+    return true;
+  }
+
+  /** Releases the body kept for the inspector, when it will not read more of it. */
+  void release() {
+    if (!released) {
+      released = true;
+      input.release();
+      output.release();
+      if (decoder != null) {
+        decoder.finishAndReleaseAll();
+      }
+    }
+  }
+
+  @Override
+  public ByteBuf read(int maxLength) {
+    if (released) {
+      throw new IllegalStateException("The body can only be read while it is being inspected");
+    }
+    if (maxLength < 0) {
+      throw new IllegalArgumentException("Negative length: " + maxLength);
+    }
+    output.discardReadComponents();
+    while (output.readableBytes() < maxLength && input.isReadable()) {
+      if (decoder == null) {
+        int length = Math.min(maxLength - output.readableBytes(), input.readableBytes());
+        output.addComponent(true, ProxyUtils.readRetainedComponents(input, length));
+      } else {
+        int length = Math.min(DECODED_PIECE_LENGTH, input.readableBytes());
+        decoder.writeInbound(ProxyUtils.readRetainedComponents(input, length));
+        ByteBuf decoded;
+        while ((decoded = decoder.readInbound()) != null) {
+          output.addComponent(true, decoded);
+        }
+      }
+      input.discardReadComponents();
+    }
+    int length = Math.min(maxLength, output.readableBytes());
+    position += length;
+    return output.readSlice(length).asReadOnly();
+  }
+
+  @Override
+  public long position() {
+    return position;
+  }
+
+  @Override
+  public boolean isLast() {
+    return last;
+  }
+
+  @Override
+  public String contentEncoding() {
+    return contentEncoding;
+  }
+}
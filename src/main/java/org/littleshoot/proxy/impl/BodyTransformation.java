@@ -0,0 +1,206 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.BodyTransformer;
+
+/**
+ * Applies a {@link BodyTransformer} to the body of one request or response. The input held back
+ * between chunks is kept in a composite of the received buffers, and the bytes passed on are
+ * slices of them, so only the inserted bytes are ever allocated.
+ */
+@NullMarked
+final class BodyTransformation implements BodyTransformer.Editor {
+  private final BodyTransformer transformer;
+  private final ByteBufAllocator alloc;
+  private final CompositeByteBuf pending;
+  @Nullable private CompositeByteBuf output;
+  private boolean last;
+  private boolean released;
+
+  BodyTransformation(BodyTransformer transformer, ByteBufAllocator alloc) {
+    this.transformer = transformer;
+    this.alloc = alloc;
+    this.pending = alloc.compositeBuffer(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns whether the body of the given message is sent without a Content-Encoding, and so can
+   * be transformed without corrupting it.
+   */
+  static boolean isIdentityEncoded(HttpMessage message) {
+    String contentEncoding = message.headers().get(HttpHeaderNames.CONTENT_ENCODING);
+    return contentEncoding == null
+        || contentEncoding.isBlank()
+        || HttpHeaderValues.IDENTITY.contentEqualsIgnoreCase(contentEncoding.trim());
+  }
+
+  /** Returns whether the given request has a body, which is then worth transforming. */
+  static boolean hasBody(HttpRequest request) {
+    return HttpUtil.isTransferEncodingChunked(request)
+        || HttpUtil.getContentLength(request, 0L) > 0;
+  }
+
+  /** Returns whether the response to the given request may have a body. */
+  static boolean hasBody(HttpRequest request, HttpResponse response) {
+    return !ProxyUtils.isHEAD(request) && !ProxyUtils.isContentAlwaysEmpty(response);
+  }
+
+  /**
+   * Transforms the next message of a request or response. Returns either the message itself, a new
+   * message owned by the caller, or null when the whole chunk is held back.
+   */
+  @Nullable
+  HttpObject transform(HttpObject httpObject) {
+    if (httpObject instanceof FullHttpMessage) {
+      FullHttpMessage message = (FullHttpMessage) httpObject;
+      ByteBuf content = transform(message.content(), true);
+      FullHttpMessage transformed = message.replace(content);
+      transformed.headers().remove(HttpHeaderNames.TRANSFER_ENCODING);
+      HttpUtil.setContentLength(transformed, content.readableBytes());
+      return transformed;
+    }
+    if (httpObject instanceof HttpMessage) {
+      HttpMessage message = (HttpMessage) httpObject;
+      if (message instanceof HttpResponse) {
+        // leave the decoder's response alone, as it still frames the body by its headers
+        message = ProxyUtils.duplicateHttpResponse((HttpResponse) message);
+      }
+      HttpUtil.setTransferEncodingChunked(message, true);
+      return message;
+    }
+    if (httpObject instanceof HttpContent) {
+      boolean isLast = httpObject instanceof LastHttpContent;
+      ByteBuf content = transform(((HttpContent) httpObject).content(), isLast);
+      if (isLast) {
+        LastHttpContent lastContent = new DefaultLastHttpContent(content);
+        lastContent.trailingHeaders().set(((LastHttpContent) httpObject).trailingHeaders());
+        return lastContent;
+      }
+      if (!content.isReadable()) {
+        content.release();
+        return null;
+      }
+      return new DefaultHttpContent(content);
+    }
+    return httpObject;
+  }
+
+  private ByteBuf transform(ByteBuf content, boolean last) {
+    if (released) {
+      throw new IllegalStateException("The body has already been transformed");
+    }
+    if (content.isReadable()) {
+      pending.addComponent(true, content.retain());
+    }
+    this.last = last;
+    CompositeByteBuf out = alloc.compositeBuffer(Integer.MAX_VALUE);
+    output = out;
+    try {
+      transformer.transform(this);
+      int holdBack =
+          last ? 0 : Math.min(pending.readableBytes(), transformer.getMaximumLookahead());
+      pass(pending.readableBytes() - holdBack);
+    } catch (RuntimeException e) {
+      out.release();
+      throw e;
+    } finally {
+      output = null;
+      pending.discardReadComponents();
+      if (last) {
+        release();
+      }
+    }
+    return out;
+  }
+
+  /** Releases the input held back, when the message will not be completed. */
+  void release() {
+    if (!released) {
+      released = true;
+      pending.release();
+    }
+  }
+
+  @Override
+  public ByteBuf input() {
+    return pending.slice().asReadOnly();
+  }
+
+  @Override
+  public boolean isLast() {
+    return last;
+  }
+
+  @Override
+  public ByteBufAllocator alloc() {
+    return alloc;
+  }
+
+  @Override
+  public BodyTransformer.Editor pass(int length) {
+    CompositeByteBuf out = output();
+    checkLength(length);
+    for (ByteBuf part : pending.decompose(pending.readerIndex(), length)) {
+      out.addComponent(true, part.retain());
+    }
+    pending.skipBytes(length);
+    return this;
+  }
+
+  @Override
+  public BodyTransformer.Editor drop(int length) {
+    output();
+    checkLength(length);
+    pending.skipBytes(length);
+    return this;
+  }
+
+  @Override
+  public BodyTransformer.Editor insert(ByteBuf content) {
+    if (output == null) {
+      ReferenceCountUtil.release(content);
+    }
+    output().addComponent(true, content);
+    return this;
+  }
+
+  @Override
+  public BodyTransformer.Editor insert(CharSequence text, Charset charset) {
+    output();
+    return insert(ByteBufUtil.encodeString(alloc, CharBuffer.wrap(text), charset));
+  }
+
+  private CompositeByteBuf output() {
+    if (output == null) {
+      throw new IllegalStateException("The body can only be edited while it is being transformed");
+    }
+    return output;
+  }
+
+  private void checkLength(int length) {
+    if (length < 0 || length > pending.readableBytes()) {
+      throw new IndexOutOfBoundsException(
+          "Length " + length + " exceeds the " + pending.readableBytes() + " bytes of input left");
+    }
+  }
+}
@@ -0,0 +1,352 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.resolver.DefaultAddressResolverGroup;
+import io.netty.util.ReferenceCountUtil;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLEngine;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.ChainedProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps warm connections to chained HTTP proxies: connected, and with the TLS handshake done if
+ * the chained proxy requires encryption, so that a new CONNECT tunnel through a chained proxy only
+ * costs the CONNECT round trip.
+ *
+ * <p>The number of warm connections kept for each chained proxy follows the number of tunnels
+ * recently opened through it, up to a maximum. Warm connections that stay unused for the idle
+ * timeout are closed, and replaced if there is still demand, so that they are recycled before the
+ * chained proxy times them out.
+ */
+@NullMarked
+public class ChainedProxyConnectionPool {
+  private static final Logger LOG = LoggerFactory.getLogger(ChainedProxyConnectionPool.class);
+
+  /** Name of the handler that watches over a warm connection until it is taken from the pool. */
+  static final String WARM_CONNECTION_HANDLER_NAME = "warmConnection";
+
+  /** Length of the windows in which new tunnels are counted to size the pool. */
+  private static final long DEMAND_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final DefaultHttpProxyServer proxyServer;
+  private final int maxIdleConnectionsPerProxy;
+  private final long idleTimeoutMillis;
+  private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<>();
+  private volatile boolean closed;
+
+  private final AtomicLong totalHits = new AtomicLong();
+  private final AtomicLong totalMisses = new AtomicLong();
+  private final AtomicLong totalOpened = new AtomicLong();
+  private final AtomicLong totalRecycled = new AtomicLong();
+
+  ChainedProxyConnectionPool(
+      DefaultHttpProxyServer proxyServer, int maxIdleConnectionsPerProxy, long idleTimeoutMillis) {
+    this.proxyServer = proxyServer;
+    this.maxIdleConnectionsPerProxy = maxIdleConnectionsPerProxy;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  /**
+   * Takes a warm connection to the given chained proxy from the pool, if there is one, and opens
+   * new warm connections as needed to keep up with demand.
+   *
+   * <p>The returned channel has a handler named {@link #WARM_CONNECTION_HANDLER_NAME} in its
+   * pipeline, which the caller must replace with its own handlers, and an {@link SslHandler} named
+   * "ssl" if the chained proxy requires encryption.
+   *
+   * @return a warm connection, or null if none is available
+   */
+  @Nullable
+  Channel poll(ChainedProxy chainedProxy) {
+    if (closed) {
+      return null;
+    }
+    Pool pool = pools.computeIfAbsent(keyFor(chainedProxy), key -> new Pool());
+    Channel channel = pool.poll(chainedProxy);
+    if (channel != null) {
+      totalHits.incrementAndGet();
+    } else {
+      totalMisses.incrementAndGet();
+    }
+    return channel;
+  }
+
+  /** Closes all warm connections and stops opening new ones. */
+  void close() {
+    closed = true;
+    for (Pool pool : pools.values()) {
+      pool.closeAll();
+    }
+    pools.clear();
+  }
+
+  /** Number of warm connections currently waiting in the pool, across all chained proxies. */
+  public int getIdleConnections() {
+    int idle = 0;
+    for (Pool pool : pools.values()) {
+      idle += pool.size();
+    }
+    return idle;
+  }
+
+  /** Total number of tunnels that were opened over a warm connection. */
+  public long getTotalHits() {
+    return totalHits.get();
+  }
+
+  /** Total number of tunnels that had to open a new connection to the chained proxy. */
+  public long getTotalMisses() {
+    return totalMisses.get();
+  }
+
+  /** Total number of warm connections opened. */
+  public long getTotalOpened() {
+    return totalOpened.get();
+  }
+
+  /** Total number of warm connections closed after staying unused for the idle timeout. */
+  public long getTotalRecycled() {
+    return totalRecycled.get();
+  }
+
+  private static String keyFor(ChainedProxy chainedProxy) {
+    return chainedProxy.getChainedProxyAddress()
+        + "|"
+        + chainedProxy.getLocalAddress()
+        + "|"
+        + chainedProxy.requiresEncryption();
+  }
+
+  /** The warm connections to a single chained proxy. */
+  private final class Pool {
+    /** Guarded by {@code this}. */
+    private final Deque<Channel> idle = new ArrayDeque<>();
+
+    /** Number of warm connections being opened. Guarded by {@code this}. */
+    private int opening;
+
+    /** The chained proxy most recently asked for, used to open new connections. */
+    @Nullable private ChainedProxy chainedProxy;
+
+    private long windowStartNanos = System.nanoTime();
+    private int currentWindowDemand;
+    private int previousWindowDemand;
+
+    @Nullable
+    Channel poll(ChainedProxy chainedProxy) {
+      Channel channel;
+      synchronized (this) {
+        this.chainedProxy = chainedProxy;
+        rollDemandWindow();
+        currentWindowDemand++;
+        do {
+          channel = idle.pollFirst();
+        } while (channel != null && !channel.isActive());
+      }
+      replenish();
+      return channel;
+    }
+
+    synchronized int size() {
+      return idle.size();
+    }
+
+    /**
+     * The number of warm connections to keep: as many as tunnels were opened in the current or the
+     * previous demand window, whichever is more. Must be called while holding the lock.
+     */
+    private int targetSize() {
+      rollDemandWindow();
+      return Math.min(
+          maxIdleConnectionsPerProxy, Math.max(currentWindowDemand, previousWindowDemand));
+    }
+
+    private void rollDemandWindow() {
+      long elapsedWindows = (System.nanoTime() - windowStartNanos) / DEMAND_WINDOW_NANOS;
+      if (elapsedWindows > 0) {
+        previousWindowDemand = elapsedWindows == 1 ? currentWindowDemand : 0;
+        currentWindowDemand = 0;
+        windowStartNanos += elapsedWindows * DEMAND_WINDOW_NANOS;
+      }
+    }
+
+    private void replenish() {
+      ChainedProxy proxy;
+      int toOpen;
+      synchronized (this) {
+        proxy = chainedProxy;
+        if (closed || proxy == null) {
+          return;
+        }
+        toOpen = targetSize() - idle.size() - opening;
+        if (toOpen <= 0) {
+          return;
+        }
+        opening += toOpen;
+      }
+      for (int i = 0; i < toOpen; i++) {
+        open(proxy);
+      }
+    }
+
+    private void open(final ChainedProxy proxy) {
+      LOG.debug("Opening warm connection to chained proxy {}", proxy.getChainedProxyAddress());
+      Bootstrap cb =
+          new Bootstrap()
+              .group(proxyServer.getProxyToServerWorkerFor(proxy.getTransportProtocol()))
+              .channelFactory(
+                  proxyServer.getProxyToServerChannelFactoryFor(proxy.getTransportProtocol()))
+              .resolver(DefaultAddressResolverGroup.INSTANCE)
+              .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, proxyServer.getConnectTimeout())
+              .handler(
+                  new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                      ch.pipeline()
+                          .addLast(
+                              WARM_CONNECTION_HANDLER_NAME, new WarmConnectionHandler(Pool.this));
+                    }
+                  });
+
+      ChannelFuture connectFuture =
+          proxy.getLocalAddress() != null
+              ? cb.connect(proxy.getChainedProxyAddress(), proxy.getLocalAddress())
+              : cb.connect(proxy.getChainedProxyAddress());
+      connectFuture.addListener(
+          (ChannelFutureListener)
+              future -> {
+                if (!future.isSuccess()) {
+                  LOG.debug("Unable to open warm connection to chained proxy", future.cause());
+                  openFailed();
+                  return;
+                }
+                Channel channel = future.channel();
+                proxyServer.registerChannel(channel);
+                totalOpened.incrementAndGet();
+                if (!proxy.requiresEncryption()) {
+                  opened(channel);
+                  return;
+                }
+                InetSocketAddress address = proxy.getChainedProxyAddress();
+                SSLEngine sslEngine =
+                    proxy.newSslEngine(address.getHostString(), address.getPort());
+                if (sslEngine == null) {
+                  sslEngine = proxy.newSslEngine();
+                }
+                sslEngine.setUseClientMode(true);
+                SslHandler sslHandler = new SslHandler(sslEngine);
+                channel.pipeline().addFirst("ssl", sslHandler);
+                sslHandler
+                    .handshakeFuture()
+                    .addListener(
+                        handshake -> {
+                          if (handshake.isSuccess()) {
+                            opened(channel);
+                          } else {
+                            LOG.debug(
+                                "TLS handshake with chained proxy failed on warm connection",
+                                handshake.cause());
+                            channel.close();
+                            openFailed();
+                          }
+                        });
+              });
+    }
+
+    private void opened(final Channel channel) {
+      synchronized (this) {
+        opening--;
+        if (!closed && channel.isActive()) {
+          idle.addLast(channel);
+          channel
+              .eventLoop()
+              .schedule(() -> recycle(channel), idleTimeoutMillis, TimeUnit.MILLISECONDS);
+          return;
+        }
+      }
+      channel.close();
+    }
+
+    private synchronized void openFailed() {
+      opening--;
+    }
+
+    /** Closes a warm connection that stayed unused for the idle timeout, replacing it if needed. */
+    private void recycle(Channel channel) {
+      if (remove(channel)) {
+        LOG.debug("Recycling unused warm connection to chained proxy");
+        totalRecycled.incrementAndGet();
+        channel.close();
+        replenish();
+      }
+    }
+
+    synchronized boolean remove(Channel channel) {
+      return idle.remove(channel);
+    }
+
+    void closeAll() {
+      List<Channel> channels;
+      synchronized (this) {
+        channels = new ArrayList<>(idle);
+        idle.clear();
+      }
+      for (Channel channel : channels) {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Removes a warm connection from the pool if it is closed by the chained proxy. Chained proxies
+   * don't send anything before the CONNECT request, so any data received means the connection is
+   * not usable.
+   */
+  private static final class WarmConnectionHandler extends ChannelInboundHandlerAdapter {
+    private final Pool pool;
+
+    WarmConnectionHandler(Pool pool) {
+      this.pool = pool;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      pool.remove(ctx.channel());
+      super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      ReferenceCountUtil.release(msg);
+      LOG.debug("Unexpected data on warm connection to chained proxy, closing it");
+      pool.remove(ctx.channel());
+      ctx.close();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      LOG.debug("Error on warm connection to chained proxy, closing it", cause);
+      pool.remove(ctx.channel());
+      ctx.close();
+    }
+  }
+}
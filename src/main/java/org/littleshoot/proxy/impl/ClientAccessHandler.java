@@ -0,0 +1,154 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.ClientAccessList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the source address in the PROXY protocol header of a new client connection against the
+ * {@link ClientAccessList}, when the proxy accepts the PROXY protocol. It follows the {@link
+ * io.netty.handler.codec.haproxy.HAProxyMessageDecoder} in an otherwise empty pipeline: denied
+ * connections are closed right away, and allowed ones are handed to a new {@link
+ * ClientToProxyConnection}, which sets up the rest of the pipeline, followed by the bytes read
+ * after the header.
+ */
+@NullMarked
+final class ClientAccessHandler extends ChannelInboundHandlerAdapter {
+  private static final Logger LOG = LoggerFactory.getLogger(ClientAccessHandler.class);
+
+  static final String NAME = "clientAccess";
+
+  private final DefaultHttpProxyServer proxyServer;
+  @Nullable private HAProxyMessage header;
+  @Nullable private ScheduledFuture<?> timeout;
+
+  ClientAccessHandler(DefaultHttpProxyServer proxyServer) {
+    this.proxyServer = proxyServer;
+  }
+
+  /** Returns whether the client at the given address is allowed by the list. */
+  static boolean isAllowed(ClientAccessList accessList, @Nullable SocketAddress address) {
+    return address instanceof InetSocketAddress
+        && ((InetSocketAddress) address).getAddress() != null
+        && accessList.isAllowed(((InetSocketAddress) address).getAddress());
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) {
+    // don't let clients that never send the header hold on to the connection
+    long idleTimeoutMillis = proxyServer.getIdleConnectionTimeout() * 1000L;
+    if (idleTimeoutMillis > 0) {
+      timeout =
+          ctx.executor()
+              .schedule(
+                  () -> {
+                    LOG.debug("No PROXY protocol header from {}", ctx.channel().remoteAddress());
+                    ctx.close();
+                  },
+                  idleTimeoutMillis,
+                  TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+    if (header == null && msg instanceof HAProxyMessage) {
+      HAProxyMessage message = (HAProxyMessage) msg;
+      if (!isAllowed(ctx, message)) {
+        LOG.debug(
+            "Rejected connection from {} through {}",
+            message.sourceAddress(),
+            ctx.channel().remoteAddress());
+        message.release();
+        proxyServer.recordRejectedConnection();
+        ctx.close();
+        return;
+      }
+      // the decoder removes itself once it has read the header, and passes the bytes that
+      // followed the header on to this handler, so the connection is set up after that
+      header = message;
+    } else if (header != null) {
+      handOver(ctx, header);
+      ctx.pipeline().fireChannelRead(msg);
+    } else {
+      ReferenceCountUtil.release(msg);
+    }
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) {
+    if (header != null) {
+      handOver(ctx, header);
+    }
+    ctx.fireChannelReadComplete();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    cancelTimeout();
+    if (header != null) {
+      header.release();
+      header = null;
+    }
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+    LOG.debug(
+        "Unable to read PROXY protocol header from {}", ctx.channel().remoteAddress(), cause);
+    ctx.close();
+  }
+
+  private boolean isAllowed(ChannelHandlerContext ctx, HAProxyMessage message) {
+    ClientAccessList accessList = proxyServer.getClientAccessList();
+    if (accessList == null) {
+      return true;
+    }
+    if (message.command() == HAProxyCommand.LOCAL || message.sourceAddress() == null) {
+      // health checks from the load balancer itself, which carry no client address
+      return isAllowed(accessList, ctx.channel().remoteAddress());
+    }
+    byte[] address = NetUtil.createByteArrayFromIpAddressString(message.sourceAddress());
+    if (address == null) {
+      return false;
+    }
+    try {
+      return accessList.isAllowed(InetAddress.getByAddress(address));
+    } catch (UnknownHostException e) {
+      return false;
+    }
+  }
+
+  /** Replaces this handler with a new client connection, which takes the header. */
+  private void handOver(ChannelHandlerContext ctx, HAProxyMessage message) {
+    header = null;
+    cancelTimeout();
+    ctx.pipeline().remove(this);
+    ClientToProxyConnection connection =
+        proxyServer.newClientToProxyConnection(ctx.pipeline(), false);
+    connection.adoptChannel(ctx.pipeline().context(connection));
+    connection.readHAProxyMessage(message);
+  }
+
+  private void cancelTimeout() {
+    if (timeout != null) {
+      timeout.cancel(false);
+      timeout = null;
+    }
+  }
+}
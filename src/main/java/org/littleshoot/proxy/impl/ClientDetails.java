@@ -1,6 +1,8 @@
 package org.littleshoot.proxy.impl;
 
 import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
 
 /** Contains information about the client. */
 public class ClientDetails {
@@ -11,6 +13,15 @@ public class ClientDetails {
   /** The client's address */
   private volatile InetSocketAddress clientAddress;
 
+  /**
+   * The server name (SNI) of the TLS ClientHello the client sent through its CONNECT tunnel, or
+   * null if the ClientHello wasn't peeked at or had none.
+   */
+  private volatile String serverName;
+
+  /** The ALPN protocols offered in the TLS ClientHello the client sent, if it was peeked at. */
+  private volatile List<String> applicationProtocols = Collections.emptyList();
+
   public String getUserName() {
     return userName;
   }
@@ -26,4 +37,20 @@ public class ClientDetails {
   void setClientAddress(InetSocketAddress clientAddress) {
     this.clientAddress = clientAddress;
   }
+
+  public String getServerName() {
+    return serverName;
+  }
+
+  void setServerName(String serverName) {
+    this.serverName = serverName;
+  }
+
+  public List<String> getApplicationProtocols() {
+    return applicationProtocols;
+  }
+
+  void setApplicationProtocols(List<String> applicationProtocols) {
+    this.applicationProtocols = applicationProtocols;
+  }
 }
@@ -0,0 +1,228 @@
+package org.littleshoot.proxy.impl;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * What the proxy learns from the TLS ClientHello a client sends through its CONNECT tunnel: the
+ * host name of its server_name (SNI) extension and the protocols of its
+ * application_layer_protocol_negotiation (ALPN) extension. The ClientHello is parsed in place from
+ * the TLS records received so far, which may split it in several records.
+ */
+@NullMarked
+final class ClientHello {
+  /** The bytes received from a client that doesn't start with a TLS ClientHello. */
+  static final ClientHello NOT_TLS = new ClientHello(false, null, Collections.emptyList());
+
+  private static final int RECORD_HEADER_LENGTH = 5;
+  private static final int HANDSHAKE_HEADER_LENGTH = 4;
+  private static final int CONTENT_TYPE_HANDSHAKE = 0x16;
+  private static final int HANDSHAKE_TYPE_CLIENT_HELLO = 1;
+  private static final int EXTENSION_SERVER_NAME = 0x0000;
+  private static final int EXTENSION_ALPN = 0x0010;
+  private static final int SERVER_NAME_TYPE_HOST_NAME = 0;
+
+  /** The longest ClientHello we wait for, far longer than those browsers send. */
+  static final int MAX_LENGTH = 64 * 1024;
+
+  private final boolean tls;
+  @Nullable private final String serverName;
+  private final List<String> applicationProtocols;
+
+  private ClientHello(
+      boolean tls, @Nullable String serverName, List<String> applicationProtocols) {
+    this.tls = tls;
+    this.serverName = serverName;
+    this.applicationProtocols = applicationProtocols;
+  }
+
+  /** Returns whether the given bytes, received from a client, start a TLS handshake. */
+  static boolean startsTlsHandshake(ByteBuf bytes) {
+    return bytes.isReadable()
+        && bytes.getUnsignedByte(bytes.readerIndex()) == CONTENT_TYPE_HANDSHAKE;
+  }
+
+  /**
+   * Parses the ClientHello at the start of the given bytes, without moving their reader index.
+   *
+   * @return the ClientHello, {@link #NOT_TLS} if the bytes don't start with one, or null if more
+   *     bytes are needed to tell
+   */
+  @Nullable
+  static ClientHello parse(ByteBuf bytes) {
+    if (!bytes.isReadable()) {
+      return null;
+    }
+    if (!startsTlsHandshake(bytes)) {
+      return NOT_TLS;
+    }
+    // the handshake message may be split over several records, in which case their fragments are
+    // copied together
+    List<ByteBuf> fragments = new ArrayList<>(1);
+    int handshakeLength = -1;
+    int received = 0;
+    int offset = bytes.readerIndex();
+    while (handshakeLength < 0 || received < handshakeLength) {
+      if (bytes.writerIndex() - offset < RECORD_HEADER_LENGTH) {
+        return null;
+      }
+      if (bytes.getUnsignedByte(offset) != CONTENT_TYPE_HANDSHAKE
+          || bytes.getUnsignedByte(offset + 1) != 3) {
+        return NOT_TLS;
+      }
+      int recordLength = bytes.getUnsignedShort(offset + 3);
+      if (recordLength == 0) {
+        return NOT_TLS;
+      }
+      if (bytes.writerIndex() - offset - RECORD_HEADER_LENGTH < recordLength) {
+        return null;
+      }
+      fragments.add(bytes.slice(offset + RECORD_HEADER_LENGTH, recordLength));
+      received += recordLength;
+      offset += RECORD_HEADER_LENGTH + recordLength;
+      if (handshakeLength < 0 && received >= HANDSHAKE_HEADER_LENGTH) {
+        ByteBuf header = fragments.size() == 1 ? fragments.get(0) : join(fragments);
+        if (header.getUnsignedByte(header.readerIndex()) != HANDSHAKE_TYPE_CLIENT_HELLO) {
+          return NOT_TLS;
+        }
+        handshakeLength =
+            HANDSHAKE_HEADER_LENGTH + header.getUnsignedMedium(header.readerIndex() + 1);
+        if (handshakeLength > MAX_LENGTH) {
+          return NOT_TLS;
+        }
+      }
+    }
+    ByteBuf handshake = fragments.size() == 1 ? fragments.get(0) : join(fragments);
+    return parseClientHello(handshake.slice(handshake.readerIndex(), handshakeLength));
+  }
+
+  private static ByteBuf join(List<ByteBuf> fragments) {
+    int length = 0;
+    for (ByteBuf fragment : fragments) {
+      length += fragment.readableBytes();
+    }
+    byte[] joined = new byte[length];
+    int offset = 0;
+    for (ByteBuf fragment : fragments) {
+      fragment.getBytes(fragment.readerIndex(), joined, offset, fragment.readableBytes());
+      offset += fragment.readableBytes();
+    }
+    return Unpooled.wrappedBuffer(joined);
+  }
+
+  /** Parses a whole ClientHello handshake message, header included. */
+  private static ClientHello parseClientHello(ByteBuf message) {
+    // msg_type, length, legacy_version and random
+    int skipped = HANDSHAKE_HEADER_LENGTH + 2 + 32;
+    if (message.readableBytes() < skipped) {
+      return NOT_TLS;
+    }
+    message.skipBytes(skipped);
+    if (!skipVector(message, 1) || !skipVector(message, 2) || !skipVector(message, 1)) {
+      return NOT_TLS;
+    }
+    String serverName = null;
+    List<String> applicationProtocols = Collections.emptyList();
+    if (message.readableBytes() < 2) {
+      // a ClientHello without extensions
+      return new ClientHello(true, null, applicationProtocols);
+    }
+    ByteBuf extensions = readVector(message, 2);
+    if (extensions == null) {
+      return NOT_TLS;
+    }
+    while (extensions.isReadable()) {
+      if (extensions.readableBytes() < 2) {
+        return NOT_TLS;
+      }
+      int type = extensions.readUnsignedShort();
+      ByteBuf extension = readVector(extensions, 2);
+      if (extension == null) {
+        return NOT_TLS;
+      }
+      if (type == EXTENSION_SERVER_NAME) {
+        serverName = parseServerName(extension);
+      } else if (type == EXTENSION_ALPN) {
+        applicationProtocols = parseApplicationProtocols(extension);
+      }
+    }
+    return new ClientHello(true, serverName, applicationProtocols);
+  }
+
+  @Nullable
+  private static String parseServerName(ByteBuf extension) {
+    ByteBuf names = readVector(extension, 2);
+    while (names != null && names.isReadable()) {
+      int nameType = names.readUnsignedByte();
+      ByteBuf name = readVector(names, 2);
+      if (name != null && nameType == SERVER_NAME_TYPE_HOST_NAME && name.isReadable()) {
+        return name.toString(US_ASCII);
+      }
+    }
+    return null;
+  }
+
+  private static List<String> parseApplicationProtocols(ByteBuf extension) {
+    ByteBuf protocols = readVector(extension, 2);
+    List<String> applicationProtocols = new ArrayList<>(2);
+    while (protocols != null && protocols.isReadable()) {
+      ByteBuf protocol = readVector(protocols, 1);
+      if (protocol != null) {
+        applicationProtocols.add(protocol.toString(US_ASCII));
+      }
+    }
+    return Collections.unmodifiableList(applicationProtocols);
+  }
+
+  /**
+   * Reads a vector with a length prefix of the given number of bytes, or returns null if the
+   * buffer is too short for it, leaving the buffer exhausted.
+   */
+  @Nullable
+  private static ByteBuf readVector(ByteBuf buffer, int lengthBytes) {
+    if (buffer.readableBytes() < lengthBytes) {
+      buffer.skipBytes(buffer.readableBytes());
+      return null;
+    }
+    int length = lengthBytes == 1 ? buffer.readUnsignedByte() : buffer.readUnsignedShort();
+    if (buffer.readableBytes() < length) {
+      buffer.skipBytes(buffer.readableBytes());
+      return null;
+    }
+    return buffer.readSlice(length);
+  }
+
+  private static boolean skipVector(ByteBuf buffer, int lengthBytes) {
+    return readVector(buffer, lengthBytes) != null;
+  }
+
+  /** Returns whether the client started a TLS handshake, with a ClientHello we could parse. */
+  boolean isTls() {
+    return tls;
+  }
+
+  /** Returns the host name the client sent in its server_name extension, if any. */
+  @Nullable
+  String serverName() {
+    return serverName;
+  }
+
+  /** Returns the protocols the client offered in its ALPN extension, in its order of preference. */
+  List<String> applicationProtocols() {
+    return applicationProtocols;
+  }
+
+  @Override
+  public String toString() {
+    return tls
+        ? "ClientHello{serverName=" + serverName + ", alpn=" + applicationProtocols + "}"
+        : "ClientHello{not TLS}";
+  }
+}
@@ -0,0 +1,117 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Holds back what a client sends through its CONNECT tunnel until it shows whether, and for which
+ * server, the client starts a TLS handshake. Sits in front of every handler of the client pipeline
+ * but the one decrypting the client's own TLS connection to the proxy, if any, so that the held
+ * bytes can be handed on from the same place once the tunnel is set up, to whichever handlers then
+ * follow. Clients that send nothing within the timeout, such as those of protocols where the server
+ * speaks first, are taken not to use TLS.
+ */
+@NullMarked
+final class ClientHelloPeeker extends ChannelInboundHandlerAdapter {
+  static final String NAME = "clientHelloPeeker";
+
+  @Nullable private final String previousHandlerName;
+  private final long timeoutMillis;
+  private final Consumer<ClientHello> listener;
+  @Nullable private CompositeByteBuf held;
+  @Nullable private ScheduledFuture<?> timeout;
+  private boolean peeked;
+
+  /**
+   * @param previousHandlerName the name of the handler this one is added after, or null if it is
+   *     added first
+   * @param timeoutMillis how long to wait for the ClientHello
+   * @param listener told on the event loop what the client sent, once, after which the bytes are
+   *     held until {@link #takeHeldBytes()}
+   */
+  ClientHelloPeeker(
+      @Nullable String previousHandlerName, long timeoutMillis, Consumer<ClientHello> listener) {
+    this.previousHandlerName = previousHandlerName;
+    this.timeoutMillis = timeoutMillis;
+    this.listener = listener;
+  }
+
+  @Nullable
+  String getPreviousHandlerName() {
+    return previousHandlerName;
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) {
+    held = ctx.alloc().compositeBuffer(Integer.MAX_VALUE);
+    timeout =
+        ctx.executor()
+            .schedule(() -> peeked(ClientHello.NOT_TLS), timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+    CompositeByteBuf bytes = held;
+    if (!(msg instanceof ByteBuf) || bytes == null) {
+      ctx.fireChannelRead(msg);
+      return;
+    }
+    bytes.addComponent(true, (ByteBuf) msg);
+    if (!peeked) {
+      ClientHello clientHello = ClientHello.parse(bytes);
+      if (clientHello != null) {
+        peeked(clientHello);
+      } else if (bytes.readableBytes() > 2 * ClientHello.MAX_LENGTH) {
+        peeked(ClientHello.NOT_TLS);
+      }
+    }
+  }
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) {
+    if (held == null) {
+      ctx.fireChannelReadComplete();
+    }
+  }
+
+  private void peeked(ClientHello clientHello) {
+    if (peeked) {
+      return;
+    }
+    peeked = true;
+    if (timeout != null) {
+      timeout.cancel(false);
+    }
+    listener.accept(clientHello);
+  }
+
+  /**
+   * Takes the bytes held so far, which the caller must release. Bytes read afterwards are passed
+   * on, so this is called right before removing the handler.
+   */
+  ByteBuf takeHeldBytes() {
+    CompositeByteBuf bytes = held;
+    held = null;
+    return bytes == null ? Unpooled.EMPTY_BUFFER : bytes;
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    peeked = true;
+    if (timeout != null) {
+      timeout.cancel(false);
+    }
+    if (held != null) {
+      held.release();
+      held = null;
+    }
+  }
+}
@@ -7,15 +7,20 @@ import static java.util.Objects.requireNonNullElse;
 import static java.util.Optional.ofNullable;
 import static org.littleshoot.proxy.HttpFiltersAdapter.NOOP_FILTER;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CHUNK;
+import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_DEFERRED_RESPONSE;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_INITIAL;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_PROXY_AUTHENTICATION;
 import static org.littleshoot.proxy.impl.ConnectionState.DISCONNECT_REQUESTED;
 import static org.littleshoot.proxy.impl.ConnectionState.NEGOTIATING_CONNECT;
 
+import com.google.common.net.HostAndPort;
 import com.google.errorprone.annotations.CheckReturnValue;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.haproxy.HAProxyMessage;
 import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
@@ -36,8 +41,10 @@ import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.ReferenceCounted;
 import io.netty.util.concurrent.Future;
 import java.io.IOException;
@@ -45,15 +52,21 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 import java.util.regex.Pattern;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSession;
@@ -62,13 +75,18 @@ import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.NullMarked;
 import org.jspecify.annotations.Nullable;
 import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.AsyncHttpFilters;
+import org.littleshoot.proxy.BodyInspector;
+import org.littleshoot.proxy.BodyTransformer;
 import org.littleshoot.proxy.ChainedProxy;
 import org.littleshoot.proxy.ChainedProxyType;
 import org.littleshoot.proxy.FlowContext;
 import org.littleshoot.proxy.FullFlowContext;
 import org.littleshoot.proxy.HttpFilters;
 import org.littleshoot.proxy.ProxyAuthenticator;
+import org.littleshoot.proxy.RequestBufferingPolicy;
 import org.littleshoot.proxy.SslEngineSource;
+import org.littleshoot.proxy.StreamedHttpResponse;
 
 /**
  * Represents a connection from a client to our proxy. Each ClientToProxyConnection can have
@@ -96,6 +114,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
   private static final String HTTP_REQUEST_READ_MONITOR_NAME = "requestReadMonitor";
   private static final String HTTP_RESPONSE_WRITTEN_MONITOR_NAME = "responseWrittenMonitor";
   private static final String MAIN_HANDLER_NAME = "handler";
+  private static final String SSL_HANDLER_NAME = "ssl";
+
+  /** How long to wait for the TLS ClientHello of a CONNECT tunnel, when peeking at it. */
+  private static final long CLIENT_HELLO_TIMEOUT_MILLIS = 2000;
 
   /** Used for case-insensitive comparisons when checking direct proxy request. */
   private static final Pattern ABSOLUTE_URI_PATTERN =
@@ -149,16 +171,77 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
   private final ClientDetails clientDetails = new ClientDetails();
 
+  /**
+   * Messages read from the client while waiting for a deferred response, to be handled once it has
+   * been sent. Only accessed on the event loop.
+   */
+  private final Queue<HttpObject> heldMessages = new ArrayDeque<>();
+
+  /** The short-circuit response whose body is still being streamed, if any. */
+  @Nullable private StreamedHttpResponse streamingResponse;
+
+  /** The filters of the request whose body is being aggregated for them, if any. */
+  @Nullable private HttpFilters requestAggregationFilters;
+
+  /**
+   * When the body of the request being aggregated started to be received, if it is buffered
+   * because of the {@link RequestBufferingPolicy}, or else 0.
+   */
+  private long requestBufferingStartedNanos;
+
+  /** Transforms the body of the request being sent to the server, if its filters asked to. */
+  @Nullable private BodyTransformation requestBodyTransformation;
+
+  /** Transforms the body of the response being sent to the client, if its filters asked to. */
+  @Nullable private BodyTransformation responseBodyTransformation;
+
+  /** Gives the filters of the response being sent to the client a decoded view of its body. */
+  @Nullable private BodyInspection responseBodyInspection;
+
+  /** Buffers responses to the client when it reads slowly, if the proxy is configured to. */
+  @Nullable private ResponseBufferHandler responseBuffer;
+
+  /**
+   * The TLS ClientHello the client sent through its CONNECT tunnel, once peeked at to check it
+   * against the MITM bypass rules.
+   */
+  @Nullable private volatile ClientHello clientHello;
+
+  /** Whether the tunnel {@link #clientHello} was peeked at in is to be man in the middled. */
+  private volatile boolean clientHelloIntercepted;
+
   ClientToProxyConnection(
       final DefaultHttpProxyServer proxyServer,
       @Nullable SslEngineSource sslEngineSource,
       boolean authenticateClients,
       ChannelPipeline pipeline,
       GlobalTrafficShapingHandler globalTrafficShapingHandler) {
+    this(
+        proxyServer,
+        sslEngineSource,
+        authenticateClients,
+        pipeline,
+        globalTrafficShapingHandler,
+        proxyServer.isAcceptProxyProtocol());
+  }
+
+  /**
+   * Creates a connection for a client channel.
+   *
+   * @param readProxyProtocolHeader whether to read a PROXY protocol header first. It is false when
+   *     the header has already been read by a {@link ClientAccessHandler}.
+   */
+  ClientToProxyConnection(
+      final DefaultHttpProxyServer proxyServer,
+      @Nullable SslEngineSource sslEngineSource,
+      boolean authenticateClients,
+      ChannelPipeline pipeline,
+      GlobalTrafficShapingHandler globalTrafficShapingHandler,
+      boolean readProxyProtocolHeader) {
     super(AWAITING_INITIAL, proxyServer, false);
     this.clientFlowContext = new FlowContext(this);
 
-    initChannelPipeline(pipeline, sslEngineSource, authenticateClients);
+    initChannelPipeline(pipeline, sslEngineSource, authenticateClients, readProxyProtocolHeader);
 
     this.globalTrafficShapingHandler = globalTrafficShapingHandler;
 
@@ -180,6 +263,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
   ConnectionState readHTTPInitial(HttpRequest httpRequest) {
     LOG.debug("Received raw request: {}", httpRequest);
 
+    if (requestAggregationFilters != null) {
+      return readAggregatedRequest(httpRequest);
+    }
+
     // Earliest point to report connected for connections with no PROXY header (guarded; no-op if
     // already fired).
     recordClientConnected();
@@ -232,23 +319,155 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         proxyServer.getFiltersSource().filterRequest(requireNonNull(currentRequest), ctx);
     currentFilters = requireNonNullElse(filterInstance, NOOP_FILTER);
 
+    if (!(httpRequest instanceof FullHttpRequest) && !ProxyUtils.isCONNECT(httpRequest)) {
+      int bytesToBuffer = currentFilters.getMaximumRequestBufferSizeInBytes(httpRequest);
+      int bytesToBufferForServer = requestBufferSize(httpRequest);
+      if (bytesToBuffer > 0 || bytesToBufferForServer > 0) {
+        LOG.debug("Aggregating the body of {} before sending it on", httpRequest.uri());
+        requestAggregationFilters = currentFilters;
+        requestBufferingStartedNanos = bytesToBufferForServer > 0 ? System.nanoTime() : 0;
+        aggregateMessage(
+            httpRequest,
+            Math.max(bytesToBuffer, bytesToBufferForServer),
+            () -> {
+              requestAggregationFilters = null;
+              requestBufferingStartedNanos = 0;
+            });
+        return AWAITING_INITIAL;
+      }
+    }
+    return filterRequest(httpRequest);
+  }
+
+  /**
+   * Returns the maximum length of the body of the given request to receive before sending it on,
+   * according to the {@link RequestBufferingPolicy}, or 0 to stream it.
+   */
+  private int requestBufferSize(HttpRequest httpRequest) {
+    RequestBufferingPolicy policy = proxyServer.getRequestBufferingPolicy();
+    if (policy == null || !BodyTransformation.hasBody(httpRequest)) {
+      return 0;
+    }
+    return policy.getMaximumBufferSizeInBytes(httpRequest);
+  }
+
+  /**
+   * Continues with a request whose body has been aggregated for the filters created when its
+   * headers were read.
+   */
+  private ConnectionState readAggregatedRequest(HttpRequest httpRequest) {
+    currentFilters = requireNonNull(requestAggregationFilters);
+    requestAggregationFilters = null;
+    stopAggregatingMessage();
+    if (requestBufferingStartedNanos != 0) {
+      proxyServer.recordBufferedRequest(System.nanoTime() - requestBufferingStartedNanos);
+      requestBufferingStartedNanos = 0;
+    }
+    return filterRequest(httpRequest);
+  }
+
+  private ConnectionState filterRequest(HttpRequest httpRequest) {
     // Send the request through the clientToProxyRequest filter, and respond with the short-circuit
     // response if required
-    HttpResponse clientToProxyFilterResponse = currentFilters.clientToProxyRequest(httpRequest);
+    if (currentFilters instanceof AsyncHttpFilters) {
+      CompletableFuture<@Nullable HttpResponse> filterResponse =
+          ((AsyncHttpFilters) currentFilters)
+              .clientToProxyRequestAsync(httpRequest)
+              .toCompletableFuture();
+      if (!filterResponse.isDone()) {
+        return awaitFilterResponse(
+            httpRequest, filterResponse, this::continueWithClientToProxyFilterResponse);
+      }
+      try {
+        return continueWithClientToProxyFilterResponse(httpRequest, filterResponse.join());
+      } catch (CompletionException | CancellationException e) {
+        return filterFailed(httpRequest, e);
+      }
+    }
+    return continueWithClientToProxyFilterResponse(
+        httpRequest, currentFilters.clientToProxyRequest(httpRequest));
+  }
 
+  /**
+   * Waits for an {@link AsyncHttpFilters} to decide on the response to a request, holding any
+   * messages read from the client in the meantime, then continues processing the request on the
+   * event loop.
+   */
+  private ConnectionState awaitFilterResponse(
+      HttpRequest httpRequest,
+      CompletableFuture<@Nullable HttpResponse> filterResponse,
+      BiFunction<HttpRequest, @Nullable HttpResponse, ConnectionState> continuation) {
+    LOG.debug("Waiting for filter to decide on the response to {}", httpRequest.uri());
+    stopReading();
+    HttpFilters filters = currentFilters;
+    // an aggregated request would otherwise be released once read
+    ReferenceCountUtil.retain(httpRequest);
+    filterResponse.whenComplete(
+        (response, failure) ->
+            channel
+                .eventLoop()
+                .execute(
+                    () -> filterResponded(filters, httpRequest, response, failure, continuation)));
+    return AWAITING_DEFERRED_RESPONSE;
+  }
+
+  private void filterResponded(
+      HttpFilters filters,
+      HttpRequest httpRequest,
+      @Nullable HttpResponse response,
+      @Nullable Throwable failure,
+      BiFunction<HttpRequest, @Nullable HttpResponse, ConnectionState> continuation) {
+    try {
+      if (currentFilters != filters || !is(AWAITING_DEFERRED_RESPONSE)) {
+        LOG.debug("Dropping response to {}: the client went away", httpRequest.uri());
+        if (response instanceof StreamedHttpResponse) {
+          ((StreamedHttpResponse) response).releaseBody();
+        }
+        return;
+      }
+      resumeReading();
+      become(
+          failure == null
+              ? continuation.apply(httpRequest, response)
+              : filterFailed(httpRequest, failure));
+    } finally {
+      ReferenceCountUtil.release(httpRequest);
+    }
+    readHeldMessages();
+  }
+
+  private ConnectionState filterFailed(HttpRequest httpRequest, Throwable failure) {
+    LOG.warn("Filter failed to handle request " + httpRequest.uri(), failure);
+    return writeBadGateway(httpRequest) ? AWAITING_INITIAL : DISCONNECT_REQUESTED;
+  }
+
+  /**
+   * Responds with the short-circuit response returned by the clientToProxyRequest filter, if any,
+   * or else forwards the request to the server.
+   */
+  private ConnectionState continueWithClientToProxyFilterResponse(
+      HttpRequest httpRequest, @Nullable HttpResponse clientToProxyFilterResponse) {
     if (clientToProxyFilterResponse != null) {
       LOG.debug(
           "Responding to client with short-circuit response from filter: {}",
           clientToProxyFilterResponse);
 
       boolean keepAlive = respondWithShortCircuitResponse(clientToProxyFilterResponse);
-      if (keepAlive) {
-        return AWAITING_INITIAL;
-      } else {
+      if (!keepAlive) {
         return DISCONNECT_REQUESTED;
+      } else if (streamingResponse != null) {
+        // hold on to further requests until the body has been sent
+        stopReading();
+        return AWAITING_DEFERRED_RESPONSE;
+      } else {
+        return AWAITING_INITIAL;
       }
     }
+    return forwardRequest(httpRequest);
+  }
 
+  /** Sends a request that was not short-circuited by the clientToProxyRequest filter. */
+  private ConnectionState forwardRequest(HttpRequest httpRequest) {
     // if origin-form requests are not explicitly enabled, short-circuit requests that treat the
     // proxy as the
     // origin server, to avoid infinite loops
@@ -271,6 +490,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
       return keepAlive ? AWAITING_INITIAL : DISCONNECT_REQUESTED;
     }
 
+    if (ProxyUtils.isCONNECT(httpRequest) && clientHello == null && shouldPeekClientHello()) {
+      return peekClientHello(httpRequest);
+    }
+
     LOG.debug("Finding ProxyToServerConnection for: {}", serverHostAndPort);
     if (!isMitming() && !isTunneling()) {
       currentServerConnection = serverConnectionsByHostAndPort.get(serverHostAndPort);
@@ -299,7 +522,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                 globalTrafficShapingHandler);
         if (currentServerConnection == null) {
           LOG.debug("Unable to create server connection, probably no chained proxies available");
-          boolean keepAlive = writeBadGateway(httpRequest);
+          boolean keepAlive = respondToFailedRequest(badGatewayResponse(httpRequest));
           resumeReading();
           if (keepAlive) {
             return AWAITING_INITIAL;
@@ -307,12 +530,17 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             return DISCONNECT_REQUESTED;
           }
         }
+        ClientHello peekedClientHello = clientHello;
+        if (peekedClientHello != null && ProxyUtils.isCONNECT(httpRequest)) {
+          requireNonNull(currentServerConnection)
+              .clientHelloPeeked(peekedClientHello, clientHelloIntercepted);
+        }
         // Remember the connection for later
         serverConnectionsByHostAndPort.put(
             serverHostAndPort, requireNonNull(currentServerConnection));
       } catch (UnknownHostException uhe) {
         LOG.info("Bad Host {}", httpRequest.uri());
-        boolean keepAlive = writeBadGateway(httpRequest);
+        boolean keepAlive = respondToFailedRequest(badGatewayResponse(httpRequest));
         resumeReading();
         if (keepAlive) {
           return AWAITING_INITIAL;
@@ -327,7 +555,141 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
     modifyRequestHeadersToReflectProxying(httpRequest);
 
-    HttpResponse proxyToServerFilterResponse = currentFilters.proxyToServerRequest(httpRequest);
+    // Send the request through the proxyToServerRequest filter, which may still short-circuit it
+    if (currentFilters instanceof AsyncHttpFilters) {
+      CompletableFuture<@Nullable HttpResponse> filterResponse =
+          ((AsyncHttpFilters) currentFilters)
+              .proxyToServerRequestAsync(httpRequest)
+              .toCompletableFuture();
+      if (!filterResponse.isDone()) {
+        return awaitFilterResponse(
+            httpRequest, filterResponse, this::continueWithProxyToServerFilterResponse);
+      }
+      try {
+        return continueWithProxyToServerFilterResponse(httpRequest, filterResponse.join());
+      } catch (CompletionException | CancellationException e) {
+        return filterFailed(httpRequest, e);
+      }
+    }
+    return continueWithProxyToServerFilterResponse(
+        httpRequest, currentFilters.proxyToServerRequest(httpRequest));
+  }
+
+  /**
+   * Returns whether to peek at the TLS ClientHello of a CONNECT tunnel before connecting upstream,
+   * which is only worth it when the tunnel would otherwise be man in the middled.
+   */
+  private boolean shouldPeekClientHello() {
+    return proxyServer.getMitmBypassRules() != null
+        && proxyServer.getMitmManager() != null
+        && !isMitming()
+        && !isTunneling()
+        && currentFilters.proxyToServerAllowMitm();
+  }
+
+  /**
+   * Answers the CONNECT right away and holds back what the client then sends, until it shows
+   * whether and for which server the client starts a TLS handshake. The CONNECT is then forwarded
+   * by {@link #clientHelloPeeked}, and the held bytes are handed on by {@link
+   * #replayPeekedClientHello()} once the tunnel is set up.
+   */
+  private ConnectionState peekClientHello(HttpRequest httpRequest) {
+    LOG.debug("Peeking at the ClientHello sent through the tunnel to {}", httpRequest.uri());
+    HttpFilters filters = currentFilters;
+    ReferenceCountUtil.retain(httpRequest);
+    ChannelPipeline pipeline = channel.pipeline();
+    String previousHandlerName = pipeline.get(SSL_HANDLER_NAME) != null ? SSL_HANDLER_NAME : null;
+    ClientHelloPeeker peeker =
+        new ClientHelloPeeker(
+            previousHandlerName,
+            CLIENT_HELLO_TIMEOUT_MILLIS,
+            peeked -> clientHelloPeeked(filters, httpRequest, peeked));
+    if (previousHandlerName == null) {
+      pipeline.addFirst(ClientHelloPeeker.NAME, peeker);
+    } else {
+      pipeline.addAfter(previousHandlerName, ClientHelloPeeker.NAME, peeker);
+    }
+    writeConnectEstablished();
+    return AWAITING_DEFERRED_RESPONSE;
+  }
+
+  private void clientHelloPeeked(
+      HttpFilters filters, HttpRequest httpRequest, ClientHello peekedClientHello) {
+    try {
+      if (currentFilters != filters || !is(AWAITING_DEFERRED_RESPONSE)) {
+        LOG.debug("Dropping ClientHello sent to {}: the client went away", httpRequest.uri());
+        return;
+      }
+      LOG.debug("Peeked at {} sent through the tunnel to {}", peekedClientHello, httpRequest.uri());
+      clientHello = peekedClientHello;
+      clientHelloIntercepted = shouldInterceptTunnel(httpRequest, peekedClientHello);
+      clientDetails.setServerName(peekedClientHello.serverName());
+      clientDetails.setApplicationProtocols(peekedClientHello.applicationProtocols());
+      become(forwardRequest(httpRequest));
+    } finally {
+      ReferenceCountUtil.release(httpRequest);
+    }
+    readHeldMessages();
+  }
+
+  /**
+   * Decides whether to man in the middle the tunnel the given ClientHello was sent through: only
+   * TLS connections to hosts the MITM bypass rules don't block are, if the filters allow it.
+   */
+  private boolean shouldInterceptTunnel(HttpRequest httpRequest, ClientHello peekedClientHello) {
+    if (!peekedClientHello.isTls()) {
+      return false;
+    }
+    String serverName = peekedClientHello.serverName();
+    String host =
+        serverName != null
+            ? serverName
+            : HostAndPort.fromString(identifyHostAndPort(httpRequest)).getHost();
+    if (requireNonNull(proxyServer.getMitmBypassRules()).isBlocked(host, "")) {
+      LOG.debug("Relaying the tunnel to {} without man in the middling it", host);
+      return false;
+    }
+    return currentFilters.proxyToServerAllowMitm(
+        serverName, peekedClientHello.applicationProtocols());
+  }
+
+  /**
+   * Hands the bytes held back while peeking at the client's ClientHello on to the handlers that now
+   * follow the decryption of the client's own connection to the proxy, if any: the man in the
+   * middle's TLS handler, or this connection when tunneling.
+   */
+  void replayPeekedClientHello() {
+    channel
+        .eventLoop()
+        .execute(
+            () -> {
+              ChannelPipeline pipeline = channel.pipeline();
+              ChannelHandler handler = pipeline.get(ClientHelloPeeker.NAME);
+              if (!(handler instanceof ClientHelloPeeker)) {
+                return;
+              }
+              ClientHelloPeeker peeker = (ClientHelloPeeker) handler;
+              ByteBuf heldBytes = peeker.takeHeldBytes();
+              pipeline.remove(peeker);
+              String previousHandlerName = peeker.getPreviousHandlerName();
+              ChannelHandlerContext previous =
+                  previousHandlerName == null ? null : pipeline.context(previousHandlerName);
+              if (!heldBytes.isReadable()) {
+                heldBytes.release();
+              } else if (previous == null) {
+                pipeline.fireChannelRead(heldBytes).fireChannelReadComplete();
+              } else {
+                previous.fireChannelRead(heldBytes).fireChannelReadComplete();
+              }
+            });
+  }
+
+  /**
+   * Responds with the short-circuit response returned by the proxyToServerRequest filter, if any,
+   * or else writes the request to the server connection.
+   */
+  private ConnectionState continueWithProxyToServerFilterResponse(
+      HttpRequest httpRequest, @Nullable HttpResponse proxyToServerFilterResponse) {
     if (proxyToServerFilterResponse != null) {
       LOG.debug(
           "Responding to client with short-circuit response from filter: {}",
@@ -341,8 +703,12 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
       }
     }
 
+    HttpObject request = startRequestBodyTransformation(httpRequest);
     LOG.debug("Writing request to ProxyToServerConnection");
-    requireNonNull(currentServerConnection).write(httpRequest, currentFilters);
+    requireNonNull(currentServerConnection).write(request, currentFilters);
+    if (request != httpRequest) {
+      ReferenceCountUtil.release(request);
+    }
 
     // Figure out our next state
     if (ProxyUtils.isCONNECT(httpRequest)) {
@@ -354,6 +720,25 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     }
   }
 
+  /** Starts transforming the body of the request, if its filters ask to. */
+  private HttpObject startRequestBodyTransformation(HttpRequest httpRequest) {
+    if (requestBodyTransformation != null) {
+      requestBodyTransformation.release();
+      requestBodyTransformation = null;
+    }
+    BodyTransformer transformer = currentFilters.requestBodyTransformer();
+    if (transformer == null
+        || !BodyTransformation.hasBody(httpRequest)
+        || !BodyTransformation.isIdentityEncoded(httpRequest)) {
+      return httpRequest;
+    }
+    BodyTransformation transformation = new BodyTransformation(transformer, channel.alloc());
+    if (!(httpRequest instanceof LastHttpContent)) {
+      requestBodyTransformation = transformation;
+    }
+    return requireNonNull(transformation.transform(httpRequest));
+  }
+
   /**
    * Returns true if the specified request is a request to an origin server, rather than to a proxy
    * server. If this request is being MITM'd, this method always returns false. The format of
@@ -389,6 +774,27 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     return !ABSOLUTE_URI_PATTERN.matcher(uri).matches();
   }
 
+  @Override
+  protected void readHTTPWhileDeferred(HttpObject httpObject) {
+    // the decoder may produce several messages from one read, even though reading was stopped
+    heldMessages.add(ReferenceCountUtil.retain(httpObject));
+  }
+
+  /** Handles the messages held while waiting for a deferred response, until another one is. */
+  private void readHeldMessages() {
+    while (!is(AWAITING_DEFERRED_RESPONSE)) {
+      HttpObject httpObject = heldMessages.poll();
+      if (httpObject == null) {
+        return;
+      }
+      try {
+        read(httpObject);
+      } finally {
+        ReferenceCountUtil.release(httpObject);
+      }
+    }
+  }
+
   @Override
   protected void readHTTPChunk(HttpContent chunk) {
     if (currentServerConnection == null) {
@@ -398,7 +804,19 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     currentFilters.clientToProxyRequest(chunk);
     currentFilters.proxyToServerRequest(chunk);
 
-    currentServerConnection.write(chunk);
+    BodyTransformation transformation = requestBodyTransformation;
+    if (transformation == null) {
+      currentServerConnection.write(chunk);
+      return;
+    }
+    if (ProxyUtils.isLastChunk(chunk)) {
+      requestBodyTransformation = null;
+    }
+    HttpObject transformed = transformation.transform(chunk);
+    if (transformed != null) {
+      currentServerConnection.write(transformed);
+      ReferenceCountUtil.release(transformed);
+    }
   }
 
   @Override
@@ -439,6 +857,82 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
       return;
     }
 
+    inspectResponseBody(filters, currentHttpRequest, httpObject);
+    HttpObject transformed = transformResponseBody(filters, currentHttpRequest, httpObject);
+    if (transformed == null) {
+      // held back by the body transformer until more of the body has been read
+      return;
+    }
+    try {
+      writeResponse(
+          serverConnection, filters, currentHttpRequest, currentHttpResponse, transformed);
+    } finally {
+      if (transformed != httpObject) {
+        ReferenceCountUtil.release(transformed);
+      }
+    }
+  }
+
+  /** Passes the body of the response, as received, to its filters' inspector, if they have one. */
+  private void inspectResponseBody(
+      HttpFilters filters, HttpRequest currentHttpRequest, HttpObject httpObject) {
+    if (httpObject instanceof HttpResponse) {
+      if (responseBodyInspection != null) {
+        responseBodyInspection.release();
+        responseBodyInspection = null;
+      }
+      BodyInspector inspector = filters.responseBodyInspector();
+      if (inspector == null
+          || !BodyTransformation.hasBody(currentHttpRequest, (HttpResponse) httpObject)) {
+        return;
+      }
+      responseBodyInspection =
+          BodyInspection.start(inspector, (HttpResponse) httpObject, channel.alloc());
+    }
+    BodyInspection inspection = responseBodyInspection;
+    if (inspection != null
+        && httpObject instanceof HttpContent
+        && !inspection.inspect((HttpContent) httpObject)) {
+      responseBodyInspection = null;
+    }
+  }
+
+  /**
+   * Transforms the body of the response, if its filters ask to. Returns null while the transformer
+   * holds back the whole chunk.
+   */
+  @Nullable
+  private HttpObject transformResponseBody(
+      HttpFilters filters, HttpRequest currentHttpRequest, HttpObject httpObject) {
+    if (httpObject instanceof HttpResponse) {
+      if (responseBodyTransformation != null) {
+        responseBodyTransformation.release();
+        responseBodyTransformation = null;
+      }
+      BodyTransformer transformer = filters.responseBodyTransformer();
+      if (transformer == null
+          || !BodyTransformation.hasBody(currentHttpRequest, (HttpResponse) httpObject)
+          || !BodyTransformation.isIdentityEncoded((HttpResponse) httpObject)) {
+        return httpObject;
+      }
+      responseBodyTransformation = new BodyTransformation(transformer, channel.alloc());
+    }
+    BodyTransformation transformation = responseBodyTransformation;
+    if (transformation == null) {
+      return httpObject;
+    }
+    if (ProxyUtils.isLastChunk(httpObject)) {
+      responseBodyTransformation = null;
+    }
+    return transformation.transform(httpObject);
+  }
+
+  private void writeResponse(
+      ProxyToServerConnection serverConnection,
+      HttpFilters filters,
+      HttpRequest currentHttpRequest,
+      HttpResponse currentHttpResponse,
+      HttpObject httpObject) {
     final boolean isSwitchingToWebSocketProtocol;
     if (httpObject instanceof HttpResponse) {
       HttpResponse httpResponse = (HttpResponse) httpObject;
@@ -527,6 +1021,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             HTTP_RESPONSE_WRITTEN_MONITOR_NAME,
             HTTP_PROXY_DECODER_NAME,
             HTTP_ENCODER_NAME,
+            ResponseCompressor.NAME,
             HTTP_DECODER_NAME);
     if (channel.pipeline().get(MAIN_HANDLER_NAME) != null) {
       channel
@@ -534,7 +1029,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
           .replace(
               MAIN_HANDLER_NAME,
               "pipe-to-server",
-              new WebSocketFramePipeHandler(serverConnection, currentFilters, true));
+              new WebSocketFramePipeHandler(
+                  serverConnection,
+                  currentFilters,
+                  true,
+                  proxyServer.getMaxInspectedWebSocketFrameLength()));
     }
     orderedHandlersToRemove.forEach(this::removeHandlerIfPresent);
   }
@@ -552,14 +1051,19 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
 
         protected Future<?> execute() {
-          LOG.debug("Responding with CONNECT successful");
-          HttpResponse response =
-              ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1, CONNECTION_ESTABLISHED);
-          ProxyUtils.addVia(response, proxyServer.getProxyAlias());
-          return writeToChannel(response);
+          return writeConnectEstablished();
         }
       };
 
+  /** Tells the client that its CONNECT tunnel has been established. */
+  ChannelFuture writeConnectEstablished() {
+    LOG.debug("Responding with CONNECT successful");
+    HttpResponse response =
+        ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1, CONNECTION_ESTABLISHED);
+    ProxyUtils.addVia(response, proxyServer.getProxyAlias());
+    return writeToChannel(response);
+  }
+
   /** On connect of the client, start waiting for an initial {@link HttpRequest}. */
   @Override
   protected void connected() {
@@ -629,6 +1133,25 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
   @Override
   protected void disconnected() {
     super.disconnected();
+    streamingResponse = null;
+    requestAggregationFilters = null;
+    requestBufferingStartedNanos = 0;
+    if (requestBodyTransformation != null) {
+      requestBodyTransformation.release();
+      requestBodyTransformation = null;
+    }
+    if (responseBodyTransformation != null) {
+      responseBodyTransformation.release();
+      responseBodyTransformation = null;
+    }
+    if (responseBodyInspection != null) {
+      responseBodyInspection.release();
+      responseBodyInspection = null;
+    }
+    HttpObject heldMessage;
+    while ((heldMessage = heldMessages.poll()) != null) {
+      ReferenceCountUtil.release(heldMessage);
+    }
     for (ProxyToServerConnection serverConnection : serverConnectionsByHostAndPort.values()) {
       serverConnection.disconnect();
     }
@@ -708,7 +1231,37 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     serverConnection.disconnect();
     serverConnectionsByHostAndPort.remove(serverConnection.getServerHostAndPort());
 
-    boolean keepAlive = writeBadGateway(initialRequest);
+    if (isTunneling() || clientHello != null) {
+      // with optimistic CONNECT, or once its ClientHello has been peeked at, the client was already
+      // told that its tunnel is established, so the only way to report the failure is to close the
+      // tunnel
+      LOG.debug("Closing optimistically established tunnel after upstream connection failure");
+      disconnect();
+      return;
+    }
+
+    boolean keepAlive = respondToFailedRequest(badGatewayResponse(initialRequest));
+    if (keepAlive) {
+      become(AWAITING_INITIAL);
+    } else {
+      become(DISCONNECT_REQUESTED);
+    }
+  }
+
+  /**
+   * Called when a {@link ProxyToServerConnection} could not obtain an upstream connection slot,
+   * either because the connection queue was full or because it timed out waiting. Responds to the
+   * client with a 503 Service Unavailable.
+   */
+  void serverConnectionQueueFailed(ProxyToServerConnection serverConnection, Throwable cause) {
+    LOG.debug("Unable to obtain an upstream connection slot: {}", cause.getMessage());
+    if (numberOfCurrentlyConnectingServers.get() == 0) {
+      resumeReading();
+    }
+    serverConnectionsByHostAndPort.remove(serverConnection.getServerHostAndPort());
+
+    HttpRequest initialRequest = serverConnection.getInitialRequest();
+    boolean keepAlive = writeServiceUnavailable(initialRequest);
     if (keepAlive) {
       become(AWAITING_INITIAL);
     } else {
@@ -746,6 +1299,15 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     }
   }
 
+  /**
+   * When responses are buffered, the connection is only saturated once the buffer is full, so that
+   * servers can send their responses at full speed to a slow client.
+   */
+  @Override
+  protected boolean isSaturated() {
+    return responseBuffer != null ? responseBuffer.isFull() : super.isSaturated();
+  }
+
   /**
    * When the ClientToProxyConnection becomes saturated, stop reading on all associated
    * ProxyToServerConnections.
@@ -856,16 +1418,24 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
    * @param sslEngineSource the {@link SslEngineSource} for client-to-proxy encryption, or {@code
    *     null} if SSL is not enabled
    * @param authenticateClients whether to require client certificate authentication
+   * @param readProxyProtocolHeader whether to add the {@link HAProxyMessageDecoder}
    */
   private void initChannelPipeline(
       ChannelPipeline pipeline,
       @Nullable SslEngineSource sslEngineSource,
-      boolean authenticateClients) {
+      boolean authenticateClients,
+      boolean readProxyProtocolHeader) {
     LOG.debug("Configuring ChannelPipeline");
 
     pipeline.addLast("bytesReadMonitor", bytesReadMonitor);
     pipeline.addLast("bytesWrittenMonitor", bytesWrittenMonitor);
 
+    ResponseBufferHandler.Settings responseBuffering = proxyServer.getResponseBuffering();
+    if (responseBuffering != null) {
+      responseBuffer = responseBuffering.newHandler();
+      pipeline.addLast(ResponseBufferHandler.NAME, responseBuffer);
+    }
+
     pipeline.addLast(HTTP_ENCODER_NAME, new HttpResponseEncoder());
     // We want to allow longer request lines, headers, and chunks
     // respectively.
@@ -876,6 +1446,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             proxyServer.getMaxHeaderSize(),
             proxyServer.getMaxChunkSize()));
 
+    int compressionThreshold = proxyServer.getResponseCompressionThreshold();
+    if (compressionThreshold >= 0) {
+      pipeline.addLast(ResponseCompressor.NAME, new ResponseCompressor(compressionThreshold));
+    }
+
     // Enable aggregation for filtering if necessary
     int numberOfBytesToBuffer = proxyServer.getFiltersSource().getMaximumRequestBufferSizeInBytes();
     if (numberOfBytesToBuffer > 0) {
@@ -903,7 +1478,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
               });
     }
 
-    if (isAcceptProxyProtocol()) {
+    if (readProxyProtocolHeader) {
       pipeline.addFirst(HTTP_PROXY_DECODER_NAME, new HAProxyMessageDecoder());
     }
   }
@@ -1417,6 +1992,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
    * @return true if the connection will be kept open, or false if it will be disconnected
    */
   private boolean writeBadGateway(HttpRequest httpRequest) {
+    return respondWithShortCircuitResponse(badGatewayResponse(httpRequest));
+  }
+
+  private static FullHttpResponse badGatewayResponse(HttpRequest httpRequest) {
     String body = "Bad Gateway: " + httpRequest.uri();
     FullHttpResponse response =
         ProxyUtils.createFullHttpResponse(
@@ -1427,6 +2006,45 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
       response.content().clear();
     }
 
+    return response;
+  }
+
+  /**
+   * Tells the client that the proxy could not get a response from the server, unless the filters
+   * provide another response to send instead.
+   *
+   * @param errorResponse the 502 Bad Gateway or 504 Gateway Timeout response to send
+   * @return true if the connection will be kept open, or false if it will be disconnected
+   */
+  private boolean respondToFailedRequest(FullHttpResponse errorResponse) {
+    HttpResponse response = currentFilters.proxyToServerRequestFailed(errorResponse);
+    if (response == null) {
+      return respondWithShortCircuitResponse(errorResponse);
+    }
+    LOG.debug("Responding to failed request with response from filter: {}", response);
+    errorResponse.release();
+    return respondWithShortCircuitResponse(response);
+  }
+
+  /**
+   * Tells the client that the proxy is temporarily unable to reach the server, for example because
+   * the upstream connection limit has been reached. If the Service Unavailable is a response to an
+   * HTTP HEAD request, the response will contain no body.
+   *
+   * @param httpRequest the HttpRequest that is resulting in the Service Unavailable response
+   * @return true if the connection will be kept open, or false if it will be disconnected
+   */
+  private boolean writeServiceUnavailable(HttpRequest httpRequest) {
+    String body = "Service Unavailable: " + httpRequest.uri();
+    FullHttpResponse response =
+        ProxyUtils.createFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE, body);
+
+    if (ProxyUtils.isHEAD(httpRequest)) {
+      // don't allow any body content in response to a HEAD request
+      response.content().clear();
+    }
+
     return respondWithShortCircuitResponse(response);
   }
 
@@ -1471,7 +2089,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
       response.content().clear();
     }
 
-    respondWithShortCircuitResponse(response);
+    respondToFailedRequest(response);
   }
 
   /**
@@ -1497,6 +2115,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
     HttpResponse filteredResponse =
         (HttpResponse) currentFilters.proxyToClientResponse(httpResponse);
+    if (httpResponse instanceof StreamedHttpResponse && filteredResponse != httpResponse) {
+      // the filter replaced the response, so its body will not be written
+      ((StreamedHttpResponse) httpResponse).releaseBody();
+    }
     if (filteredResponse == null) {
       disconnect();
       return false;
@@ -1524,7 +2146,17 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
     write(filteredResponse);
 
-    if (ProxyUtils.isLastChunk(filteredResponse)) {
+    if (filteredResponse instanceof StreamedHttpResponse
+        && ((StreamedHttpResponse) filteredResponse).isStreaming()) {
+      streamBody((StreamedHttpResponse) filteredResponse, HttpUtil.isKeepAlive(filteredResponse));
+      return HttpUtil.isKeepAlive(filteredResponse);
+    } else if (filteredResponse instanceof StreamedHttpResponse) {
+      // ownership of the body parts passes to the channel, so they are not retained by write()
+      for (Object bodyPart : ((StreamedHttpResponse) filteredResponse).takeBodyParts()) {
+        channel.write(bodyPart);
+      }
+      writeHttp(LastHttpContent.EMPTY_LAST_CONTENT);
+    } else if (ProxyUtils.isLastChunk(filteredResponse)) {
       writeEmptyBuffer();
     }
 
@@ -1536,6 +2168,50 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     return true;
   }
 
+  /**
+   * Writes the body of a streamed short-circuit response as it is produced, then ends the response
+   * and handles the requests held in the meantime, or disconnects.
+   */
+  private void streamBody(StreamedHttpResponse response, boolean keepAlive) {
+    streamingResponse = response;
+    response.setBodyListener(
+        new StreamedHttpResponse.BodyListener() {
+          @Override
+          public void bodyPart(Object bodyPart) {
+            long length = StreamedHttpResponse.lengthOf(bodyPart);
+            channel
+                .writeAndFlush(bodyPart)
+                .addListener(future -> response.bodyPartWritten(length));
+          }
+
+          @Override
+          public void ended(boolean aborted) {
+            channel.eventLoop().execute(() -> streamedBodyEnded(response, keepAlive, aborted));
+          }
+        });
+  }
+
+  private void streamedBodyEnded(
+      StreamedHttpResponse response, boolean keepAlive, boolean aborted) {
+    if (streamingResponse != response) {
+      return;
+    }
+    streamingResponse = null;
+    if (!aborted) {
+      writeHttp(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+    if (aborted || !keepAlive) {
+      LOG.debug("Closing connection after streamed response, aborted: {}", aborted);
+      disconnect();
+      return;
+    }
+    if (is(AWAITING_DEFERRED_RESPONSE)) {
+      become(AWAITING_INITIAL);
+      resumeReading();
+      readHeldMessages();
+    }
+  }
+
   /** Identify the host and port for a request. */
   @NonNull
   @CheckReturnValue
@@ -25,6 +25,12 @@ enum ConnectionState {
   /** Connected and awaiting HttpContent chunk. */
   AWAITING_CHUNK,
 
+  /**
+   * Waiting for a filter to decide on the response to a request, or for the rest of the body of a
+   * streamed short-circuit response. Messages read in the meantime are held until then.
+   */
+  AWAITING_DEFERRED_RESPONSE,
+
   /** We've asked the client to disconnect, but it hasn't yet. */
   DISCONNECT_REQUESTED(),
 
@@ -4,13 +4,17 @@ import static java.util.Objects.requireNonNullElseGet;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFactory;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import java.io.File;
@@ -18,17 +22,21 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Collection;
+import java.util.Locale;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.SSLEngine;
 import org.jspecify.annotations.NullMarked;
 import org.jspecify.annotations.Nullable;
 import org.littleshoot.proxy.*;
 import org.littleshoot.proxy.extras.ActivityLogger;
+import org.littleshoot.proxy.extras.CompiledRules;
 import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,6 +67,11 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
   private static final int MAX_INITIAL_LINE_LENGTH_DEFAULT = 8192;
   private static final int MAX_HEADER_SIZE_DEFAULT = 8192 * 2;
   private static final int MAX_CHUNK_SIZE_DEFAULT = 8192 * 2;
+  private static final int MAX_QUEUED_CONNECTION_REQUESTS_DEFAULT = 1024;
+  private static final int MAX_INSPECTED_WEB_SOCKET_FRAME_LENGTH_DEFAULT = 65536;
+  private static final Duration CONNECTION_QUEUE_TIMEOUT_DEFAULT = Duration.ofSeconds(30);
+  private static final Duration WARM_CHAINED_PROXY_CONNECTION_IDLE_TIMEOUT_DEFAULT =
+      Duration.ofSeconds(30);
 
   /**
    * The proxy alias to use in the Via header if no explicit proxy alias is specified and the
@@ -92,6 +105,17 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
   public static final String PORT = "port";
   public static final String ADDRESS = "address";
   public static final String NAME = "name";
+  public static final String MAX_UPSTREAM_CONNECTIONS = "max_upstream_connections";
+  public static final String MAX_UPSTREAM_CONNECTIONS_PER_HOST =
+      "max_upstream_connections_per_host";
+  public static final String MAX_QUEUED_CONNECTION_REQUESTS = "max_queued_connection_requests";
+  public static final String CONNECTION_QUEUE_TIMEOUT_MS = "connection_queue_timeout_ms";
+  public static final String OPTIMISTIC_CONNECT = "optimistic_connect";
+  public static final String MITM_HANDSHAKE_MODE = "mitm_handshake_mode";
+  public static final String MAX_WARM_CHAINED_PROXY_CONNECTIONS =
+      "max_warm_chained_proxy_connections";
+  public static final String WARM_CHAINED_PROXY_CONNECTION_IDLE_TIMEOUT_MS =
+      "warm_chained_proxy_connection_idle_timeout_ms";
   private static final String DEFAULT_JKS_KEYSTORE_PATH = "littleproxy_keystore.jks";
 
   /**
@@ -129,6 +153,24 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
   private final boolean allowRequestsToOriginServer;
   private final boolean acceptProxyProtocol;
   private final boolean sendProxyProtocol;
+  @Nullable private final UpstreamConnectionLimiter upstreamConnectionLimiter;
+  private final boolean optimisticConnect;
+  private final MitmHandshakeMode mitmHandshakeMode;
+  @Nullable private final ChainedProxyConnectionPool chainedProxyConnectionPool;
+  @Nullable private volatile ClientAccessList clientAccessList;
+  private final AtomicLong rejectedConnections = new AtomicLong();
+  private final SpillingHttpObjectAggregator.@Nullable Budget aggregationBudget;
+  @Nullable private final RequestBufferingPolicy requestBufferingPolicy;
+  private final AtomicLong bufferedRequests = new AtomicLong();
+  private final AtomicLong requestBufferingNanos = new AtomicLong();
+  private final ResponseBufferHandler.@Nullable Settings responseBuffering;
+  private final int responseCompressionThreshold;
+  private final int maxInspectedWebSocketFrameLength;
+  @Nullable private final CompiledRules mitmBypassRules;
+  private final AtomicLong webSocketFramesFromClients = new AtomicLong();
+  private final AtomicLong webSocketFramesFromServers = new AtomicLong();
+  private final AtomicLong webSocketBytesFromClients = new AtomicLong();
+  private final AtomicLong webSocketBytesFromServers = new AtomicLong();
 
   /** The alias or pseudonym for this proxy, used when adding the Via header. */
   private final String proxyAlias;
@@ -208,6 +250,26 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
    *     an origin-form URI, as defined in RFC 7230 5.3.1
    * @param acceptProxyProtocol when true, the proxy will accept a proxy protocol header from client
    * @param sendProxyProtocol when true, the proxy will send a proxy protocol header to the server
+   * @param upstreamConnectionLimiter (optional) limits the number of concurrent connections to
+   *     upstream servers, queueing requests that exceed the limits
+   * @param optimisticConnect when true, non-MITM CONNECT requests are answered before the upstream
+   *     connection has been established
+   * @param mitmHandshakeMode how the client and server TLS handshakes are ordered when MITMing
+   * @param maxWarmChainedProxyConnections the maximum number of warm connections to keep to each
+   *     chained HTTP proxy, or 0 to not keep any
+   * @param warmChainedProxyConnectionIdleTimeout how long an unused warm connection is kept
+   * @param clientAccessList (optional) the address ranges clients may connect from
+   * @param aggregationBudget (optional) the memory budget of aggregated bodies, beyond which they
+   *     are spilled to disk
+   * @param requestBufferingPolicy (optional) decides which requests are received in full before
+   *     they are sent on
+   * @param responseBuffering (optional) the limits of the buffers of responses to slow clients
+   * @param responseCompressionThreshold the minimum length of responses the proxy compresses, or a
+   *     negative value to not compress responses
+   * @param maxInspectedWebSocketFrameLength the length of the longest WebSocket frames shown to
+   *     filters, or 0 to show them each read from the network instead
+   * @param mitmBypassRules (optional) the hosts whose CONNECT tunnels are relayed without man in
+   *     the middling them, after peeking at their ClientHello
    */
   private DefaultHttpProxyServer(
       ServerGroup serverGroup,
@@ -233,7 +295,19 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
       int maxChunkSize,
       boolean allowRequestsToOriginServer,
       boolean acceptProxyProtocol,
-      boolean sendProxyProtocol) {
+      boolean sendProxyProtocol,
+      @Nullable UpstreamConnectionLimiter upstreamConnectionLimiter,
+      boolean optimisticConnect,
+      MitmHandshakeMode mitmHandshakeMode,
+      int maxWarmChainedProxyConnections,
+      Duration warmChainedProxyConnectionIdleTimeout,
+      @Nullable ClientAccessList clientAccessList,
+      SpillingHttpObjectAggregator.@Nullable Budget aggregationBudget,
+      @Nullable RequestBufferingPolicy requestBufferingPolicy,
+      ResponseBufferHandler.@Nullable Settings responseBuffering,
+      int responseCompressionThreshold,
+      int maxInspectedWebSocketFrameLength,
+      @Nullable CompiledRules mitmBypassRules) {
     this.serverGroup = serverGroup;
     this.transportProtocol = transportProtocol;
     this.requestedAddress = requestedAddress;
@@ -277,6 +351,25 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     this.allowRequestsToOriginServer = allowRequestsToOriginServer;
     this.acceptProxyProtocol = acceptProxyProtocol;
     this.sendProxyProtocol = sendProxyProtocol;
+    this.upstreamConnectionLimiter = upstreamConnectionLimiter;
+    this.optimisticConnect = optimisticConnect;
+    this.mitmHandshakeMode = mitmHandshakeMode;
+    if (maxWarmChainedProxyConnections > 0) {
+      chainedProxyConnectionPool =
+          new ChainedProxyConnectionPool(
+              this,
+              maxWarmChainedProxyConnections,
+              warmChainedProxyConnectionIdleTimeout.toMillis());
+    } else {
+      chainedProxyConnectionPool = null;
+    }
+    this.clientAccessList = clientAccessList;
+    this.aggregationBudget = aggregationBudget;
+    this.requestBufferingPolicy = requestBufferingPolicy;
+    this.responseBuffering = responseBuffering;
+    this.responseCompressionThreshold = responseCompressionThreshold;
+    this.maxInspectedWebSocketFrameLength = maxInspectedWebSocketFrameLength;
+    this.mitmBypassRules = mitmBypassRules;
   }
 
   /**
@@ -394,6 +487,142 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     return sendProxyProtocol;
   }
 
+  /**
+   * Returns the limiter for connections to upstream servers, which also reports the depth of the
+   * connection queue and the time requests spent waiting in it, or null if upstream connections
+   * are not limited.
+   */
+  @Nullable
+  public UpstreamConnectionLimiter getUpstreamConnectionLimiter() {
+    return upstreamConnectionLimiter;
+  }
+
+  public boolean isOptimisticConnect() {
+    return optimisticConnect;
+  }
+
+  public MitmHandshakeMode getMitmHandshakeMode() {
+    return mitmHandshakeMode;
+  }
+
+  /**
+   * Returns the pool of warm connections to chained HTTP proxies, which also reports how many
+   * tunnels were opened over warm connections, or null if no warm connections are kept.
+   */
+  @Nullable
+  public ChainedProxyConnectionPool getChainedProxyConnectionPool() {
+    return chainedProxyConnectionPool;
+  }
+
+  /** Returns the address ranges clients may connect from, or null if all clients may connect. */
+  @Nullable
+  public ClientAccessList getClientAccessList() {
+    return clientAccessList;
+  }
+
+  @Override
+  public void setClientAccessList(@Nullable ClientAccessList clientAccessList) {
+    this.clientAccessList = clientAccessList;
+  }
+
+  /** Returns the number of client connections closed because of the client access list. */
+  public long getRejectedConnectionCount() {
+    return rejectedConnections.get();
+  }
+
+  void recordRejectedConnection() {
+    rejectedConnections.incrementAndGet();
+  }
+
+  SpillingHttpObjectAggregator.@Nullable Budget getAggregationBudget() {
+    return aggregationBudget;
+  }
+
+  /**
+   * Returns the number of bytes of bodies aggregated for filters that are held in memory, when
+   * aggregated bodies may be spilled to disk, or 0 otherwise.
+   */
+  public long getAggregationMemoryBytes() {
+    return aggregationBudget == null ? 0 : aggregationBudget.getMemoryBytes();
+  }
+
+  /** Returns the number of bodies aggregated for filters that were spilled to disk. */
+  public long getSpilledAggregationCount() {
+    return aggregationBudget == null ? 0 : aggregationBudget.getSpilledMessages();
+  }
+
+  @Nullable
+  RequestBufferingPolicy getRequestBufferingPolicy() {
+    return requestBufferingPolicy;
+  }
+
+  /** Returns the number of requests received in full before they were sent on. */
+  public long getBufferedRequestCount() {
+    return bufferedRequests.get();
+  }
+
+  /**
+   * Returns the total time spent receiving the bodies of buffered requests, during which no
+   * upstream connection was held for them.
+   */
+  public Duration getUpstreamTimeSavedByRequestBuffering() {
+    return Duration.ofNanos(requestBufferingNanos.get());
+  }
+
+  ResponseBufferHandler.@Nullable Settings getResponseBuffering() {
+    return responseBuffering;
+  }
+
+  /**
+   * Returns the minimum length of responses the proxy compresses, or a negative value if it doesn't
+   * compress responses.
+   */
+  int getResponseCompressionThreshold() {
+    return responseCompressionThreshold;
+  }
+
+  int getMaxInspectedWebSocketFrameLength() {
+    return maxInspectedWebSocketFrameLength;
+  }
+
+  /**
+   * Returns the hosts whose CONNECT tunnels are not man in the middled, if the ClientHello of
+   * tunnels is peeked at to find them.
+   */
+  @Nullable
+  CompiledRules getMitmBypassRules() {
+    return mitmBypassRules;
+  }
+
+  /**
+   * Returns the number of WebSocket frames relayed from clients, or from servers. Only frames are
+   * counted when filters are shown frames rather than reads, see {@link
+   * HttpProxyServerBootstrap#withMaxInspectedWebSocketFrameLength(int)}.
+   */
+  public long getWebSocketFrameCount(boolean fromClients) {
+    return (fromClients ? webSocketFramesFromClients : webSocketFramesFromServers).get();
+  }
+
+  /** Returns the number of bytes of WebSocket frames relayed from clients, or from servers. */
+  public long getWebSocketByteCount(boolean fromClients) {
+    return (fromClients ? webSocketBytesFromClients : webSocketBytesFromServers).get();
+  }
+
+  void recordWebSocketFrames(boolean fromClient, int frames) {
+    if (frames > 0) {
+      (fromClient ? webSocketFramesFromClients : webSocketFramesFromServers).addAndGet(frames);
+    }
+  }
+
+  void recordWebSocketBytes(boolean fromClient, int bytes) {
+    (fromClient ? webSocketBytesFromClients : webSocketBytesFromServers).addAndGet(bytes);
+  }
+
+  void recordBufferedRequest(long bufferingNanos) {
+    bufferedRequests.incrementAndGet();
+    requestBufferingNanos.addAndGet(bufferingNanos);
+  }
+
   @Override
   public HttpProxyServerBootstrap clone() {
     return new DefaultHttpProxyServerBootstrap(
@@ -448,8 +677,14 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         LOG.info("Shutting down proxy server immediately (non-graceful)");
       }
 
+      if (chainedProxyConnectionPool != null) {
+        chainedProxyConnectionPool.close();
+      }
+
       closeAllChannels(graceful);
 
+      filtersSource.proxyServerStopped(graceful);
+
       serverGroup.unregisterProxyServer(this, graceful);
 
       // remove the shutdown hook that was added when the proxy was started, since it
@@ -518,6 +753,8 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
 
       serverGroup.registerProxyServer(this);
 
+      filtersSource.proxyServerStarting(this);
+
       doStart();
     } else {
       throw new IllegalStateException(
@@ -537,12 +774,26 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     ChannelInitializer<Channel> initializer =
         new ChannelInitializer<>() {
           protected void initChannel(Channel ch) {
-            new ClientToProxyConnection(
-                DefaultHttpProxyServer.this,
-                sslEngineSource,
-                authenticateSslClients,
-                ch.pipeline(),
-                globalTrafficShapingHandler);
+            ClientAccessList accessList = clientAccessList;
+            if (accessList != null) {
+              if (acceptProxyProtocol) {
+                // the client address is in the PROXY protocol header, so only read that for now
+                registerChannel(ch);
+                ch.pipeline().addLast(new HAProxyMessageDecoder());
+                ch.pipeline()
+                    .addLast(
+                        ClientAccessHandler.NAME,
+                        new ClientAccessHandler(DefaultHttpProxyServer.this));
+                return;
+              }
+              if (!ClientAccessHandler.isAllowed(accessList, ch.remoteAddress())) {
+                LOG.debug("Rejected connection from {}", ch.remoteAddress());
+                recordRejectedConnection();
+                ch.close();
+                return;
+              }
+            }
+            newClientToProxyConnection(ch.pipeline(), acceptProxyProtocol);
           }
         };
     switch (transportProtocol) {
@@ -570,11 +821,22 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     Runtime.getRuntime().addShutdownHook(jvmShutdownHook);
   }
 
+  ClientToProxyConnection newClientToProxyConnection(
+      ChannelPipeline pipeline, boolean readProxyProtocolHeader) {
+    return new ClientToProxyConnection(
+        this,
+        sslEngineSource,
+        authenticateSslClients,
+        pipeline,
+        globalTrafficShapingHandler,
+        readProxyProtocolHeader);
+  }
+
   protected ChainedProxyManager getChainProxyManager() {
     return chainProxyManager;
   }
 
-  protected MitmManager getMitmManager() {
+  public MitmManager getMitmManager() {
     return mitmManager;
   }
 
@@ -602,6 +864,20 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     return serverGroup.getProxyToServerWorkerPoolForTransport(transportProtocol);
   }
 
+  /**
+   * Creates the channels of outgoing connections made with the given transport, on the event loops
+   * of {@link #getProxyToServerWorkerFor(TransportProtocol)}.
+   */
+  protected ChannelFactory<? extends Channel> getProxyToServerChannelFactoryFor(
+      TransportProtocol transportProtocol) {
+    switch (transportProtocol) {
+      case TCP:
+        return NioSocketChannel::new;
+      default:
+        throw new UnknownTransportProtocolException(transportProtocol);
+    }
+  }
+
   // TODO: refactor bootstrap into a separate class
   @NullMarked
   private static class DefaultHttpProxyServerBootstrap implements HttpProxyServerBootstrap {
@@ -635,6 +911,24 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     private boolean allowRequestToOriginServer;
     private boolean acceptProxyProtocol;
     private boolean sendProxyProtocol;
+    private int maxUpstreamConnections;
+    private int maxUpstreamConnectionsPerHost;
+    private int maxQueuedConnectionRequests = MAX_QUEUED_CONNECTION_REQUESTS_DEFAULT;
+    private Duration connectionQueueTimeout = CONNECTION_QUEUE_TIMEOUT_DEFAULT;
+    private boolean optimisticConnect;
+    private MitmHandshakeMode mitmHandshakeMode = MitmHandshakeMode.SEQUENTIAL;
+    private int maxWarmChainedProxyConnections;
+    private Duration warmChainedProxyConnectionIdleTimeout =
+        WARM_CHAINED_PROXY_CONNECTION_IDLE_TIMEOUT_DEFAULT;
+    @Nullable private ClientAccessList clientAccessList;
+    @Nullable private Path aggregationSpillDirectory;
+    private long maxAggregationMemoryBytes;
+    private int maxAggregationMemoryBytesPerMessage;
+    @Nullable private RequestBufferingPolicy requestBufferingPolicy;
+    private ResponseBufferHandler.@Nullable Settings responseBuffering;
+    private int responseCompressionThreshold = -1;
+    private int maxInspectedWebSocketFrameLength = MAX_INSPECTED_WEB_SOCKET_FRAME_LENGTH_DEFAULT;
+    @Nullable private CompiledRules mitmBypassRules;
 
     private DefaultHttpProxyServerBootstrap() {}
 
@@ -763,6 +1057,49 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
       if (props.containsKey(SEND_PROXY_PROTOCOL)) {
         sendProxyProtocol = ProxyUtils.extractBooleanDefaultFalse(props, SEND_PROXY_PROTOCOL);
       }
+      if (props.containsKey(MAX_UPSTREAM_CONNECTIONS)) {
+        maxUpstreamConnections = ProxyUtils.extractInt(props, MAX_UPSTREAM_CONNECTIONS, 0);
+      }
+      if (props.containsKey(MAX_UPSTREAM_CONNECTIONS_PER_HOST)) {
+        maxUpstreamConnectionsPerHost =
+            ProxyUtils.extractInt(props, MAX_UPSTREAM_CONNECTIONS_PER_HOST, 0);
+      }
+      if (props.containsKey(MAX_QUEUED_CONNECTION_REQUESTS)) {
+        maxQueuedConnectionRequests =
+            ProxyUtils.extractInt(
+                props, MAX_QUEUED_CONNECTION_REQUESTS, MAX_QUEUED_CONNECTION_REQUESTS_DEFAULT);
+      }
+      if (props.containsKey(CONNECTION_QUEUE_TIMEOUT_MS)) {
+        connectionQueueTimeout =
+            Duration.ofMillis(
+                ProxyUtils.extractLong(
+                    props,
+                    CONNECTION_QUEUE_TIMEOUT_MS,
+                    CONNECTION_QUEUE_TIMEOUT_DEFAULT.toMillis()));
+      }
+      if (props.containsKey(OPTIMISTIC_CONNECT)) {
+        optimisticConnect = ProxyUtils.extractBooleanDefaultFalse(props, OPTIMISTIC_CONNECT);
+      }
+      if (props.containsKey(MITM_HANDSHAKE_MODE)) {
+        String mode = props.getProperty(MITM_HANDSHAKE_MODE);
+        try {
+          mitmHandshakeMode = MitmHandshakeMode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+          LOG.warn("Unknown MITM handshake mode requested in properties: {}", mode);
+        }
+      }
+      if (props.containsKey(MAX_WARM_CHAINED_PROXY_CONNECTIONS)) {
+        maxWarmChainedProxyConnections =
+            ProxyUtils.extractInt(props, MAX_WARM_CHAINED_PROXY_CONNECTIONS, 0);
+      }
+      if (props.containsKey(WARM_CHAINED_PROXY_CONNECTION_IDLE_TIMEOUT_MS)) {
+        warmChainedProxyConnectionIdleTimeout =
+            Duration.ofMillis(
+                ProxyUtils.extractLong(
+                    props,
+                    WARM_CHAINED_PROXY_CONNECTION_IDLE_TIMEOUT_MS,
+                    WARM_CHAINED_PROXY_CONNECTION_IDLE_TIMEOUT_DEFAULT.toMillis()));
+      }
       if (props.containsKey(CLIENT_TO_PROXY_WORKER_THREADS)) {
         clientToProxyWorkerThreads =
             ProxyUtils.extractInt(props, CLIENT_TO_PROXY_WORKER_THREADS, 0);
@@ -969,6 +1306,96 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
       return this;
     }
 
+    @Override
+    public HttpProxyServerBootstrap withMaxUpstreamConnections(int maxUpstreamConnections) {
+      this.maxUpstreamConnections = maxUpstreamConnections;
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withMaxUpstreamConnectionsPerHost(
+        int maxUpstreamConnectionsPerHost) {
+      this.maxUpstreamConnectionsPerHost = maxUpstreamConnectionsPerHost;
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withUpstreamConnectionQueue(
+        int maxQueuedRequests, Duration queueTimeout) {
+      this.maxQueuedConnectionRequests = maxQueuedRequests;
+      this.connectionQueueTimeout = queueTimeout;
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withOptimisticConnect(boolean optimisticConnect) {
+      this.optimisticConnect = optimisticConnect;
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withMitmHandshakeMode(MitmHandshakeMode mitmHandshakeMode) {
+      this.mitmHandshakeMode = mitmHandshakeMode;
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withWarmChainedProxyConnections(
+        int maxWarmConnections, Duration idleTimeout) {
+      this.maxWarmChainedProxyConnections = maxWarmConnections;
+      this.warmChainedProxyConnectionIdleTimeout = idleTimeout;
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withClientAccessList(ClientAccessList clientAccessList) {
+      this.clientAccessList = clientAccessList;
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withAggregationSpilling(
+        Path spillDirectory, long maxMemoryBytes, int maxMemoryBytesPerMessage) {
+      this.aggregationSpillDirectory = spillDirectory;
+      this.maxAggregationMemoryBytes = maxMemoryBytes;
+      this.maxAggregationMemoryBytesPerMessage = maxMemoryBytesPerMessage;
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withRequestBuffering(RequestBufferingPolicy policy) {
+      this.requestBufferingPolicy = policy;
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withResponseBuffering(
+        Path spillDirectory, int maxMemoryBytesPerConnection, long maxDiskBytesPerConnection) {
+      this.responseBuffering =
+          new ResponseBufferHandler.Settings(
+              spillDirectory, maxMemoryBytesPerConnection, maxDiskBytesPerConnection);
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withResponseCompression(int minimumContentLength) {
+      this.responseCompressionThreshold = minimumContentLength;
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withMaxInspectedWebSocketFrameLength(
+        int maxInspectedWebSocketFrameLength) {
+      this.maxInspectedWebSocketFrameLength = maxInspectedWebSocketFrameLength;
+      return this;
+    }
+
+    @Override
+    public HttpProxyServerBootstrap withMitmBypassRules(CompiledRules mitmBypassRules) {
+      this.mitmBypassRules = mitmBypassRules;
+      return this;
+    }
+
     @Override
     public HttpProxyServer start() {
       return build().start();
@@ -1018,7 +1445,36 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
           maxChunkSize,
           allowRequestToOriginServer,
           acceptProxyProtocol,
-          sendProxyProtocol);
+          sendProxyProtocol,
+          buildUpstreamConnectionLimiter(),
+          optimisticConnect,
+          mitmHandshakeMode,
+          maxWarmChainedProxyConnections,
+          warmChainedProxyConnectionIdleTimeout,
+          clientAccessList,
+          aggregationSpillDirectory == null
+              ? null
+              : new SpillingHttpObjectAggregator.Budget(
+                  aggregationSpillDirectory,
+                  maxAggregationMemoryBytes,
+                  maxAggregationMemoryBytesPerMessage),
+          requestBufferingPolicy,
+          responseBuffering,
+          responseCompressionThreshold,
+          maxInspectedWebSocketFrameLength,
+          mitmBypassRules);
+    }
+
+    @Nullable
+    private UpstreamConnectionLimiter buildUpstreamConnectionLimiter() {
+      if (maxUpstreamConnections <= 0 && maxUpstreamConnectionsPerHost <= 0) {
+        return null;
+      }
+      return new UpstreamConnectionLimiter(
+          maxUpstreamConnectionsPerHost,
+          maxUpstreamConnections,
+          maxQueuedConnectionRequests,
+          connectionQueueTimeout.toMillis());
     }
 
     private InetSocketAddress determineListenAddress() {
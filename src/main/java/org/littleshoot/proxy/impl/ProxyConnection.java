@@ -9,6 +9,7 @@ import io.netty.handler.codec.haproxy.HAProxyMessage;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.ReferenceCounted;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.Promise;
@@ -69,6 +70,8 @@ abstract class ProxyConnection<I extends HttpObject> extends SimpleChannelInboun
   /** If using encryption, this holds our {@link SSLEngine}. */
   @Nullable protected volatile SSLEngine sslEngine;
 
+  private static final String MESSAGE_AGGREGATOR_NAME = "messageAggregator";
+
   private static final AtomicLong CONNECTION_ID_GENERATOR = new AtomicLong();
   private final long connectionId;
 
@@ -152,6 +155,9 @@ abstract class ProxyConnection<I extends HttpObject> extends SimpleChannelInboun
         readHTTPChunk(chunk);
         nextState = ProxyUtils.isLastChunk(chunk) ? AWAITING_INITIAL : AWAITING_CHUNK;
         break;
+      case AWAITING_DEFERRED_RESPONSE:
+        readHTTPWhileDeferred(httpObject);
+        break;
       case AWAITING_PROXY_AUTHENTICATION:
         if (httpObject instanceof HttpRequest) {
           // Once we get an HttpRequest, try to process it as usual
@@ -194,6 +200,14 @@ abstract class ProxyConnection<I extends HttpObject> extends SimpleChannelInboun
    */
   abstract ConnectionState readHTTPInitial(I httpObject);
 
+  /**
+   * Handles an {@link HttpObject} read while waiting for a deferred response. By default, the
+   * object is dropped.
+   */
+  protected void readHTTPWhileDeferred(HttpObject httpObject) {
+    LOG.debug("Dropping message read while waiting for a deferred response: {}", httpObject);
+  }
+
   /** Implement this to handle reading a chunk in a chunked transfer. */
   protected abstract void readHTTPChunk(HttpContent chunk);
 
@@ -301,6 +315,7 @@ abstract class ProxyConnection<I extends HttpObject> extends SimpleChannelInboun
             ChannelPipeline pipeline = ctx.pipeline();
             removeHandlerIfPresent(pipeline, "encoder");
             removeHandlerIfPresent(pipeline, "responseWrittenMonitor");
+            removeHandlerIfPresent(pipeline, "compressor");
             removeHandlerIfPresent(pipeline, "decoder");
             removeHandlerIfPresent(pipeline, "requestReadMonitor");
             tunneling = true;
@@ -377,7 +392,61 @@ abstract class ProxyConnection<I extends HttpObject> extends SimpleChannelInboun
    */
   protected void aggregateContentForFiltering(ChannelPipeline pipeline, int numberOfBytesToBuffer) {
     pipeline.addLast("inflater", new HttpContentDecompressor(false, 0));
-    pipeline.addLast("aggregator", new HttpObjectAggregator(numberOfBytesToBuffer));
+    pipeline.addLast("aggregator", newAggregator(numberOfBytesToBuffer, () -> {}));
+  }
+
+  /**
+   * Aggregates the body of the given message only, which has just been read, for filters that
+   * asked for it: inserts an aggregator in front of this connection's handler and hands it the
+   * message. The aggregated message is read in its place once complete, and the aggregator should
+   * then be removed with {@link #stopAggregatingMessage()}. If the body turns out to be larger than
+   * {@code maxContentLength}, the aggregator handles it as usual, removes itself and runs {@code
+   * oversized}.
+   */
+  protected void aggregateMessage(HttpMessage message, int maxContentLength, Runnable oversized) {
+    ChannelPipeline pipeline = channel.pipeline();
+    ChannelInboundHandler aggregator =
+        newAggregator(
+            maxContentLength,
+            () -> {
+              // the rest of the body is dropped by this connection as orphaned content
+              stopAggregatingMessage();
+              oversized.run();
+            });
+    pipeline.addBefore(ctx.name(), MESSAGE_AGGREGATOR_NAME, aggregator);
+    try {
+      // the aggregator releases what it reads, and so will this connection once it has read it
+      aggregator.channelRead(pipeline.context(aggregator), ReferenceCountUtil.retain(message));
+    } catch (Exception e) {
+      pipeline.fireExceptionCaught(e);
+    }
+  }
+
+  /**
+   * Creates an aggregator for filtering, which spills large bodies to disk if the proxy was
+   * configured to, and runs {@code oversized} after handling a body that is too large.
+   */
+  private ChannelInboundHandler newAggregator(int maxContentLength, Runnable oversized) {
+    SpillingHttpObjectAggregator.Budget budget = proxyServer.getAggregationBudget();
+    if (budget != null) {
+      return new SpillingHttpObjectAggregator(budget, maxContentLength, oversized);
+    }
+    return new HttpObjectAggregator(maxContentLength) {
+      @Override
+      protected void handleOversizedMessage(
+          ChannelHandlerContext aggregatorCtx, HttpMessage oversizedMessage) throws Exception {
+        try {
+          super.handleOversizedMessage(aggregatorCtx, oversizedMessage);
+        } finally {
+          oversized.run();
+        }
+      }
+    };
+  }
+
+  /** Removes the aggregator inserted by {@link #aggregateMessage}, if it is still there. */
+  protected void stopAggregatingMessage() {
+    removeHandlerIfPresent(channel.pipeline(), MESSAGE_AGGREGATOR_NAME);
   }
 
   /** Callback that's invoked if this connection becomes saturated. */
@@ -526,6 +595,18 @@ abstract class ProxyConnection<I extends HttpObject> extends SimpleChannelInboun
     }
   }
 
+  /**
+   * Takes over a channel that was already connected when this connection was added to its
+   * pipeline. Netty doesn't fire channelRegistered and channelActive for handlers added after the
+   * fact, so this does what those would have done.
+   */
+  void adoptChannel(ChannelHandlerContext ctx) {
+    this.ctx = ctx;
+    channel = ctx.channel();
+    proxyServer.registerChannel(ctx.channel());
+    connected();
+  }
+
   @Override
   public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
     proxyServer.unregisterChannel(ctx.channel());
@@ -556,7 +637,7 @@ abstract class ProxyConnection<I extends HttpObject> extends SimpleChannelInboun
   public final void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
     LOG.debug("Writability changed. Is writable: {}", channel.isWritable());
     try {
-      if (channel.isWritable()) {
+      if (!isSaturated()) {
         becameWritable();
       } else {
         becameSaturated();
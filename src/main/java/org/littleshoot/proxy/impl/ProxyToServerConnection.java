@@ -1,6 +1,7 @@
 package org.littleshoot.proxy.impl;
 
 import static java.util.Locale.ROOT;
+import static java.util.Objects.requireNonNullElse;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CHUNK;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CONNECT_OK;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_INITIAL;
@@ -21,7 +22,6 @@ import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.haproxy.HAProxyCommand;
 import io.netty.handler.codec.haproxy.HAProxyMessage;
 import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
@@ -62,21 +62,28 @@ import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthResponse;
 import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthResponseDecoder;
 import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthStatus;
 import io.netty.handler.proxy.ProxyConnectException;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
 import io.netty.resolver.AddressResolverGroup;
 import io.netty.resolver.DefaultAddressResolverGroup;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.ReferenceCounted;
 import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLProtocolException;
@@ -91,9 +98,9 @@ import org.littleshoot.proxy.ChainedProxyType;
 import org.littleshoot.proxy.FlowContext;
 import org.littleshoot.proxy.FullFlowContext;
 import org.littleshoot.proxy.HttpFilters;
+import org.littleshoot.proxy.MitmHandshakeMode;
 import org.littleshoot.proxy.MitmManager;
 import org.littleshoot.proxy.TransportProtocol;
-import org.littleshoot.proxy.UnknownTransportProtocolException;
 import org.littleshoot.proxy.extras.HAProxyMessageEncoder;
 import org.littleshoot.proxy.extras.ProxyProtocolMessage;
 
@@ -119,6 +126,12 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
   private static final String SOCKS_ENCODER_NAME = "socksEncoder";
   private static final String SOCKS_DECODER_NAME = "socksDecoder";
   private static final String MAIN_HANDLER_NAME = "handler";
+
+  /**
+   * When the client has been answered before the upstream connection is ready, the number of bytes
+   * from the client that we hold while connecting upstream before we stop reading from the client.
+   */
+  static final int EARLY_CLIENT_DATA_BUFFER_SIZE = 64 * 1024;
   private final ClientToProxyConnection clientConnection;
   private final ProxyToServerConnection serverConnection = this;
   private volatile TransportProtocol transportProtocol;
@@ -128,6 +141,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
   @Nullable private volatile AddressResolverGroup<?> remoteAddressResolver;
   @Nullable private volatile String username;
   @Nullable private volatile String password;
+  private volatile boolean socks5HandshakePipelined;
   private final String serverHostAndPort;
   @Nullable private volatile ChainedProxy chainedProxy;
   private final Queue<ChainedProxy> availableChainedProxies;
@@ -179,9 +193,58 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
    */
   @Nullable private volatile HttpResponse currentHttpResponse;
 
+  /** Whether the body of the current response is being aggregated for its filters. */
+  private boolean aggregatingResponse;
+
   /** Limits bandwidth when throttling is enabled. */
   private final GlobalTrafficShapingHandler trafficHandler;
 
+  /**
+   * The upstream connection slot held by this connection while it is connecting or connected, if
+   * upstream connection limits are configured.
+   */
+  @Nullable private volatile UpstreamConnectionLimiter.Permit connectionPermit;
+
+  /** While waiting for an upstream connection slot, the pending grant of that slot. */
+  @Nullable private volatile Future<UpstreamConnectionLimiter.Permit> queuedConnectionPermit;
+
+  /** Messages written by the client while this connection was waiting for a connection slot. */
+  private final Queue<Object> writesQueuedForConnection = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Whether {@link HttpFilters#proxyToServerConnectionQueued()} has already been reported for the
+   * current connection attempt.
+   */
+  private volatile boolean connectionQueuedReported;
+
+  /**
+   * Set once the client's CONNECT has been answered before the upstream connection is ready, either
+   * by an optimistic CONNECT (see {@link DefaultHttpProxyServer#isOptimisticConnect()}) or by
+   * overlapping MITM handshakes (see {@link DefaultHttpProxyServer#getMitmHandshakeMode()}).
+   */
+  private volatile boolean connectRespondedEarly;
+
+  /**
+   * The TLS ClientHello the client sent through its CONNECT tunnel, if it was peeked at before
+   * connecting upstream, in which case the client has already been answered.
+   */
+  @Nullable private volatile ClientHello clientHello;
+
+  /** Whether to man in the middle the tunnel whose {@link #clientHello} was peeked at. */
+  private volatile boolean clientHelloIntercepted;
+
+  /**
+   * While true, messages from a client that has been answered early are held in {@link
+   * #writesHeldUntilConnected} until the upstream connection is ready. Guarded by {@link
+   * #connectLock}.
+   */
+  private boolean holdingWritesUntilConnected;
+
+  /** Messages from the client held until the upstream connection is ready. */
+  private final Queue<Object> writesHeldUntilConnected = new ArrayDeque<>();
+
+  private int bytesHeldUntilConnected;
+
   /** Create a new ProxyToServerConnection. */
   @Nullable
   @CheckReturnValue
@@ -232,6 +295,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
     // Report connection status to HttpFilters
     currentFilters.proxyToServerConnectionQueued();
+    connectionQueuedReported = true;
 
     setupConnectionParameters();
   }
@@ -318,7 +382,21 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
       httpResponse = substituteResponse;
     }
 
-    currentFilters.serverToProxyResponseReceiving();
+    if (aggregatingResponse) {
+      // the aggregator inserted for this response has put it together
+      aggregatingResponse = false;
+      stopAggregatingMessage();
+    } else {
+      currentFilters.serverToProxyResponseReceiving();
+
+      int bytesToBuffer = responseBufferSize(httpResponse);
+      if (bytesToBuffer > 0) {
+        LOG.debug("Aggregating the body of the response for its filters");
+        aggregatingResponse = true;
+        aggregateMessage(httpResponse, bytesToBuffer, () -> aggregatingResponse = false);
+        return AWAITING_INITIAL;
+      }
+    }
 
     rememberCurrentResponse(httpResponse);
     respondWith(httpResponse);
@@ -332,6 +410,16 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     }
   }
 
+  /** Returns how much of the body of the response its filters want aggregated, if any. */
+  private int responseBufferSize(HttpResponse httpResponse) {
+    if (httpResponse instanceof FullHttpResponse
+        || ProxyUtils.isContentAlwaysEmpty(httpResponse)
+        || (currentHttpRequest != null && ProxyUtils.isHEAD(currentHttpRequest))) {
+      return 0;
+    }
+    return currentFilters.getMaximumResponseBufferSizeInBytes(httpResponse);
+  }
+
   @Override
   protected void readHTTPChunk(HttpContent chunk) {
     respondWith(chunk);
@@ -393,7 +481,13 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
       ((ReferenceCounted) msg).retain();
     }
 
-    if (is(DISCONNECTED) && msg instanceof HttpRequest) {
+    if (queuedConnectionPermit != null) {
+      LOG.debug("Waiting for an upstream connection slot, holding message until connected");
+      writesQueuedForConnection.add(msg);
+      return clientConnection.channel.newSucceededFuture();
+    } else if (holdUntilConnected(msg)) {
+      return clientConnection.channel.newSucceededFuture();
+    } else if (is(DISCONNECTED) && msg instanceof HttpRequest) {
       LOG.debug("Currently disconnected, connect and then write the message");
       connectAndWrite((HttpRequest) msg);
       return clientConnection.channel.newSucceededFuture();
@@ -498,9 +592,26 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     clientConnection.timedOut(this);
   }
 
+  @Override
+  @Nullable
+  Future<Void> disconnect() {
+    Future<UpstreamConnectionLimiter.Permit> queued = queuedConnectionPermit;
+    if (queued != null) {
+      // give up our place in the upstream connection queue
+      queued.cancel(false);
+    }
+    // messages held while connecting will never be written now
+    releaseWritesHeldUntilConnected(false);
+    releaseConnectionPermit();
+    return super.disconnect();
+  }
+
   @Override
   protected void disconnected() {
     super.disconnected();
+    aggregatingResponse = false;
+    releaseWritesHeldUntilConnected(false);
+    releaseConnectionPermit();
     recordServerDisconnected();
     if (chainedProxy != null) {
       // Let the ChainedProxy know that we disconnected
@@ -629,17 +740,155 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
     // Remember our initial request so that we can write it after connecting
     this.initialRequest = initialRequest;
+
+    UpstreamConnectionLimiter limiter = proxyServer.getUpstreamConnectionLimiter();
+    if (limiter == null || connectionPermit != null) {
+      startConnectionFlow();
+      return;
+    }
+
+    final long queuedAtNanos = System.nanoTime();
+    Future<UpstreamConnectionLimiter.Permit> permitFuture =
+        limiter.acquire(serverHostAndPort, clientConnection.channel.eventLoop());
+    if (permitFuture.isDone()) {
+      connectionPermitAcquired(limiter, permitFuture, queuedAtNanos, false);
+      return;
+    }
+
+    LOG.debug("Upstream connection limit reached for {}, queueing request", serverHostAndPort);
+    queuedConnectionPermit = permitFuture;
+    clientConnection.stopReading();
+    if (!connectionQueuedReported) {
+      currentFilters.proxyToServerConnectionQueued();
+      connectionQueuedReported = true;
+    }
+    permitFuture.addListener(
+        future -> {
+          queuedConnectionPermit = null;
+          connectionPermitAcquired(limiter, permitFuture, queuedAtNanos, true);
+        });
+  }
+
+  /**
+   * Continues {@link #connectAndWrite(HttpRequest)} once the request for an upstream connection
+   * slot has completed, either starting the connection flow or failing the request.
+   */
+  private void connectionPermitAcquired(
+      UpstreamConnectionLimiter limiter,
+      Future<UpstreamConnectionLimiter.Permit> permitFuture,
+      long queuedAtNanos,
+      boolean queued) {
+    long waitNanos = queued ? System.nanoTime() - queuedAtNanos : 0;
+    FlowContext flowContext = clientConnection.flowContext();
+    flowContext.setTimingData(
+        "connection_queue_wait_time_ms", TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    flowContext.setTimingData("connection_queue_depth", (long) limiter.getQueueDepth());
+
+    if (permitFuture.isSuccess()) {
+      connectionPermit = permitFuture.getNow();
+      if (queued) {
+        limiter.recordQueueWait(waitNanos);
+      }
+      startConnectionFlow();
+    } else if (permitFuture.isCancelled()) {
+      LOG.debug("Gave up waiting for an upstream connection slot for {}", serverHostAndPort);
+      releaseWritesQueuedForConnection();
+      resetInitialRequest();
+    } else {
+      LOG.info(
+          "Unable to obtain an upstream connection slot for {}: {}",
+          serverHostAndPort,
+          permitFuture.cause().getMessage());
+      releaseWritesQueuedForConnection();
+      currentFilters.proxyToServerConnectionFailed();
+      clientConnection.serverConnectionQueueFailed(this, permitFuture.cause());
+      resetInitialRequest();
+    }
+  }
+
+  private void startConnectionFlow() {
+    connectionQueuedReported = false;
     initializeConnectionFlow();
     connectionFlow.start();
   }
 
+  /** Writes the messages held while waiting for a connection slot, now that we're connected. */
+  private void flushWritesQueuedForConnection(boolean shouldForward) {
+    Object msg;
+    while ((msg = writesQueuedForConnection.poll()) != null) {
+      if (shouldForward) {
+        doWrite(msg);
+      } else {
+        ReferenceCountUtil.release(msg);
+      }
+    }
+  }
+
+  private void releaseWritesQueuedForConnection() {
+    Object msg;
+    while ((msg = writesQueuedForConnection.poll()) != null) {
+      ReferenceCountUtil.release(msg);
+    }
+  }
+
+  /** Gives back our upstream connection slot, if we hold one. */
+  private void releaseConnectionPermit() {
+    UpstreamConnectionLimiter.Permit permit = connectionPermit;
+    connectionPermit = null;
+    if (permit != null) {
+      permit.release();
+    }
+  }
+
   /**
    * This method initializes our {@link ConnectionFlow} based on however this connection has been
    * configured. If the {@link #disableSni} value is true, this method will not pass peer
    * information to the MitmManager when handling CONNECTs.
    */
   private void initializeConnectionFlow() {
-    connectionFlow = new ConnectionFlow(clientConnection, this, connectLock).then(ConnectChannel);
+    connectionFlow = new ConnectionFlow(clientConnection, this, connectLock);
+
+    boolean isConnect = ProxyUtils.isCONNECT(initialRequest);
+    MitmManager mitmManager = proxyServer.getMitmManager();
+    boolean isMitmEnabled = isMitmEnabled();
+    ClientHello peekedClientHello = clientHello;
+    // a client whose ClientHello was peeked at was answered already, as with optimistic CONNECT
+    boolean optimisticConnect =
+        isConnect
+            && !isMitmEnabled
+            && (peekedClientHello != null || proxyServer.isOptimisticConnect());
+
+    // Overlapping the MITM handshakes needs a client SSLEngine that doesn't depend on the server's
+    // SSLSession. On retries the client has already been answered, so only the server side is
+    // redone.
+    MitmHandshakeMode mitmHandshakeMode = MitmHandshakeMode.SEQUENTIAL;
+    SSLEngine earlyClientSslEngine = null;
+    if (isConnect
+        && isMitmEnabled
+        && !disableSslForNonTls
+        && !connectRespondedEarly
+        && peekedClientHello == null
+        && proxyServer.getMitmHandshakeMode() != MitmHandshakeMode.SEQUENTIAL) {
+      earlyClientSslEngine =
+          mitmManager.clientSslEngineForHost(
+              initialRequest, HostAndPort.fromString(serverHostAndPort).getHost());
+      if (earlyClientSslEngine != null) {
+        mitmHandshakeMode = proxyServer.getMitmHandshakeMode();
+      } else {
+        LOG.debug("MitmManager can't create client SSLEngines up front, handshaking sequentially");
+      }
+    }
+
+    if (optimisticConnect && !connectRespondedEarly) {
+      // Tell the client its tunnel is ready right away and let it start sending while we connect.
+      // On retries (e.g. falling back to the next chained proxy) the client has already been told.
+      if (peekedClientHello == null) {
+        connectionFlow.then(clientConnection.RespondCONNECTSuccessful);
+      }
+      connectionFlow.then(clientConnection.StartTunneling).then(HoldClientWritesUntilConnected);
+    } else if (mitmHandshakeMode == MitmHandshakeMode.SPECULATIVE) {
+      connectionFlow.then(SpeculativelyEncryptClientChannel(earlyClientSslEngine));
+    }
 
     boolean sendProxyProtocol = proxyServer.isSendProxyProtocol();
     boolean chained = hasUpstreamChainedProxy();
@@ -648,7 +897,21 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             && (chainedProxyType == ChainedProxyType.SOCKS4
                 || chainedProxyType == ChainedProxyType.SOCKS5);
     boolean chainedHttp = chained && chainedProxyType == ChainedProxyType.HTTP;
-    boolean isConnect = ProxyUtils.isCONNECT(initialRequest);
+
+    // CONNECTs through a chained HTTP proxy can use a warm connection, on which only the CONNECT
+    // itself remains to be done
+    Channel warmChannel = null;
+    ChainedProxyConnectionPool chainedProxyConnectionPool =
+        proxyServer.getChainedProxyConnectionPool();
+    if (chainedProxyConnectionPool != null && chainedHttp && isConnect) {
+      warmChannel = chainedProxyConnectionPool.poll(chainedProxy);
+    }
+
+    if (warmChannel != null) {
+      connectionFlow.then(ConnectWarmChannel(warmChannel));
+    } else {
+      connectionFlow.then(ConnectChannel);
+    }
 
     // Where to write the PROXY header so it reaches the final server:
     //  - Direct: first, right after connecting (peer is the final server).
@@ -674,7 +937,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     }
 
     if (chained) {
-      if (chainedProxy.requiresEncryption()) {
+      if (chainedProxy.requiresEncryption() && warmChannel == null) {
         connectionFlow.then(serverConnection.EncryptChannel(newChainedProxySslEngine()));
       }
       switch (chainedProxyType) {
@@ -682,7 +945,11 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
           connectionFlow.then(SOCKS4CONNECTWithChainedProxy);
           break;
         case SOCKS5:
-          connectionFlow.then(SOCKS5InitialRequest);
+          if (socks5HandshakePipelined) {
+            connectionFlow.then(SOCKS5PipelinedHandshakeWithChainedProxy());
+          } else {
+            connectionFlow.then(SOCKS5InitialRequest);
+          }
           break;
         default:
           break;
@@ -703,42 +970,58 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         connectionFlow.then(SendProxyProtocolHeader);
       }
 
-      MitmManager mitmManager = proxyServer.getMitmManager();
-      boolean isMitmEnabled = currentFilters.proxyToServerAllowMitm() && mitmManager != null;
-
       if (isMitmEnabled) {
         // When MITM is enabled and when chained proxy is set up, remoteAddress
         // will be the chained proxy's address. So we use serverHostAndPort
         // which is the end server's address.
         HostAndPort parsedHostAndPort = HostAndPort.fromString(serverHostAndPort);
 
-        // Check if we should skip SSL (e.g., after a retry for non-SSL server)
-        if (!disableSslForNonTls) {
+        if (peekedClientHello != null) {
+          // the client was answered when its ClientHello was peeked at, and its handshake is
+          // resumed once the one with the server it asked for is done
+          String serverName =
+              requireNonNullElse(peekedClientHello.serverName(), parsedHostAndPort.getHost());
+          SSLEngine serverSslEngine =
+              disableSni
+                  ? mitmManager.serverSslEngine()
+                  : mitmManager.serverSslEngine(serverName, parsedHostAndPort.getPort());
+          connectionFlow
+              .then(serverConnection.EncryptChannel(serverSslEngine))
+              .then(MitmEncryptPeekedClientChannel);
+        } else if (!disableSslForNonTls) {
+          // Check if we should skip SSL (e.g., after a retry for non-SSL server)
           // SNI may be disabled for this request due to a previous failed attempt to connect to the
           // server
           // with SNI enabled.
+          SSLEngine serverSslEngine;
           if (disableSni) {
-            connectionFlow.then(
-                serverConnection.EncryptChannel(proxyServer.getMitmManager().serverSslEngine()));
+            serverSslEngine = proxyServer.getMitmManager().serverSslEngine();
           } else {
-            connectionFlow.then(
-                serverConnection.EncryptChannel(
-                    proxyServer
-                        .getMitmManager()
-                        .serverSslEngine(
-                            parsedHostAndPort.getHost(), parsedHostAndPort.getPort())));
+            serverSslEngine =
+                proxyServer
+                    .getMitmManager()
+                    .serverSslEngine(parsedHostAndPort.getHost(), parsedHostAndPort.getPort());
           }
-        }
 
-        if (!disableSslForNonTls) {
-          connectionFlow
-              .then(clientConnection.RespondCONNECTSuccessful)
-              .then(serverConnection.MitmEncryptClientChannel);
+          if (mitmHandshakeMode == MitmHandshakeMode.PARALLEL) {
+            connectionFlow.then(ParallelMitmHandshakes(serverSslEngine, earlyClientSslEngine));
+          } else {
+            connectionFlow.then(serverConnection.EncryptChannel(serverSslEngine));
+            if (mitmHandshakeMode == MitmHandshakeMode.SEQUENTIAL && !connectRespondedEarly) {
+              connectionFlow
+                  .then(clientConnection.RespondCONNECTSuccessful)
+                  .then(serverConnection.MitmEncryptClientChannel);
+            }
+          }
         } else {
           // For non-SSL servers, just respond CONNECT successful.
           // ClientToProxyConnection will call encryptForMitm() if client sends TLS.
           connectionFlow.then(clientConnection.RespondCONNECTSuccessful);
         }
+      } else if (optimisticConnect) {
+        // the client side of the tunnel is already open, buffered client data is flushed in
+        // connectionSucceeded()
+        connectionFlow.then(serverConnection.StartTunneling);
       } else {
         connectionFlow
             .then(serverConnection.StartTunneling)
@@ -748,6 +1031,195 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     }
   }
 
+  /**
+   * With optimistic CONNECT, runs once the client has been told that its tunnel is established.
+   * From here on, client data is held until the upstream connection is ready, so the client can
+   * resume reading even though we're still connecting.
+   */
+  private final ConnectionFlowStep<HttpResponse> HoldClientWritesUntilConnected =
+      new ConnectionFlowStep<>(this, CONNECTING) {
+        @Override
+        boolean shouldExecuteOnEventLoop() {
+          // our own channel doesn't exist yet
+          return false;
+        }
+
+        @Override
+        boolean shouldSuppressInitialRequest() {
+          return true;
+        }
+
+        @Override
+        protected Future<?> execute() {
+          startHoldingWritesUntilConnected();
+          clientConnection.replayPeekedClientHello();
+          clientConnection.resumeReading();
+          return clientConnection.channel.newSucceededFuture();
+        }
+      };
+
+  /**
+   * With {@link MitmHandshakeMode#SPECULATIVE}, answers the CONNECT and starts the TLS handshake
+   * with the client before we have even connected to the server. The handshake proceeds in the
+   * background while the rest of the connection flow runs.
+   */
+  private ConnectionFlowStep<HttpResponse> SpeculativelyEncryptClientChannel(
+      final SSLEngine clientSslEngine) {
+    return new ConnectionFlowStep<>(this, CONNECTING) {
+      @Override
+      boolean shouldExecuteOnEventLoop() {
+        // our own channel doesn't exist yet
+        return false;
+      }
+
+      @Override
+      boolean shouldSuppressInitialRequest() {
+        return true;
+      }
+
+      @Override
+      protected Future<?> execute() {
+        startHoldingWritesUntilConnected();
+        respondCONNECTAndEncryptClient(clientSslEngine)
+            .addListener(
+                future -> {
+                  if (!future.isSuccess()) {
+                    LOG.debug("Speculative TLS handshake with client failed", future.cause());
+                  }
+                });
+        return clientConnection.channel.newSucceededFuture();
+      }
+    };
+  }
+
+  /**
+   * With {@link MitmHandshakeMode#PARALLEL}, starts the TLS handshake with the server, answers the
+   * CONNECT and starts the TLS handshake with the client, all at once. Succeeds once both
+   * handshakes have completed.
+   */
+  private ConnectionFlowStep<HttpResponse> ParallelMitmHandshakes(
+      final SSLEngine serverSslEngine, final SSLEngine clientSslEngine) {
+    return new ConnectionFlowStep<>(this, HANDSHAKING) {
+      @Override
+      boolean shouldExecuteOnEventLoop() {
+        return false;
+      }
+
+      @Override
+      boolean shouldSuppressInitialRequest() {
+        return true;
+      }
+
+      @Override
+      protected Future<?> execute() {
+        startHoldingWritesUntilConnected();
+        Future<Channel> serverHandshake = encrypt(serverSslEngine, false);
+        Future<Channel> clientHandshake = respondCONNECTAndEncryptClient(clientSslEngine);
+
+        final Promise<Void> bothHandshakes = channel.newPromise();
+        final AtomicInteger remaining = new AtomicInteger(2);
+        GenericFutureListener<Future<Channel>> listener =
+            future -> {
+              if (!future.isSuccess()) {
+                bothHandshakes.tryFailure(future.cause());
+              } else if (remaining.decrementAndGet() == 0) {
+                bothHandshakes.trySuccess(null);
+              }
+            };
+        serverHandshake.addListener(listener);
+        clientHandshake.addListener(listener);
+        return bothHandshakes;
+      }
+    };
+  }
+
+  /**
+   * Answers the client's CONNECT and then starts the TLS handshake with the client. Once the
+   * handshake completes, the client connection is ready to read MITMed requests, which are held
+   * until the upstream connection is ready.
+   *
+   * @return a future for when the handshake with the client has completed
+   */
+  private Future<Channel> respondCONNECTAndEncryptClient(final SSLEngine clientSslEngine) {
+    final Promise<Channel> handshake = clientConnection.channel.eventLoop().newPromise();
+    clientConnection
+        .writeConnectEstablished()
+        .addListener(
+            written -> {
+              if (!written.isSuccess()) {
+                handshake.tryFailure(written.cause());
+                return;
+              }
+              clientConnection
+                  .encrypt(clientSslEngine, false)
+                  .addListener(
+                      encrypted -> {
+                        if (encrypted.isSuccess()) {
+                          clientConnection.setMitming(true);
+                          clientConnection.become(AWAITING_INITIAL);
+                          handshake.trySuccess(clientConnection.channel);
+                        } else {
+                          handshake.tryFailure(encrypted.cause());
+                        }
+                      });
+            });
+    return handshake;
+  }
+
+  private void startHoldingWritesUntilConnected() {
+    synchronized (connectLock) {
+      connectRespondedEarly = true;
+      holdingWritesUntilConnected = true;
+    }
+  }
+
+  /**
+   * Holds the given client message if the client has been answered early and we're still
+   * connecting upstream. Once {@link #EARLY_CLIENT_DATA_BUFFER_SIZE} bytes are held, we stop
+   * reading from the client until the upstream connection is ready.
+   *
+   * @return true if the message was held, false if it should be written as usual
+   */
+  private boolean holdUntilConnected(Object msg) {
+    synchronized (connectLock) {
+      if (!holdingWritesUntilConnected) {
+        return false;
+      }
+      writesHeldUntilConnected.add(msg);
+      if (msg instanceof ByteBuf) {
+        bytesHeldUntilConnected += ((ByteBuf) msg).readableBytes();
+      } else if (msg instanceof HttpContent) {
+        bytesHeldUntilConnected += ((HttpContent) msg).content().readableBytes();
+      }
+      if (bytesHeldUntilConnected >= EARLY_CLIENT_DATA_BUFFER_SIZE) {
+        LOG.debug(
+            "Holding {} bytes while connecting upstream, pausing reads from client",
+            bytesHeldUntilConnected);
+        clientConnection.stopReading();
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Writes (or, if the upstream connection could not be established, releases) the client messages
+   * held while connecting upstream.
+   */
+  private void releaseWritesHeldUntilConnected(boolean write) {
+    synchronized (connectLock) {
+      holdingWritesUntilConnected = false;
+      Object msg;
+      while ((msg = writesHeldUntilConnected.poll()) != null) {
+        if (write) {
+          doWrite(msg);
+        } else {
+          ReferenceCountUtil.release(msg);
+        }
+      }
+      bytesHeldUntilConnected = 0;
+    }
+  }
+
   /**
    * A connection flow step that waits for the server's response to the CONNECT request. This is
    * used in MITM mode when we don't want to add SSL to the server connection upfront - instead, we
@@ -798,7 +1270,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             ByteBuf buf = (ByteBuf) msg;
             if (buf.readableBytes() > 0) {
               byte firstByte = buf.getByte(buf.readerIndex());
-              boolean isTlsHandshake = (firstByte & 0xFF) == 0x16;
+              boolean isTlsHandshake = ClientHello.startsTlsHandshake(buf);
 
               LOG.debug(
                   "Inspecting first byte from client: 0x{} - TLS handshake: {}",
@@ -829,17 +1301,13 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
    * the first bytes from the client to determine if SSL/TLS is needed.
    */
   private void checkAndPerformTlsDetection(Object msg) {
-    MitmManager mitmManager = proxyServer.getMitmManager();
-    boolean isMitmEnabled = currentFilters.proxyToServerAllowMitm() && mitmManager != null;
-
     // Only do TLS detection once, and only when in MITM mode
-    if (isMitmEnabled && !tlsInspectionDone && msg instanceof ByteBuf) {
+    if (isMitmEnabled() && !tlsInspectionDone && msg instanceof ByteBuf) {
       ByteBuf buf = (ByteBuf) msg;
       if (buf.readableBytes() > 0) {
         // Peek at the first byte to determine if this is a TLS handshake
-        // TLS handshake always starts with 0x16 (decimal 22)
         byte firstByte = buf.getByte(buf.readerIndex());
-        boolean isTlsHandshake = (firstByte & 0xFF) == 0x16;
+        boolean isTlsHandshake = ClientHello.startsTlsHandshake(buf);
 
         LOG.debug(
             "Inspecting first byte from client: 0x{} - TLS handshake: {}",
@@ -856,6 +1324,29 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     }
   }
 
+  /**
+   * Returns whether to act as a man in the middle: as decided when the client's ClientHello was
+   * peeked at, if it was, or else as the filters allow.
+   */
+  private boolean isMitmEnabled() {
+    if (proxyServer.getMitmManager() == null) {
+      return false;
+    }
+    return clientHello != null ? clientHelloIntercepted : currentFilters.proxyToServerAllowMitm();
+  }
+
+  /**
+   * Tells this connection, before it connects, that the client has been answered and what its
+   * ClientHello showed.
+   *
+   * @param clientHello the ClientHello the client sent through its CONNECT tunnel
+   * @param intercept whether to man in the middle the tunnel, or else relay it as it is
+   */
+  void clientHelloPeeked(ClientHello clientHello, boolean intercept) {
+    this.clientHello = clientHello;
+    this.clientHelloIntercepted = intercept;
+  }
+
   /** Encrypts both server and client connections for MITM. */
   private void encryptForMitm() {
     HostAndPort parsedHostAndPort = HostAndPort.fromString(serverHostAndPort);
@@ -964,16 +1455,9 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
           Bootstrap cb =
               new Bootstrap()
                   .group(proxyServer.getProxyToServerWorkerFor(transportProtocol))
+                  .channelFactory(proxyServer.getProxyToServerChannelFactoryFor(transportProtocol))
                   .resolver(remoteAddressResolver);
-
-          switch (transportProtocol) {
-            case TCP:
-              LOG.debug("Connecting to server with TCP");
-              cb.channelFactory(NioSocketChannel::new);
-              break;
-            default:
-              throw new UnknownTransportProtocolException(transportProtocol);
-          }
+          LOG.debug("Connecting to server with {}", transportProtocol);
 
           cb.handler(
               new ChannelInitializer<>() {
@@ -991,14 +1475,48 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         }
       };
 
+  /**
+   * Takes over a warm connection to the chained proxy from the {@link ChainedProxyConnectionPool}
+   * instead of connecting. The connection is already encrypted if the chained proxy requires it.
+   */
+  private ConnectionFlowStep<HttpResponse> ConnectWarmChannel(final Channel warmChannel) {
+    return new ConnectionFlowStep<>(this, CONNECTING) {
+      @Override
+      boolean shouldExecuteOnEventLoop() {
+        // our channel is the warm channel, which we haven't taken over yet
+        return false;
+      }
+
+      @Override
+      protected Future<?> execute() {
+        LOG.debug("Using warm connection to chained proxy: {}", warmChannel);
+        return warmChannel
+            .eventLoop()
+            .submit(
+                () -> {
+                  if (!warmChannel.isActive()) {
+                    throw new IllegalStateException("Warm connection to chained proxy was closed");
+                  }
+                  ChannelPipeline pipeline = warmChannel.pipeline();
+                  pipeline.remove(ChainedProxyConnectionPool.WARM_CONNECTION_HANDLER_NAME);
+                  SslHandler sslHandler = pipeline.get(SslHandler.class);
+                  if (sslHandler != null) {
+                    sslEngine = sslHandler.engine();
+                  }
+                  initChannelPipeline(pipeline);
+                  adoptChannel(pipeline.context(serverConnection));
+                });
+      }
+    };
+  }
+
   /** Writes the HTTP CONNECT to the server and waits for a 200 response. */
   private final ConnectionFlowStep<HttpResponse> HTTPCONNECTWithChainedProxy =
       new ConnectionFlowStep<>(this, AWAITING_CONNECT_OK) {
         protected Future<?> execute() {
           LOG.debug("Handling CONNECT request through Chained Proxy");
           chainedProxy.filterRequest(initialRequest);
-          MitmManager mitmManager = proxyServer.getMitmManager();
-          boolean isMitmEnabled = currentFilters.proxyToServerAllowMitm() && mitmManager != null;
+          boolean isMitmEnabled = isMitmEnabled();
           /*
            * We ignore the LastHttpContent which we read from the client
            * connection when we are negotiating connect (see readHttp()
@@ -1213,6 +1731,76 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         }
       };
 
+  /**
+   * Performs the whole SOCKS5 handshake in a single flight: the initial request, the password
+   * credentials (if any) and the CONNECT request are sent without waiting for the replies, which
+   * are then validated in sequence as they arrive. This saves up to two round trips compared to
+   * {@link #SOCKS5InitialRequest}, but only works with proxies that accept the one authentication
+   * method we offer, so it is only used if {@link ChainedProxy#isSocks5HandshakePipelined()} says
+   * so.
+   */
+  private ConnectionFlowStep<HttpResponse> SOCKS5PipelinedHandshakeWithChainedProxy() {
+    final boolean sendCredentials = (username != null) || (password != null);
+    final Socks5AuthMethod authMethod =
+        sendCredentials ? Socks5AuthMethod.PASSWORD : Socks5AuthMethod.NO_AUTH;
+
+    return new ConnectionFlowStep<>(this, AWAITING_CONNECT_OK) {
+
+      @Override
+      protected Future<?> execute() {
+        InetSocketAddress destinationAddress = unresolvedAddressFor(serverHostAndPort);
+        DefaultSocks5CommandRequest connectRequest =
+            new DefaultSocks5CommandRequest(
+                Socks5CommandType.CONNECT,
+                Socks5AddressType.DOMAIN,
+                destinationAddress.getHostString(),
+                destinationAddress.getPort());
+
+        addFirstOrReplaceHandler(SOCKS_ENCODER_NAME, Socks5ClientEncoder.DEFAULT);
+        addFirstOrReplaceHandler(
+            SOCKS_DECODER_NAME, new Socks5PipelinedResponseDecoder(sendCredentials));
+        channel.write(new DefaultSocks5InitialRequest(authMethod));
+        if (sendCredentials) {
+          channel.write(
+              new DefaultSocks5PasswordAuthRequest(
+                  username != null ? username : "", password != null ? password : ""));
+        }
+        return writeToChannel(connectRequest);
+      }
+
+      @Override
+      void read(ConnectionFlow flow, Object msg) {
+        // the decoder only ever produces the replies in the order they were requested
+        if (msg instanceof Socks5InitialResponse) {
+          if (((Socks5InitialResponse) msg).authMethod() == authMethod) {
+            return;
+          }
+          LOG.debug(
+              "Chained SOCKS5 proxy selected {} instead of {}",
+              ((Socks5InitialResponse) msg).authMethod(),
+              authMethod);
+        } else if (msg instanceof Socks5PasswordAuthResponse) {
+          if (((Socks5PasswordAuthResponse) msg).status() == Socks5PasswordAuthStatus.SUCCESS) {
+            return;
+          }
+        } else if (msg instanceof Socks5CommandResponse) {
+          removeHandlerIfPresent(SOCKS_ENCODER_NAME);
+          removeHandlerIfPresent(SOCKS_DECODER_NAME);
+          if (((Socks5CommandResponse) msg).status() == Socks5CommandStatus.SUCCESS) {
+            flow.advance();
+            return;
+          }
+        }
+        flow.fail();
+      }
+
+      @Override
+      void onSuccess(ConnectionFlow flow) {
+        // Do not advance the flow until all SOCKS responses have been parsed
+      }
+    };
+  }
+
   /**
    * Encrypts the client channel based on our server {@link SSLSession}.
    *
@@ -1248,6 +1836,42 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         }
       };
 
+  /**
+   * Like {@link #MitmEncryptClientChannel}, for a client that was answered when its ClientHello was
+   * peeked at: the ClientHello held back then is handed to the client's new TLS handler.
+   */
+  private final ConnectionFlowStep<HttpResponse> MitmEncryptPeekedClientChannel =
+      new ConnectionFlowStep<>(this, HANDSHAKING) {
+        @Override
+        boolean shouldExecuteOnEventLoop() {
+          return false;
+        }
+
+        @Override
+        boolean shouldSuppressInitialRequest() {
+          return true;
+        }
+
+        @Override
+        protected Future<?> execute() {
+          Future<Channel> handshake =
+              clientConnection
+                  .encrypt(
+                      proxyServer
+                          .getMitmManager()
+                          .clientSslEngineFor(initialRequest, sslEngine.getSession()),
+                      false)
+                  .addListener(
+                      future -> {
+                        if (future.isSuccess()) {
+                          clientConnection.setMitming(true);
+                        }
+                      });
+          clientConnection.replayPeekedClientHello();
+          return handshake;
+        }
+      };
+
   /**
    * Called when the connection to the server or upstream chained proxy fails. This method may
    * return true to indicate that the connection should be retried. If returning true, this method
@@ -1327,6 +1951,9 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     }
 
     resetInitialRequest();
+    releaseWritesQueuedForConnection();
+    releaseWritesHeldUntilConnected(false);
+    releaseConnectionPermit();
 
     // no chained proxy fallback or other retry mechanism available
     return false;
@@ -1368,6 +1995,11 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
       return false;
     }
 
+    // Don't retry if the client has already started TLS with us based on the CONNECT
+    if (connectRespondedEarly || clientHello != null) {
+      return false;
+    }
+
     // Only retry if this is an SSL handshake failure
     if (!(cause instanceof javax.net.ssl.SSLException)) {
       return false;
@@ -1404,11 +2036,13 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
       remoteAddressResolver = DefaultAddressResolverGroup.INSTANCE;
       username = chainedProxy.getUsername();
       password = chainedProxy.getPassword();
+      socks5HandshakePipelined = chainedProxy.isSocks5HandshakePipelined();
     } else {
       transportProtocol = TransportProtocol.TCP;
       chainedProxyType = ChainedProxyType.HTTP;
       username = null;
       password = null;
+      socks5HandshakePipelined = false;
 
       // Report DNS resolution to HttpFilters
       long dnsStartTime = System.currentTimeMillis();
@@ -1510,6 +2144,8 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
    */
   void connectionSucceeded(boolean shouldForwardInitialRequest) {
     become(AWAITING_INITIAL);
+    // this must happen before the client resumes reading so that held messages go out first
+    releaseWritesHeldUntilConnected(true);
     if (chainedProxy != null) {
       // Notify the ChainedProxy that we successfully connected
       try {
@@ -1518,7 +2154,10 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         LOG.error("Unable to record connectionSucceeded", e);
       }
     }
-    clientConnection.serverConnectionSucceeded(this, shouldForwardInitialRequest);
+    // if the client was answered early it may already be in the middle of a request, so leave its
+    // state alone
+    clientConnection.serverConnectionSucceeded(
+        this, shouldForwardInitialRequest || connectRespondedEarly);
 
     if (shouldForwardInitialRequest) {
       LOG.debug("Writing initial request: {}", initialRequest);
@@ -1526,6 +2165,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     } else {
       LOG.debug("Dropping initial request: {}", initialRequest);
     }
+    flushWritesQueuedForConnection(shouldForwardInitialRequest);
 
     // we're now done with the initialRequest: it's either been forwarded to the upstream server
     // (HTTP requests), or
@@ -1595,7 +2235,11 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
           .replace(
               MAIN_HANDLER_NAME,
               "pipe-to-client",
-              new WebSocketFramePipeHandler(clientConnection, currentFilters, false));
+              new WebSocketFramePipeHandler(
+                  clientConnection,
+                  currentFilters,
+                  false,
+                  proxyServer.getMaxInspectedWebSocketFrameLength()));
     }
     orderedHandlersToRemove.forEach(this::removeHandlerIfPresent);
     tunneling = true;
@@ -4,6 +4,7 @@ import static java.util.stream.Collectors.toList;
 
 import com.google.errorprone.annotations.CheckReturnValue;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
@@ -92,6 +93,27 @@ public class ProxyUtils {
     return noHttpUri.substring(slashIndex);
   }
 
+  /**
+   * Reads the given number of bytes from a composite buffer as a buffer sharing its components,
+   * rather than a slice of the composite itself, so that it stays valid after the composite has
+   * discarded the components read.
+   */
+  static ByteBuf readRetainedComponents(CompositeByteBuf composite, int length) {
+    List<ByteBuf> parts = composite.decompose(composite.readerIndex(), length);
+    composite.skipBytes(length);
+    if (parts.isEmpty()) {
+      return Unpooled.EMPTY_BUFFER;
+    }
+    if (parts.size() == 1) {
+      return parts.get(0).retain();
+    }
+    CompositeByteBuf read = composite.alloc().compositeBuffer(parts.size());
+    for (ByteBuf part : parts) {
+      read.addComponent(true, part.retain());
+    }
+    return read;
+  }
+
   /**
    * If an HttpObject implements the market interface LastHttpContent, it represents the last chunk
    * of a transfer.
@@ -0,0 +1,248 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers what is written to a slow client, so that the response can be read from the server at
+ * full speed instead of holding the server connection for as long as the client takes to download
+ * it. Sits between the HTTP encoder and the socket of a client connection, and queues the bytes
+ * written while the socket is not writable: in memory up to a limit, then in a temporary file up to
+ * another. They are written to the socket, in order, as it becomes writable again. The connection
+ * only stops reading from servers once this buffer is full, as reported by {@link #isFull()} and a
+ * writability change event.
+ *
+ * <p>Write promises complete once the bytes have actually been written to the socket, so closing
+ * the connection after a write still waits for the buffered bytes.
+ */
+@NullMarked
+final class ResponseBufferHandler extends ChannelDuplexHandler {
+  private static final Logger LOG = LoggerFactory.getLogger(ResponseBufferHandler.class);
+
+  static final String NAME = "responseBuffer";
+
+  /** The limits of the response buffers of a proxy. */
+  static final class Settings {
+    private final Path spillDirectory;
+    private final int maxMemoryBytes;
+    private final long maxDiskBytes;
+
+    Settings(Path spillDirectory, int maxMemoryBytes, long maxDiskBytes) {
+      this.spillDirectory = spillDirectory;
+      this.maxMemoryBytes = maxMemoryBytes;
+      this.maxDiskBytes = maxDiskBytes;
+    }
+
+    ResponseBufferHandler newHandler() {
+      return new ResponseBufferHandler(spillDirectory, maxMemoryBytes, maxDiskBytes);
+    }
+  }
+
+  /** A write queued in memory, or in the spill file if it has no message. */
+  private static final class PendingWrite {
+    @Nullable private final Object msg;
+    private final int length;
+    private final ChannelPromise promise;
+
+    PendingWrite(@Nullable Object msg, int length, ChannelPromise promise) {
+      this.msg = msg;
+      this.length = length;
+      this.promise = promise;
+    }
+  }
+
+  private final Path spillDirectory;
+  private final int maxMemoryBytes;
+  private final long maxDiskBytes;
+  private final Queue<PendingWrite> pendingWrites = new ArrayDeque<>();
+  private long memoryBytes;
+  @Nullable private Path spillPath;
+  @Nullable private FileChannel spillFile;
+  private long spillReadPosition;
+  private long spillWritePosition;
+  private volatile boolean full;
+
+  ResponseBufferHandler(Path spillDirectory, int maxMemoryBytes, long maxDiskBytes) {
+    this.spillDirectory = spillDirectory;
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.maxDiskBytes = maxDiskBytes;
+  }
+
+  /** Returns whether the buffer is full, so the connection should stop reading from servers. */
+  boolean isFull() {
+    return full;
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+    if (pendingWrites.isEmpty() && ctx.channel().isWritable()) {
+      ctx.write(msg, promise);
+      return;
+    }
+    int length = msg instanceof ByteBuf ? ((ByteBuf) msg).readableBytes() : 0;
+    if (length > 0
+        && memoryBytes + length > maxMemoryBytes
+        && spillWritePosition - spillReadPosition + length <= maxDiskBytes) {
+      try {
+        spill((ByteBuf) msg);
+      } catch (IOException e) {
+        promise.setFailure(e);
+        ctx.fireExceptionCaught(e);
+        return;
+      } finally {
+        ReferenceCountUtil.release(msg);
+      }
+      pendingWrites.add(new PendingWrite(null, length, promise));
+    } else {
+      // past both limits the write is still queued: the connection has stopped reading from
+      // servers by then, so at most what was already read is added
+      memoryBytes += length;
+      pendingWrites.add(new PendingWrite(msg, length, promise));
+    }
+    if (ctx.channel().isWritable()) {
+      drain(ctx);
+    } else {
+      updateFullness(ctx);
+    }
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+    // the connection is told about changes of this buffer's fullness instead
+    if (ctx.channel().isWritable()) {
+      drain(ctx);
+    }
+  }
+
+  /** Writes the queued bytes to the socket, for as long as it is writable. */
+  private void drain(ChannelHandlerContext ctx) {
+    boolean wrote = false;
+    PendingWrite pendingWrite;
+    while (ctx.channel().isWritable() && (pendingWrite = pendingWrites.poll()) != null) {
+      Object msg = pendingWrite.msg;
+      if (msg == null) {
+        try {
+          msg = readSpilled(ctx, pendingWrite.length);
+        } catch (IOException e) {
+          LOG.debug("Unable to read buffered response from {}", spillPath, e);
+          pendingWrite.promise.setFailure(e);
+          ctx.close();
+          return;
+        }
+      } else {
+        memoryBytes -= pendingWrite.length;
+      }
+      ctx.write(msg, pendingWrite.promise);
+      wrote = true;
+    }
+    if (wrote) {
+      ctx.flush();
+    }
+    updateFullness(ctx);
+  }
+
+  private void spill(ByteBuf content) throws IOException {
+    FileChannel file = spillFile;
+    if (file == null) {
+      Path path = Files.createTempFile(spillDirectory, "littleproxy-", ".response");
+      spillPath = path;
+      file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      spillFile = file;
+      LOG.debug("Buffering response to slow client in {}", path);
+    }
+    for (ByteBuffer buffer : content.nioBuffers()) {
+      while (buffer.hasRemaining()) {
+        spillWritePosition += file.write(buffer, spillWritePosition);
+      }
+    }
+  }
+
+  private ByteBuf readSpilled(ChannelHandlerContext ctx, int length) throws IOException {
+    FileChannel file = spillFile;
+    if (file == null) {
+      throw new ClosedChannelException();
+    }
+    ByteBuf buffer = ctx.alloc().ioBuffer(length);
+    try {
+      while (buffer.readableBytes() < length) {
+        int read =
+            buffer.writeBytes(
+                file, spillReadPosition + buffer.readableBytes(), length - buffer.readableBytes());
+        if (read < 0) {
+          throw new IOException("Buffered response truncated");
+        }
+      }
+    } catch (IOException e) {
+      buffer.release();
+      throw e;
+    }
+    spillReadPosition += length;
+    if (spillReadPosition == spillWritePosition) {
+      // start over at the beginning of the file once everything in it has been sent
+      spillReadPosition = 0;
+      spillWritePosition = 0;
+    }
+    return buffer;
+  }
+
+  private void updateFullness(ChannelHandlerContext ctx) {
+    boolean nowFull =
+        memoryBytes + spillWritePosition - spillReadPosition >= maxMemoryBytes + maxDiskBytes;
+    if (nowFull != full) {
+      full = nowFull;
+      LOG.debug("Response buffer is {}", nowFull ? "full" : "no longer full");
+      ctx.fireChannelWritabilityChanged();
+    }
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    discard();
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    discard();
+  }
+
+  /** Fails the queued writes and deletes the spill file, as the client went away. */
+  private void discard() {
+    PendingWrite pendingWrite;
+    while ((pendingWrite = pendingWrites.poll()) != null) {
+      ReferenceCountUtil.release(pendingWrite.msg);
+      pendingWrite.promise.tryFailure(new ClosedChannelException());
+    }
+    memoryBytes = 0;
+    spillReadPosition = 0;
+    spillWritePosition = 0;
+    FileChannel file = spillFile;
+    Path path = spillPath;
+    spillFile = null;
+    spillPath = null;
+    if (file != null && path != null) {
+      try {
+        file.close();
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        LOG.warn("Unable to delete buffered response {}", path, e);
+      }
+    }
+  }
+}
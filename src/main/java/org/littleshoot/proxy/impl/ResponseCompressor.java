@@ -0,0 +1,163 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.compression.CompressionOptions;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import java.util.Locale;
+import java.util.Set;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.StreamedHttpResponse;
+
+/**
+ * Compresses responses to clients that accept it, on the proxy-to-client leg. The encoding is
+ * negotiated from the request's Accept-Encoding header among gzip and deflate, and brotli and zstd
+ * when their optional native libraries are on the classpath. Only responses with a compressible
+ * Content-Type, that are not encoded already and whose Content-Length, if known, is at least the
+ * threshold are compressed, chunk by chunk as they stream through.
+ *
+ * <p>{@link StreamedHttpResponse}s are passed through as they are, as their body parts are written
+ * to the client without going through this handler. Responses served by the cache are such
+ * responses, and {@link org.littleshoot.proxy.extras.CachingHttpFiltersSource} serves compressed
+ * variants of them instead.
+ */
+@NullMarked
+public final class ResponseCompressor extends HttpContentCompressor {
+  static final String NAME = "compressor";
+
+  private static final Set<String> COMPRESSIBLE_TYPES =
+      Set.of(
+          "application/json",
+          "application/xml",
+          "application/javascript",
+          "application/x-javascript",
+          "application/ecmascript",
+          "application/wasm",
+          "application/x-www-form-urlencoded",
+          "application/vnd.ms-fontobject",
+          "font/otf",
+          "font/ttf",
+          "image/x-icon",
+          "image/bmp");
+
+  private final int minimumContentLength;
+
+  ResponseCompressor(int minimumContentLength) {
+    // no options selects all encodings available, including brotli and zstd if their libraries are
+    super(minimumContentLength, new CompressionOptions[0]);
+    this.minimumContentLength = minimumContentLength;
+  }
+
+  @Override
+  @Nullable
+  protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+    if (response instanceof StreamedHttpResponse
+        || !isCompressible(response.headers(), minimumContentLength)) {
+      return null;
+    }
+    Result result = super.beginEncode(response, acceptEncoding);
+    if (result != null) {
+      varyOnAcceptEncoding(response.headers());
+    }
+    return result;
+  }
+
+  /**
+   * Returns whether a response with the given headers is worth compressing: it has a compressible
+   * Content-Type, no Content-Encoding or Content-Range, doesn't forbid transformations with {@code
+   * Cache-Control: no-transform}, and its Content-Length, if known, is at least the given minimum.
+   */
+  public static boolean isCompressible(HttpHeaders headers, long minimumContentLength) {
+    String encoding = headers.get(HttpHeaderNames.CONTENT_ENCODING);
+    if ((encoding != null && !HttpHeaderValues.IDENTITY.contentEqualsIgnoreCase(encoding.trim()))
+        || headers.contains(HttpHeaderNames.CONTENT_RANGE)) {
+      return false;
+    }
+    for (String cacheControl : headers.getAll(HttpHeaderNames.CACHE_CONTROL)) {
+      if (cacheControl.toLowerCase(Locale.ROOT).contains("no-transform")) {
+        return false;
+      }
+    }
+    long contentLength;
+    try {
+      contentLength = Long.parseLong(headers.get(HttpHeaderNames.CONTENT_LENGTH, "-1").trim());
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    if (contentLength >= 0 && contentLength < minimumContentLength) {
+      return false;
+    }
+    String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE);
+    if (contentType == null) {
+      return false;
+    }
+    int semicolon = contentType.indexOf(';');
+    String mimeType =
+        (semicolon < 0 ? contentType : contentType.substring(0, semicolon))
+            .trim()
+            .toLowerCase(Locale.ROOT);
+    return mimeType.startsWith("text/")
+        || mimeType.endsWith("+json")
+        || mimeType.endsWith("+xml")
+        || COMPRESSIBLE_TYPES.contains(mimeType);
+  }
+
+  /** Returns whether a request with the given headers accepts gzip-encoded responses. */
+  public static boolean acceptsGzip(HttpHeaders requestHeaders) {
+    boolean accepted = false;
+    for (String value : requestHeaders.getAll(HttpHeaderNames.ACCEPT_ENCODING)) {
+      for (String coding : ProxyUtils.splitCommaSeparatedHeaderValues(value)) {
+        int semicolon = coding.indexOf(';');
+        String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+        boolean gzip = "gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name);
+        if (!gzip && !"*".equals(name)) {
+          continue;
+        }
+        boolean allowed = semicolon < 0 || !isZeroQuality(coding.substring(semicolon + 1));
+        if (gzip) {
+          // an explicit gzip wins over *
+          return allowed;
+        }
+        accepted = allowed;
+      }
+    }
+    return accepted;
+  }
+
+  private static boolean isZeroQuality(String parameters) {
+    for (String parameter : parameters.split(";")) {
+      String trimmed = parameter.trim();
+      if (trimmed.startsWith("q=") || trimmed.startsWith("Q=")) {
+        try {
+          return Double.parseDouble(trimmed.substring(2)) <= 0;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Marks a response as compressed for the client: caches must vary on Accept-Encoding, and a
+   * strong ETag no longer identifies the bytes sent, so it is made weak.
+   */
+  public static void varyOnAcceptEncoding(HttpHeaders headers) {
+    boolean varies = false;
+    for (String vary : headers.getAll(HttpHeaderNames.VARY)) {
+      for (String name : ProxyUtils.splitCommaSeparatedHeaderValues(vary)) {
+        varies |= "*".equals(name) || HttpHeaderNames.ACCEPT_ENCODING.contentEqualsIgnoreCase(name);
+      }
+    }
+    if (!varies) {
+      headers.add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+    }
+    String etag = headers.get(HttpHeaderNames.ETAG);
+    if (etag != null && etag.startsWith("\"")) {
+      headers.set(HttpHeaderNames.ETAG, "W/" + etag);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.socksx.SocksVersion;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5CommandResponse;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5InitialResponse;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5PasswordAuthResponse;
+import io.netty.handler.codec.socksx.v5.Socks5AddressDecoder;
+import io.netty.handler.codec.socksx.v5.Socks5AddressType;
+import io.netty.handler.codec.socksx.v5.Socks5AuthMethod;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthStatus;
+import java.util.List;
+import org.jspecify.annotations.NullMarked;
+
+/**
+ * Decodes the replies to a pipelined SOCKS5 handshake: the initial response, the password
+ * authentication response (if credentials were sent) and the command response, in that order.
+ *
+ * <p>Netty's SOCKS5 decoders each handle a single reply and have to be swapped out in between.
+ * When the handshake is pipelined, the proxy's replies may arrive in a single read, so a single
+ * decoder has to handle all of them. Any bytes following the command response are passed on as
+ * they are.
+ */
+@NullMarked
+final class Socks5PipelinedResponseDecoder extends ByteToMessageDecoder {
+  private static final byte PASSWORD_AUTH_VERSION = 1;
+
+  private enum State {
+    INITIAL_RESPONSE,
+    PASSWORD_AUTH_RESPONSE,
+    COMMAND_RESPONSE,
+    DONE
+  }
+
+  private final boolean expectPasswordAuthResponse;
+  private State state = State.INITIAL_RESPONSE;
+
+  Socks5PipelinedResponseDecoder(boolean expectPasswordAuthResponse) {
+    this.expectPasswordAuthResponse = expectPasswordAuthResponse;
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out)
+      throws Exception {
+    switch (state) {
+      case INITIAL_RESPONSE:
+        if (in.readableBytes() < 2) {
+          return;
+        }
+        checkVersion(in.readByte(), SocksVersion.SOCKS5.byteValue());
+        out.add(new DefaultSocks5InitialResponse(Socks5AuthMethod.valueOf(in.readByte())));
+        state = expectPasswordAuthResponse ? State.PASSWORD_AUTH_RESPONSE : State.COMMAND_RESPONSE;
+        break;
+      case PASSWORD_AUTH_RESPONSE:
+        if (in.readableBytes() < 2) {
+          return;
+        }
+        checkVersion(in.readByte(), PASSWORD_AUTH_VERSION);
+        out.add(
+            new DefaultSocks5PasswordAuthResponse(Socks5PasswordAuthStatus.valueOf(in.readByte())));
+        state = State.COMMAND_RESPONSE;
+        break;
+      case COMMAND_RESPONSE:
+        int length = commandResponseLength(in);
+        if (length < 0 || in.readableBytes() < length) {
+          return;
+        }
+        checkVersion(in.readByte(), SocksVersion.SOCKS5.byteValue());
+        Socks5CommandStatus status = Socks5CommandStatus.valueOf(in.readByte());
+        in.skipBytes(1); // reserved
+        Socks5AddressType addressType = Socks5AddressType.valueOf(in.readByte());
+        String address = Socks5AddressDecoder.DEFAULT.decodeAddress(addressType, in);
+        int port = in.readUnsignedShort();
+        out.add(new DefaultSocks5CommandResponse(status, addressType, address, port));
+        state = State.DONE;
+        break;
+      case DONE:
+        out.add(in.readRetainedSlice(in.readableBytes()));
+        break;
+      default:
+        throw new IllegalStateException("Unexpected state: " + state);
+    }
+  }
+
+  /**
+   * Returns the length of the command response at the reader index of {@code in}, or -1 if not
+   * enough bytes are available yet to tell.
+   */
+  private static int commandResponseLength(ByteBuf in) {
+    if (in.readableBytes() < 5) {
+      return -1;
+    }
+    int index = in.readerIndex();
+    // version, status, reserved and address type, followed by the address and a 2 byte port
+    Socks5AddressType addressType = Socks5AddressType.valueOf(in.getByte(index + 3));
+    if (addressType == Socks5AddressType.IPv4) {
+      return 4 + 4 + 2;
+    } else if (addressType == Socks5AddressType.IPv6) {
+      return 4 + 16 + 2;
+    } else if (addressType == Socks5AddressType.DOMAIN) {
+      return 4 + 1 + in.getUnsignedByte(index + 4) + 2;
+    }
+    throw new DecoderException("Unsupported SOCKS5 address type: " + addressType);
+  }
+
+  private static void checkVersion(byte version, byte expected) {
+    if (version != expected) {
+      throw new DecoderException(
+          "Unsupported SOCKS version in reply: " + version + " (expected: " + expected + ")");
+    }
+  }
+}
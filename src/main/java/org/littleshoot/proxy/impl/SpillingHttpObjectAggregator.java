@@ -0,0 +1,375 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Aggregates HTTP messages for filtering like {@link
+ * io.netty.handler.codec.http.HttpObjectAggregator}, but keeps their bodies in memory only while
+ * they fit both the limit per message and the {@link Budget} shared by all connections of the
+ * proxy. Other bodies are written to a temporary file as they arrive, and the aggregated message
+ * reads its content from a memory mapping of that file, so that the operating system only pages in
+ * the parts the filters actually read. The file is deleted once the message has been released.
+ */
+@NullMarked
+final class SpillingHttpObjectAggregator extends MessageToMessageDecoder<HttpObject> {
+  private static final Logger LOG = LoggerFactory.getLogger(SpillingHttpObjectAggregator.class);
+
+  /** The spill directory and memory budget shared by the aggregators of a proxy. */
+  static final class Budget {
+    private final Path directory;
+    private final long maxMemoryBytes;
+    private final int maxMemoryBytesPerMessage;
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final AtomicLong spilledMessages = new AtomicLong();
+
+    Budget(Path directory, long maxMemoryBytes, int maxMemoryBytesPerMessage) {
+      this.directory = directory;
+      this.maxMemoryBytes = maxMemoryBytes;
+      this.maxMemoryBytesPerMessage = maxMemoryBytesPerMessage;
+    }
+
+    /** Takes the given number of bytes from the budget, if they are left. */
+    boolean reserve(int bytes) {
+      long used;
+      do {
+        used = memoryBytes.get();
+        if (used + bytes > maxMemoryBytes) {
+          return false;
+        }
+      } while (!memoryBytes.compareAndSet(used, used + bytes));
+      return true;
+    }
+
+    void release(long bytes) {
+      memoryBytes.addAndGet(-bytes);
+    }
+
+    /** Number of bytes of message bodies held in memory. */
+    long getMemoryBytes() {
+      return memoryBytes.get();
+    }
+
+    /** Number of messages whose bodies were spilled to disk. */
+    long getSpilledMessages() {
+      return spilledMessages.get();
+    }
+  }
+
+  private final Budget budget;
+  private final int maxContentLength;
+  private final Runnable oversized;
+
+  @Nullable private HttpMessage currentMessage;
+  @Nullable private Body body;
+
+  /**
+   * @param budget the memory budget to keep bodies in
+   * @param maxContentLength the maximum length of a body, in bytes
+   * @param oversized run when a body turns out to be longer than {@code maxContentLength}
+   */
+  SpillingHttpObjectAggregator(Budget budget, int maxContentLength, Runnable oversized) {
+    this.budget = budget;
+    this.maxContentLength = maxContentLength;
+    this.oversized = oversized;
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out)
+      throws IOException {
+    if (msg instanceof FullHttpMessage) {
+      out.add(ReferenceCountUtil.retain(msg));
+    } else if (msg instanceof HttpMessage) {
+      releaseBody();
+      HttpMessage message = (HttpMessage) msg;
+      if (HttpUtil.getContentLength(message, -1L) > maxContentLength) {
+        handleOversizedMessage(ctx, message);
+        return;
+      }
+      if (message instanceof HttpRequest && HttpUtil.is100ContinueExpected(message)) {
+        // the client waits for this before sending the body, which is needed before the request
+        // is sent on
+        ctx.writeAndFlush(
+            new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE, Unpooled.EMPTY_BUFFER));
+        message.headers().remove(HttpHeaderNames.EXPECT);
+      }
+      currentMessage = message;
+      body = new Body(budget, ctx.alloc());
+    } else if (msg instanceof HttpContent && currentMessage != null && body != null) {
+      HttpMessage message = currentMessage;
+      ByteBuf content = ((HttpContent) msg).content();
+      if ((long) body.length + content.readableBytes() > maxContentLength) {
+        releaseBody();
+        handleOversizedMessage(ctx, message);
+        return;
+      }
+      body.append(content);
+      if (msg instanceof LastHttpContent) {
+        Body completed = body;
+        currentMessage = null;
+        body = null;
+        out.add(aggregate(message, completed.finish(), ((LastHttpContent) msg).trailingHeaders()));
+      }
+    }
+    // anything else is the rest of an oversized message, which is dropped
+  }
+
+  private static FullHttpMessage aggregate(
+      HttpMessage message, ByteBuf content, HttpHeaders trailingHeaders) {
+    HttpHeaders trailers = new DefaultHttpHeaders().set(trailingHeaders);
+    FullHttpMessage aggregated;
+    if (message instanceof HttpRequest) {
+      HttpRequest request = (HttpRequest) message;
+      aggregated =
+          new DefaultFullHttpRequest(
+              request.protocolVersion(),
+              request.method(),
+              request.uri(),
+              content,
+              request.headers(),
+              trailers);
+    } else {
+      HttpResponse response = (HttpResponse) message;
+      aggregated =
+          new DefaultFullHttpResponse(
+              response.protocolVersion(), response.status(), content, response.headers(), trailers);
+    }
+    aggregated.headers().remove(HttpHeaderNames.TRANSFER_ENCODING);
+    HttpUtil.setContentLength(aggregated, content.readableBytes());
+    return aggregated;
+  }
+
+  /**
+   * Answers requests that are too large with a 413 Request Entity Too Large response, and fails
+   * responses that are, as {@link io.netty.handler.codec.http.HttpObjectAggregator} does.
+   */
+  private void handleOversizedMessage(ChannelHandlerContext ctx, HttpMessage message) {
+    currentMessage = null;
+    try {
+      if (!(message instanceof HttpRequest)) {
+        throw new TooLongFrameException("Response entity too large: " + message);
+      }
+      FullHttpResponse tooLarge =
+          new DefaultFullHttpResponse(
+              HttpVersion.HTTP_1_1,
+              HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+              Unpooled.EMPTY_BUFFER);
+      HttpUtil.setContentLength(tooLarge, 0);
+      if (!HttpUtil.is100ContinueExpected(message) && !HttpUtil.isKeepAlive(message)) {
+        HttpUtil.setKeepAlive(tooLarge, false);
+        ctx.writeAndFlush(tooLarge).addListener(ChannelFutureListener.CLOSE);
+      } else {
+        ctx.writeAndFlush(tooLarge).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+      }
+    } finally {
+      oversized.run();
+    }
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    releaseBody();
+    super.handlerRemoved(ctx);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    releaseBody();
+    super.channelInactive(ctx);
+  }
+
+  private void releaseBody() {
+    currentMessage = null;
+    if (body != null) {
+      body.release();
+      body = null;
+    }
+  }
+
+  /** The body of a message being aggregated. */
+  private static final class Body {
+    private final Budget budget;
+    private final BudgetedByteBuf memory;
+    @Nullable private SpillFile spillFile;
+    private int length;
+
+    Body(Budget budget, ByteBufAllocator alloc) {
+      this.budget = budget;
+      this.memory = new BudgetedByteBuf(alloc, budget);
+    }
+
+    void append(ByteBuf content) throws IOException {
+      int bytes = content.readableBytes();
+      if (bytes == 0) {
+        return;
+      }
+      if (spillFile == null
+          && length + bytes <= budget.maxMemoryBytesPerMessage
+          && budget.reserve(bytes)) {
+        memory.reservedBytes += bytes;
+        memory.addComponent(true, content.retain());
+      } else {
+        SpillFile file = spillFile;
+        if (file == null) {
+          file = spill();
+        }
+        file.write(content);
+      }
+      length += bytes;
+    }
+
+    /** Moves the body held in memory so far to a new temporary file. */
+    private SpillFile spill() throws IOException {
+      SpillFile file = SpillFile.create(budget.directory);
+      LOG.debug("Spilling body of {} bytes to {}", length, file.path);
+      try {
+        file.write(memory);
+      } catch (IOException | RuntimeException e) {
+        // the body is still in memory, and is released from there
+        file.delete();
+        throw e;
+      }
+      memory.release();
+      spillFile = file;
+      budget.spilledMessages.incrementAndGet();
+      return file;
+    }
+
+    /** Returns the content of the complete body, which holds on to its memory or file. */
+    ByteBuf finish() throws IOException {
+      SpillFile file = spillFile;
+      if (file == null) {
+        return memory;
+      }
+      try {
+        return new MappedFileByteBuf(
+            file.channel.map(FileChannel.MapMode.READ_WRITE, 0, length), file);
+      } catch (IOException | RuntimeException e) {
+        file.delete();
+        throw e;
+      }
+    }
+
+    /** Releases a body that will not be completed. */
+    void release() {
+      if (spillFile == null) {
+        memory.release();
+      } else {
+        spillFile.delete();
+      }
+    }
+  }
+
+  /** A temporary file holding a body, written sequentially on the event loop. */
+  private static final class SpillFile {
+    private final Path path;
+    private final FileChannel channel;
+
+    private SpillFile(Path path, FileChannel channel) {
+      this.path = path;
+      this.channel = channel;
+    }
+
+    static SpillFile create(Path directory) throws IOException {
+      Path path = Files.createTempFile(directory, "littleproxy-", ".body");
+      try {
+        return new SpillFile(
+            path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+      } catch (IOException e) {
+        Files.deleteIfExists(path);
+        throw e;
+      }
+    }
+
+    void write(ByteBuf content) throws IOException {
+      for (ByteBuffer buffer : content.nioBuffers()) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+    }
+
+    void delete() {
+      try {
+        channel.close();
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        LOG.warn("Unable to delete spilled body {}", path, e);
+      }
+    }
+  }
+
+  /** Content held in memory, which gives its bytes back to the budget once released. */
+  private static final class BudgetedByteBuf extends CompositeByteBuf {
+    private final Budget budget;
+    private long reservedBytes;
+
+    BudgetedByteBuf(ByteBufAllocator alloc, Budget budget) {
+      super(alloc, false, Integer.MAX_VALUE);
+      this.budget = budget;
+    }
+
+    @Override
+    protected void deallocate() {
+      super.deallocate();
+      budget.release(reservedBytes);
+      reservedBytes = 0;
+    }
+  }
+
+  /**
+   * Content mapped from a temporary file, which is deleted once released. The mapping itself is
+   * only dropped by the garbage collector.
+   */
+  private static final class MappedFileByteBuf extends UnpooledDirectByteBuf {
+    private final SpillFile file;
+
+    MappedFileByteBuf(ByteBuffer mapping, SpillFile file) {
+      super(ByteBufAllocator.DEFAULT, mapping, mapping.capacity());
+      this.file = file;
+    }
+
+    @Override
+    protected void deallocate() {
+      super.deallocate();
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of concurrent connections from the proxy to upstream servers, both per origin
+ * (host and port) and globally.
+ *
+ * <p>When no connection slot is available, the request waits in a bounded FIFO queue. Whenever a
+ * slot is released, the oldest waiting request whose origin has spare capacity is granted the slot,
+ * so a busy origin does not block requests queued for other origins. Requests that wait longer than
+ * the queue timeout, or that arrive while the queue is full, are failed.
+ *
+ * <p>A limit of zero or less means "unlimited".
+ */
+@NullMarked
+public class UpstreamConnectionLimiter {
+  private static final Logger LOG = LoggerFactory.getLogger(UpstreamConnectionLimiter.class);
+
+  private final int maxConnectionsPerHost;
+  private final int maxConnections;
+  private final int maxQueuedRequests;
+  private final long queueTimeoutMillis;
+
+  /** Guarded by {@code this}. */
+  private final Map<String, Integer> connectionsByHost = new HashMap<>();
+
+  /** Guarded by {@code this}. */
+  private final Deque<Waiter> waiters = new ArrayDeque<>();
+
+  /** Guarded by {@code this}. */
+  private int activeConnections;
+
+  private final AtomicLong totalQueued = new AtomicLong();
+  private final AtomicLong totalRejected = new AtomicLong();
+  private final AtomicLong totalTimedOut = new AtomicLong();
+  private final AtomicLong totalQueueWaitNanos = new AtomicLong();
+  private final AtomicLong totalGrantedFromQueue = new AtomicLong();
+
+  UpstreamConnectionLimiter(
+      int maxConnectionsPerHost,
+      int maxConnections,
+      int maxQueuedRequests,
+      long queueTimeoutMillis) {
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.maxConnections = maxConnections;
+    this.maxQueuedRequests = maxQueuedRequests;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+  }
+
+  /**
+   * Acquires a connection slot for the given origin. If a slot is free, the returned future is
+   * already complete. Otherwise the request is queued and the future completes once a slot is
+   * granted, or fails with a {@link TimeoutException} if the queue timeout elapses first. If the
+   * queue is full, the future fails immediately with a {@link RejectedExecutionException}.
+   *
+   * <p>Cancelling the returned future removes the request from the queue.
+   *
+   * @param hostAndPort the origin the connection is for
+   * @param executor the executor on which listeners of the returned future are notified
+   * @return a future that is completed with the granted {@link Permit}
+   */
+  public Future<Permit> acquire(String hostAndPort, EventExecutor executor) {
+    final Waiter waiter;
+    synchronized (this) {
+      // any waiter that could use a free slot would already have been granted it on release, so
+      // a free slot here never jumps the queue
+      if (hasCapacityFor(hostAndPort)) {
+        return executor.newSucceededFuture(take(hostAndPort));
+      }
+      if (maxQueuedRequests > 0 && waiters.size() >= maxQueuedRequests) {
+        totalRejected.incrementAndGet();
+        return executor.newFailedFuture(
+            new RejectedExecutionException(
+                "Upstream connection queue is full (" + maxQueuedRequests + " requests)"));
+      }
+      waiter = new Waiter(hostAndPort, executor.newPromise());
+      waiters.addLast(waiter);
+    }
+    totalQueued.incrementAndGet();
+    LOG.debug("No upstream connection slot available for {}, queueing request", hostAndPort);
+
+    if (queueTimeoutMillis > 0) {
+      waiter.timeout =
+          executor.schedule(
+              () -> {
+                boolean waiting;
+                synchronized (UpstreamConnectionLimiter.this) {
+                  waiting = waiters.remove(waiter);
+                }
+                // count the timeout before anyone waiting on the promise hears of it
+                if (waiting && waiter.promise.setUncancellable()) {
+                  totalTimedOut.incrementAndGet();
+                  waiter.promise.setFailure(
+                      new TimeoutException(
+                          "Timed out after "
+                              + queueTimeoutMillis
+                              + "ms waiting for an upstream connection to "
+                              + hostAndPort));
+                }
+              },
+              queueTimeoutMillis,
+              TimeUnit.MILLISECONDS);
+    }
+    waiter.promise.addListener(
+        future -> {
+          synchronized (UpstreamConnectionLimiter.this) {
+            waiters.remove(waiter);
+          }
+          if (waiter.timeout != null) {
+            waiter.timeout.cancel(false);
+          }
+        });
+    return waiter.promise;
+  }
+
+  /** Number of requests currently waiting for a connection slot. */
+  public synchronized int getQueueDepth() {
+    return waiters.size();
+  }
+
+  /** Number of connection slots currently in use across all origins. */
+  public synchronized int getActiveConnections() {
+    return activeConnections;
+  }
+
+  /** Number of connection slots currently in use for the given origin. */
+  public synchronized int getActiveConnections(String hostAndPort) {
+    return connectionsByHost.getOrDefault(hostAndPort, 0);
+  }
+
+  /** Total number of requests that had to wait for a connection slot. */
+  public long getTotalQueued() {
+    return totalQueued.get();
+  }
+
+  /** Total number of requests that were rejected because the queue was full. */
+  public long getTotalRejected() {
+    return totalRejected.get();
+  }
+
+  /** Total number of requests that timed out while waiting for a connection slot. */
+  public long getTotalTimedOut() {
+    return totalTimedOut.get();
+  }
+
+  /**
+   * Average time, in milliseconds, that requests granted a slot from the queue spent waiting for
+   * it.
+   */
+  public double getAverageQueueWaitMillis() {
+    long granted = totalGrantedFromQueue.get();
+    if (granted == 0) {
+      return 0;
+    }
+    return TimeUnit.NANOSECONDS.toMicros(totalQueueWaitNanos.get()) / 1000.0 / granted;
+  }
+
+  void recordQueueWait(long waitNanos) {
+    totalGrantedFromQueue.incrementAndGet();
+    totalQueueWaitNanos.addAndGet(waitNanos);
+  }
+
+  private boolean hasCapacityFor(String hostAndPort) {
+    if (maxConnections > 0 && activeConnections >= maxConnections) {
+      return false;
+    }
+    return maxConnectionsPerHost <= 0
+        || connectionsByHost.getOrDefault(hostAndPort, 0) < maxConnectionsPerHost;
+  }
+
+  private Permit take(String hostAndPort) {
+    activeConnections++;
+    connectionsByHost.merge(hostAndPort, 1, Integer::sum);
+    return new Permit(hostAndPort);
+  }
+
+  private void release(String hostAndPort) {
+    Waiter granted = null;
+    Permit permit = null;
+    synchronized (this) {
+      activeConnections--;
+      connectionsByHost.computeIfPresent(hostAndPort, (key, count) -> count > 1 ? count - 1 : null);
+
+      // hand the freed capacity to the oldest waiter that can use it
+      for (Iterator<Waiter> it = waiters.iterator(); it.hasNext(); ) {
+        Waiter waiter = it.next();
+        if (waiter.promise.isDone()) {
+          it.remove();
+        } else if (hasCapacityFor(waiter.hostAndPort)) {
+          it.remove();
+          granted = waiter;
+          permit = take(waiter.hostAndPort);
+          break;
+        }
+      }
+    }
+
+    if (granted != null && !granted.promise.trySuccess(permit)) {
+      // the waiter timed out or was cancelled concurrently; pass the slot on
+      permit.release();
+    }
+  }
+
+  /**
+   * A connection slot granted by {@link UpstreamConnectionLimiter#acquire(String, EventExecutor)}.
+   * Releasing a permit more than once has no effect.
+   */
+  public final class Permit {
+    private final String hostAndPort;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Permit(String hostAndPort) {
+      this.hostAndPort = hostAndPort;
+    }
+
+    public void release() {
+      if (released.compareAndSet(false, true)) {
+        UpstreamConnectionLimiter.this.release(hostAndPort);
+      }
+    }
+  }
+
+  private static final class Waiter {
+    private final String hostAndPort;
+    private final Promise<Permit> promise;
+    @Nullable private volatile ScheduledFuture<?> timeout;
+
+    private Waiter(String hostAndPort, Promise<Permit> promise) {
+      this.hostAndPort = hostAndPort;
+      this.promise = promise;
+    }
+  }
+}
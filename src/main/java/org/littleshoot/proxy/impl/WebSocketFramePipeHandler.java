@@ -6,54 +6,154 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
 import java.util.function.Supplier;
+import org.jspecify.annotations.Nullable;
 import org.littleshoot.proxy.HttpFilters;
+import org.littleshoot.proxy.WebSocketFrameView;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A {@link ChannelInboundHandlerAdapter} that forwards raw WebSocket frame bytes to the peer
  * connection and optionally notifies an {@link HttpFilters} observer via {@link
+ * HttpFilters#inspectWebSocketFrame(WebSocketFrameView, boolean)} and {@link
  * HttpFilters#webSocketFrameReceived(Supplier, boolean)}.
  *
  * <p>Installed on both the client-to-proxy and proxy-to-server channels after a WebSocket upgrade,
- * replacing the HTTP codec pipeline.
+ * replacing the HTTP codec pipeline. Frame boundaries are found by a {@link WebSocketFrameReader},
+ * so filters are notified once per frame, and the bytes forwarded during a read cycle are flushed
+ * once, when it completes.
  */
 public class WebSocketFramePipeHandler extends ChannelInboundHandlerAdapter {
   private static final Logger log = LoggerFactory.getLogger(WebSocketFramePipeHandler.class);
   private final ProxyConnection<?> sink;
   private final HttpFilters filters;
   private final boolean fromClient;
+  private final int maxInspectedFrameLength;
+  @Nullable private WebSocketFrameReader frameReader;
+  private boolean flushPending;
+
+  private final WebSocketFrameReader.Sink frameSink =
+      new WebSocketFrameReader.Sink() {
+        @Override
+        public void frame(WebSocketFrameReader.Frame frame) {
+          notifyFilters(frame);
+          forward(frame.content());
+        }
+
+        @Override
+        public void bytes(ByteBuf bytes) {
+          forward(bytes);
+        }
+      };
 
   public WebSocketFramePipeHandler(
       final ProxyConnection<?> sink, final HttpFilters filters, final boolean fromClient) {
+    this(sink, filters, fromClient, 0);
+  }
+
+  /**
+   * @param maxInspectedFrameLength the length of the longest frames filters are notified of, or 0
+   *     to notify them of each read from the network instead
+   */
+  WebSocketFramePipeHandler(
+      final ProxyConnection<?> sink,
+      final HttpFilters filters,
+      final boolean fromClient,
+      final int maxInspectedFrameLength) {
     this.sink = requireNonNull(sink, "sink cannot be null");
     this.filters = filters;
     this.fromClient = fromClient;
+    this.maxInspectedFrameLength = maxInspectedFrameLength;
+  }
+
+  @Override
+  public void handlerAdded(final ChannelHandlerContext ctx) {
+    if (maxInspectedFrameLength > 0) {
+      frameReader = new WebSocketFrameReader(maxInspectedFrameLength, ctx.alloc());
+    }
   }
 
   @Override
   public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
-    if (filters != null && msg instanceof ByteBuf) {
-      try {
-        filters.webSocketFrameReceived(new WebSocketFrameBytes((ByteBuf) msg), fromClient);
-      } catch (Exception e) {
-        log.error("Failed to notify listeners that websocket frame received", e);
+    if (!(msg instanceof ByteBuf)) {
+      forward(msg);
+      return;
+    }
+    ByteBuf bytes = (ByteBuf) msg;
+    sink.proxyServer.recordWebSocketBytes(fromClient, bytes.readableBytes());
+    WebSocketFrameReader reader = frameReader;
+    if (reader == null) {
+      if (filters != null) {
+        try {
+          filters.webSocketFrameReceived(new WebSocketFrameBytes(bytes), fromClient);
+        } catch (Exception e) {
+          log.error("Failed to notify listeners that websocket frame received", e);
+        }
       }
+      forward(bytes);
+      return;
     }
-    Channel channel = sink.channel;
-    if (channel != null) {
-      channel.writeAndFlush(msg);
+    sink.proxyServer.recordWebSocketFrames(fromClient, reader.read(bytes, frameSink));
+  }
+
+  @Override
+  public void channelReadComplete(final ChannelHandlerContext ctx) {
+    if (flushPending) {
+      flushPending = false;
+      Channel channel = sink.channel;
+      if (channel != null) {
+        channel.flush();
+      }
     }
+    ctx.fireChannelReadComplete();
   }
 
   @Override
   public void channelInactive(final ChannelHandlerContext ctx) {
+    releaseFrameReader();
     if (!sink.getCurrentState().isDisconnectingOrDisconnected()) {
       sink.disconnect();
     }
   }
 
+  @Override
+  public void handlerRemoved(final ChannelHandlerContext ctx) {
+    releaseFrameReader();
+  }
+
+  private void notifyFilters(WebSocketFrameReader.Frame frame) {
+    if (filters == null) {
+      return;
+    }
+    try {
+      filters.inspectWebSocketFrame(frame, fromClient);
+      filters.webSocketFrameReceived(new WebSocketFrameBytes(frame.content()), fromClient);
+    } catch (Exception e) {
+      log.error("Failed to notify listeners that websocket frame received", e);
+    }
+  }
+
+  /** Writes to the peer connection, to be flushed once the current read cycle completes. */
+  private void forward(Object msg) {
+    Channel channel = sink.channel;
+    if (channel != null) {
+      channel.write(msg);
+      flushPending = true;
+    } else {
+      ReferenceCountUtil.release(msg);
+    }
+  }
+
+  private void releaseFrameReader() {
+    WebSocketFrameReader reader = frameReader;
+    frameReader = null;
+    if (reader != null) {
+      reader.release();
+    }
+  }
+
   private static class WebSocketFrameBytes implements Supplier<byte[]> {
     private final ByteBuf message;
 
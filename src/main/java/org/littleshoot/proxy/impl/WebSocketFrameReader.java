@@ -0,0 +1,192 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.util.ByteProcessor;
+import org.jspecify.annotations.NullMarked;
+import org.littleshoot.proxy.WebSocketFrameView;
+
+/**
+ * Finds the boundaries of the WebSocket frames in the bytes relayed in one direction, as they
+ * arrive. Bytes are kept in a composite of the received buffers until a whole frame has arrived,
+ * which is then handed on as a buffer sharing them. Frames longer than the inspection limit are
+ * handed on piece by piece as they arrive instead of being held back, and so are all bytes after a
+ * frame header that can't be parsed.
+ */
+@NullMarked
+final class WebSocketFrameReader {
+  /** Receives what the reader hands on, in order, taking over the references to the buffers. */
+  interface Sink {
+    /** Receives a whole frame, no longer than the inspection limit. */
+    void frame(Frame frame);
+
+    /** Receives bytes of frames not held back for inspection. */
+    void bytes(ByteBuf bytes);
+  }
+
+  private final int maxInspectedFrameLength;
+  private final CompositeByteBuf pending;
+  private long uninspectedBytes;
+  private boolean corrupt;
+
+  WebSocketFrameReader(int maxInspectedFrameLength, ByteBufAllocator alloc) {
+    this.maxInspectedFrameLength = maxInspectedFrameLength;
+    this.pending = alloc.compositeBuffer(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Reads the given bytes, taking over the reference to them, and hands on the frames they
+   * complete.
+   *
+   * @return the number of frames whose header was read
+   */
+  int read(ByteBuf bytes, Sink sink) {
+    if (corrupt) {
+      sink.bytes(bytes);
+      return 0;
+    }
+    pending.addComponent(true, bytes);
+    int frames = 0;
+    try {
+      while (pending.isReadable()) {
+        if (uninspectedBytes > 0) {
+          int length = (int) Math.min(uninspectedBytes, pending.readableBytes());
+          uninspectedBytes -= length;
+          sink.bytes(ProxyUtils.readRetainedComponents(pending, length));
+          continue;
+        }
+        int start = pending.readerIndex();
+        int available = pending.readableBytes();
+        if (available < 2) {
+          break;
+        }
+        int first = pending.getUnsignedByte(start);
+        int second = pending.getUnsignedByte(start + 1);
+        boolean masked = (second & 0x80) != 0;
+        int lengthField = second & 0x7f;
+        int headerLength =
+            2 + (lengthField == 126 ? 2 : lengthField == 127 ? 8 : 0) + (masked ? 4 : 0);
+        if (available < headerLength) {
+          break;
+        }
+        long payloadLength =
+            lengthField == 126
+                ? pending.getUnsignedShort(start + 2)
+                : lengthField == 127 ? pending.getLong(start + 2) : lengthField;
+        if (payloadLength < 0 || payloadLength > Long.MAX_VALUE - headerLength) {
+          // not a frame we can make sense of, so relay the rest as it is
+          corrupt = true;
+          sink.bytes(ProxyUtils.readRetainedComponents(pending, available));
+          break;
+        }
+        frames++;
+        if (payloadLength > maxInspectedFrameLength - headerLength) {
+          uninspectedBytes = headerLength + payloadLength;
+          continue;
+        }
+        int frameLength = headerLength + (int) payloadLength;
+        if (available < frameLength) {
+          // the header is read again once the rest of the frame arrives
+          frames--;
+          break;
+        }
+        int maskingKey = masked ? pending.getInt(start + headerLength - 4) : 0;
+        sink.frame(
+            new Frame(
+                ProxyUtils.readRetainedComponents(pending, frameLength),
+                first,
+                masked,
+                maskingKey,
+                headerLength));
+      }
+    } finally {
+      pending.discardReadComponents();
+    }
+    return frames;
+  }
+
+  /** Releases the bytes held back, when the connection is closed. */
+  void release() {
+    if (pending.refCnt() > 0) {
+      pending.release();
+    }
+  }
+
+  /** A whole frame, in a buffer sharing the received bytes. */
+  static final class Frame implements WebSocketFrameView {
+    private final ByteBuf frame;
+    private final int firstByte;
+    private final boolean masked;
+    private final int maskingKey;
+    private final int headerLength;
+
+    Frame(ByteBuf frame, int firstByte, boolean masked, int maskingKey, int headerLength) {
+      this.frame = frame;
+      this.firstByte = firstByte;
+      this.masked = masked;
+      this.maskingKey = maskingKey;
+      this.headerLength = headerLength;
+    }
+
+    /** Returns the frame buffer itself, which the owner of the frame must release. */
+    ByteBuf content() {
+      return frame;
+    }
+
+    @Override
+    public int opcode() {
+      return firstByte & 0x0f;
+    }
+
+    @Override
+    public boolean isFinal() {
+      return (firstByte & 0x80) != 0;
+    }
+
+    @Override
+    public int reservedBits() {
+      return (firstByte >> 4) & 0x07;
+    }
+
+    @Override
+    public boolean isMasked() {
+      return masked;
+    }
+
+    @Override
+    public ByteBuf frame() {
+      return frame.slice().asReadOnly();
+    }
+
+    @Override
+    public ByteBuf payload() {
+      return frame
+          .slice(frame.readerIndex() + headerLength, frame.readableBytes() - headerLength)
+          .asReadOnly();
+    }
+
+    @Override
+    public int forEachPayloadByte(ByteProcessor processor) {
+      int payloadStart = frame.readerIndex() + headerLength;
+      int payloadLength = frame.readableBytes() - headerLength;
+      if (payloadLength == 0) {
+        return -1;
+      }
+      ByteProcessor unmasking =
+          !masked
+              ? processor
+              : new ByteProcessor() {
+                private int index;
+
+                @Override
+                public boolean process(byte value) throws Exception {
+                  int shift = 24 - 8 * (index++ & 3);
+                  return processor.process((byte) (value ^ (maskingKey >>> shift)));
+                }
+              };
+      int stoppedAt = frame.forEachByte(payloadStart, payloadLength, unmasking);
+      return stoppedAt < 0 ? -1 : stoppedAt - payloadStart;
+    }
+  }
+}
@@ -1,9 +1,15 @@
 package org.littleshoot.proxy;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
@@ -11,14 +17,56 @@ import io.netty.example.socksproxy.SocksServerInitializer;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
 
 abstract class BaseChainedSocksProxyTest extends BaseProxyTest {
+  private static final int LATENCY_TEST_REQUESTS = 50;
+
   private EventLoopGroup socksBossGroup;
   private EventLoopGroup socksWorkerGroup;
   private int socksPort;
+  private final AtomicInteger socksConnections = new AtomicInteger();
+  private final AtomicInteger socks5RequestsInFirstRead = new AtomicInteger();
 
   protected abstract ChainedProxyType getSocksProxyType();
 
+  protected boolean isSocks5HandshakePipelined() {
+    return false;
+  }
+
+  /**
+   * Makes a series of requests, each over a new connection and thus with a new handshake with the
+   * SOCKS proxy, and reports the average latency. A pipelined SOCKS5 handshake must reach the SOCKS
+   * proxy as one flight, the CONNECT request arriving in the same read as the greeting, while an
+   * unpipelined one waits for the reply to the greeting before sending the request.
+   */
+  @Test
+  @Tag("slow-test")
+  public void testHandshakeLatency() {
+    long start = System.nanoTime();
+    for (int i = 0; i < LATENCY_TEST_REQUESTS; i++) {
+      ResponseInfo response = httpGetWithApacheClient(webHost, DEFAULT_RESOURCE, true, false);
+      assertThat(response.getStatusCode()).isEqualTo(200);
+    }
+    assertThat(socksConnections.get()).isGreaterThanOrEqualTo(LATENCY_TEST_REQUESTS);
+    if (getSocksProxyType() == ChainedProxyType.SOCKS5) {
+      assertThat(socks5RequestsInFirstRead.get())
+          .isEqualTo(isSocks5HandshakePipelined() ? socksConnections.get() : 0);
+    }
+    long averageMicros =
+        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / LATENCY_TEST_REQUESTS;
+    logger()
+        .info(
+            "{} (pipelined: {}): {} requests over new connections, {} us on average",
+            getSocksProxyType(),
+            isSocks5HandshakePipelined(),
+            LATENCY_TEST_REQUESTS,
+            averageMicros);
+  }
+
   @Override
   protected void setUp() throws Exception {
     initializeSocksServer();
@@ -49,7 +97,17 @@ abstract class BaseChainedSocksProxyTest extends BaseProxyTest {
         .group(socksBossGroup, socksWorkerGroup)
         .channel(NioServerSocketChannel.class)
         .handler(new LoggingHandler(LogLevel.DEBUG))
-        .childHandler(new SocksServerInitializer());
+        .childHandler(
+            new ChannelInitializer<Channel>() {
+              @Override
+              protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new FirstReadRecorder());
+                if (isSocks5HandshakePipelined()) {
+                  ch.pipeline().addLast(new PipelinedSocks5GreetingSplitter());
+                }
+                ch.pipeline().addLast(new SocksServerInitializer());
+              }
+            });
 
     ChannelFuture channelFuture = bootstrap.bind(0).sync();
     socksPort = ((InetSocketAddress) channelFuture.channel().localAddress()).getPort();
@@ -64,6 +122,11 @@ abstract class BaseChainedSocksProxyTest extends BaseProxyTest {
                 return new InetSocketAddress("127.0.0.1", socksPort);
               }
 
+              @Override
+              public boolean isSocks5HandshakePipelined() {
+                return BaseChainedSocksProxyTest.this.isSocks5HandshakePipelined();
+              }
+
               @Override
               public ChainedProxyType getChainedProxyType() {
                 final ChainedProxyType socksProxyType = getSocksProxyType();
@@ -78,4 +141,50 @@ abstract class BaseChainedSocksProxyTest extends BaseProxyTest {
               }
             });
   }
+
+  /**
+   * Counts the connections to the SOCKS server, and those whose first read holds more than a SOCKS5
+   * greeting, i.e. the start of a pipelined handshake.
+   */
+  private final class FirstReadRecorder extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      ctx.pipeline().remove(this);
+      socksConnections.incrementAndGet();
+      ByteBuf in = (ByteBuf) msg;
+      if (in.readableBytes() >= 2
+          && in.getUnsignedByte(in.readerIndex()) == 5
+          && in.readableBytes() > 2 + in.getUnsignedByte(in.readerIndex() + 1)) {
+        socks5RequestsInFirstRead.incrementAndGet();
+      }
+      ctx.fireChannelRead(msg);
+    }
+  }
+
+  /**
+   * Lets the example SOCKS server handle a pipelined SOCKS5 handshake. The example server adds the
+   * decoder for the CONNECT request to the head of the pipeline once it has read the greeting, so
+   * the CONNECT request must not already be on its way down the pipeline at that point. This hands
+   * the greeting on by itself and then refires the rest of the first read from the head of the
+   * pipeline.
+   */
+  private static final class PipelinedSocks5GreetingSplitter extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      ctx.pipeline().remove(this);
+      ByteBuf in = (ByteBuf) msg;
+      if (in.readableBytes() < 2) {
+        ctx.fireChannelRead(in);
+        return;
+      }
+      // version, number of methods, methods
+      int greetingLength = 2 + in.getUnsignedByte(in.readerIndex() + 1);
+      if (in.readableBytes() <= greetingLength) {
+        ctx.fireChannelRead(in);
+        return;
+      }
+      ctx.fireChannelRead(in.readRetainedSlice(greetingLength));
+      ctx.pipeline().fireChannelRead(in);
+    }
+  }
 }
@@ -0,0 +1,98 @@
+package org.littleshoot.proxy;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.littleshoot.proxy.TestUtils.openTunnel;
+import static org.littleshoot.proxy.TestUtils.readHead;
+
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import org.jspecify.annotations.NullMarked;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
+import org.littleshoot.proxy.extras.TestMitmManager;
+
+/**
+ * Base for tests of a MITM proxy that handshakes with the client without waiting for its handshake
+ * with the server to complete.
+ */
+@NullMarked
+public abstract class BaseMitmHandshakeProxyTest extends BaseProxyTest {
+  /** Used by the tests' client, and by the upstream server that they tell when to handshake. */
+  protected final SSLContext sslContext =
+      new SelfSignedSslEngineSource("target/littleproxy_keystore.jks", true, true).getSslContext();
+
+  protected abstract MitmHandshakeMode mitmHandshakeMode();
+
+  @Override
+  protected void setUp() {
+    proxyServer =
+        bootstrapProxy()
+            .withPort(0)
+            .withManInTheMiddle(new TestMitmManager())
+            .withMitmHandshakeMode(mitmHandshakeMode())
+            .start();
+  }
+
+  @Override
+  protected boolean isMITM() {
+    return true;
+  }
+
+  @Test
+  public void handshakesWithClientBeforeServerHandshakeCompletes() throws Exception {
+    CountDownLatch clientHandshakeDone = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (ServerSocket upstream = new ServerSocket(0)) {
+      Future<Boolean> handshakesOverlapped =
+          executor.submit(
+              () -> {
+                try (Socket accepted = upstream.accept()) {
+                  // the server doesn't answer the proxy's ClientHello until the client is done
+                  boolean overlapped = clientHandshakeDone.await(10, SECONDS);
+                  SSLSocket tls =
+                      (SSLSocket)
+                          sslContext
+                              .getSocketFactory()
+                              .createSocket(accepted, "127.0.0.1", accepted.getPort(), true);
+                  tls.setUseClientMode(false);
+                  assertThat(readHead(tls.getInputStream())).startsWith("GET / ");
+                  OutputStream out = tls.getOutputStream();
+                  out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(US_ASCII));
+                  out.flush();
+                  return overlapped;
+                }
+              });
+
+      String target = "127.0.0.1:" + upstream.getLocalPort();
+      try (Socket tunnel = openTunnel(proxyServer.getListenAddress().getPort(), target);
+          SSLSocket client =
+              (SSLSocket)
+                  sslContext
+                      .getSocketFactory()
+                      .createSocket(tunnel, "127.0.0.1", upstream.getLocalPort(), true)) {
+        client.startHandshake();
+        clientHandshakeDone.countDown();
+
+        OutputStream out = client.getOutputStream();
+        out.write(("GET / HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes(US_ASCII));
+        out.flush();
+        assertThat(readHead(client.getInputStream())).startsWith("HTTP/1.1 200 ");
+        assertThat(new String(client.getInputStream().readNBytes(2), US_ASCII)).isEqualTo("ok");
+      }
+      assertThat(handshakesOverlapped.get(10, SECONDS))
+          .as("the client handshake completes while the server handshake is still in progress")
+          .isTrue();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package org.littleshoot.proxy;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.littleshoot.proxy.TestUtils.createProxiedHttpClient;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.littleshoot.proxy.extras.CachingHttpFiltersSource;
+import org.littleshoot.proxy.extras.HttpCache;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/**
+ * Compares a proxy restarted with an empty cache to one restarted with a cache snapshot, by
+ * replaying the same skewed workload against both and reporting how many requests reached the
+ * origin server and how long it took until nine requests in ten were served from the cache.
+ *
+ * <p>Run with {@code java CacheWarmStartBenchmark [resources] [requests] [originDelayMillis]}.
+ */
+public class CacheWarmStartBenchmark {
+  private static final int WINDOW = 100;
+
+  private final int resources;
+  private final int requests;
+  private final WireMockServer origin;
+
+  private CacheWarmStartBenchmark(int resources, int requests, int originDelayMillis) {
+    this.resources = resources;
+    this.requests = requests;
+    this.origin = new WireMockServer(options().dynamicPort());
+    origin.start();
+    origin.stubFor(
+        get(anyUrl())
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=3600")
+                    .withBody(new byte[4096])
+                    .withFixedDelay(originDelayMillis)));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int resources = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int requests = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+    int originDelayMillis = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+    Path snapshot = Files.createTempFile("littleproxy-cache", ".snapshot");
+    CacheWarmStartBenchmark benchmark =
+        new CacheWarmStartBenchmark(resources, requests, originDelayMillis);
+    try {
+      benchmark.run("before restart", null, snapshot);
+      Result cold = benchmark.run("cold restart", null, null);
+      Result warm = benchmark.run("restart from snapshot", snapshot, null);
+      System.out.printf(
+          "Snapshot saved %d origin requests and %d ms of warm-up%n",
+          cold.originRequests - warm.originRequests,
+          cold.timeToWarmMillis - warm.timeToWarmMillis);
+    } finally {
+      benchmark.origin.stop();
+      Files.deleteIfExists(snapshot);
+    }
+  }
+
+  /**
+   * Replays the workload through a new proxy with an empty cache.
+   *
+   * @param loadFrom snapshot to warm the cache from, if any
+   * @param saveTo snapshot to write when the proxy stops, if any
+   */
+  private Result run(String name, Path loadFrom, Path saveTo) throws Exception {
+    origin.resetRequests();
+    CachingHttpFiltersSource filtersSource = new CachingHttpFiltersSource(new HttpCache(64 << 20));
+    if (loadFrom != null) {
+      filtersSource.withSnapshot(loadFrom, resources);
+    } else if (saveTo != null) {
+      filtersSource.withSnapshot(saveTo, resources);
+    }
+    long startNanos = System.nanoTime();
+    HttpProxyServer proxy =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withFiltersSource(filtersSource)
+            .start();
+    long timeToWarmMillis = -1;
+    try (CloseableHttpClient client =
+        createProxiedHttpClient(proxy.getListenAddress().getPort())) {
+      // the same seed gives every run the same workload
+      Random random = new Random(42);
+      long[] hitsAfter = new long[requests + 1];
+      for (int i = 1; i <= requests; i++) {
+        HttpResponse response = client.execute(new HttpGet(url(nextResource(random))));
+        EntityUtils.consume(response.getEntity());
+        hitsAfter[i] = filtersSource.getCache().getHitCount();
+        if (timeToWarmMillis < 0
+            && i >= WINDOW
+            && hitsAfter[i] - hitsAfter[i - WINDOW] >= WINDOW * 9 / 10) {
+          timeToWarmMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        }
+      }
+    } finally {
+      proxy.stop();
+    }
+    Result result =
+        new Result(origin.getAllServeEvents().size(), timeToWarmMillis, filtersSource.getCache());
+    System.out.printf(
+        "%-22s origin requests: %5d, time to 90%% hits: %6d ms, hit ratio: %.2f%n",
+        name, result.originRequests, result.timeToWarmMillis, result.hitRatio);
+    return result;
+  }
+
+  /** Picks a resource with a Zipf-like distribution, so that a few resources are very popular. */
+  private int nextResource(Random random) {
+    double u = random.nextDouble();
+    return (int) Math.min(resources - 1, Math.floor(Math.pow(resources, u)) - 1);
+  }
+
+  private String url(int resource) {
+    return "http://localhost:" + origin.port() + "/resource/" + resource;
+  }
+
+  private static final class Result {
+    private final long originRequests;
+    private final long timeToWarmMillis;
+    private final double hitRatio;
+
+    private Result(long originRequests, long timeToWarmMillis, HttpCache cache) {
+      this.originRequests = originRequests;
+      this.timeToWarmMillis = timeToWarmMillis;
+      this.hitRatio = cache.getHitRatio();
+    }
+  }
+}
@@ -0,0 +1,600 @@
+package org.littleshoot.proxy;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.littleshoot.proxy.TestUtils.createProxiedHttpClient;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.littleshoot.proxy.extras.CachingHttpFiltersSource;
+import org.littleshoot.proxy.extras.HttpCache;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/** Tests serving responses from the cache of a {@link CachingHttpFiltersSource}. */
+public final class CachingProxyTest {
+  private HttpProxyServer proxyServer;
+  private HttpCache cache;
+
+  private WireMockServer mockServer;
+  private String baseUrl;
+
+  @BeforeEach
+  void setUp() {
+    // the tests check the bodies the cache stores and slices, which the origin must not compress
+    mockServer = new WireMockServer(options().dynamicPort().gzipDisabled(true));
+    mockServer.start();
+    baseUrl = "http://localhost:" + mockServer.port();
+
+    cache = new HttpCache(1024 * 1024);
+    proxyServer =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withFiltersSource(new CachingHttpFiltersSource(cache))
+            .start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    try {
+      if (proxyServer != null) {
+        proxyServer.abort();
+      }
+    } finally {
+      if (mockServer != null) {
+        mockServer.stop();
+      }
+    }
+  }
+
+  @Test
+  void servesFreshResponsesFromCache() throws Exception {
+    mockServer.stubFor(
+        get(urlEqualTo("/cacheable"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withBody("cached body")));
+
+    for (int i = 0; i < 3; i++) {
+      HttpResponse response = execute(new HttpGet(baseUrl + "/cacheable"));
+      assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+      assertThat(EntityUtils.toString(response.getEntity())).isEqualTo("cached body");
+      if (i > 0) {
+        assertThat(response.getFirstHeader("Age")).isNotNull();
+      }
+    }
+
+    mockServer.verify(1, getRequestedFor(urlEqualTo("/cacheable")));
+    assertThat(cache.getHitCount()).isEqualTo(2);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+    assertThat(cache.getBytesServed()).isEqualTo(2 * "cached body".length());
+  }
+
+  @Test
+  void doesNotCacheNoStoreResponses() throws Exception {
+    mockServer.stubFor(
+        get(urlEqualTo("/nostore"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "no-store, max-age=60")
+                    .withBody("not cached")));
+
+    for (int i = 0; i < 2; i++) {
+      HttpResponse response = execute(new HttpGet(baseUrl + "/nostore"));
+      assertThat(EntityUtils.toString(response.getEntity())).isEqualTo("not cached");
+    }
+
+    mockServer.verify(2, getRequestedFor(urlEqualTo("/nostore")));
+    assertThat(cache.getEntryCount()).isZero();
+  }
+
+  @Test
+  void requestNoCacheBypassesCache() throws Exception {
+    mockServer.stubFor(
+        get(urlEqualTo("/cacheable"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withBody("cached body")));
+
+    execute(new HttpGet(baseUrl + "/cacheable"));
+    HttpGet noCache = new HttpGet(baseUrl + "/cacheable");
+    noCache.setHeader("Cache-Control", "no-cache");
+    execute(noCache);
+
+    mockServer.verify(2, getRequestedFor(urlEqualTo("/cacheable")));
+  }
+
+  @Test
+  void unsafeRequestsInvalidateCachedResponse() throws Exception {
+    mockServer.stubFor(
+        get(urlEqualTo("/resource"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withBody("resource")));
+    mockServer.stubFor(post(urlEqualTo("/resource")).willReturn(aResponse().withStatus(204)));
+
+    execute(new HttpGet(baseUrl + "/resource"));
+    execute(new HttpPost(baseUrl + "/resource"));
+    execute(new HttpGet(baseUrl + "/resource"));
+
+    mockServer.verify(2, getRequestedFor(urlEqualTo("/resource")));
+  }
+
+  @Test
+  void onlyIfCachedMissIsGatewayTimeout() throws Exception {
+    HttpGet request = new HttpGet(baseUrl + "/missing");
+    request.setHeader("Cache-Control", "only-if-cached");
+
+    HttpResponse response = execute(request);
+
+    assertThat(response.getStatusLine().getStatusCode()).isEqualTo(504);
+    mockServer.verify(0, getRequestedFor(urlEqualTo("/missing")));
+  }
+
+  @Test
+  void storesVariantsOfResponsesThatVary() throws Exception {
+    mockServer.stubFor(
+        get(urlEqualTo("/negotiated"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withHeader("Vary", "Accept-Language")
+                    .withBody("english")));
+    mockServer.stubFor(
+        get(urlEqualTo("/negotiated"))
+            .withHeader("Accept-Language", equalTo("fr"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withHeader("Vary", "Accept-Language")
+                    .withBody("french")));
+
+    assertThat(bodyFor("/negotiated", "en-GB, en;q=0.8")).isEqualTo("english");
+    assertThat(bodyFor("/negotiated", "fr")).isEqualTo("french");
+    assertThat(bodyFor("/negotiated", "EN-GB,en;q=0.8")).isEqualTo("english");
+    assertThat(bodyFor("/negotiated", "fr")).isEqualTo("french");
+
+    mockServer.verify(2, getRequestedFor(urlEqualTo("/negotiated")));
+    assertThat(cache.getEntryCount()).isEqualTo(2);
+    assertThat(cache.getHitCount()).isEqualTo(2);
+  }
+
+  @Test
+  void servesRangesFromCachedResponses() throws Exception {
+    mockServer.stubFor(
+        get(urlEqualTo("/ranged"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withHeader("Content-Type", "text/plain")
+                    .withBody("0123456789")));
+    execute(new HttpGet(baseUrl + "/ranged"));
+
+    HttpResponse single = execute(rangeRequest("/ranged", "bytes=2-4"));
+    assertThat(single.getStatusLine().getStatusCode()).isEqualTo(206);
+    assertThat(single.getFirstHeader("Content-Range").getValue()).isEqualTo("bytes 2-4/10");
+    assertThat(EntityUtils.toString(single.getEntity())).isEqualTo("234");
+
+    HttpResponse multiple = execute(rangeRequest("/ranged", "bytes=0-1, -2"));
+    assertThat(multiple.getStatusLine().getStatusCode()).isEqualTo(206);
+    assertThat(multiple.getFirstHeader("Content-Type").getValue())
+        .startsWith("multipart/byteranges; boundary=");
+    assertThat(EntityUtils.toString(multiple.getEntity()))
+        .contains("Content-Range: bytes 0-1/10\r\n\r\n01\r\n")
+        .contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n");
+
+    HttpResponse unsatisfiable = execute(rangeRequest("/ranged", "bytes=20-"));
+    assertThat(unsatisfiable.getStatusLine().getStatusCode()).isEqualTo(416);
+    assertThat(unsatisfiable.getFirstHeader("Content-Range").getValue()).isEqualTo("bytes */10");
+
+    mockServer.verify(1, getRequestedFor(urlEqualTo("/ranged")));
+  }
+
+  @Test
+  void fillsCacheInBackgroundOnRangeMiss() throws Exception {
+    proxyServer.abort();
+    proxyServer =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withFiltersSource(new CachingHttpFiltersSource(cache).withRangeFill(true))
+            .start();
+    mockServer.stubFor(
+        get(urlEqualTo("/video"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withBody("0123456789")));
+    mockServer.stubFor(
+        get(urlEqualTo("/video"))
+            .withHeader("Range", equalTo("bytes=0-3"))
+            .willReturn(
+                aResponse()
+                    .withStatus(206)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withHeader("Content-Range", "bytes 0-3/10")
+                    .withBody("0123")));
+
+    HttpResponse miss = execute(rangeRequest("/video", "bytes=0-3"));
+    assertThat(EntityUtils.toString(miss.getEntity())).isEqualTo("0123");
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (cache.getEntryCount() == 0 && System.nanoTime() < deadline) {
+      Thread.sleep(20);
+    }
+
+    HttpResponse hit = execute(rangeRequest("/video", "bytes=4-"));
+    assertThat(hit.getStatusLine().getStatusCode()).isEqualTo(206);
+    assertThat(EntityUtils.toString(hit.getEntity())).isEqualTo("456789");
+    mockServer.verify(2, getRequestedFor(urlEqualTo("/video")));
+    mockServer.verify(
+        0, getRequestedFor(urlEqualTo("/video")).withHeader("Range", equalTo("bytes=4-")));
+  }
+
+  @Test
+  void warmsCacheFromSnapshotOnRestart(@TempDir Path directory) throws Exception {
+    Path snapshot = directory.resolve("cache.snapshot");
+    proxyServer.abort();
+    proxyServer =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withFiltersSource(new CachingHttpFiltersSource(cache).withSnapshot(snapshot, 100))
+            .start();
+    mockServer.stubFor(
+        get(urlEqualTo("/cacheable"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withBody("cached body")));
+    execute(new HttpGet(baseUrl + "/cacheable"));
+    proxyServer.stop();
+
+    cache = new HttpCache(1024 * 1024);
+    proxyServer =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withFiltersSource(new CachingHttpFiltersSource(cache).withSnapshot(snapshot, 100))
+            .start();
+    HttpResponse response = execute(new HttpGet(baseUrl + "/cacheable"));
+
+    assertThat(EntityUtils.toString(response.getEntity())).isEqualTo("cached body");
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    mockServer.verify(1, getRequestedFor(urlEqualTo("/cacheable")));
+  }
+
+  @Test
+  void writesSnapshotWhenAborted(@TempDir Path directory) throws Exception {
+    Path snapshot = directory.resolve("cache.snapshot");
+    proxyServer.abort();
+    proxyServer =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withFiltersSource(new CachingHttpFiltersSource(cache).withSnapshot(snapshot, 100))
+            .start();
+    mockServer.stubFor(
+        get(urlEqualTo("/cacheable"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withBody("cached body")));
+    execute(new HttpGet(baseUrl + "/cacheable"));
+    // as the JVM shutdown hook does
+    proxyServer.abort();
+
+    cache = new HttpCache(1024 * 1024);
+    proxyServer =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withFiltersSource(new CachingHttpFiltersSource(cache).withSnapshot(snapshot, 100))
+            .start();
+    HttpResponse response = execute(new HttpGet(baseUrl + "/cacheable"));
+
+    assertThat(EntityUtils.toString(response.getEntity())).isEqualTo("cached body");
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    mockServer.verify(1, getRequestedFor(urlEqualTo("/cacheable")));
+  }
+
+  @Test
+  void collapsesConcurrentMisses() throws Exception {
+    mockServer.stubFor(
+        get(urlEqualTo("/popular"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withBody("popular body")
+                    .withFixedDelay(1000)));
+
+    List<HttpResponse> responses = executeConcurrently(5, () -> new HttpGet(baseUrl + "/popular"));
+
+    for (HttpResponse response : responses) {
+      assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+      assertThat(EntityUtils.toString(response.getEntity())).isEqualTo("popular body");
+    }
+    mockServer.verify(1, getRequestedFor(urlEqualTo("/popular")));
+    assertThat(cache.getCollapsedCount()).isEqualTo(4);
+  }
+
+  @Test
+  void waitingRequestsFetchResponsesThatCannotBeShared() throws Exception {
+    mockServer.stubFor(
+        get(urlEqualTo("/private"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "private, max-age=60")
+                    .withBody("private body")
+                    .withFixedDelay(500)));
+
+    List<HttpResponse> responses = executeConcurrently(3, () -> new HttpGet(baseUrl + "/private"));
+
+    for (HttpResponse response : responses) {
+      assertThat(EntityUtils.toString(response.getEntity())).isEqualTo("private body");
+    }
+    mockServer.verify(3, getRequestedFor(urlEqualTo("/private")));
+    assertThat(cache.getCollapsedCount()).isZero();
+  }
+
+  @Test
+  void waitingRequestsFetchResponsesThatStall() throws Exception {
+    proxyServer.abort();
+    proxyServer =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withFiltersSource(new CachingHttpFiltersSource(cache, Duration.ofMillis(100)))
+            .start();
+    mockServer.stubFor(
+        get(urlEqualTo("/slow"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withBody("slow body")
+                    .withFixedDelay(1000)));
+
+    List<HttpResponse> responses = executeConcurrently(3, () -> new HttpGet(baseUrl + "/slow"));
+
+    for (HttpResponse response : responses) {
+      assertThat(EntityUtils.toString(response.getEntity())).isEqualTo("slow body");
+    }
+    mockServer.verify(3, getRequestedFor(urlEqualTo("/slow")));
+  }
+
+  @Test
+  void disconnectsFollowersThatFallTooFarBehind() throws Exception {
+    proxyServer.abort();
+    proxyServer =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withFiltersSource(new CachingHttpFiltersSource(cache).withMaxFollowerLag(64 * 1024))
+            .start();
+    byte[] body = new byte[16 * 1024 * 1024];
+    mockServer.stubFor(
+        get(urlEqualTo("/large"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withBody(body)
+                    .withFixedDelay(1000)));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (Socket slowClient = new Socket()) {
+      Future<HttpResponse> leader = executor.submit(() -> execute(new HttpGet(baseUrl + "/large")));
+      Thread.sleep(300);
+      // a client that reads nothing until the leader has its whole response
+      slowClient.setReceiveBufferSize(4096);
+      slowClient.connect(
+          new InetSocketAddress("localhost", proxyServer.getListenAddress().getPort()));
+      slowClient
+          .getOutputStream()
+          .write(
+              ("GET " + baseUrl + "/large HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                  .getBytes(StandardCharsets.US_ASCII));
+
+      HttpResponse response = leader.get(30, TimeUnit.SECONDS);
+      assertThat(EntityUtils.toByteArray(response.getEntity())).hasSize(body.length);
+
+      slowClient.setSoTimeout(10_000);
+      InputStream input = slowClient.getInputStream();
+      byte[] buffer = new byte[64 * 1024];
+      long received = 0;
+      for (int read; (read = input.read(buffer)) != -1; ) {
+        received += read;
+      }
+      assertThat(received).isLessThan(body.length);
+    } finally {
+      executor.shutdownNow();
+    }
+    mockServer.verify(1, getRequestedFor(urlEqualTo("/large")));
+    assertThat(cache.getCollapsedCount()).isEqualTo(1);
+  }
+
+  @Test
+  void servesStaleResponsesWhileRevalidating() throws Exception {
+    mockServer.stubFor(
+        get(urlEqualTo("/revalidated"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=1, stale-while-revalidate=60")
+                    .withHeader("ETag", "\"v1\"")
+                    .withBody("stored body")));
+    mockServer.stubFor(
+        get(urlEqualTo("/revalidated"))
+            .withHeader("If-None-Match", equalTo("\"v1\""))
+            .willReturn(
+                aResponse()
+                    .withStatus(304)
+                    .withHeader("Cache-Control", "max-age=60")
+                    .withHeader("ETag", "\"v1\"")));
+
+    execute(new HttpGet(baseUrl + "/revalidated"));
+    Thread.sleep(1500);
+
+    HttpResponse stale = execute(new HttpGet(baseUrl + "/revalidated"));
+    assertThat(EntityUtils.toString(stale.getEntity())).isEqualTo("stored body");
+    assertThat(cache.getStaleHitCount()).isEqualTo(1);
+    awaitRevalidations(1);
+
+    HttpResponse refreshed = execute(new HttpGet(baseUrl + "/revalidated"));
+    assertThat(EntityUtils.toString(refreshed.getEntity())).isEqualTo("stored body");
+    assertThat(refreshed.getFirstHeader("Cache-Control").getValue()).isEqualTo("max-age=60");
+    mockServer.verify(2, getRequestedFor(urlEqualTo("/revalidated")));
+    mockServer.verify(
+        1,
+        getRequestedFor(urlEqualTo("/revalidated"))
+            .withHeader("If-None-Match", equalTo("\"v1\"")));
+  }
+
+  @Test
+  void revalidatesThroughTheProxyServersResolver() throws Exception {
+    proxyServer.abort();
+    List<String> resolved = new CopyOnWriteArrayList<>();
+    proxyServer =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withServerResolver(
+                (host, port) -> {
+                  resolved.add(host);
+                  return new InetSocketAddress("localhost", port);
+                })
+            .withFiltersSource(new CachingHttpFiltersSource(cache))
+            .start();
+    mockServer.stubFor(
+        get(urlEqualTo("/resolved"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=1, stale-while-revalidate=60")
+                    .withHeader("ETag", "\"v1\"")
+                    .withBody("stored body")));
+    mockServer.stubFor(
+        get(urlEqualTo("/resolved"))
+            .withHeader("If-None-Match", equalTo("\"v1\""))
+            .willReturn(aResponse().withStatus(304).withHeader("Cache-Control", "max-age=60")));
+    String url = "http://origin.invalid:" + mockServer.port() + "/resolved";
+
+    execute(new HttpGet(url));
+    Thread.sleep(1500);
+    execute(new HttpGet(url));
+    awaitRevalidations(1);
+
+    assertThat(resolved).containsOnly("origin.invalid");
+    mockServer.verify(
+        1,
+        getRequestedFor(urlEqualTo("/resolved")).withHeader("If-None-Match", equalTo("\"v1\"")));
+  }
+
+  @Test
+  void servesStaleResponsesWhenServerIsDown() throws Exception {
+    proxyServer.abort();
+    proxyServer =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withFiltersSource(
+                new CachingHttpFiltersSource(cache).withStaleIfError(Duration.ofMinutes(1)))
+            .start();
+    mockServer.stubFor(
+        get(urlEqualTo("/fallback"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Cache-Control", "max-age=1")
+                    .withBody("stored body")));
+
+    execute(new HttpGet(baseUrl + "/fallback"));
+    Thread.sleep(1500);
+    mockServer.stop();
+
+    HttpResponse response = execute(new HttpGet(baseUrl + "/fallback"));
+    assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+    assertThat(EntityUtils.toString(response.getEntity())).isEqualTo("stored body");
+    assertThat(cache.getStaleHitCount()).isEqualTo(1);
+  }
+
+  private HttpGet rangeRequest(String path, String range) {
+    HttpGet request = new HttpGet(baseUrl + path);
+    request.setHeader("Range", range);
+    return request;
+  }
+
+  private String bodyFor(String path, String acceptLanguage) throws Exception {
+    HttpGet request = new HttpGet(baseUrl + path);
+    request.setHeader("Accept-Language", acceptLanguage);
+    return EntityUtils.toString(execute(request).getEntity());
+  }
+
+  private void awaitRevalidations(long count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (cache.getRevalidationCount() < count && System.nanoTime() < deadline) {
+      Thread.sleep(20);
+    }
+    assertThat(cache.getRevalidationCount()).isEqualTo(count);
+  }
+
+  private List<HttpResponse> executeConcurrently(int count, Supplier<HttpUriRequest> request)
+      throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(count);
+    try {
+      List<Future<HttpResponse>> futures = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        futures.add(executor.submit(() -> execute(request.get())));
+      }
+      List<HttpResponse> responses = new ArrayList<>();
+      for (Future<HttpResponse> future : futures) {
+        responses.add(future.get(10, TimeUnit.SECONDS));
+      }
+      return responses;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private HttpResponse execute(HttpUriRequest request) throws Exception {
+    try (CloseableHttpClient httpClient =
+        createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+      HttpResponse response = httpClient.execute(request);
+      if (response.getEntity() != null) {
+        // buffer the body so it can be read after the client is closed
+        response.setEntity(new BufferedHttpEntity(response.getEntity()));
+      }
+      return response;
+    }
+  }
+}
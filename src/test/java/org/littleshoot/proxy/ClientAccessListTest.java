@@ -0,0 +1,178 @@
+package org.littleshoot.proxy;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+class ClientAccessListTest {
+  @Test
+  void longestPrefixApplies() throws Exception {
+    ClientAccessList accessList =
+        ClientAccessList.builder()
+            .deny("10.0.0.0/8")
+            .allow("10.1.0.0/16")
+            .deny("10.1.2.0/24")
+            .allow("10.1.2.3")
+            .build();
+
+    assertThat(accessList.isAllowed(address("10.0.0.1"))).isFalse();
+    assertThat(accessList.isAllowed(address("10.1.0.1"))).isTrue();
+    assertThat(accessList.isAllowed(address("10.1.2.1"))).isFalse();
+    assertThat(accessList.isAllowed(address("10.1.2.3"))).isTrue();
+    assertThat(accessList.isAllowed(address("11.0.0.1"))).isTrue();
+    assertThat(accessList.isAllowed(address("::ffff:10.1.2.1"))).isFalse();
+  }
+
+  @Test
+  void matchesIpv6Ranges() throws Exception {
+    ClientAccessList accessList =
+        ClientAccessList.builder()
+            .withDenyByDefault(true)
+            .allow("2001:db8::/32")
+            .deny("2001:db8:ffff::/48")
+            .allow("::1")
+            .build();
+
+    assertThat(accessList.isAllowed(address("2001:db8::1"))).isTrue();
+    assertThat(accessList.isAllowed(address("2001:db8:ffff::1"))).isFalse();
+    assertThat(accessList.isAllowed(address("2001:db9::1"))).isFalse();
+    assertThat(accessList.isAllowed(address("::1"))).isTrue();
+    assertThat(accessList.isAllowed(address("::2"))).isFalse();
+    assertThat(accessList.isAllowed(address("127.0.0.1"))).isFalse();
+  }
+
+  @Test
+  void denyWinsOverAllowForTheSameRange() throws Exception {
+    ClientAccessList accessList =
+        ClientAccessList.builder().allow("192.168.0.0/16").deny("192.168.1.1/16").build();
+
+    assertThat(accessList.getRuleCount()).isEqualTo(1);
+    assertThat(accessList.isAllowed(address("192.168.3.4"))).isFalse();
+  }
+
+  @Test
+  void matchesLikeALinearScan() throws Exception {
+    Random random = new Random(42);
+    ClientAccessList.Builder builder = ClientAccessList.builder();
+    int[] networks = new int[5000];
+    int[] lengths = new int[networks.length];
+    boolean[] allowed = new boolean[networks.length];
+    for (int i = 0; i < networks.length; i++) {
+      lengths[i] = 8 + random.nextInt(25);
+      networks[i] = random.nextInt() & (-1 << (32 - lengths[i]));
+      allowed[i] = random.nextBoolean();
+      String cidr = ipv4(networks[i]) + "/" + lengths[i];
+      if (allowed[i]) {
+        builder.allow(cidr);
+      } else {
+        builder.deny(cidr);
+      }
+    }
+    ClientAccessList accessList = builder.withDenyByDefault(true).build();
+    assertThat(accessList.getNodeCount()).isLessThanOrEqualTo(2 * accessList.getRuleCount() + 1);
+
+    for (int i = 0; i < 20_000; i++) {
+      // half of the addresses in ranges of the list, half random
+      int ip =
+          i % 2 == 0
+              ? networks[random.nextInt(networks.length)] | (random.nextInt() >>> 8)
+              : random.nextInt();
+      int bestLength = -1;
+      boolean expected = false;
+      for (int j = 0; j < networks.length; j++) {
+        int mask = -1 << (32 - lengths[j]);
+        if ((ip & mask) == networks[j]
+            && (lengths[j] > bestLength || (lengths[j] == bestLength && !allowed[j]))) {
+          bestLength = lengths[j];
+          expected = allowed[j];
+        }
+      }
+      assertThat(accessList.isAllowed(address(ipv4(ip)))).as(ipv4(ip)).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  void parsesRangesFromText() throws Exception {
+    ClientAccessList accessList =
+        ClientAccessList.builder()
+            .addLines(List.of("# office", "allow 203.0.113.0/24", "", "DENY 203.0.113.128/25"))
+            .withDenyByDefault(true)
+            .build();
+
+    assertThat(accessList.getRuleCount()).isEqualTo(2);
+    assertThat(accessList.isAllowed(address("203.0.113.1"))).isTrue();
+    assertThat(accessList.isAllowed(address("203.0.113.129"))).isFalse();
+
+    assertThatThrownBy(() -> ClientAccessList.builder().addLines(List.of("allow 10.0.0.0/33")))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("Invalid address range on line 1");
+    assertThatThrownBy(() -> ClientAccessList.builder().allow("example.com"))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void closesConnectionsFromDeniedClients() throws Exception {
+    HttpProxyServer proxyServer =
+        DefaultHttpProxyServer.bootstrap()
+            .withPort(0)
+            .withClientAccessList(ClientAccessList.builder().deny("127.0.0.0/8").build())
+            .start();
+    try {
+      assertThat(readResponse(proxyServer)).isEmpty();
+      assertThat(((DefaultHttpProxyServer) proxyServer).getRejectedConnectionCount())
+          .isEqualTo(1);
+
+      proxyServer.setClientAccessList(ClientAccessList.allowAll());
+      assertThat(readResponse(proxyServer)).startsWith("HTTP/1.1 ");
+    } finally {
+      proxyServer.abort();
+    }
+  }
+
+  /** Sends a request for an unreachable server, and returns the response, if any. */
+  private static String readResponse(HttpProxyServer proxyServer) throws IOException {
+    try (Socket socket = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort())) {
+      socket.setSoTimeout(10_000);
+      socket
+          .getOutputStream()
+          .write(
+              "GET http://127.0.0.1:1/ HTTP/1.1\r\nHost: 127.0.0.1:1\r\nConnection: close\r\n\r\n"
+                  .getBytes(US_ASCII));
+      InputStream in = socket.getInputStream();
+      byte[] buffer = new byte[9];
+      int read = 0;
+      while (read < buffer.length) {
+        int n;
+        try {
+          n = in.read(buffer, read, buffer.length - read);
+        } catch (IOException e) {
+          // the connection may be reset rather than closed
+          break;
+        }
+        if (n < 0) {
+          break;
+        }
+        read += n;
+      }
+      return new String(buffer, 0, read, US_ASCII);
+    }
+  }
+
+  private static InetAddress address(String literal) throws UnknownHostException {
+    return InetAddress.getByName(literal);
+  }
+
+  private static String ipv4(int ip) {
+    return (ip >>> 24) + "." + ((ip >>> 16) & 0xff) + "." + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+  }
+}
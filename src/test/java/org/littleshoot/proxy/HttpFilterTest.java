@@ -9,19 +9,33 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import com.github.tomakehurst.wiremock.WireMockServer;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.net.ssl.SSLEngine;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
 import org.eclipse.jetty.server.Server;
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
@@ -31,6 +45,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
 import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ProxyUtils;
 import org.littleshoot.proxy.test.EnableThreadDump;
 import org.littleshoot.proxy.test.HttpClientUtil;
 
@@ -1072,6 +1087,285 @@ public final class HttpFilterTest {
         .isEqualTo(200);
   }
 
+  /**
+   * Verifies that the proxy waits for {@link AsyncHttpFilters#clientToProxyRequestAsync} to
+   * complete on another thread, then either forwards the request or responds with the response it
+   * completed with.
+   */
+  @Test
+  public void testAsyncClientToProxyRequestFilter() throws Exception {
+    mockServer.stubFor(
+        get(urlEqualTo("/testAsyncClientToProxyRequestFilter"))
+            .willReturn(aResponse().withStatus(200).withBody("success")));
+    Executor policyService = CompletableFuture.delayedExecutor(200, TimeUnit.MILLISECONDS);
+
+    HttpFiltersSource filtersSource =
+        new HttpFiltersSourceAdapter() {
+          @Override
+          public HttpFilters filterRequest(@NonNull HttpRequest originalRequest) {
+            return new AsyncHttpFiltersAdapter(originalRequest) {
+              @Override
+              @NonNull
+              public CompletionStage<@Nullable HttpResponse> clientToProxyRequestAsync(
+                  @NonNull HttpRequest httpRequest) {
+                return CompletableFuture.supplyAsync(
+                    () ->
+                        httpRequest.uri().endsWith("/blocked")
+                            ? ProxyUtils.createFullHttpResponse(
+                                HttpVersion.HTTP_1_1, HttpResponseStatus.FORBIDDEN, "Forbidden")
+                            : null,
+                    policyService);
+              }
+            };
+          }
+        };
+
+    setUpHttpProxyServer(filtersSource);
+
+    org.apache.http.HttpResponse allowed =
+        performLocalHttpGet(mockServerPort, "/testAsyncClientToProxyRequestFilter", proxyServer);
+    org.apache.http.HttpResponse blocked =
+        performLocalHttpGet(mockServerPort, "/blocked", proxyServer);
+
+    assertThat(allowed.getStatusLine().getStatusCode()).isEqualTo(200);
+    assertThat(blocked.getStatusLine().getStatusCode()).isEqualTo(403);
+    mockServer.verify(0, getRequestedFor(urlEqualTo("/blocked")));
+  }
+
+  /**
+   * Verifies that the proxy waits for {@link AsyncHttpFilters#proxyToServerRequestAsync} to
+   * complete on another thread before sending the request to the server.
+   */
+  @Test
+  public void testAsyncProxyToServerRequestFilter() throws Exception {
+    mockServer.stubFor(
+        get(urlEqualTo("/testAsyncProxyToServerRequestFilter"))
+            .withHeader("X-Policy", equalTo("checked"))
+            .willReturn(aResponse().withStatus(200).withBody("success")));
+    Executor policyService = CompletableFuture.delayedExecutor(200, TimeUnit.MILLISECONDS);
+
+    HttpFiltersSource filtersSource =
+        new HttpFiltersSourceAdapter() {
+          @Override
+          public HttpFilters filterRequest(@NonNull HttpRequest originalRequest) {
+            return new AsyncHttpFiltersAdapter(originalRequest) {
+              @Override
+              @NonNull
+              public CompletionStage<@Nullable HttpResponse> proxyToServerRequestAsync(
+                  @NonNull HttpRequest httpRequest) {
+                return CompletableFuture.supplyAsync(
+                    () -> {
+                      httpRequest.headers().set("X-Policy", "checked");
+                      return null;
+                    },
+                    policyService);
+              }
+            };
+          }
+        };
+
+    setUpHttpProxyServer(filtersSource);
+
+    org.apache.http.HttpResponse httpResponse =
+        performLocalHttpGet(mockServerPort, "/testAsyncProxyToServerRequestFilter", proxyServer);
+
+    assertThat(httpResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+  }
+
+  /**
+   * Verifies that the proxy responds with the response an {@link AsyncHttpFilters} completes with
+   * after a delay, and with a 502 Bad Gateway if it completes exceptionally.
+   */
+  @Test
+  public void testAsyncProxyToServerRequestFilterShortCircuits() throws Exception {
+    Executor policyService = CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS);
+
+    HttpFiltersSource filtersSource =
+        new HttpFiltersSourceAdapter() {
+          @Override
+          public HttpFilters filterRequest(@NonNull HttpRequest originalRequest) {
+            return new AsyncHttpFiltersAdapter(originalRequest) {
+              @Override
+              @NonNull
+              public CompletionStage<@Nullable HttpResponse> proxyToServerRequestAsync(
+                  @NonNull HttpRequest httpRequest) {
+                return CompletableFuture.supplyAsync(
+                    () -> {
+                      if (httpRequest.uri().endsWith("/failing")) {
+                        throw new IllegalStateException("policy service unavailable");
+                      }
+                      return ProxyUtils.createFullHttpResponse(
+                          HttpVersion.HTTP_1_1, HttpResponseStatus.FORBIDDEN, "Forbidden");
+                    },
+                    policyService);
+              }
+            };
+          }
+        };
+
+    setUpHttpProxyServer(filtersSource);
+
+    org.apache.http.HttpResponse forbidden =
+        performLocalHttpGet(mockServerPort, "/forbidden", proxyServer);
+    org.apache.http.HttpResponse failing =
+        performLocalHttpGet(mockServerPort, "/failing", proxyServer);
+
+    assertThat(forbidden.getStatusLine().getStatusCode()).isEqualTo(403);
+    assertThat(failing.getStatusLine().getStatusCode()).isEqualTo(502);
+    mockServer.verify(0, anyRequestedFor(anyUrl()));
+  }
+
+  /**
+   * Verifies that request and response bodies are transformed as they stream through the proxy,
+   * and sent with framing that matches their new length.
+   */
+  @Test
+  public void testBodyTransformers() throws Exception {
+    mockServer.stubFor(
+        post(urlEqualTo("/testBodyTransformers"))
+            .withRequestBody(equalTo("f00 t0 y0u"))
+            .willReturn(aResponse().withStatus(200).withBody("hello world")));
+
+    HttpFiltersSource filtersSource =
+        new HttpFiltersSourceAdapter() {
+          @Override
+          public HttpFilters filterRequest(@NonNull HttpRequest originalRequest) {
+            return new HttpFiltersAdapter(originalRequest) {
+              @Override
+              public BodyTransformer requestBodyTransformer() {
+                return replacing('o', "0");
+              }
+
+              @Override
+              public BodyTransformer responseBodyTransformer() {
+                return replacing('o', "<o>");
+              }
+            };
+          }
+        };
+
+    setUpHttpProxyServer(filtersSource);
+
+    try (CloseableHttpClient httpClient =
+        TestUtils.createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+      HttpPost request =
+          new HttpPost("http://localhost:" + mockServerPort + "/testBodyTransformers");
+      request.setEntity(new StringEntity("foo to you", StandardCharsets.UTF_8));
+      // compressed responses are passed on untransformed
+      request.setHeader("Accept-Encoding", "identity");
+      org.apache.http.HttpResponse httpResponse = httpClient.execute(request);
+
+      assertThat(httpResponse.getStatusLine().getStatusCode()).isEqualTo(200);
+      assertThat(EntityUtils.toString(httpResponse.getEntity())).isEqualTo("hell<o> w<o>rld");
+    }
+  }
+
+  /**
+   * Verifies that filters can have the bodies of single requests and responses aggregated, while
+   * other messages are passed on chunk by chunk.
+   */
+  @Test
+  public void testPerMessageAggregation() throws Exception {
+    mockServer.stubFor(
+        post(urlEqualTo("/testPerMessageAggregation"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Content-Type", "text/html")
+                    .withBody("<p>aggregated</p>")));
+    mockServer.stubFor(
+        get(urlEqualTo("/testPerMessageAggregation"))
+            .willReturn(
+                aResponse()
+                    .withStatus(200)
+                    .withHeader("Content-Type", "application/octet-stream")
+                    .withBody("streamed")));
+    Queue<HttpObject> requestsFiltered = new ConcurrentLinkedQueue<>();
+    Queue<HttpObject> responsesFiltered = new ConcurrentLinkedQueue<>();
+
+    HttpFiltersSource filtersSource =
+        new HttpFiltersSourceAdapter() {
+          @Override
+          public HttpFilters filterRequest(@NonNull HttpRequest originalRequest) {
+            return new HttpFiltersAdapter(originalRequest) {
+              @Override
+              public int getMaximumRequestBufferSizeInBytes(@NonNull HttpRequest httpRequest) {
+                return httpRequest.method() == HttpMethod.POST ? 16 : 0;
+              }
+
+              @Override
+              public int getMaximumResponseBufferSizeInBytes(@NonNull HttpResponse httpResponse) {
+                String contentType = httpResponse.headers().get(HttpHeaderNames.CONTENT_TYPE);
+                return "text/html".equals(contentType) ? 1024 : 0;
+              }
+
+              @Override
+              public HttpResponse clientToProxyRequest(@NonNull HttpObject httpObject) {
+                requestsFiltered.add(retainedDuplicate(httpObject));
+                return null;
+              }
+
+              @Override
+              public HttpObject serverToProxyResponse(@NonNull HttpObject httpObject) {
+                responsesFiltered.add(retainedDuplicate(httpObject));
+                return httpObject;
+              }
+            };
+          }
+        };
+
+    setUpHttpProxyServer(filtersSource);
+    String url = "http://localhost:" + mockServerPort + "/testPerMessageAggregation";
+
+    try (CloseableHttpClient httpClient =
+        TestUtils.createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+      HttpPost post = new HttpPost(url);
+      // the filters check the response bodies as sent by the server
+      post.setHeader("Accept-Encoding", "identity");
+      post.setEntity(new StringEntity("small body", StandardCharsets.UTF_8));
+      org.apache.http.HttpResponse aggregated = httpClient.execute(post);
+      assertThat(EntityUtils.toString(aggregated.getEntity())).isEqualTo("<p>aggregated</p>");
+
+      assertThat(requestsFiltered).hasSize(1);
+      FullHttpRequest request = (FullHttpRequest) requestsFiltered.poll();
+      assertThat(request.content().toString(StandardCharsets.UTF_8)).isEqualTo("small body");
+      request.release();
+      assertThat(responsesFiltered).hasSize(1);
+      FullHttpResponse response = (FullHttpResponse) responsesFiltered.poll();
+      assertThat(response.content().toString(StandardCharsets.UTF_8))
+          .isEqualTo("<p>aggregated</p>");
+      response.release();
+
+      org.apache.http.HttpResponse streamed = httpClient.execute(new HttpGet(url));
+      assertThat(EntityUtils.toString(streamed.getEntity())).isEqualTo("streamed");
+      assertThat(requestsFiltered.poll()).isNotInstanceOf(FullHttpRequest.class);
+      assertThat(responsesFiltered.poll()).isNotInstanceOf(FullHttpResponse.class);
+      requestsFiltered.forEach(ReferenceCountUtil::release);
+      responsesFiltered.forEach(ReferenceCountUtil::release);
+
+      post.setEntity(new StringEntity("a body too large to aggregate", StandardCharsets.UTF_8));
+      org.apache.http.HttpResponse tooLarge = httpClient.execute(post);
+      EntityUtils.consume(tooLarge.getEntity());
+      assertThat(tooLarge.getStatusLine().getStatusCode()).isEqualTo(413);
+    }
+  }
+
+  /** Keeps the content of a message readable after the proxy has passed the message on. */
+  private static HttpObject retainedDuplicate(HttpObject httpObject) {
+    return httpObject instanceof ByteBufHolder
+        ? (HttpObject) ((ByteBufHolder) httpObject).retainedDuplicate()
+        : httpObject;
+  }
+
+  private static BodyTransformer replacing(char target, String replacement) {
+    return editor -> {
+      int index;
+      while ((index = editor.input().bytesBefore((byte) target)) >= 0) {
+        editor.pass(index).replace(1, Unpooled.copiedBuffer(replacement, StandardCharsets.UTF_8));
+      }
+    };
+  }
+
   private long now() {
     // using nanoseconds instead of milliseconds, since it is extremely unlikely
     // that any two callbacks would be invoked in the same nanosecond,
@@ -0,0 +1,69 @@
+package org.littleshoot.proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.littleshoot.proxy.extras.CompiledRules;
+import org.littleshoot.proxy.extras.TestMitmManager;
+
+/**
+ * Tests a man in the middle proxy whose MITM bypass rules match the web server, so that the
+ * ClientHello sent through a CONNECT tunnel to it is peeked at and the tunnel relayed as is.
+ */
+@NullMarked
+public final class MitmBypassedHostProxyTest extends BaseProxyTest {
+  private final Set<HttpMethod> methodsSeen = ConcurrentHashMap.newKeySet();
+
+  @Override
+  protected void setUp() {
+    proxyServer =
+        bootstrapProxy()
+            .withPort(0)
+            .withManInTheMiddle(new TestMitmManager())
+            .withMitmBypassRules(CompiledRules.builder().block("127.0.0.1").build())
+            .withFiltersSource(
+                new HttpFiltersSourceAdapter() {
+                  @NonNull
+                  @Override
+                  public HttpFilters filterRequest(@NonNull HttpRequest originalRequest) {
+                    return new HttpFiltersAdapter(originalRequest) {
+                      @Nullable
+                      @Override
+                      public HttpResponse clientToProxyRequest(@NonNull HttpObject httpObject) {
+                        if (httpObject instanceof HttpRequest) {
+                          methodsSeen.add(((HttpRequest) httpObject).method());
+                        }
+                        return null;
+                      }
+                    };
+                  }
+                })
+            .start();
+  }
+
+  @Override
+  public void testSimpleGetRequestOverHTTPS() {
+    super.testSimpleGetRequestOverHTTPS();
+    assertOnlyConnectSeen();
+  }
+
+  @Override
+  public void testSimplePostRequestOverHTTPS() {
+    super.testSimplePostRequestOverHTTPS();
+    assertOnlyConnectSeen();
+  }
+
+  private void assertOnlyConnectSeen() {
+    assertThat(methodsSeen)
+        .as("requests sent through a bypassed tunnel should not be decrypted")
+        .containsExactly(HttpMethod.CONNECT);
+  }
+}
@@ -0,0 +1,138 @@
+package org.littleshoot.proxy;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.extras.CompiledRules;
+import org.littleshoot.proxy.extras.TestMitmManager;
+
+/**
+ * Tests a man in the middle proxy with MITM bypass rules that don't match the web server, so that
+ * the ClientHello sent through a CONNECT tunnel to it is peeked at, then replayed to the proxy's
+ * own TLS handler, and the requests sent through the tunnel are decrypted.
+ */
+@NullMarked
+public final class MitmPeekedClientHelloProxyTest extends BaseProxyTest {
+  /** How long the proxy waits for a ClientHello before relaying the tunnel as is. */
+  private static final long CLIENT_HELLO_TIMEOUT_MILLIS = 2000;
+
+  private final Set<HttpMethod> methodsSeen = ConcurrentHashMap.newKeySet();
+
+  @Override
+  protected void setUp() {
+    proxyServer =
+        bootstrapProxy()
+            .withPort(0)
+            .withManInTheMiddle(new TestMitmManager())
+            .withMitmBypassRules(CompiledRules.builder().block("bypassed.example.com").build())
+            .withFiltersSource(
+                new HttpFiltersSourceAdapter() {
+                  @NonNull
+                  @Override
+                  public HttpFilters filterRequest(@NonNull HttpRequest originalRequest) {
+                    return new HttpFiltersAdapter(originalRequest) {
+                      @Nullable
+                      @Override
+                      public HttpResponse clientToProxyRequest(@NonNull HttpObject httpObject) {
+                        if (httpObject instanceof HttpRequest) {
+                          methodsSeen.add(((HttpRequest) httpObject).method());
+                        }
+                        return null;
+                      }
+                    };
+                  }
+                })
+            .start();
+  }
+
+  @Override
+  protected boolean isMITM() {
+    return true;
+  }
+
+  @Override
+  public void testSimpleGetRequestOverHTTPS() {
+    super.testSimpleGetRequestOverHTTPS();
+    assertThat(methodsSeen).contains(HttpMethod.CONNECT, HttpMethod.GET);
+  }
+
+  @Override
+  public void testSimplePostRequestOverHTTPS() {
+    super.testSimplePostRequestOverHTTPS();
+    assertThat(methodsSeen).contains(HttpMethod.CONNECT, HttpMethod.POST);
+  }
+
+  /**
+   * A client of a protocol where the server speaks first sends nothing through its tunnel, which
+   * the proxy relays as is once it has given up waiting for a ClientHello.
+   */
+  @Test
+  public void relaysTunnelsOfClientsSendingNoClientHello() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (ServerSocket server = new ServerSocket(0)) {
+      executor.submit(
+          () -> {
+            try (Socket accepted = server.accept();
+                BufferedReader in =
+                    new BufferedReader(new InputStreamReader(accepted.getInputStream(), US_ASCII));
+                PrintWriter out = new PrintWriter(accepted.getOutputStream(), true, US_ASCII)) {
+              out.print("220 ready\r\n");
+              out.flush();
+              out.print("echo " + in.readLine() + "\r\n");
+              out.flush();
+            }
+            return null;
+          });
+
+      try (Socket client = new Socket()) {
+        client.connect(
+            new InetSocketAddress("127.0.0.1", proxyServer.getListenAddress().getPort()));
+        client.setSoTimeout(10_000);
+        OutputStream out = client.getOutputStream();
+        String target = "127.0.0.1:" + server.getLocalPort();
+        out.write(
+            ("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes(US_ASCII));
+        out.flush();
+        BufferedReader in =
+            new BufferedReader(new InputStreamReader(client.getInputStream(), US_ASCII));
+        assertThat(in.readLine()).contains(" 200 ");
+        String line;
+        do {
+          line = in.readLine();
+        } while (line != null && !line.isEmpty());
+        long connectedNanos = System.nanoTime();
+
+        assertThat(in.readLine()).isEqualTo("220 ready");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectedNanos))
+            .as("the server is only connected to once the ClientHello timeout has elapsed")
+            .isGreaterThanOrEqualTo(CLIENT_HELLO_TIMEOUT_MILLIS / 2);
+        out.write("hello\r\n".getBytes(US_ASCII));
+        out.flush();
+        assertThat(in.readLine()).isEqualTo("echo hello");
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(methodsSeen).containsExactly(HttpMethod.CONNECT);
+  }
+}
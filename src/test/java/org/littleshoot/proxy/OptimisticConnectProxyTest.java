@@ -0,0 +1,134 @@
+package org.littleshoot.proxy;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.littleshoot.proxy.TestUtils.openTunnel;
+import static org.littleshoot.proxy.TestUtils.readHead;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jspecify.annotations.NullMarked;
+import org.jspecify.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+
+/** Tests a proxy that answers CONNECT requests before the upstream connection is established. */
+@NullMarked
+public final class OptimisticConnectProxyTest extends BaseProxyTest {
+  /**
+   * An upstream proxy that the tests chain to, so that they decide when the upstream connection is
+   * established. Other tests connect directly.
+   */
+  private volatile @Nullable InetSocketAddress upstreamProxy;
+
+  @Override
+  protected void setUp() {
+    proxyServer =
+        bootstrapProxy()
+            .withPort(0)
+            .withOptimisticConnect(true)
+            .withChainProxyManager(
+                (httpRequest, chainedProxies, clientDetails) -> {
+                  InetSocketAddress address = upstreamProxy;
+                  if (address == null) {
+                    chainedProxies.add(ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION);
+                  } else {
+                    chainedProxies.add(
+                        new ChainedProxyAdapter() {
+                          @Override
+                          public InetSocketAddress getChainedProxyAddress() {
+                            return address;
+                          }
+                        });
+                  }
+                })
+            .start();
+  }
+
+  @Test
+  public void flushesTunnelDataSentWhileConnectingInOrder() throws Exception {
+    StringBuilder sent = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sent.append("chunk ").append(i).append('\n');
+    }
+    String expected = sent.toString();
+    CountDownLatch clientSent = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (ServerSocket upstream = new ServerSocket(0)) {
+      upstreamProxy = new InetSocketAddress("127.0.0.1", upstream.getLocalPort());
+      Future<String> received =
+          executor.submit(
+              () -> {
+                try (Socket accepted = upstream.accept()) {
+                  InputStream in = accepted.getInputStream();
+                  assertThat(readHead(in)).startsWith("CONNECT ");
+                  assertThat(clientSent.await(10, SECONDS)).isTrue();
+                  // give the proxy time to read everything the client sent
+                  Thread.sleep(200);
+                  assertThat(in.available())
+                      .as("nothing is written upstream before the tunnel is established")
+                      .isZero();
+                  OutputStream out = accepted.getOutputStream();
+                  out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(US_ASCII));
+                  out.flush();
+                  return new String(in.readNBytes(expected.length()), US_ASCII);
+                }
+              });
+
+      try (Socket client = connectThroughProxy()) {
+        OutputStream out = client.getOutputStream();
+        for (String line : expected.split("(?<=\n)")) {
+          out.write(line.getBytes(US_ASCII));
+          out.flush();
+        }
+        clientSent.countDown();
+        assertThat(received.get(10, SECONDS)).isEqualTo(expected);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void closesTunnelWhenUpstreamConnectionFails() throws Exception {
+    CountDownLatch clientSent = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (ServerSocket upstream = new ServerSocket(0)) {
+      upstreamProxy = new InetSocketAddress("127.0.0.1", upstream.getLocalPort());
+      executor.submit(
+          () -> {
+            // refuse the CONNECT by hanging up once the client has started sending
+            try (Socket accepted = upstream.accept()) {
+              readHead(accepted.getInputStream());
+              clientSent.await(10, SECONDS);
+            }
+            return null;
+          });
+
+      try (Socket client = connectThroughProxy()) {
+        OutputStream out = client.getOutputStream();
+        out.write("held until connected\n".getBytes(US_ASCII));
+        out.flush();
+        clientSent.countDown();
+        assertThat(client.getInputStream().read())
+            .as("the tunnel is closed once the upstream connection has failed")
+            .isEqualTo(-1);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Opens a tunnel through the proxy, which is answered before the upstream proxy is. */
+  private Socket connectThroughProxy() throws IOException {
+    return openTunnel(proxyServer.getListenAddress().getPort(), "127.0.0.1:" + httpsWebServerPort);
+  }
+}
@@ -0,0 +1,12 @@
+package org.littleshoot.proxy;
+
+import org.jspecify.annotations.NullMarked;
+
+/** Tests a MITM proxy that handshakes with the client while it handshakes with the server. */
+@NullMarked
+public final class ParallelMitmHandshakeProxyTest extends BaseMitmHandshakeProxyTest {
+  @Override
+  protected MitmHandshakeMode mitmHandshakeMode() {
+    return MitmHandshakeMode.PARALLEL;
+  }
+}
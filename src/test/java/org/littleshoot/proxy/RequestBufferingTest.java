@@ -0,0 +1,121 @@
+package org.littleshoot.proxy;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+@Timeout(20)
+class RequestBufferingTest {
+  @Test
+  void matchesRoutes() {
+    RequestBufferingPolicy policy =
+        RequestBufferingPolicy.forRoutes(
+            1000, List.of("upload.example.com/api/", "*.media.example.com"));
+
+    assertThat(policy.getMaximumBufferSizeInBytes(request("http://upload.example.com/api/file")))
+        .isEqualTo(1000);
+    assertThat(policy.getMaximumBufferSizeInBytes(request("http://upload.example.com/other")))
+        .isZero();
+    assertThat(policy.getMaximumBufferSizeInBytes(request("http://a.media.example.com:81/")))
+        .isEqualTo(1000);
+    assertThat(policy.getMaximumBufferSizeInBytes(request("http://media.example.com/")))
+        .isEqualTo(1000);
+    assertThat(policy.getMaximumBufferSizeInBytes(request("http://example.com/api/"))).isZero();
+
+    HttpRequest originForm = request("/api/file");
+    originForm.headers().set(HttpHeaderNames.HOST, "UPLOAD.example.com:8080");
+    assertThat(policy.getMaximumBufferSizeInBytes(originForm)).isEqualTo(1000);
+  }
+
+  @Test
+  void connectsToTheServerOnceTheBodyHasArrived() throws Exception {
+    try (ServerSocket server = new ServerSocket(0)) {
+      CountDownLatch accepted = new CountDownLatch(1);
+      Thread serverThread = new Thread(() -> serve(server, accepted));
+      serverThread.setDaemon(true);
+      serverThread.start();
+      String hostAndPort = "127.0.0.1:" + server.getLocalPort();
+      DefaultHttpProxyServer proxyServer =
+          (DefaultHttpProxyServer)
+              DefaultHttpProxyServer.bootstrap()
+                  .withPort(0)
+                  .withRequestBuffering(RequestBufferingPolicy.always(1000))
+                  .start();
+      try (Socket client = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort())) {
+        OutputStream out = client.getOutputStream();
+        out.write(
+            ("POST http://"
+                    + hostAndPort
+                    + "/upload HTTP/1.1\r\nHost: "
+                    + hostAndPort
+                    + "\r\nContent-Length: 10\r\n\r\n01234")
+                .getBytes(US_ASCII));
+        out.flush();
+
+        // a slow client: the server is not connected to until the rest of the body arrives
+        assertThat(accepted.await(500, TimeUnit.MILLISECONDS)).isFalse();
+        out.write("56789".getBytes(US_ASCII));
+        out.flush();
+        assertThat(accepted.await(5, TimeUnit.SECONDS)).isTrue();
+
+        BufferedReader in =
+            new BufferedReader(new InputStreamReader(client.getInputStream(), US_ASCII));
+        assertThat(in.readLine()).isEqualTo("HTTP/1.1 200 OK");
+        assertThat(proxyServer.getBufferedRequestCount()).isEqualTo(1);
+        // the proxy only starts counting once it has read the headers, a little after they're sent
+        assertThat(proxyServer.getUpstreamTimeSavedByRequestBuffering())
+            .isGreaterThanOrEqualTo(Duration.ofMillis(250));
+      } finally {
+        proxyServer.abort();
+      }
+    }
+  }
+
+  /** Accepts one connection and answers the request read from it, once the whole body is read. */
+  private static void serve(ServerSocket server, CountDownLatch accepted) {
+    try (Socket socket = server.accept()) {
+      accepted.countDown();
+      BufferedReader in =
+          new BufferedReader(new InputStreamReader(socket.getInputStream(), US_ASCII));
+      String line;
+      while ((line = in.readLine()) != null && !line.isEmpty()) {
+        // skip the headers, the body is sent with a Content-Length of 10
+      }
+      char[] body = new char[10];
+      int read = 0;
+      while (read < body.length && line != null) {
+        int n = in.read(body, read, body.length - read);
+        if (n < 0) {
+          break;
+        }
+        read += n;
+      }
+      socket
+          .getOutputStream()
+          .write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(US_ASCII));
+    } catch (Exception e) {
+      // the test fails on its own if the server is not reached
+    }
+  }
+
+  private static HttpRequest request(String uri) {
+    return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, uri);
+  }
+}
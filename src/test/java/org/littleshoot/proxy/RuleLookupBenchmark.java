@@ -0,0 +1,93 @@
+package org.littleshoot.proxy;
+
+import java.util.Random;
+import org.littleshoot.proxy.extras.CompiledRules;
+
+/**
+ * Measures the time taken to check a URL against a large set of {@link CompiledRules}, with and
+ * without a Bloom filter, and the memory taken per rule, both as estimated by the rules and as
+ * measured on the heap.
+ *
+ * <p>Run with {@code java RuleLookupBenchmark [rules] [lookups] [hitPercentage]}.
+ */
+public class RuleLookupBenchmark {
+  private static final String[] TOP_LEVEL_DOMAINS = {"com", "net", "org", "io", "de", "co.uk"};
+
+  public static void main(String[] args) {
+    int ruleCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+    int hitPercentage = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    String[] domains = new String[ruleCount];
+    Random random = new Random(42);
+    for (int i = 0; i < ruleCount; i++) {
+      domains[i] = domain(random, i);
+    }
+    String[] hosts = new String[lookups];
+    for (int i = 0; i < lookups; i++) {
+      hosts[i] =
+          random.nextInt(100) < hitPercentage
+              ? "www." + domains[random.nextInt(ruleCount)]
+              : "www." + domain(random, ruleCount + random.nextInt(ruleCount));
+    }
+
+    run("trie", domains, hosts, false);
+    run("bloom filter and trie", domains, hosts, true);
+  }
+
+  private static void run(String name, String[] domains, String[] hosts, boolean bloomFilter) {
+    long heapBefore = usedHeap();
+    CompiledRules.Builder builder = CompiledRules.builder();
+    for (int i = 0; i < domains.length; i++) {
+      // one rule in ten blocks a path prefix rather than the whole domain
+      builder.block(i % 10 == 0 ? domains[i] + "/ads/" : domains[i]);
+    }
+    if (bloomFilter) {
+      builder.withBloomFilter(0.01);
+    }
+    long compileStart = System.nanoTime();
+    CompiledRules rules = builder.build();
+    long compileMillis = (System.nanoTime() - compileStart) / 1_000_000;
+    builder = null;
+    long measuredBytes = usedHeap() - heapBefore;
+
+    int blocked = 0;
+    // warm up, then measure
+    for (int round = 0; round < 2; round++) {
+      long start = System.nanoTime();
+      for (String host : hosts) {
+        if (rules.isBlocked(host, "/ads/banner.png")) {
+          blocked++;
+        }
+      }
+      if (round == 1) {
+        double nanosPerLookup = (double) (System.nanoTime() - start) / hosts.length;
+        System.out.printf(
+            "%-22s %d rules compiled in %d ms, %.1f bytes per rule estimated, %.1f measured,"
+                + " %.1f ns per lookup (%d blocked)%n",
+            name,
+            rules.getRuleCount(),
+            compileMillis,
+            rules.getBytesPerRule(),
+            (double) measuredBytes / rules.getRuleCount(),
+            nanosPerLookup,
+            blocked / 2);
+      }
+    }
+  }
+
+  private static String domain(Random random, int index) {
+    return "site"
+        + Integer.toString(index, 36)
+        + "."
+        + TOP_LEVEL_DOMAINS[random.nextInt(TOP_LEVEL_DOMAINS.length)];
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,13 @@
+package org.littleshoot.proxy;
+
+public final class Socks5PipelinedChainedProxyTest extends BaseChainedSocksProxyTest {
+  @Override
+  protected ChainedProxyType getSocksProxyType() {
+    return ChainedProxyType.SOCKS5;
+  }
+
+  @Override
+  protected boolean isSocks5HandshakePipelined() {
+    return true;
+  }
+}
@@ -0,0 +1,68 @@
+package org.littleshoot.proxy;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.littleshoot.proxy.TestUtils.buildHttpClient;
+import static org.littleshoot.proxy.TestUtils.openTunnel;
+
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.jspecify.annotations.NullMarked;
+import org.junit.jupiter.api.Test;
+
+/** Tests a MITM proxy that handshakes with the client before connecting to the server. */
+@NullMarked
+public final class SpeculativeMitmHandshakeProxyTest extends BaseMitmHandshakeProxyTest {
+  @Override
+  protected MitmHandshakeMode mitmHandshakeMode() {
+    return MitmHandshakeMode.SPECULATIVE;
+  }
+
+  @Test
+  public void closesTunnelWhenBothHandshakesFail() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (ServerSocket upstream = new ServerSocket(0)) {
+      upstream.setSoTimeout(10_000);
+      // the server rejects the proxy's handshake by hanging up on it
+      Future<?> rejected =
+          executor.submit(
+              () -> {
+                upstream.accept().close();
+                return null;
+              });
+
+      String target = "127.0.0.1:" + upstream.getLocalPort();
+      try (Socket client = openTunnel(proxyServer.getListenAddress().getPort(), target)) {
+        // the client doesn't speak TLS, so the speculative handshake with it fails too
+        OutputStream out = client.getOutputStream();
+        out.write(("GET / HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes(US_ASCII));
+        out.flush();
+        try {
+          // anything the proxy sends before closing the tunnel is a TLS alert
+          client.getInputStream().readAllBytes();
+        } catch (SocketException e) {
+          // reset by the proxy, which closes the tunnel as well
+        }
+      }
+      rejected.get(10, SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // the proxy still serves other clients
+    try (CloseableHttpClient httpClient =
+        buildHttpClient(true, true, proxyServer.getListenAddress().getPort(), null, null)) {
+      HttpResponse response = httpClient.execute(httpsWebHost, new HttpGet(DEFAULT_RESOURCE));
+      assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+    }
+  }
+}
@@ -1,18 +1,22 @@
 package org.littleshoot.proxy;
 
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static org.assertj.core.api.Assumptions.assumeThat;
 
 import com.sun.management.UnixOperatingSystemMXBean;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryUsage;
 import java.lang.management.OperatingSystemMXBean;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -282,6 +286,42 @@ public class TestUtils {
     }
   }
 
+  /**
+   * Opens a tunnel to the given target through the proxy listening on the given port.
+   *
+   * @return the client's socket, on which the head of the proxy's response has been read
+   */
+  public static Socket openTunnel(int proxyPort, String target) throws IOException {
+    Socket client = new Socket();
+    client.connect(new InetSocketAddress("127.0.0.1", proxyPort));
+    client.setSoTimeout(10_000);
+    OutputStream out = client.getOutputStream();
+    out.write(
+        ("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes(US_ASCII));
+    out.flush();
+    String head = readHead(client.getInputStream());
+    if (!head.contains(" 200 ")) {
+      client.close();
+      throw new IOException("Unable to open tunnel to " + target + ": " + head);
+    }
+    return client;
+  }
+
+  /** Reads the head of an HTTP message, without reading any further. */
+  public static String readHead(InputStream in) throws IOException {
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    int matched = 0;
+    while (matched < 4) {
+      int b = in.read();
+      if (b < 0) {
+        throw new IOException("Connection closed after " + head.size() + " bytes of head");
+      }
+      head.write(b);
+      matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+    }
+    return head.toString(US_ASCII);
+  }
+
   public static long getOpenFileDescriptorsAndPrintMemoryUsage() {
     // Below courtesy of:
     // http://stackoverflow.com/questions/10999076/programmatically-print-the-heap-usage-that-is-typically-printed-on-jvm-exit-when
@@ -0,0 +1,65 @@
+package org.littleshoot.proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import javax.net.ssl.SSLEngine;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
+import org.littleshoot.proxy.impl.ChainedProxyConnectionPool;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+/** Tests tunnelling through an encrypted chained proxy over warm connections. */
+@Execution(ExecutionMode.SAME_THREAD)
+public final class WarmConnectionEncryptedTCPChainedProxyTest extends BaseChainedProxyTest {
+  private final SslEngineSource sslEngineSource =
+      new SelfSignedSslEngineSource("target/chain_proxy_keystore_1.jks");
+
+  @Override
+  protected HttpProxyServerBootstrap bootstrapProxy() {
+    return super.bootstrapProxy().withWarmChainedProxyConnections(4, Duration.ofSeconds(10));
+  }
+
+  @Override
+  protected HttpProxyServerBootstrap upstreamProxy() {
+    return super.upstreamProxy().withSslEngineSource(sslEngineSource);
+  }
+
+  @Override
+  protected ChainedProxy newChainedProxy() {
+    return new BaseChainedProxy() {
+      @Override
+      public boolean requiresEncryption() {
+        return true;
+      }
+
+      @Override
+      public SSLEngine newSslEngine() {
+        return sslEngineSource.newSslEngine();
+      }
+    };
+  }
+
+  @Test
+  void reusesWarmConnectionsForTunnels() throws Exception {
+    ChainedProxyConnectionPool pool =
+        ((DefaultHttpProxyServer) proxyServer).getChainedProxyConnectionPool();
+
+    ResponseInfo response = httpGetWithApacheClient(httpsWebHost, DEFAULT_RESOURCE, true, false);
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    assertThat(pool.getTotalMisses()).isEqualTo(1);
+
+    // the first tunnel warms up a connection for the next one
+    long deadline = System.currentTimeMillis() + 5000;
+    while (pool.getIdleConnections() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(pool.getIdleConnections()).isEqualTo(1);
+
+    response = httpGetWithApacheClient(httpsWebHost, DEFAULT_RESOURCE, true, false);
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    assertThat(pool.getTotalHits()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,157 @@
+package org.littleshoot.proxy.extras;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.HttpFilters;
+
+class CompiledRulesTest {
+  @Test
+  void domainRulesMatchSubdomains() {
+    CompiledRules rules = CompiledRules.builder().block("ads.example.com").build();
+
+    assertThat(rules.isBlocked("ads.example.com", "/")).isTrue();
+    assertThat(rules.isBlocked("cdn.ads.example.com", "/")).isTrue();
+    assertThat(rules.isBlocked("ADS.Example.com:8080", "/")).isTrue();
+    assertThat(rules.isBlocked("ads.example.com.", "/")).isTrue();
+    assertThat(rules.isBlocked("example.com", "/")).isFalse();
+    assertThat(rules.isBlocked("badads.example.com", "/")).isFalse();
+    assertThat(rules.isBlocked("ads.example.org", "/")).isFalse();
+  }
+
+  @Test
+  void mostSpecificRuleApplies() {
+    CompiledRules rules =
+        CompiledRules.builder()
+            .block("example.com")
+            .allow("cdn.example.com")
+            .block("cdn.example.com/ads/")
+            .allow("cdn.example.com/ads/acceptable/")
+            .build();
+
+    assertThat(rules.isBlocked("www.example.com", "/")).isTrue();
+    assertThat(rules.isBlocked("cdn.example.com", "/images/logo.png")).isFalse();
+    assertThat(rules.isBlocked("cdn.example.com", "/ads/banner.png")).isTrue();
+    assertThat(rules.isBlocked("img.cdn.example.com", "/ads/banner.png")).isTrue();
+    assertThat(rules.isBlocked("cdn.example.com", "/ads/acceptable/text.png")).isFalse();
+    assertThat(rules.isBlocked("cdn.example.com", "/ad")).isFalse();
+  }
+
+  @Test
+  void pathPrefixesShareTrieNodes() {
+    CompiledRules rules =
+        CompiledRules.builder()
+            .block("example.com/a")
+            .block("example.com/abc/")
+            .allow("example.com/abd")
+            .block("example.com/b?tracking=")
+            .build();
+
+    assertThat(rules.isBlocked("example.com", "/a")).isTrue();
+    assertThat(rules.isBlocked("example.com", "/ab")).isTrue();
+    assertThat(rules.isBlocked("example.com", "/abc/x")).isTrue();
+    assertThat(rules.isBlocked("example.com", "/abd/x")).isFalse();
+    assertThat(rules.isBlocked("example.com", "/b")).isFalse();
+    assertThat(rules.isBlocked("example.com", "/b?tracking=1")).isTrue();
+    assertThat(rules.isBlocked("example.com", "")).isFalse();
+  }
+
+  @Test
+  void allowListBlocksUnmatchedRequests() {
+    CompiledRules rules =
+        CompiledRules.builder()
+            .withBlockByDefault(true)
+            .allow("example.com")
+            .block("example.com/admin/")
+            .build();
+
+    assertThat(rules.isBlocked("www.example.com", "/")).isFalse();
+    assertThat(rules.isBlocked("www.example.com", "/admin/users")).isTrue();
+    assertThat(rules.isBlocked("example.org", "/")).isTrue();
+  }
+
+  @Test
+  void bloomFilterDoesNotChangeDecisions() {
+    CompiledRules.Builder builder = CompiledRules.builder();
+    for (int i = 0; i < 1000; i++) {
+      builder.block("tracker" + i + ".example.com");
+    }
+    builder.allow("tracker7.example.com/ok/");
+    CompiledRules withoutFilter = builder.build();
+    CompiledRules withFilter = builder.withBloomFilter(0.01).build();
+
+    for (int i = 0; i < 2000; i++) {
+      String host = "www.tracker" + i + ".example.com";
+      assertThat(withFilter.isBlocked(host, "/")).isEqualTo(withoutFilter.isBlocked(host, "/"));
+    }
+    assertThat(withFilter.isBlocked("tracker7.example.com", "/ok/x")).isFalse();
+    assertThat(withFilter.getRuleCount()).isEqualTo(1001);
+    assertThat(withFilter.getSizeInBytes()).isGreaterThan(withoutFilter.getSizeInBytes());
+    assertThat(withoutFilter.getBytesPerRule()).isBetween(50.0, 500.0);
+  }
+
+  @Test
+  void parsesRulesFromText() {
+    CompiledRules rules =
+        CompiledRules.builder()
+            .addLines(
+                List.of(
+                    "# trackers",
+                    "",
+                    "tracker.example",
+                    "block *.ads.example",
+                    "allow ads.example/house/",
+                    "  ALLOW good.tracker.example  "))
+            .build();
+
+    assertThat(rules.getRuleCount()).isEqualTo(4);
+    assertThat(rules.isBlocked("a.tracker.example", "/")).isTrue();
+    assertThat(rules.isBlocked("good.tracker.example", "/")).isFalse();
+    assertThat(rules.isBlocked("ads.example", "/")).isTrue();
+    assertThat(rules.isBlocked("ads.example", "/house/ad.png")).isFalse();
+
+    assertThatThrownBy(() -> CompiledRules.builder().addLines(List.of("ok.example", "bad..rule")))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("Invalid rule on line 2");
+  }
+
+  @Test
+  void filtersSourceBlocksRequestsAndReloadsRules() {
+    RuleBasedHttpFiltersSource filtersSource =
+        new RuleBasedHttpFiltersSource(CompiledRules.builder().block("blocked.example").build());
+    ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+
+    HttpRequest request =
+        new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "http://blocked.example/a");
+    HttpFilters filters = filtersSource.filterRequest(request, ctx);
+    assertThat(filters).isNotNull();
+    HttpResponse response = filters.clientToProxyRequest(request);
+    assertThat(response).isNotNull();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.FORBIDDEN);
+
+    HttpRequest connect =
+        new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, "blocked.example:443");
+    assertThat(filtersSource.filterRequest(connect, ctx)).isNotNull();
+
+    HttpRequest tunnelled = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/a");
+    tunnelled.headers().set("Host", "www.blocked.example");
+    assertThat(filtersSource.filterRequest(tunnelled, ctx)).isNotNull();
+
+    filtersSource.reload(CompiledRules.empty());
+    assertThat(filtersSource.filterRequest(request, ctx)).isNull();
+
+    assertThat(filtersSource.getLookupCount()).isEqualTo(4);
+    assertThat(filtersSource.getBlockedCount()).isEqualTo(3);
+    assertThat(filtersSource.getAverageLookupNanos()).isNotNegative();
+  }
+}
@@ -0,0 +1,332 @@
+package org.littleshoot.proxy.extras;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.littleshoot.proxy.StreamedHttpResponse;
+
+class HttpCacheTest {
+  private final MutableClock clock = new MutableClock();
+
+  @Test
+  void maxAgeDeterminesFreshness() {
+    CachedResponse response = response(headers("Cache-Control", "max-age=60"), 10);
+
+    assertThat(response.isFreshFor(CacheControl.EMPTY, clock.millis())).isTrue();
+    clock.advance(59);
+    assertThat(response.isFreshFor(CacheControl.EMPTY, clock.millis())).isTrue();
+    clock.advance(2);
+    assertThat(response.isFreshFor(CacheControl.EMPTY, clock.millis())).isFalse();
+  }
+
+  @Test
+  void sMaxAgeTakesPrecedenceOverMaxAge() {
+    CachedResponse response = response(headers("Cache-Control", "max-age=600, s-maxage=10"), 10);
+
+    clock.advance(11);
+    assertThat(response.isFreshFor(CacheControl.EMPTY, clock.millis())).isFalse();
+  }
+
+  @Test
+  void ageHeaderCountsTowardsCurrentAge() {
+    CachedResponse response = response(headers("Cache-Control", "max-age=60", "Age", "50"), 10);
+
+    assertThat(response.currentAgeMillis(clock.millis())).isEqualTo(50_000);
+    clock.advance(11);
+    assertThat(response.isFreshFor(CacheControl.EMPTY, clock.millis())).isFalse();
+    assertThat(response.toHttpResponse(clock.millis(), false).headers().get(HttpHeaderNames.AGE))
+        .isEqualTo("61");
+  }
+
+  @Test
+  void expiresIsRelativeToDate() {
+    long date = clock.millis() - TimeUnit.SECONDS.toMillis(30);
+    CachedResponse response =
+        response(
+            headers(
+                "Date", httpDate(date),
+                "Expires", httpDate(date + TimeUnit.SECONDS.toMillis(60))),
+            10);
+
+    // the response is already 30 seconds old
+    clock.advance(29);
+    assertThat(response.isFreshFor(CacheControl.EMPTY, clock.millis())).isTrue();
+    clock.advance(2);
+    assertThat(response.isFreshFor(CacheControl.EMPTY, clock.millis())).isFalse();
+  }
+
+  @Test
+  void invalidExpiresMeansExpired() {
+    CachedResponse response = response(headers("Expires", "0"), 10);
+
+    assertThat(response.isFreshFor(CacheControl.EMPTY, clock.millis())).isFalse();
+  }
+
+  @Test
+  void lastModifiedGivesHeuristicFreshness() {
+    long lastModified = clock.millis() - TimeUnit.SECONDS.toMillis(1000);
+    CachedResponse response = response(headers("Last-Modified", httpDate(lastModified)), 10);
+
+    assertThat(response.freshnessLifetimeMillis()).isEqualTo(100_000);
+  }
+
+  @Test
+  void requestDirectivesLimitWhatIsFreshEnough() {
+    CachedResponse response = response(headers("Cache-Control", "max-age=60"), 10);
+    clock.advance(30);
+
+    assertThat(response.isFreshFor(requestCacheControl("max-age=20"), clock.millis())).isFalse();
+    assertThat(response.isFreshFor(requestCacheControl("min-fresh=40"), clock.millis())).isFalse();
+    clock.advance(60);
+    assertThat(response.isFreshFor(requestCacheControl("max-stale=60"), clock.millis())).isTrue();
+    assertThat(response.isFreshFor(requestCacheControl("max-stale=10"), clock.millis())).isFalse();
+    assertThat(response.isFreshFor(requestCacheControl("max-stale"), clock.millis())).isTrue();
+  }
+
+  @Test
+  void mustRevalidatePreventsServingStale() {
+    CachedResponse response = response(headers("Cache-Control", "max-age=60, must-revalidate"), 10);
+    clock.advance(90);
+
+    assertThat(response.isFreshFor(requestCacheControl("max-stale"), clock.millis())).isFalse();
+  }
+
+  @Test
+  void cachedResponseHasNoHopByHopHeaders() {
+    CachedResponse cached =
+        response(
+            headers("Cache-Control", "max-age=60", "Transfer-Encoding", "chunked", "X-Test", "1"),
+            5);
+
+    StreamedHttpResponse response = cached.toHttpResponse(clock.millis(), false);
+    assertThat(response.headers().contains(HttpHeaderNames.TRANSFER_ENCODING)).isFalse();
+    assertThat(response.headers().get("X-Test")).isEqualTo("1");
+    assertThat(response.headers().getInt(HttpHeaderNames.CONTENT_LENGTH)).isEqualTo(5);
+    List<Object> body = response.takeBodyParts();
+    assertThat(body).hasSize(1);
+    assertThat(((ByteBuf) body.get(0)).readableBytes()).isEqualTo(5);
+    ((ByteBuf) body.get(0)).release();
+  }
+
+  @Test
+  void gzipVariantIsStoredAlongWithTheResponse() throws IOException {
+    CachedResponse cached =
+        response(headers("Cache-Control", "max-age=60", "Content-Type", "text/plain"), 1000);
+    CachedResponse compressed = cached.withGzipVariant();
+    assertThat(cached.hasGzipVariant()).isFalse();
+    assertThat(compressed.size()).isGreaterThan(cached.size());
+
+    StreamedHttpResponse response = compressed.toGzipHttpResponse(clock.millis());
+    assertThat(response.headers().get(HttpHeaderNames.CONTENT_ENCODING)).isEqualTo("gzip");
+    assertThat(response.headers().get(HttpHeaderNames.VARY)).isEqualTo("accept-encoding");
+    ByteBuf body = (ByteBuf) response.takeBodyParts().get(0);
+    assertThat(body.readableBytes())
+        .isEqualTo(response.headers().getInt(HttpHeaderNames.CONTENT_LENGTH))
+        .isLessThan(1000);
+    try (InputStream in = new GZIPInputStream(new ByteBufInputStream(body, true))) {
+      assertThat(in.readAllBytes()).isEqualTo(new byte[1000]);
+    }
+  }
+
+  @Test
+  void evictsToStayWithinSize() {
+    CachedResponse response = response(headers("Cache-Control", "max-age=60"), 1000);
+    HttpCache cache = new HttpCache(response.size() * 3, response.size(), clock);
+
+    cache.put("a", response);
+    cache.put("b", response);
+    cache.put("c", response);
+    assertThat(cache.getEntryCount()).isEqualTo(3);
+
+    cache.put("d", response);
+    assertThat(cache.getEntryCount()).isEqualTo(3);
+    assertThat(cache.getSize()).isLessThanOrEqualTo(response.size() * 3);
+    assertThat(cache.getEvictionCount()).isEqualTo(1);
+  }
+
+  @Test
+  void keepsPopularAndSmallResponsesOverLargeOnes() {
+    CachedResponse small = response(headers("Cache-Control", "max-age=60"), 100);
+    CachedResponse large = response(headers("Cache-Control", "max-age=60"), 2000);
+    HttpCache cache = new HttpCache(large.size() + small.size() * 2, large.size(), clock);
+
+    cache.put("small1", small);
+    cache.put("popular-large", large);
+    cache.get("popular-large");
+    cache.get("popular-large");
+    cache.put("small2", small);
+    // the small responses are requested far more often for their size than the large one
+    for (int i = 0; i < 100; i++) {
+      cache.get("small1");
+      cache.get("small2");
+    }
+    cache.put("small3", small);
+
+    assertThat(cache.get("popular-large")).isNull();
+    assertThat(cache.get("small1")).isNotNull();
+    assertThat(cache.get("small2")).isNotNull();
+    assertThat(cache.get("small3")).isNotNull();
+  }
+
+  @Test
+  void doesNotStoreResponsesLargerThanMaxEntrySize() {
+    CachedResponse response = response(headers("Cache-Control", "max-age=60"), 1000);
+    HttpCache cache = new HttpCache(100_000, 500, clock);
+
+    cache.put("a", response);
+    assertThat(cache.get("a")).isNull();
+    assertThat(cache.getSize()).isZero();
+  }
+
+  @Test
+  void reportsHitRatioAndBytesServed() {
+    HttpCache cache = new HttpCache(100_000, 10_000, clock);
+    cache.recordMiss();
+    cache.recordHit(100);
+    cache.recordHit(50);
+    cache.recordHit(0);
+
+    assertThat(cache.getHitCount()).isEqualTo(3);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+    assertThat(cache.getHitRatio()).isEqualTo(0.75);
+    assertThat(cache.getBytesServed()).isEqualTo(150);
+  }
+
+  @Test
+  void invalidatesAllVariantsOfAResource() {
+    HttpCache cache = new HttpCache(100_000, 10_000, clock);
+    HttpHeaders headers = headers("Cache-Control", "max-age=60", "Vary", "Accept-Encoding, Accept");
+    cache.put("http://example.com/a\naccept:\naccept-encoding:gzip", response(headers, 10));
+    cache.put("http://example.com/a\naccept:\naccept-encoding:br", response(headers, 10));
+    cache.put("http://example.com/b", response(headers("Cache-Control", "max-age=60"), 10));
+
+    assertThat(cache.varyHeaders("http://example.com/a"))
+        .containsExactly("accept", "accept-encoding");
+    assertThat(cache.varyHeaders("http://example.com/b")).isEmpty();
+    assertThat(cache.getEntryCount()).isEqualTo(3);
+
+    cache.invalidate("http://example.com/a");
+
+    assertThat(cache.getEntryCount()).isEqualTo(1);
+    assertThat(cache.varyHeaders("http://example.com/a")).isEmpty();
+  }
+
+  @Test
+  void standardVaryNormalizerIgnoresInsignificantDifferences() {
+    VaryNormalizer normalizer = VaryNormalizer.standard();
+
+    assertThat(normalizer.normalize("accept-encoding", List.of("gzip, deflate")))
+        .isEqualTo(normalizer.normalize("accept-encoding", List.of("DEFLATE,gzip;q=1.0", "gzip")));
+    assertThat(normalizer.normalize("accept-encoding", List.of("gzip, br;q=0")))
+        .isEqualTo("gzip");
+    assertThat(normalizer.normalize("accept-language", List.of("en-GB, en;q=0.8")))
+        .isEqualTo("en-gb,en;q=0.8");
+    assertThat(normalizer.normalize("cookie", List.of(" a=B "))).isEqualTo("a=B");
+    assertThat(
+            normalizer
+                .withHeader("User-Agent", values -> values.isEmpty() ? "none" : "some")
+                .normalize("user-agent", List.of()))
+        .isEqualTo("none");
+  }
+
+  @Test
+  void snapshotsMostPopularResponses(@TempDir Path directory) throws IOException {
+    HttpCache cache = new HttpCache(100_000, 10_000, clock);
+    cache.put("a", response(headers("Cache-Control", "max-age=60"), 10));
+    cache.put("b", response(headers("Cache-Control", "max-age=60", "ETag", "\"b\""), 20));
+    cache.put("c", response(headers("Cache-Control", "max-age=60"), 30));
+    for (int i = 0; i < 5; i++) {
+      cache.get("b").body().release();
+      cache.get("c").body().release();
+    }
+    Path snapshot = directory.resolve("cache.snapshot");
+
+    assertThat(cache.writeSnapshot(snapshot, 2)).isEqualTo(2);
+
+    HttpCache restored = new HttpCache(100_000, 10_000, clock);
+    assertThat(restored.loadSnapshot(snapshot)).isEqualTo(2);
+    assertThat(restored.getEntryCount()).isEqualTo(2);
+    assertThat(restored.get("a")).isNull();
+    CachedResponse b = restored.get("b");
+    assertThat(b.headers().get("ETag")).isEqualTo("\"b\"");
+    assertThat(b.body().length()).isEqualTo(20);
+    assertThat(b.isFreshFor(CacheControl.EMPTY, clock.millis())).isTrue();
+    b.body().release();
+  }
+
+  @Test
+  void parsesCacheControlDirectives() {
+    CacheControl cacheControl =
+        requestCacheControl("Max-Age=\"30\", no-cache, max-stale=abc, s-maxage=99999999999");
+
+    assertThat(cacheControl.has("no-cache")).isTrue();
+    assertThat(cacheControl.seconds("max-age")).isEqualTo(30);
+    assertThat(cacheControl.seconds("max-stale")).isEqualTo(-1);
+    assertThat(cacheControl.seconds("s-maxage")).isEqualTo(Integer.MAX_VALUE);
+    assertThat(cacheControl.has("no-store")).isFalse();
+  }
+
+  private CachedResponse response(HttpHeaders headers, int bodyLength) {
+    long now = clock.millis();
+    return new CachedResponse(HttpResponseStatus.OK, headers, new byte[bodyLength], now, now);
+  }
+
+  private static HttpHeaders headers(String... namesAndValues) {
+    HttpHeaders headers = new DefaultHttpHeaders();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      headers.add(namesAndValues[i], namesAndValues[i + 1]);
+    }
+    return headers;
+  }
+
+  private static CacheControl requestCacheControl(String value) {
+    return CacheControl.parse(headers("Cache-Control", value));
+  }
+
+  private static String httpDate(long millis) {
+    return DateFormatter.format(new Date(millis));
+  }
+
+  private static final class MutableClock extends Clock {
+    // HTTP dates have a resolution of one second
+    private long millis = TimeUnit.SECONDS.toMillis(1_700_000_000L);
+
+    void advance(long seconds) {
+      millis += TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package org.littleshoot.proxy.extras;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class PatternScannerTest {
+  @Test
+  void findsOverlappingPatternsAcrossBuffers() {
+    PatternScanner scanner =
+        PatternScanner.builder().addAll(List.of("he", "she", "his", "hers")).build();
+    List<String> matches = new ArrayList<>();
+    PatternScanner.Matcher matcher =
+        scanner.newMatcher(
+            (pattern, end) -> {
+              matches.add(pattern + "@" + end);
+              return true;
+            });
+
+    assertThat(matcher.scan(text("ush"))).isTrue();
+    assertThat(matcher.scan(text("ers his"))).isTrue();
+
+    assertThat(matches).containsExactly("1@4", "0@4", "3@6", "2@10");
+    assertThat(matcher.position()).isEqualTo(10);
+  }
+
+  @Test
+  void leavesTheBufferAlone() {
+    PatternScanner scanner = PatternScanner.builder().add("secret").build();
+    List<Long> ends = new ArrayList<>();
+    CompositeByteBuf content = Unpooled.compositeBuffer();
+    content.addComponents(true, text("top sec"), text("ret data"));
+    content.skipBytes(4);
+
+    scanner
+        .newMatcher(
+            (pattern, end) -> {
+              ends.add(end);
+              return true;
+            })
+        .scan(content);
+
+    assertThat(ends).containsExactly(6L);
+    assertThat(content.readerIndex()).isEqualTo(4);
+    content.release();
+  }
+
+  @Test
+  void stopsWhenTheListenerSaysSo() {
+    PatternScanner scanner =
+        PatternScanner.builder().add("EICAR").withCaseInsensitive(true).build();
+    List<Long> ends = new ArrayList<>();
+    PatternScanner.Matcher matcher =
+        scanner.newMatcher(
+            (pattern, end) -> {
+              ends.add(end);
+              return false;
+            });
+
+    assertThat(matcher.scan(text("x-eicar-eicar"))).isFalse();
+    assertThat(matcher.isStopped()).isTrue();
+    assertThat(matcher.scan(text("eicar"))).isFalse();
+    assertThat(ends).containsExactly(7L);
+
+    matcher.reset();
+    assertThat(matcher.scan(text("Eicar"))).isFalse();
+    assertThat(ends).containsExactly(7L, 5L);
+  }
+
+  @Test
+  void findsTheSameMatchesAsANaiveSearch() {
+    Random random = new Random(42);
+    List<String> patterns = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      patterns.add(randomText(random, 1 + random.nextInt(5)));
+    }
+    PatternScanner scanner = PatternScanner.builder().addAll(patterns).build();
+    String text = randomText(random, 5000);
+
+    List<String> expected = new ArrayList<>();
+    for (int end = 1; end <= text.length(); end++) {
+      for (int pattern = 0; pattern < patterns.size(); pattern++) {
+        if (text.startsWith(patterns.get(pattern), end - patterns.get(pattern).length())) {
+          expected.add(pattern + "@" + end);
+        }
+      }
+    }
+    List<String> actual = new ArrayList<>();
+    PatternScanner.Matcher matcher =
+        scanner.newMatcher(
+            (pattern, end) -> {
+              actual.add(pattern + "@" + end);
+              return true;
+            });
+    for (int start = 0; start < text.length(); start += 97) {
+      matcher.scan(text(text.substring(start, Math.min(text.length(), start + 97))));
+    }
+
+    assertThat(actual).containsExactlyInAnyOrderElementsOf(expected);
+    assertThat(scanner.getPatternCount()).isEqualTo(200);
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder text = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      text.append((char) ('a' + random.nextInt(4)));
+    }
+    return text.toString();
+  }
+
+  private static ByteBuf text(String text) {
+    return Unpooled.copiedBuffer(text, US_ASCII);
+  }
+}
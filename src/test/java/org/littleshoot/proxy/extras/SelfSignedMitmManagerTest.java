@@ -41,4 +41,15 @@ public final class SelfSignedMitmManagerTest {
     assertThat(manager.clientSslEngineFor(request, session)).isEqualTo(engine);
     verifyNoMoreInteractions(request, session);
   }
+
+  @Test
+  public void testClientSslEngineForHost() {
+    HttpRequest request = mock();
+    SelfSignedSslEngineSource source = mock();
+    SelfSignedMitmManager manager = new SelfSignedMitmManager(source);
+    SSLEngine engine = mock();
+    when(source.newSslEngine()).thenReturn(engine);
+    assertThat(manager.clientSslEngineForHost(request, "example.com")).isEqualTo(engine);
+    verifyNoMoreInteractions(request);
+  }
 }
@@ -0,0 +1,197 @@
+package org.littleshoot.proxy.extras;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.ReferenceCountUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TieredBodyStoreTest {
+  private static final int SEGMENT_SIZE = 16 * 1024;
+
+  @TempDir Path directory;
+
+  private TieredBodyStore store;
+
+  @AfterEach
+  void tearDown() {
+    if (store != null) {
+      store.close();
+    }
+  }
+
+  @Test
+  void storesBodiesInMemoryAndOnDisk() throws IOException {
+    store = TieredBodyStore.open(directory, 1024 * 1024, SEGMENT_SIZE);
+    HttpCache cache = new HttpCache(1024 * 1024, 4096, store);
+
+    cache.put("http://example.com/a", response("a", 1000));
+    store.flush();
+
+    assertThat(store.getEntryCount()).isEqualTo(1);
+    assertThat(store.getMemoryBytes()).isEqualTo(1000);
+    assertThat(store.getDiskBytes()).isGreaterThan(1000);
+    assertThat(body(cache, "http://example.com/a")).isEqualTo(bytes("a", 1000));
+    assertThat(store.getMemoryHits()).isEqualTo(1);
+  }
+
+  @Test
+  void servesBodiesWhileTheyAreWritten() throws IOException {
+    store = TieredBodyStore.open(directory, 1024 * 1024, SEGMENT_SIZE);
+    HttpCache cache = new HttpCache(1024 * 1024, 4096, store);
+
+    cache.put("a", response("a", 1000));
+
+    assertThat(body(cache, "a")).isEqualTo(bytes("a", 1000));
+    store.flush();
+    assertThat(store.getEntryCount()).isEqualTo(1);
+    assertThat(body(cache, "a")).isEqualTo(bytes("a", 1000));
+    assertThat(store.getMemoryHits()).isPositive();
+  }
+
+  @Test
+  void keepsOnlyRecentlyUsedBodiesInMemory() throws IOException {
+    store = TieredBodyStore.open(directory, 2000, SEGMENT_SIZE);
+    HttpCache cache = new HttpCache(1024 * 1024, 4096, store);
+
+    cache.put("a", response("a", 1000));
+    cache.put("b", response("b", 1000));
+    cache.put("c", response("c", 1000));
+    store.flush();
+
+    assertThat(store.getMemoryBytes()).isEqualTo(2000);
+    assertThat(body(cache, "a")).isEqualTo(bytes("a", 1000));
+    assertThat(store.getDiskHits()).isEqualTo(1);
+    // reading "a" brought it back into memory, pushing out "b"
+    assertThat(body(cache, "a")).isEqualTo(bytes("a", 1000));
+    assertThat(body(cache, "c")).isEqualTo(bytes("c", 1000));
+    assertThat(store.getMemoryHits()).isEqualTo(2);
+    assertThat(store.getMemoryBytes()).isEqualTo(2000);
+  }
+
+  @Test
+  void sendsBodiesOnDiskAsFileRegions() throws IOException {
+    store = TieredBodyStore.open(directory, 0, SEGMENT_SIZE);
+    HttpCache cache = new HttpCache(1024 * 1024, 4096, store);
+    cache.put("a", response("a", 3000));
+    store.flush();
+
+    CachedResponse cached = cache.get("a");
+    Object message = cached.body().message(true);
+    cached.body().release();
+    try {
+      assertThat(message).isInstanceOf(FileRegion.class);
+      FileRegion region = (FileRegion) message;
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      WritableByteChannel target = Channels.newChannel(out);
+      while (region.transferred() < region.count()) {
+        region.transferTo(target, region.transferred());
+      }
+      assertThat(out.toByteArray()).isEqualTo(bytes("a", 3000));
+    } finally {
+      ReferenceCountUtil.release(message);
+    }
+  }
+
+  @Test
+  void recoversStoredResponsesOnRestart() throws IOException {
+    store = TieredBodyStore.open(directory, 1024 * 1024, SEGMENT_SIZE);
+    HttpCache cache = new HttpCache(1024 * 1024, 4096, store);
+    cache.put("a", response("a", 1000));
+    cache.put("b", response("b", 2000));
+    cache.put("b", response("B", 1500));
+    cache.put("c", response("c", 100));
+    cache.invalidate("c");
+    store.close();
+
+    store = TieredBodyStore.open(directory, 1024 * 1024, SEGMENT_SIZE);
+    HttpCache recovered = new HttpCache(1024 * 1024, 4096, store);
+
+    assertThat(store.getRecoveredEntries()).isEqualTo(2);
+    assertThat(recovered.getEntryCount()).isEqualTo(2);
+    assertThat(body(recovered, "a")).isEqualTo(bytes("a", 1000));
+    assertThat(body(recovered, "b")).isEqualTo(bytes("B", 1500));
+    assertThat(recovered.get("c")).isNull();
+
+    CachedResponse cached = recovered.get("a");
+    assertThat(cached.status()).isEqualTo(HttpResponseStatus.OK);
+    assertThat(cached.headers().get("Cache-Control")).isEqualTo("max-age=60");
+    assertThat(cached.freshnessLifetimeMillis()).isEqualTo(60_000);
+    cached.body().release();
+  }
+
+  @Test
+  void compactsSegmentsThatAreMostlyGarbage() throws IOException {
+    store = TieredBodyStore.open(directory, 0, SEGMENT_SIZE);
+    HttpCache cache = new HttpCache(1024 * 1024, 4096, store);
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 10; i++) {
+        cache.put("key" + i, response("round" + round + "-" + i, 2000));
+      }
+    }
+    cache.invalidate("key0");
+    store.flush();
+    int segmentsBefore = store.getSegmentCount();
+
+    store.compact();
+
+    assertThat(store.getCompactedSegments()).isPositive();
+    assertThat(store.getSegmentCount()).isLessThan(segmentsBefore);
+    for (int i = 1; i < 10; i++) {
+      assertThat(body(cache, "key" + i)).isEqualTo(bytes("round4-" + i, 2000));
+    }
+
+    store.close();
+    store = TieredBodyStore.open(directory, 0, SEGMENT_SIZE);
+    HttpCache recovered = new HttpCache(1024 * 1024, 4096, store);
+    assertThat(recovered.getEntryCount()).isEqualTo(9);
+    assertThat(recovered.get("key0")).isNull();
+    for (int i = 1; i < 10; i++) {
+      assertThat(body(recovered, "key" + i)).isEqualTo(bytes("round4-" + i, 2000));
+    }
+  }
+
+  private static CachedResponse response(String content, int length) {
+    long now = System.currentTimeMillis();
+    return new CachedResponse(
+        HttpResponseStatus.OK,
+        new DefaultHttpHeaders().add("Cache-Control", "max-age=60"),
+        bytes(content, length),
+        now,
+        now);
+  }
+
+  /** Returns {@code length} bytes made of repetitions of {@code content}. */
+  private static byte[] bytes(String content, int length) {
+    byte[] pattern = content.getBytes(UTF_8);
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = pattern[i % pattern.length];
+    }
+    return bytes;
+  }
+
+  private static byte[] body(HttpCache cache, String key) {
+    CachedResponse cached = cache.get(key);
+    assertThat(cached).as("cached response for %s", key).isNotNull();
+    ByteBuf content = cached.body().content();
+    try {
+      return ByteBufUtil.getBytes(content);
+    } finally {
+      content.release();
+      cached.body().release();
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package org.littleshoot.proxy.haproxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.ActivityTrackerAdapter;
+import org.littleshoot.proxy.ClientAccessList;
+import org.littleshoot.proxy.FlowContext;
+import org.littleshoot.proxy.HttpProxyServerBootstrap;
+
+/**
+ * Verifies that the client access list is checked against the source address in the PROXY
+ * protocol header, rather than the address of the connection, which is the load balancer's.
+ */
+public final class ProxyProtocolClientAccessTest extends BaseProxyProtocolTest {
+  private final AtomicInteger clientConnectedCount = new AtomicInteger();
+  private volatile boolean tls;
+  private volatile ClientAccessList accessList = ClientAccessList.allowAll();
+
+  @Override
+  protected boolean useTlsInbound() {
+    return tls;
+  }
+
+  @Override
+  protected void customizeProxyServer(HttpProxyServerBootstrap builder) {
+    builder
+        .withClientAccessList(accessList)
+        .plusActivityTracker(
+            new ActivityTrackerAdapter() {
+              @Override
+              public void clientConnected(FlowContext flowContext) {
+                clientConnectedCount.incrementAndGet();
+              }
+            });
+  }
+
+  @Test
+  void allowsClientsByProxyProtocolSourceAddress() throws Exception {
+    // the connection itself comes from the loopback address, which is denied
+    accessList = ClientAccessList.builder().deny("127.0.0.0/8").allow("192.168.0.0/24").build();
+    setup(true, true);
+
+    HAProxyMessage relayed = getRelayedHaProxyMessage();
+    assertThat(relayed).isNotNull();
+    assertThat(relayed.sourceAddress()).isEqualTo(SOURCE_ADDRESS);
+    assertThat(clientConnectedCount.get()).isEqualTo(1);
+  }
+
+  @Test
+  void allowsClientsByProxyProtocolSourceAddressWithTls() throws Exception {
+    tls = true;
+    accessList = ClientAccessList.builder().deny("127.0.0.0/8").allow("192.168.0.0/24").build();
+    setup(true, true);
+
+    HAProxyMessage relayed = getRelayedHaProxyMessage();
+    assertThat(relayed).isNotNull();
+    assertThat(relayed.sourceAddress()).isEqualTo(SOURCE_ADDRESS);
+    assertThat(isClientTlsHandshakeSuccess()).isTrue();
+  }
+
+  @Test
+  void rejectsClientsByProxyProtocolSourceAddress() throws Exception {
+    accessList = ClientAccessList.builder().allow("127.0.0.0/8").deny(SOURCE_ADDRESS).build();
+    setup(true, true);
+
+    assertThat(getRelayedHaProxyMessage()).isNull();
+    assertThat(clientConnectedCount.get()).isZero();
+  }
+}
@@ -0,0 +1,146 @@
+package org.littleshoot.proxy.impl;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.BodyInspector;
+
+final class BodyInspectionTest {
+  private static final UnpooledByteBufAllocator ALLOC = new UnpooledByteBufAllocator(false);
+
+  @Test
+  void decodesOnlyAsFarAsTheInspectorReads() throws IOException {
+    String text = "<html>" + "x".repeat(100_000) + "</html>";
+    byte[] compressed = gzip(text);
+    List<String> seen = new ArrayList<>();
+    BodyInspection inspection =
+        BodyInspection.start(
+            body -> {
+              seen.add(body.read(6).toString(US_ASCII));
+              return false;
+            },
+            response("gzip"),
+            ALLOC);
+
+    HttpContent first = new DefaultHttpContent(Unpooled.wrappedBuffer(compressed, 0, 100));
+    assertThat(inspection.inspect(first)).isFalse();
+    assertThat(seen).containsExactly("<html>");
+    assertThat(first.refCnt()).isOne();
+    assertThat(first.content().readableBytes()).isEqualTo(100);
+
+    // later chunks are no longer inspected
+    HttpContent last =
+        new DefaultLastHttpContent(
+            Unpooled.wrappedBuffer(compressed, 100, compressed.length - 100));
+    assertThat(inspection.inspect(last)).isFalse();
+    assertThat(seen).hasSize(1);
+    first.release();
+    last.release();
+  }
+
+  @Test
+  void readsAcrossChunksUntilTheEnd() throws IOException {
+    String text = "0123456789".repeat(500);
+    byte[] compressed = gzip(text);
+    StringBuilder decoded = new StringBuilder();
+    BodyInspector inspector =
+        body -> {
+          ByteBuf read;
+          while ((read = body.read(700)).isReadable()) {
+            decoded.append(read.toString(US_ASCII));
+          }
+          return true;
+        };
+    BodyInspection inspection = BodyInspection.start(inspector, response("gzip"), ALLOC);
+
+    int half = compressed.length / 2;
+    HttpContent first = new DefaultHttpContent(Unpooled.wrappedBuffer(compressed, 0, half));
+    assertThat(inspection.inspect(first)).isTrue();
+    HttpContent last =
+        new DefaultLastHttpContent(
+            Unpooled.wrappedBuffer(compressed, half, compressed.length - half));
+    assertThat(inspection.inspect(last)).isFalse();
+
+    assertThat(decoded).hasToString(text);
+    first.release();
+    last.release();
+  }
+
+  @Test
+  void passesIdentityBodiesThroughAndSkipsUnknownEncodings() {
+    List<String> seen = new ArrayList<>();
+    BodyInspection inspection =
+        BodyInspection.start(
+            body -> {
+              seen.add(body.contentEncoding() + ":" + body.read(100).toString(US_ASCII));
+              return true;
+            },
+            response(null),
+            ALLOC);
+
+    HttpContent last = new DefaultLastHttpContent(Unpooled.copiedBuffer("plain", US_ASCII));
+    assertThat(inspection.inspect(last)).isFalse();
+    assertThat(seen).containsExactly("identity:plain");
+    last.release();
+
+    assertThat(BodyInspection.start(body -> true, response("gzip, br"), ALLOC)).isNull();
+  }
+
+  @Test
+  void partsReadAcrossChunksOutliveTheChunksBeingTrimmed() {
+    CompositeByteBuf chunks = ALLOC.compositeBuffer(Integer.MAX_VALUE);
+    chunks.addComponent(true, Unpooled.copiedBuffer("abc", US_ASCII));
+    chunks.addComponent(true, Unpooled.copiedBuffer("defg", US_ASCII));
+    chunks.addComponent(true, Unpooled.copiedBuffer("hij", US_ASCII));
+
+    ByteBuf first = ProxyUtils.readRetainedComponents(chunks, 5);
+    ByteBuf second = ProxyUtils.readRetainedComponents(chunks, 4);
+    // as the inspection does once the parts have been handed on
+    chunks.discardReadComponents();
+    chunks.addComponent(true, Unpooled.copiedBuffer("klm", US_ASCII));
+    ByteBuf third = ProxyUtils.readRetainedComponents(chunks, 4);
+    chunks.discardReadComponents();
+    chunks.release();
+
+    assertThat(first.toString(US_ASCII)).isEqualTo("abcde");
+    assertThat(second.toString(US_ASCII)).isEqualTo("fghi");
+    assertThat(third.toString(US_ASCII)).isEqualTo("jklm");
+    first.release();
+    second.release();
+    third.release();
+  }
+
+  private static HttpResponse response(String contentEncoding) {
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    if (contentEncoding != null) {
+      response.headers().set(HttpHeaderNames.CONTENT_ENCODING, contentEncoding);
+    }
+    return response;
+  }
+
+  private static byte[] gzip(String text) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(text.getBytes(US_ASCII));
+    }
+    return compressed.toByteArray();
+  }
+}
@@ -0,0 +1,181 @@
+package org.littleshoot.proxy.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.BodyTransformer;
+
+final class BodyTransformationTest {
+  private static final UnpooledByteBufAllocator ALLOC = new UnpooledByteBufAllocator(false);
+
+  /** Replaces every occurrence of a string, holding back enough input to match across chunks. */
+  static final class Replacer implements BodyTransformer {
+    private final ByteBuf target;
+    private final String replacement;
+
+    Replacer(String target, String replacement) {
+      this.target = Unpooled.copiedBuffer(target, UTF_8);
+      this.replacement = replacement;
+    }
+
+    @Override
+    public int getMaximumLookahead() {
+      return target.readableBytes() - 1;
+    }
+
+    @Override
+    public void transform(Editor editor) {
+      int index;
+      while ((index = ByteBufUtil.indexOf(target, editor.input())) >= 0) {
+        editor
+            .pass(index)
+            .replace(target.readableBytes(), Unpooled.copiedBuffer(replacement, UTF_8));
+      }
+    }
+  }
+
+  @Test
+  void replacesAcrossChunkBoundaries() {
+    BodyTransformation transformation =
+        new BodyTransformation(new Replacer("foo", "barbaz"), ALLOC);
+    List<ByteBuf> inputs = new ArrayList<>();
+    StringBuilder output = new StringBuilder();
+
+    for (String chunk : new String[] {"xxfo", "oyyf", "oo", ""}) {
+      ByteBuf content = Unpooled.copiedBuffer(chunk, UTF_8);
+      inputs.add(content);
+      HttpContent httpContent =
+          chunk.isEmpty() ? new DefaultLastHttpContent(content) : new DefaultHttpContent(content);
+      HttpObject transformed = transformation.transform(httpContent);
+      if (transformed != null) {
+        output.append(((HttpContent) transformed).content().toString(UTF_8));
+        ((HttpContent) transformed).release();
+      }
+    }
+
+    assertThat(output).hasToString("xxbarbazyybarbaz");
+    // neither the bytes held back nor the ones passed on are left referenced
+    assertThat(inputs).allSatisfy(input -> assertThat(input.refCnt()).isEqualTo(1));
+  }
+
+  @Test
+  void holdsBackChunksThatMayStartAMatch() {
+    BodyTransformation transformation = new BodyTransformation(new Replacer("foo", "bar"), ALLOC);
+
+    HttpObject first = transformation.transform(content("f"));
+    HttpObject second = transformation.transform(content("o"));
+    HttpObject last =
+        transformation.transform(new DefaultLastHttpContent(Unpooled.copiedBuffer("o", UTF_8)));
+
+    assertThat(first).isNull();
+    assertThat(second).isNull();
+    assertThat(last).isInstanceOf(LastHttpContent.class);
+    assertThat(((LastHttpContent) last).content().toString(UTF_8)).isEqualTo("bar");
+  }
+
+  @Test
+  void dropsAndInsertsContent() {
+    BodyTransformer transformer =
+        editor -> {
+          if (editor.input().readableBytes() > 2) {
+            editor.drop(2).insert("<", UTF_8).pass(1).insert(">", UTF_8);
+          }
+        };
+    BodyTransformation transformation = new BodyTransformation(transformer, ALLOC);
+
+    HttpObject transformed =
+        transformation.transform(new DefaultLastHttpContent(Unpooled.copiedBuffer("abcd", UTF_8)));
+
+    assertThat(((HttpContent) transformed).content().toString(UTF_8)).isEqualTo("<c>d");
+  }
+
+  @Test
+  void reframesMessages() {
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    HttpUtil.setContentLength(response, 10);
+    HttpResponse transformedResponse =
+        (HttpResponse) new BodyTransformation(new Replacer("a", "b"), ALLOC).transform(response);
+
+    assertThat(transformedResponse).isNotSameAs(response);
+    assertThat(HttpUtil.isTransferEncodingChunked(transformedResponse)).isTrue();
+    assertThat(transformedResponse.headers().contains(HttpHeaderNames.CONTENT_LENGTH)).isFalse();
+    assertThat(HttpUtil.getContentLength(response)).isEqualTo(10);
+
+    FullHttpResponse full =
+        new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.copiedBuffer("aaa", UTF_8));
+    HttpUtil.setContentLength(full, 3);
+    FullHttpResponse transformedFull =
+        (FullHttpResponse) new BodyTransformation(new Replacer("a", "bb"), ALLOC).transform(full);
+
+    assertThat(transformedFull.content().toString(UTF_8)).isEqualTo("bbbbbb");
+    assertThat(HttpUtil.getContentLength(transformedFull)).isEqualTo(6);
+  }
+
+  @Test
+  void transformsOnlyRequestsWithBodies() {
+    HttpRequest get = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+    HttpRequest post = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/");
+    HttpUtil.setContentLength(post, 5);
+    HttpRequest head = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.HEAD, "/");
+    HttpResponse notModified =
+        new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+    HttpResponse ok = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+
+    assertThat(BodyTransformation.hasBody(get)).isFalse();
+    assertThat(BodyTransformation.hasBody(post)).isTrue();
+    assertThat(BodyTransformation.hasBody(get, ok)).isTrue();
+    assertThat(BodyTransformation.hasBody(head, ok)).isFalse();
+    assertThat(BodyTransformation.hasBody(get, notModified)).isFalse();
+  }
+
+  @Test
+  void transformsOnlyUncompressedBodies() {
+    HttpResponse plain = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    HttpResponse identity = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    identity.headers().set(HttpHeaderNames.CONTENT_ENCODING, "Identity");
+    HttpResponse gzip = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    gzip.headers().set(HttpHeaderNames.CONTENT_ENCODING, "gzip");
+
+    assertThat(BodyTransformation.isIdentityEncoded(plain)).isTrue();
+    assertThat(BodyTransformation.isIdentityEncoded(identity)).isTrue();
+    assertThat(BodyTransformation.isIdentityEncoded(gzip)).isFalse();
+  }
+
+  @Test
+  void rejectsEditsBeyondTheInput() {
+    BodyTransformation transformation = new BodyTransformation(editor -> editor.pass(5), ALLOC);
+
+    assertThatThrownBy(() -> transformation.transform(content("abc")))
+        .isInstanceOf(IndexOutOfBoundsException.class);
+    transformation.release();
+  }
+
+  private static HttpContent content(String text) {
+    return new DefaultHttpContent(Unpooled.copiedBuffer(text, UTF_8));
+  }
+}
@@ -0,0 +1,114 @@
+package org.littleshoot.proxy.impl;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import org.junit.jupiter.api.Test;
+
+final class ClientHelloTest {
+  @Test
+  void readsServerNameAndApplicationProtocols() throws Exception {
+    ByteBuf bytes = clientHello("www.example.com", "h2", "http/1.1");
+
+    ClientHello clientHello = ClientHello.parse(bytes);
+
+    assertThat(clientHello).isNotNull();
+    assertThat(clientHello.isTls()).isTrue();
+    assertThat(clientHello.serverName()).isEqualTo("www.example.com");
+    assertThat(clientHello.applicationProtocols()).containsExactly("h2", "http/1.1");
+    assertThat(bytes.readerIndex()).isZero();
+    bytes.release();
+  }
+
+  @Test
+  void waitsForTheWholeClientHello() throws Exception {
+    ByteBuf bytes = clientHello("www.example.com");
+
+    assertThat(ClientHello.parse(bytes.slice(0, 3))).isNull();
+    assertThat(ClientHello.parse(bytes.slice(0, bytes.readableBytes() - 1))).isNull();
+    assertThat(ClientHello.parse(bytes).serverName()).isEqualTo("www.example.com");
+    bytes.release();
+  }
+
+  @Test
+  void joinsClientHellosSplitOverSeveralRecords() throws Exception {
+    ByteBuf bytes = clientHello("split.example.com", "h2");
+    ByteBuf records = splitIntoRecords(bytes, 100);
+
+    ClientHello clientHello = ClientHello.parse(records);
+
+    assertThat(clientHello.serverName()).isEqualTo("split.example.com");
+    assertThat(clientHello.applicationProtocols()).containsExactly("h2");
+    assertThat(ClientHello.parse(records.slice(0, records.readableBytes() - 1))).isNull();
+    bytes.release();
+  }
+
+  @Test
+  void recognizesOtherProtocols() {
+    ByteBuf bytes = Unpooled.copiedBuffer("SSH-2.0-OpenSSH_9.6\r\n", US_ASCII);
+
+    assertThat(ClientHello.startsTlsHandshake(bytes)).isFalse();
+    assertThat(ClientHello.parse(bytes)).isSameAs(ClientHello.NOT_TLS);
+    assertThat(ClientHello.parse(Unpooled.EMPTY_BUFFER)).isNull();
+  }
+
+  @Test
+  void peekerHoldsTheBytesUntilTheyAreTaken() throws Exception {
+    List<ClientHello> peeked = new ArrayList<>();
+    ClientHelloPeeker peeker = new ClientHelloPeeker(null, 60_000, peeked::add);
+    EmbeddedChannel channel = new EmbeddedChannel(peeker);
+    ByteBuf bytes = clientHello("peek.example.com");
+    int length = bytes.readableBytes();
+
+    channel.writeInbound(bytes.readRetainedSlice(10));
+    assertThat(peeked).isEmpty();
+    channel.writeInbound(bytes.readRetainedSlice(bytes.readableBytes()));
+    channel.writeInbound(Unpooled.copiedBuffer("more", US_ASCII));
+
+    assertThat(peeked).hasSize(1);
+    assertThat(peeked.get(0).serverName()).isEqualTo("peek.example.com");
+    assertThat((Object) channel.readInbound()).isNull();
+    ByteBuf held = peeker.takeHeldBytes();
+    assertThat(held.readableBytes()).isEqualTo(length + 4);
+    held.release();
+    bytes.release();
+    channel.finishAndReleaseAll();
+  }
+
+  /** Returns the first bytes the JDK's TLS client sends, with the given SNI and ALPN protocols. */
+  private static ByteBuf clientHello(String serverName, String... applicationProtocols)
+      throws Exception {
+    SSLEngine engine = SSLContext.getDefault().createSSLEngine(serverName, 443);
+    engine.setUseClientMode(true);
+    SSLParameters parameters = engine.getSSLParameters();
+    parameters.setServerNames(List.of(new SNIHostName(serverName)));
+    parameters.setApplicationProtocols(applicationProtocols);
+    engine.setSSLParameters(parameters);
+    ByteBuffer output = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    engine.wrap(ByteBuffer.allocate(0), output);
+    output.flip();
+    return Unpooled.wrappedBuffer(output);
+  }
+
+  /** Moves the handshake message of the given record into records of at most the given length. */
+  private static ByteBuf splitIntoRecords(ByteBuf record, int maxFragmentLength) {
+    int length = record.getUnsignedShort(3);
+    ByteBuf records = Unpooled.buffer();
+    for (int offset = 0; offset < length; offset += maxFragmentLength) {
+      int fragmentLength = Math.min(maxFragmentLength, length - offset);
+      records.writeBytes(record, 0, 3).writeShort(fragmentLength);
+      records.writeBytes(record, 5 + offset, fragmentLength);
+    }
+    return records;
+  }
+}
@@ -0,0 +1,95 @@
+package org.littleshoot.proxy.impl;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+final class ResponseBufferHandlerTest {
+  @TempDir Path spillDirectory;
+
+  @Test
+  void buffersInMemoryThenOnDiskWhileTheClientIsSlow() throws IOException {
+    ResponseBufferHandler handler = new ResponseBufferHandler(spillDirectory, 10, 20);
+    AtomicInteger fullnessChanges = new AtomicInteger();
+    EmbeddedChannel channel = new EmbeddedChannel();
+    channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+    channel
+        .pipeline()
+        .addLast(
+            handler,
+            new ChannelInboundHandlerAdapter() {
+              @Override
+              public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+                fullnessChanges.incrementAndGet();
+              }
+            });
+
+    // the socket takes the first write, which leaves it unwritable until it is flushed
+    channel.write(text("0123456789abcdefghij"));
+    channel.runPendingTasks();
+    assertThat(channel.isWritable()).isFalse();
+
+    channel.write(text("ABCDEFGHIJ"));
+    channel.write(text("KLMNOPQRST"));
+    assertThat(spilledFiles()).isEqualTo(1);
+    assertThat(handler.isFull()).isFalse();
+    channel.write(text("UVWXYZ!?.,"));
+    assertThat(handler.isFull()).isTrue();
+    assertThat(fullnessChanges).hasValue(1);
+
+    StringBuilder received = new StringBuilder();
+    for (int i = 0; i < 10; i++) {
+      channel.flush();
+      channel.runPendingTasks();
+      ByteBuf written;
+      while ((written = channel.readOutbound()) != null) {
+        received.append(written.toString(US_ASCII));
+        written.release();
+      }
+    }
+
+    assertThat(received).hasToString("0123456789abcdefghijABCDEFGHIJKLMNOPQRSTUVWXYZ!?.,");
+    assertThat(handler.isFull()).isFalse();
+    assertThat(fullnessChanges).hasValue(2);
+
+    channel.finishAndReleaseAll();
+    assertThat(spilledFiles()).isZero();
+  }
+
+  @Test
+  void passesWritesThroughWhileTheClientKeepsUp() throws IOException {
+    EmbeddedChannel channel =
+        new EmbeddedChannel(new ResponseBufferHandler(spillDirectory, 10, 20));
+
+    channel.writeOutbound(text("0123456789abcdefghij"), text("klmnopqrst"));
+
+    ByteBuf first = channel.readOutbound();
+    assertThat(first.toString(US_ASCII)).isEqualTo("0123456789abcdefghij");
+    first.release();
+    assertThat(spilledFiles()).isZero();
+    channel.finishAndReleaseAll();
+  }
+
+  private static ByteBuf text(String text) {
+    return Unpooled.copiedBuffer(text, US_ASCII);
+  }
+
+  private long spilledFiles() throws IOException {
+    try (Stream<Path> files = Files.list(spillDirectory)) {
+      return files.count();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package org.littleshoot.proxy.impl;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+
+final class ResponseCompressorTest {
+  @Test
+  void compressesTextForClientsThatAcceptIt() {
+    HttpHeaders headers = exchange("gzip, deflate", "text/html; charset=utf-8", 100);
+
+    assertThat(headers.get(HttpHeaderNames.CONTENT_ENCODING)).isEqualTo("gzip");
+    assertThat(headers.get(HttpHeaderNames.VARY)).isEqualTo("accept-encoding");
+    assertThat(headers.get(HttpHeaderNames.ETAG)).isEqualTo("W/\"v1\"");
+  }
+
+  @Test
+  void leavesOtherResponsesAlone() {
+    assertThat(exchange("gzip", "image/png", 100).contains(HttpHeaderNames.VARY)).isFalse();
+    assertThat(exchange("gzip", "text/plain", 10).contains(HttpHeaderNames.VARY)).isFalse();
+    assertThat(exchange("identity", "text/plain", 100).contains(HttpHeaderNames.VARY)).isFalse();
+  }
+
+  @Test
+  void readsAcceptEncodingQualities() {
+    assertThat(ResponseCompressor.acceptsGzip(acceptEncoding("br, gzip;q=0.5"))).isTrue();
+    assertThat(ResponseCompressor.acceptsGzip(acceptEncoding("gzip;q=0, *"))).isFalse();
+    assertThat(ResponseCompressor.acceptsGzip(acceptEncoding("*;q=0.1"))).isTrue();
+    assertThat(ResponseCompressor.acceptsGzip(acceptEncoding("br"))).isFalse();
+  }
+
+  @Test
+  void skipsEncodedAndUntransformableResponses() {
+    HttpHeaders headers = new DefaultHttpHeaders().set(HttpHeaderNames.CONTENT_TYPE, "text/css");
+    assertThat(ResponseCompressor.isCompressible(headers, 0)).isTrue();
+    headers.set(HttpHeaderNames.CACHE_CONTROL, "public, no-transform");
+    assertThat(ResponseCompressor.isCompressible(headers, 0)).isFalse();
+    headers.remove(HttpHeaderNames.CACHE_CONTROL).set(HttpHeaderNames.CONTENT_ENCODING, "br");
+    assertThat(ResponseCompressor.isCompressible(headers, 0)).isFalse();
+  }
+
+  /**
+   * Sends a request and then a response with the given body length through a compressor, and
+   * returns the headers of the response written.
+   */
+  private static HttpHeaders exchange(String acceptEncoding, String contentType, int length) {
+    EmbeddedChannel channel = new EmbeddedChannel(new ResponseCompressor(50));
+    DefaultHttpRequest request =
+        new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/resource");
+    request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+    channel.writeInbound(request);
+    ReferenceCountUtil.release(channel.readInbound());
+
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1,
+            HttpResponseStatus.OK,
+            Unpooled.copiedBuffer("a".repeat(length), US_ASCII));
+    response
+        .headers()
+        .set(HttpHeaderNames.CONTENT_TYPE, contentType)
+        .set(HttpHeaderNames.CONTENT_LENGTH, length)
+        .set(HttpHeaderNames.ETAG, "\"v1\"");
+    channel.writeOutbound(response);
+
+    HttpObject written = channel.readOutbound();
+    HttpHeaders headers = new DefaultHttpHeaders().set(((HttpResponse) written).headers());
+    ReferenceCountUtil.release(written);
+    channel.finishAndReleaseAll();
+    return headers;
+  }
+
+  private static HttpHeaders acceptEncoding(String value) {
+    return new DefaultHttpHeaders().set(HttpHeaderNames.ACCEPT_ENCODING, value);
+  }
+}
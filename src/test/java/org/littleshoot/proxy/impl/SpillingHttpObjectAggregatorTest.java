@@ -0,0 +1,124 @@
+package org.littleshoot.proxy.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+final class SpillingHttpObjectAggregatorTest {
+  @TempDir Path spillDirectory;
+
+  @Test
+  void keepsSmallBodiesInMemory() throws IOException {
+    SpillingHttpObjectAggregator.Budget budget =
+        new SpillingHttpObjectAggregator.Budget(spillDirectory, 1000, 100);
+
+    FullHttpRequest request = aggregate(budget, "0123456789", "abcdefghij");
+
+    assertThat(request.content().toString(UTF_8)).isEqualTo("0123456789abcdefghij");
+    assertThat(HttpUtil.getContentLength(request)).isEqualTo(20);
+    assertThat(budget.getMemoryBytes()).isEqualTo(20);
+    assertThat(spilledFiles()).isZero();
+
+    request.release();
+    assertThat(budget.getMemoryBytes()).isZero();
+  }
+
+  @Test
+  void spillsLargeBodiesToDisk() throws IOException {
+    SpillingHttpObjectAggregator.Budget budget =
+        new SpillingHttpObjectAggregator.Budget(spillDirectory, 1000, 15);
+
+    FullHttpRequest request = aggregate(budget, "0123456789", "abcdefghij", "ABCDEFGHIJ");
+
+    assertThat(request.content().toString(UTF_8)).isEqualTo("0123456789abcdefghijABCDEFGHIJ");
+    assertThat(HttpUtil.getContentLength(request)).isEqualTo(30);
+    assertThat(budget.getMemoryBytes()).isZero();
+    assertThat(budget.getSpilledMessages()).isEqualTo(1);
+    assertThat(spilledFiles()).isEqualTo(1);
+
+    request.release();
+    assertThat(spilledFiles()).isZero();
+  }
+
+  @Test
+  void spillsOnceTheSharedBudgetIsUsedUp() throws IOException {
+    SpillingHttpObjectAggregator.Budget budget =
+        new SpillingHttpObjectAggregator.Budget(spillDirectory, 15, 100);
+
+    FullHttpRequest first = aggregate(budget, "0123456789");
+    FullHttpRequest second = aggregate(budget, "abcdefghij");
+
+    assertThat(second.content().toString(UTF_8)).isEqualTo("abcdefghij");
+    assertThat(budget.getMemoryBytes()).isEqualTo(10);
+    assertThat(budget.getSpilledMessages()).isEqualTo(1);
+
+    first.release();
+    second.release();
+    assertThat(budget.getMemoryBytes()).isZero();
+    assertThat(spilledFiles()).isZero();
+  }
+
+  @Test
+  void answersOversizedRequests() throws IOException {
+    SpillingHttpObjectAggregator.Budget budget =
+        new SpillingHttpObjectAggregator.Budget(spillDirectory, 1000, 100);
+    AtomicBoolean oversized = new AtomicBoolean();
+    EmbeddedChannel channel =
+        new EmbeddedChannel(
+            new SpillingHttpObjectAggregator(budget, 15, () -> oversized.set(true)));
+
+    channel.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/"));
+    channel.writeInbound(new DefaultHttpContent(Unpooled.copiedBuffer("0123456789", UTF_8)));
+    channel.writeInbound(new DefaultLastHttpContent(Unpooled.copiedBuffer("abcdefghij", UTF_8)));
+
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+    assertThat(oversized).isTrue();
+    assertThat(channel.<Object>readInbound()).isNull();
+    assertThat(budget.getMemoryBytes()).isZero();
+    channel.finishAndReleaseAll();
+  }
+
+  private static FullHttpRequest aggregate(
+      SpillingHttpObjectAggregator.Budget budget, String... chunks) {
+    EmbeddedChannel channel =
+        new EmbeddedChannel(new SpillingHttpObjectAggregator(budget, 1000, () -> {}));
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/");
+    HttpUtil.setTransferEncodingChunked(request, true);
+    channel.writeInbound(request);
+    for (int i = 0; i < chunks.length - 1; i++) {
+      channel.writeInbound(new DefaultHttpContent(Unpooled.copiedBuffer(chunks[i], UTF_8)));
+    }
+    channel.writeInbound(
+        new DefaultLastHttpContent(Unpooled.copiedBuffer(chunks[chunks.length - 1], UTF_8)));
+    FullHttpRequest aggregated = channel.readInbound();
+    assertThat(HttpUtil.isTransferEncodingChunked(aggregated)).isFalse();
+    channel.finish();
+    return aggregated;
+  }
+
+  private long spilledFiles() throws IOException {
+    try (Stream<Path> files = Files.list(spillDirectory)) {
+      return files.count();
+    }
+  }
+}
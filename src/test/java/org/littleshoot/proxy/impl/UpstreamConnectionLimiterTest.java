@@ -0,0 +1,122 @@
+package org.littleshoot.proxy.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+final class UpstreamConnectionLimiterTest {
+  private final EventExecutor executor = new DefaultEventExecutor();
+
+  @AfterEach
+  void tearDown() {
+    executor.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+  }
+
+  @Test
+  @DisplayName("Grants slots immediately while under the per-host limit")
+  void grantsImmediatelyUnderLimit() {
+    UpstreamConnectionLimiter limiter = new UpstreamConnectionLimiter(2, 0, 10, 0);
+
+    assertThat(limiter.acquire("a:80", executor).isSuccess()).isTrue();
+    assertThat(limiter.acquire("a:80", executor).isSuccess()).isTrue();
+    assertThat(limiter.acquire("b:80", executor).isSuccess()).isTrue();
+
+    assertThat(limiter.getActiveConnections()).isEqualTo(3);
+    assertThat(limiter.getActiveConnections("a:80")).isEqualTo(2);
+    assertThat(limiter.getQueueDepth()).isZero();
+  }
+
+  @Test
+  @DisplayName("Queues requests over the limit and grants them in FIFO order on release")
+  void queuesAndGrantsInOrder() throws Exception {
+    UpstreamConnectionLimiter limiter = new UpstreamConnectionLimiter(1, 0, 10, 0);
+
+    Future<UpstreamConnectionLimiter.Permit> first = limiter.acquire("a:80", executor);
+    Future<UpstreamConnectionLimiter.Permit> second = limiter.acquire("a:80", executor);
+    Future<UpstreamConnectionLimiter.Permit> third = limiter.acquire("a:80", executor);
+
+    assertThat(second.isDone()).isFalse();
+    assertThat(third.isDone()).isFalse();
+    assertThat(limiter.getQueueDepth()).isEqualTo(2);
+    assertThat(limiter.getTotalQueued()).isEqualTo(2);
+
+    first.getNow().release();
+    assertThat(second.await(1, TimeUnit.SECONDS)).isTrue();
+    assertThat(second.isSuccess()).isTrue();
+    assertThat(third.isDone()).isFalse();
+
+    second.getNow().release();
+    assertThat(third.await(1, TimeUnit.SECONDS)).isTrue();
+    assertThat(limiter.getQueueDepth()).isZero();
+    assertThat(limiter.getActiveConnections("a:80")).isEqualTo(1);
+  }
+
+  @Test
+  @DisplayName("A busy origin does not block queued requests for other origins")
+  void skipsWaitersForBusyOrigins() throws Exception {
+    UpstreamConnectionLimiter limiter = new UpstreamConnectionLimiter(1, 2, 10, 0);
+
+    Future<UpstreamConnectionLimiter.Permit> a = limiter.acquire("a:80", executor);
+    Future<UpstreamConnectionLimiter.Permit> b = limiter.acquire("b:80", executor);
+    Future<UpstreamConnectionLimiter.Permit> waitingForA = limiter.acquire("a:80", executor);
+    Future<UpstreamConnectionLimiter.Permit> waitingForC = limiter.acquire("c:80", executor);
+
+    assertThat(limiter.getQueueDepth()).isEqualTo(2);
+
+    b.getNow().release();
+    assertThat(waitingForC.await(1, TimeUnit.SECONDS)).isTrue();
+    assertThat(waitingForA.isDone()).isFalse();
+
+    a.getNow().release();
+    assertThat(waitingForA.await(1, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  @DisplayName("Rejects requests when the queue is full")
+  void rejectsWhenQueueIsFull() {
+    UpstreamConnectionLimiter limiter = new UpstreamConnectionLimiter(0, 1, 1, 0);
+
+    limiter.acquire("a:80", executor);
+    limiter.acquire("a:80", executor);
+    Future<UpstreamConnectionLimiter.Permit> rejected = limiter.acquire("b:80", executor);
+
+    assertThat(rejected.isDone()).isTrue();
+    assertThat(rejected.cause()).isInstanceOf(RejectedExecutionException.class);
+    assertThat(limiter.getTotalRejected()).isEqualTo(1);
+  }
+
+  @Test
+  @DisplayName("Fails queued requests that wait longer than the queue timeout")
+  void timesOutQueuedRequests() throws Exception {
+    UpstreamConnectionLimiter limiter = new UpstreamConnectionLimiter(1, 0, 10, 50);
+
+    limiter.acquire("a:80", executor);
+    Future<UpstreamConnectionLimiter.Permit> queued = limiter.acquire("a:80", executor);
+
+    assertThat(queued.await(1, TimeUnit.SECONDS)).isTrue();
+    assertThat(queued.cause()).isInstanceOf(TimeoutException.class);
+    assertThat(limiter.getTotalTimedOut()).isEqualTo(1);
+    assertThat(limiter.getQueueDepth()).isZero();
+  }
+
+  @Test
+  @DisplayName("Releasing a permit twice frees only one slot")
+  void releaseIsIdempotent() {
+    UpstreamConnectionLimiter limiter = new UpstreamConnectionLimiter(0, 2, 10, 0);
+
+    UpstreamConnectionLimiter.Permit permit = limiter.acquire("a:80", executor).getNow();
+    limiter.acquire("b:80", executor);
+    permit.release();
+    permit.release();
+
+    assertThat(limiter.getActiveConnections()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,134 @@
+package org.littleshoot.proxy.impl;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.WebSocketFrameView;
+
+final class WebSocketFrameReaderTest {
+  private static final UnpooledByteBufAllocator ALLOC = new UnpooledByteBufAllocator(false);
+
+  private final List<String> frames = new ArrayList<>();
+  private final ByteBuf relayed = Unpooled.buffer();
+
+  private final WebSocketFrameReader.Sink sink =
+      new WebSocketFrameReader.Sink() {
+        @Override
+        public void frame(WebSocketFrameReader.Frame frame) {
+          StringBuilder payload = new StringBuilder();
+          frame.forEachPayloadByte(
+              value -> {
+                payload.append((char) value);
+                return true;
+              });
+          String flags = (frame.isFinal() ? "" : "+") + (frame.isMasked() ? "m" : "");
+          frames.add(frame.opcode() + flags + ":" + payload);
+          bytes(frame.content());
+        }
+
+        @Override
+        public void bytes(ByteBuf bytes) {
+          relayed.writeBytes(bytes);
+          bytes.release();
+        }
+      };
+
+  @Test
+  void splitsReadsIntoFrames() {
+    ByteBuf first = frame(0x01, "Hello", null);
+    ByteBuf second = frame(0x80, " world", new byte[] {1, 2, 3, 4});
+    ByteBuf stream = Unpooled.wrappedBuffer(first, second);
+    byte[] expected = new byte[stream.readableBytes()];
+    stream.getBytes(0, expected);
+    WebSocketFrameReader reader = new WebSocketFrameReader(1024, ALLOC);
+
+    // the reads cut through the header of the second frame and its payload
+    assertThat(reader.read(stream.readRetainedSlice(8), sink)).isEqualTo(1);
+    assertThat(reader.read(stream.readRetainedSlice(5), sink)).isZero();
+    assertThat(reader.read(stream.readRetainedSlice(stream.readableBytes()), sink)).isEqualTo(1);
+
+    assertThat(frames).containsExactly("1+:Hello", "0m: world");
+    assertThat(toArray(relayed)).isEqualTo(expected);
+    reader.release();
+    stream.release();
+  }
+
+  @Test
+  void relaysLongFramesAsTheyArrive() {
+    String payload = "x".repeat(300);
+    ByteBuf frame = frame(0x82, payload, null);
+    int length = frame.readableBytes();
+    WebSocketFrameReader reader = new WebSocketFrameReader(100, ALLOC);
+
+    assertThat(reader.read(frame.readRetainedSlice(50), sink)).isEqualTo(1);
+    assertThat(relayed.readableBytes()).isEqualTo(50);
+    assertThat(reader.read(frame.readRetainedSlice(length - 50), sink)).isZero();
+    assertThat(relayed.readableBytes()).isEqualTo(length);
+    assertThat(frames).isEmpty();
+
+    ByteBuf ping = frame(0x89, "", null);
+    assertThat(reader.read(ping, sink)).isEqualTo(1);
+    assertThat(frames).containsExactly("9:");
+    reader.release();
+    frame.release();
+  }
+
+  @Test
+  void exposesReadOnlyViews() {
+    WebSocketFrameReader reader = new WebSocketFrameReader(1024, ALLOC);
+    List<String> payloads = new ArrayList<>();
+    reader.read(
+        frame(0x81, "text", null),
+        new WebSocketFrameReader.Sink() {
+          @Override
+          public void frame(WebSocketFrameReader.Frame frame) {
+            WebSocketFrameView view = frame;
+            assertThat(view.opcode()).isEqualTo(WebSocketFrameView.OPCODE_TEXT);
+            assertThat(view.frame().isReadOnly()).isTrue();
+            assertThat(view.frame().readableBytes()).isEqualTo(6);
+            payloads.add(view.payload().toString(US_ASCII));
+            frame.content().release();
+          }
+
+          @Override
+          public void bytes(ByteBuf bytes) {
+            bytes.release();
+          }
+        });
+
+    assertThat(payloads).containsExactly("text");
+    reader.release();
+  }
+
+  private static byte[] toArray(ByteBuf buffer) {
+    byte[] bytes = new byte[buffer.readableBytes()];
+    buffer.getBytes(buffer.readerIndex(), bytes);
+    return bytes;
+  }
+
+  /** Encodes a frame with the given first byte, payload and, if not null, masking key. */
+  private static ByteBuf frame(int firstByte, String payload, byte[] mask) {
+    byte[] bytes = payload.getBytes(US_ASCII);
+    ByteBuf frame = Unpooled.buffer();
+    frame.writeByte(firstByte);
+    int maskBit = mask == null ? 0 : 0x80;
+    if (bytes.length < 126) {
+      frame.writeByte(maskBit | bytes.length);
+    } else {
+      frame.writeByte(maskBit | 126).writeShort(bytes.length);
+    }
+    if (mask != null) {
+      frame.writeBytes(mask);
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      frame.writeByte(mask == null ? bytes[i] : bytes[i] ^ mask[i % 4]);
+    }
+    return frame;
+  }
+}